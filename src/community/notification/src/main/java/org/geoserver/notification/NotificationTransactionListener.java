@@ -91,7 +91,7 @@ public class NotificationTransactionListener extends NotificationListener implem
         TransactionEventType eventType = event.getType();
         Integer affectedFeatures = event.getAffectedFeatures().size();
         FeatureType featureType = event.getAffectedFeatures().getSchema();
-        ReferencedEnvelope featureBound = event.getAffectedFeatures().getBounds();
+        ReferencedEnvelope featureBound = event.getAffectedBounds();
         FeatureTypeInfo fti = this.catalog.getFeatureTypeByName(featureType.getName());
         CatalogInfo info = ModificationProxy.unwrap(fti);
         String featureTypeName = featureType.getName().getURI();
@@ -0,0 +1,56 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.data.gen;
+
+import java.io.IOException;
+
+import org.geotools.data.FeatureLock;
+import org.geotools.data.FeatureLocking;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureLocking;
+import org.opengis.filter.Filter;
+
+/**
+ * Generalizing wrapper for a {@link FeatureLocking} instance
+ */
+class GeneralizingFeatureLocking extends GeneralizingFeatureStore implements SimpleFeatureLocking {
+
+    GeneralizingFeatureLocking(SimpleFeatureLocking delegate,
+            ManagedGeneralization generalization, String featureTypeId) {
+        super(delegate, generalization, featureTypeId);
+    }
+
+    SimpleFeatureLocking featureLocking() {
+        return (SimpleFeatureLocking) delegate;
+    }
+
+    public int lockFeatures() throws IOException {
+        return featureLocking().lockFeatures();
+    }
+
+    public int lockFeatures(Query query) throws IOException {
+        return featureLocking().lockFeatures(query);
+    }
+
+    public int lockFeatures(Filter filter) throws IOException {
+        return featureLocking().lockFeatures(filter);
+    }
+
+    public void setFeatureLock(FeatureLock lock) {
+        featureLocking().setFeatureLock(lock);
+    }
+
+    public void unLockFeatures() throws IOException {
+        featureLocking().unLockFeatures();
+    }
+
+    public void unLockFeatures(Filter filter) throws IOException {
+        featureLocking().unLockFeatures(filter);
+    }
+
+    public void unLockFeatures(Query query) throws IOException {
+        featureLocking().unLockFeatures(query);
+    }
+}
@@ -0,0 +1,72 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.data.gen;
+
+import java.awt.RenderingHints.Key;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.geoserver.security.decorators.DecoratingSimpleFeatureSource;
+import org.geotools.data.FeatureLocking;
+import org.geotools.data.FeatureStore;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureLocking;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.factory.Hints;
+
+/**
+ * Feature source routing the queries carrying a {@link Hints#GEOMETRY_DISTANCE} hint (as issued
+ * by the renderer) to the generalized levels built by {@link ManagedGeneralization}, and every
+ * other query to the original source.
+ */
+public class GeneralizingFeatureSource extends DecoratingSimpleFeatureSource {
+
+    protected final ManagedGeneralization generalization;
+
+    protected final String featureTypeId;
+
+    GeneralizingFeatureSource(SimpleFeatureSource delegate, ManagedGeneralization generalization,
+            String featureTypeId) {
+        super(delegate);
+        this.generalization = generalization;
+        this.featureTypeId = featureTypeId;
+    }
+
+    /**
+     * Wraps the source preserving its nature, returning a {@link SimpleFeatureLocking} or a
+     * {@link SimpleFeatureStore} when the source is one
+     */
+    public static GeneralizingFeatureSource create(SimpleFeatureSource source,
+            ManagedGeneralization generalization, String featureTypeId) {
+        if (source instanceof FeatureLocking) {
+            return new GeneralizingFeatureLocking((SimpleFeatureLocking) source, generalization,
+                    featureTypeId);
+        } else if (source instanceof FeatureStore) {
+            return new GeneralizingFeatureStore((SimpleFeatureStore) source, generalization,
+                    featureTypeId);
+        }
+        return new GeneralizingFeatureSource(source, generalization, featureTypeId);
+    }
+
+    @Override
+    public Set<Key> getSupportedHints() {
+        Set<Key> hints = new HashSet<>(delegate.getSupportedHints());
+        hints.add(Hints.GEOMETRY_DISTANCE);
+        return hints;
+    }
+
+    @Override
+    public SimpleFeatureCollection getFeatures(Query query) throws IOException {
+        SimpleFeatureCollection generalized = generalization.getFeatures(featureTypeId,
+                getSchema(), query);
+        if (generalized != null) {
+            return generalized;
+        }
+        return delegate.getFeatures(query);
+    }
+}
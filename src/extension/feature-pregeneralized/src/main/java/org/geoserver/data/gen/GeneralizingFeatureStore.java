@@ -0,0 +1,88 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.data.gen;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.geotools.data.FeatureReader;
+import org.geotools.data.FeatureStore;
+import org.geotools.data.Transaction;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.feature.FeatureCollection;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.Name;
+import org.opengis.filter.Filter;
+import org.opengis.filter.identity.FeatureId;
+
+/**
+ * Generalizing wrapper for a {@link FeatureStore} instance, writes are simply delegated, the
+ * generalized levels get rebuilt once the transaction is committed
+ */
+class GeneralizingFeatureStore extends GeneralizingFeatureSource implements SimpleFeatureStore {
+
+    GeneralizingFeatureStore(SimpleFeatureStore delegate, ManagedGeneralization generalization,
+            String featureTypeId) {
+        super(delegate, generalization, featureTypeId);
+    }
+
+    protected SimpleFeatureStore featureStore() {
+        return (SimpleFeatureStore) delegate;
+    }
+
+    public Transaction getTransaction() {
+        return featureStore().getTransaction();
+    }
+
+    public void setTransaction(Transaction transaction) {
+        featureStore().setTransaction(transaction);
+    }
+
+    public List<FeatureId> addFeatures(
+            FeatureCollection<SimpleFeatureType, SimpleFeature> collection) throws IOException {
+        return featureStore().addFeatures(collection);
+    }
+
+    public void removeFeatures(Filter filter) throws IOException {
+        featureStore().removeFeatures(filter);
+    }
+
+    public void setFeatures(FeatureReader<SimpleFeatureType, SimpleFeature> reader)
+            throws IOException {
+        featureStore().setFeatures(reader);
+    }
+
+    public void modifyFeatures(AttributeDescriptor type, Object value, Filter filter)
+            throws IOException {
+        featureStore().modifyFeatures(type, value, filter);
+    }
+
+    public void modifyFeatures(AttributeDescriptor[] type, Object[] values, Filter filter)
+            throws IOException {
+        featureStore().modifyFeatures(type, values, filter);
+    }
+
+    public void modifyFeatures(String name, Object attributeValue, Filter filter)
+            throws IOException {
+        featureStore().modifyFeatures(name, attributeValue, filter);
+    }
+
+    public void modifyFeatures(String[] names, Object[] attributeValues, Filter filter)
+            throws IOException {
+        featureStore().modifyFeatures(names, attributeValues, filter);
+    }
+
+    public void modifyFeatures(Name[] names, Object[] attributeValues, Filter filter)
+            throws IOException {
+        featureStore().modifyFeatures(names, attributeValues, filter);
+    }
+
+    public void modifyFeatures(Name attributeName, Object attributeValue, Filter filter)
+            throws IOException {
+        featureStore().modifyFeatures(attributeName, attributeValue, filter);
+    }
+}
@@ -0,0 +1,81 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.data.gen;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.sort.SortBy;
+
+/**
+ * Maps the features read from a generalized level back to the layer feature type, restoring the
+ * original feature identifiers
+ */
+class LevelFeatureCollection extends DecoratingSimpleFeatureCollection {
+
+    final SimpleFeatureType target;
+
+    LevelFeatureCollection(SimpleFeatureCollection delegate, SimpleFeatureType target) {
+        super(delegate);
+        this.target = target;
+    }
+
+    @Override
+    public SimpleFeatureType getSchema() {
+        return target;
+    }
+
+    @Override
+    public SimpleFeatureIterator features() {
+        return new LevelFeatureIterator(delegate.features(), target);
+    }
+
+    @Override
+    public SimpleFeatureCollection subCollection(Filter filter) {
+        return new LevelFeatureCollection(delegate.subCollection(filter), target);
+    }
+
+    @Override
+    public SimpleFeatureCollection sort(SortBy order) {
+        return new LevelFeatureCollection(delegate.sort(order), target);
+    }
+
+    static class LevelFeatureIterator implements SimpleFeatureIterator {
+
+        final SimpleFeatureIterator delegate;
+
+        final SimpleFeatureBuilder builder;
+
+        LevelFeatureIterator(SimpleFeatureIterator delegate, SimpleFeatureType target) {
+            this.delegate = delegate;
+            this.builder = new SimpleFeatureBuilder(target);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public SimpleFeature next() {
+            SimpleFeature source = delegate.next();
+            for (AttributeDescriptor ad : builder.getFeatureType().getAttributeDescriptors()) {
+                builder.add(source.getAttribute(ad.getLocalName()));
+            }
+            Object fid = source.getAttribute(ManagedGeneralization.FID_ATTRIBUTE);
+            return builder.buildFeature(fid != null ? fid.toString() : null);
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,663 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.data.gen;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import net.opengis.wfs.TransactionResponseType;
+import net.opengis.wfs.TransactionType;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.FeatureSourceDecorator;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionPlugin;
+import org.geoserver.wfs.WFSException;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.data.h2.H2DataStoreFactory;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.factory.Hints;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.filter.visitor.DefaultFilterVisitor;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.jdbc.JDBCDataStoreFactory;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.Id;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+
+/**
+ * Builds and maintains generalized copies of the geometries of selected layers, without the need
+ * to set up the generalized tables and the {@code GeneralizationInfos} configuration by hand.
+ * <p>
+ * The managed mode is enabled on a feature type by setting the {@link #LEVELS_KEY} metadata to the
+ * number of levels to be built. Level {@code z} matches zoom level {@code z} of a 256 pixels tile
+ * pyramid covering the layer bounds, and its geometries are simplified with a tolerance of one
+ * pixel at that zoom level. The levels are built in the background, from the source of the store
+ * before any GeoServer wrapper, and stored in a H2 database in the {@code generalization} directory
+ * of the data directory, until they are ready the layer is served from the original data. The
+ * stored levels are reused after a restart if the schema, the number of levels, and the feature
+ * count and bounds of the data did not change.
+ * <p>
+ * Rendering queries, which carry the {@link Hints#GEOMETRY_DISTANCE} hint, are routed to the
+ * coarsest level whose tolerance is not greater than the requested distance, all other queries hit
+ * the original data. WFS transactions against the layer make it fall back on the original data
+ * immediately, the levels are then rebuilt {@link #REBUILD_DELAY} seconds after the transaction,
+ * so that bursts of transactions cause a single rebuild. The same delay applies when the schema of
+ * the data or the number of levels change.
+ */
+public class ManagedGeneralization implements FeatureSourceDecorator, TransactionPlugin,
+        CatalogListener, GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(ManagedGeneralization.class);
+
+    /**
+     * Feature type metadata key holding the number of generalized levels to be built
+     */
+    public static final String LEVELS_KEY = "generalizationLevels";
+
+    /**
+     * Delay, in seconds, between a transaction and the rebuild of the generalized levels
+     */
+    public static final String REBUILD_DELAY = "GENERALIZATION_REBUILD_DELAY";
+
+    static final long DEFAULT_REBUILD_DELAY = 10;
+
+    /**
+     * Attribute holding the identifier of the original feature in the generalized levels
+     */
+    static final String FID_ATTRIBUTE = "GS_FID";
+
+    static final int TILE_SIZE = 256;
+
+    /**
+     * Table recording which levels have been built, and out of which data
+     */
+    static final String LEVELS_TABLE = "GEN_LEVELS";
+
+    static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+    final Catalog catalog;
+
+    final GeoServerResourceLoader loader;
+
+    final long rebuildDelay;
+
+    final Map<String, Levels> levels = new ConcurrentHashMap<>();
+
+    final ScheduledExecutorService executor;
+
+    JDBCDataStore store;
+
+    public ManagedGeneralization(Catalog catalog, GeoServerResourceLoader loader) {
+        this.catalog = catalog;
+        this.loader = loader;
+        this.rebuildDelay = GeoServerExtensions.getLongProperty(REBUILD_DELAY,
+                DEFAULT_REBUILD_DELAY);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("GeneralizationBuilder-%d").setDaemon(true).build());
+        catalog.addListener(this);
+    }
+
+    @Override
+    public SimpleFeatureSource decorate(FeatureTypeInfo info, SimpleFeatureSource source)
+            throws IOException {
+        Integer count = info.getMetadata().get(LEVELS_KEY, Integer.class);
+        SimpleFeatureType schema = source.getSchema();
+        if (count == null || count <= 0 || !canGeneralize(schema)) {
+            // the managed mode might have just been turned off
+            drop(info.getId());
+            return source;
+        }
+
+        long delay = 0;
+        Levels current = levels.get(info.getId());
+        if (current != null && (current.count != count || !current.schema.equals(schema))) {
+            drop(info.getId());
+            delay = rebuildDelay;
+        }
+        Levels layerLevels = levels.computeIfAbsent(info.getId(),
+                id -> new Levels(id, count, schema));
+        layerLevels.source = source;
+        if (!layerLevels.ready && !layerLevels.failed) {
+            schedule(layerLevels, delay);
+        }
+        return GeneralizingFeatureSource.create(source, this, info.getId());
+    }
+
+    static boolean canGeneralize(SimpleFeatureType schema) {
+        GeometryDescriptor gd = schema.getGeometryDescriptor();
+        if (gd == null) {
+            return false;
+        }
+        // nothing to simplify in points
+        Class<?> binding = gd.getType().getBinding();
+        return !Point.class.isAssignableFrom(binding)
+                && !MultiPoint.class.isAssignableFrom(binding);
+    }
+
+    /**
+     * Returns the features of the level matching the query generalization distance, or null if
+     * the query should be run against the original data
+     *
+     * @param featureTypeId The feature type identifier
+     * @param schema The feature type, as exposed by the original feature source
+     * @param query The query
+     */
+    SimpleFeatureCollection getFeatures(String featureTypeId, SimpleFeatureType schema,
+            Query query) throws IOException {
+        Levels layerLevels = levels.get(featureTypeId);
+        if (layerLevels == null || !layerLevels.ready) {
+            return null;
+        }
+        Object distance = query.getHints().get(Hints.GEOMETRY_DISTANCE);
+        if (!(distance instanceof Number)) {
+            return null;
+        }
+        int level = getLevel(layerLevels.tolerances, ((Number) distance).doubleValue());
+        // the generalized levels do not have the original ids
+        if (level < 0 || (query.getFilter() != null && hasIds(query.getFilter()))) {
+            return null;
+        }
+
+        String typeName = layerLevels.typeNames[level];
+        Query levelQuery = new Query(query);
+        levelQuery.setTypeName(typeName);
+        SimpleFeatureType target = schema;
+        if (!query.retrieveAllProperties()) {
+            String[] names = query.getPropertyNames();
+            target = SimpleFeatureTypeBuilder.retype(schema, names);
+            String[] levelNames = Arrays.copyOf(names, names.length + 1);
+            levelNames[names.length] = FID_ATTRIBUTE;
+            levelQuery.setPropertyNames(levelNames);
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Reading " + schema.getTypeName() + " from generalized level " + level);
+        }
+        SimpleFeatureCollection features = getStore().getFeatureSource(typeName)
+                .getFeatures(levelQuery);
+        return new LevelFeatureCollection(features, target);
+    }
+
+    /**
+     * Returns the tolerances of the levels, from the coarsest to the finest, each one matching
+     * the size of a pixel at the corresponding zoom level
+     */
+    static double[] getTolerances(Envelope bounds, int count) {
+        double span = Math.max(bounds.getWidth(), bounds.getHeight());
+        double[] tolerances = new double[count];
+        for (int z = 0; z < count; z++) {
+            tolerances[z] = span / TILE_SIZE / Math.pow(2, z);
+        }
+        return tolerances;
+    }
+
+    /**
+     * Returns the coarsest level whose tolerance does not exceed the given distance, or -1 if even
+     * the finest one is too coarse
+     */
+    static int getLevel(double[] tolerances, double distance) {
+        for (int z = 0; z < tolerances.length; z++) {
+            if (tolerances[z] <= distance) {
+                return z;
+            }
+        }
+        return -1;
+    }
+
+    static boolean hasIds(Filter filter) {
+        final boolean[] found = new boolean[1];
+        filter.accept(new DefaultFilterVisitor() {
+            @Override
+            public Object visit(Id filter, Object data) {
+                found[0] = true;
+                return data;
+            }
+        }, null);
+        return found[0];
+    }
+
+    static String getLevelTypeName(String featureTypeId, int level) {
+        return "GEN_" + featureTypeId.replaceAll("[^A-Za-z0-9]", "_") + "_" + level;
+    }
+
+    synchronized JDBCDataStore getStore() throws IOException {
+        if (store == null) {
+            File directory = loader.findOrCreateDirectory("generalization");
+            Map<String, Object> params = new HashMap<>();
+            params.put(JDBCDataStoreFactory.DBTYPE.key, "h2");
+            params.put(JDBCDataStoreFactory.DATABASE.key,
+                    new File(directory, "levels").getAbsolutePath());
+            store = new H2DataStoreFactory().createDataStore(params);
+        }
+        return store;
+    }
+
+    void schedule(Levels layerLevels, long delay) {
+        if (layerLevels.pending.compareAndSet(false, true)) {
+            executor.schedule(() -> build(layerLevels), delay, TimeUnit.SECONDS);
+        }
+    }
+
+    void invalidate(Levels layerLevels) {
+        layerLevels.ready = false;
+        layerLevels.failed = false;
+        layerLevels.reusable = false;
+        layerLevels.version.incrementAndGet();
+        // a restart before the rebuild must not pick up the stored levels
+        executor.execute(() -> {
+            try {
+                getLevelsTable().removeFeatures(getLevelsFilter(layerLevels.featureTypeId));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to mark the generalized levels of "
+                        + layerLevels.featureTypeId + " as stale", e);
+            }
+        });
+    }
+
+    void build(Levels layerLevels) {
+        long version = layerLevels.version.get();
+        try {
+            FeatureTypeInfo info = catalog.getFeatureType(layerLevels.featureTypeId);
+            if (info == null || levels.get(layerLevels.featureTypeId) != layerLevels) {
+                return;
+            }
+            SimpleFeatureSource source = layerLevels.source;
+            String signature = getSignature(source, layerLevels.count);
+            double[] tolerances = null;
+            if (signature != null && layerLevels.reusable) {
+                tolerances = loadLevels(layerLevels, signature);
+            }
+            if (tolerances != null) {
+                LOGGER.info("Reusing the stored generalized levels of " + info.prefixedName());
+            } else {
+                long start = System.currentTimeMillis();
+                tolerances = buildLevels(layerLevels, source);
+                LOGGER.info("Built " + layerLevels.count + " generalized levels for "
+                        + info.prefixedName() + " in " + (System.currentTimeMillis() - start)
+                        + "ms");
+                if (signature != null && layerLevels.version.get() == version) {
+                    saveLevels(layerLevels.featureTypeId, signature, tolerances);
+                }
+            }
+
+            // publish the levels, unless the data changed in the meantime
+            if (layerLevels.version.get() == version) {
+                layerLevels.tolerances = tolerances;
+                layerLevels.reusable = true;
+                layerLevels.ready = true;
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to build the generalized levels of "
+                    + layerLevels.featureTypeId + ", the original data will be used instead", e);
+            layerLevels.failed = true;
+        } finally {
+            layerLevels.pending.set(false);
+        }
+        if (!layerLevels.failed && layerLevels.version.get() != version) {
+            schedule(layerLevels, rebuildDelay);
+        }
+    }
+
+    /**
+     * Returns a signature of the data the levels are built from, or null if the source cannot
+     * provide a cheap feature count nor bounds, and thus changes in the data cannot be detected
+     */
+    String getSignature(SimpleFeatureSource source, int count) throws IOException {
+        int features = source.getCount(Query.ALL);
+        ReferencedEnvelope bounds = source.getBounds();
+        if (features < 0 && bounds == null) {
+            return null;
+        }
+        return DataUtilities.encodeType(source.getSchema()) + ";" + count + ";" + features + ";"
+                + bounds;
+    }
+
+    /**
+     * Returns the tolerances of the stored levels, if they have been built out of data with the
+     * same signature, or null otherwise
+     */
+    double[] loadLevels(Levels layerLevels, String signature) throws IOException {
+        Filter filter = getLevelsFilter(layerLevels.featureTypeId);
+        try (SimpleFeatureIterator fi = getLevelsTable().getFeatures(filter).features()) {
+            if (!fi.hasNext()) {
+                return null;
+            }
+            SimpleFeature record = fi.next();
+            String[] values = String.valueOf(record.getAttribute("TOLERANCES")).split(",");
+            if (!signature.equals(record.getAttribute("SIGNATURE"))
+                    || values.length != layerLevels.count) {
+                return null;
+            }
+            List<String> typeNames = Arrays.asList(getStore().getTypeNames());
+            double[] tolerances = new double[layerLevels.count];
+            for (int z = 0; z < layerLevels.count; z++) {
+                if (!typeNames.contains(layerLevels.typeNames[z])) {
+                    return null;
+                }
+                tolerances[z] = Double.parseDouble(values[z]);
+            }
+            return tolerances;
+        }
+    }
+
+    void saveLevels(String featureTypeId, String signature, double[] tolerances)
+            throws IOException {
+        SimpleFeatureStore table = getLevelsTable();
+        table.removeFeatures(getLevelsFilter(featureTypeId));
+        StringBuilder sb = new StringBuilder();
+        for (double tolerance : tolerances) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(tolerance);
+        }
+        SimpleFeature record = DataUtilities.template(table.getSchema());
+        record.setAttribute("FEATURE_TYPE", featureTypeId);
+        record.setAttribute("SIGNATURE", signature);
+        record.setAttribute("TOLERANCES", sb.toString());
+        table.addFeatures(DataUtilities.collection(record));
+    }
+
+    /**
+     * Returns the table recording the built levels, creating it if missing. Only called by the
+     * builder thread.
+     */
+    SimpleFeatureStore getLevelsTable() throws IOException {
+        JDBCDataStore store = getStore();
+        if (!Arrays.asList(store.getTypeNames()).contains(LEVELS_TABLE)) {
+            SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+            tb.setName(LEVELS_TABLE);
+            tb.add("FEATURE_TYPE", String.class);
+            tb.add("SIGNATURE", String.class);
+            tb.add("TOLERANCES", String.class);
+            store.createSchema(tb.buildFeatureType());
+        }
+        return (SimpleFeatureStore) store.getFeatureSource(LEVELS_TABLE);
+    }
+
+    static Filter getLevelsFilter(String featureTypeId) {
+        return FF.equals(FF.property("FEATURE_TYPE"), FF.literal(featureTypeId));
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    double[] buildLevels(Levels layerLevels, SimpleFeatureSource source) throws IOException {
+        // the source is the one of the store, with the native CRS, and below GeoServer wrappers
+        int count = layerLevels.count;
+        String[] typeNames = layerLevels.typeNames;
+        SimpleFeatureType schema = source.getSchema();
+        ReferencedEnvelope bounds = source.getBounds();
+        if (bounds == null) {
+            bounds = source.getFeatures().getBounds();
+        }
+        double[] tolerances = getTolerances(bounds, count);
+
+        JDBCDataStore store = getStore();
+        Transaction transaction = new DefaultTransaction();
+        FeatureWriter<SimpleFeatureType, SimpleFeature>[] writers = new FeatureWriter[count];
+        SimpleFeatureIterator fi = null;
+        try {
+            for (int z = 0; z < count; z++) {
+                if (Arrays.asList(store.getTypeNames()).contains(typeNames[z])) {
+                    store.removeSchema(typeNames[z]);
+                }
+                SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+                tb.init(schema);
+                tb.setName(typeNames[z]);
+                tb.add(FID_ATTRIBUTE, String.class);
+                store.createSchema(tb.buildFeatureType());
+                writers[z] = store.getFeatureWriterAppend(typeNames[z], transaction);
+            }
+
+            // single scan of the original data, feeding all levels
+            String geometryName = schema.getGeometryDescriptor().getLocalName();
+            fi = source.getFeatures().features();
+            while (fi.hasNext()) {
+                SimpleFeature feature = fi.next();
+                Geometry geometry = (Geometry) feature.getDefaultGeometry();
+                for (int z = 0; z < count; z++) {
+                    SimpleFeature generalized = writers[z].next();
+                    for (AttributeDescriptor ad : schema.getAttributeDescriptors()) {
+                        generalized.setAttribute(ad.getLocalName(),
+                                feature.getAttribute(ad.getLocalName()));
+                    }
+                    if (geometry != null) {
+                        generalized.setAttribute(geometryName,
+                                TopologyPreservingSimplifier.simplify(geometry, tolerances[z]));
+                    }
+                    generalized.setAttribute(FID_ATTRIBUTE, feature.getID());
+                    writers[z].write();
+                }
+            }
+            transaction.commit();
+        } catch (IOException | RuntimeException e) {
+            transaction.rollback();
+            throw e;
+        } finally {
+            if (fi != null) {
+                fi.close();
+            }
+            for (FeatureWriter<SimpleFeatureType, SimpleFeature> writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+            transaction.close();
+        }
+
+        return tolerances;
+    }
+
+    /**
+     * Drops the levels of the specified feature type
+     */
+    void drop(String featureTypeId) {
+        Levels layerLevels = levels.remove(featureTypeId);
+        if (layerLevels == null) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                JDBCDataStore store = getStore();
+                getLevelsTable().removeFeatures(getLevelsFilter(featureTypeId));
+                for (String typeName : layerLevels.typeNames) {
+                    if (Arrays.asList(store.getTypeNames()).contains(typeName)) {
+                        store.removeSchema(typeName);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to drop the generalized levels of "
+                        + featureTypeId, e);
+            }
+        });
+    }
+
+    @Override
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        // stop using the levels right away, they will be rebuilt after the transaction
+        QName name = event.getLayerName();
+        if (name == null) {
+            levels.values().forEach(this::invalidate);
+            return;
+        }
+        FeatureTypeInfo info = catalog.getFeatureTypeByName(name.getNamespaceURI(),
+                name.getLocalPart());
+        Levels layerLevels = info == null ? null : levels.get(info.getId());
+        if (layerLevels != null) {
+            invalidate(layerLevels);
+        }
+    }
+
+    @Override
+    public TransactionType beforeTransaction(TransactionType request) throws WFSException {
+        return request;
+    }
+
+    @Override
+    public void beforeCommit(TransactionType request) throws WFSException {
+        // nothing to do
+    }
+
+    @Override
+    public void afterTransaction(TransactionType request, TransactionResponseType result,
+            boolean committed) {
+        for (Levels layerLevels : levels.values()) {
+            if (!layerLevels.ready && !layerLevels.failed) {
+                schedule(layerLevels, rebuildDelay);
+            }
+        }
+    }
+
+    @Override
+    public int getPriority() {
+        return 0;
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        if (event.getSource() instanceof FeatureTypeInfo) {
+            drop(event.getSource().getId());
+        }
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        // changes to the schema or to the number of levels are picked up when the feature source
+        // is decorated again, other changes do not affect the levels
+    }
+
+    @Override
+    public void reloaded() {
+        levels.clear();
+    }
+
+    @Override
+    public void onReset() {
+        // nothing to do
+    }
+
+    @Override
+    public synchronized void onDispose() {
+        executor.shutdownNow();
+        levels.clear();
+        if (store != null) {
+            store.dispose();
+            store = null;
+        }
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        levels.clear();
+    }
+
+    /**
+     * The generalized levels of a feature type, and their state
+     */
+    static final class Levels {
+        final String featureTypeId;
+
+        final int count;
+
+        /**
+         * The schema the levels are built from
+         */
+        final SimpleFeatureType schema;
+
+        final String[] typeNames;
+
+        /**
+         * Incremented each time the original data changes
+         */
+        final AtomicLong version = new AtomicLong();
+
+        /**
+         * True while a build is scheduled or running
+         */
+        final AtomicBoolean pending = new AtomicBoolean();
+
+        volatile boolean ready;
+
+        volatile boolean failed;
+
+        /**
+         * False if the data changed since the stored levels were built
+         */
+        volatile boolean reusable = true;
+
+        volatile double[] tolerances;
+
+        volatile SimpleFeatureSource source;
+
+        Levels(String featureTypeId, int count, SimpleFeatureType schema) {
+            this.featureTypeId = featureTypeId;
+            this.count = count;
+            this.schema = schema;
+            this.typeNames = new String[count];
+            for (int z = 0; z < count; z++) {
+                typeNames[z] = getLevelTypeName(featureTypeId, z);
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.data.gen;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.MetadataMap;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.factory.Hints;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.FilterFactory2;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class ManagedGeneralizationTest {
+
+    static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTolerancesAndLevels() {
+        double[] tolerances = ManagedGeneralization.getTolerances(new Envelope(0, 512, 0, 256),
+                3);
+        assertArrayEquals(new double[] { 2, 1, 0.5 }, tolerances, 0d);
+
+        assertEquals(0, ManagedGeneralization.getLevel(tolerances, 10));
+        assertEquals(1, ManagedGeneralization.getLevel(tolerances, 1.5));
+        assertEquals(2, ManagedGeneralization.getLevel(tolerances, 0.5));
+        assertEquals(-1, ManagedGeneralization.getLevel(tolerances, 0.1));
+    }
+
+    @Test
+    public void testCanGeneralize() throws Exception {
+        assertTrue(ManagedGeneralization
+                .canGeneralize(DataUtilities.createType("t", "geom:MultiPolygon")));
+        assertFalse(ManagedGeneralization
+                .canGeneralize(DataUtilities.createType("t", "geom:Point")));
+        assertFalse(ManagedGeneralization.canGeneralize(DataUtilities.createType("t", "a:int")));
+    }
+
+    @Test
+    public void testHasIds() {
+        assertTrue(ManagedGeneralization.hasIds(FF.and(FF.id(FF.featureId("t.1")),
+                FF.equals(FF.property("a"), FF.literal(1)))));
+        assertFalse(ManagedGeneralization.hasIds(FF.equals(FF.property("a"), FF.literal(1))));
+    }
+
+    @Test
+    public void testLevelFeatureCollection() throws Exception {
+        SimpleFeatureType levelType = DataUtilities.createType("GEN_1",
+                "geom:LineString,name:String," + ManagedGeneralization.FID_ATTRIBUTE + ":String");
+        ListFeatureCollection level = new ListFeatureCollection(levelType);
+        level.add(SimpleFeatureBuilder.build(levelType, new Object[] { null, "abc", "roads.12" },
+                "GEN_1.1"));
+
+        SimpleFeatureType target = DataUtilities.createType("roads",
+                "geom:LineString,name:String");
+        LevelFeatureCollection fc = new LevelFeatureCollection(level, target);
+        assertEquals(target, fc.getSchema());
+        try (SimpleFeatureIterator fi = fc.features()) {
+            SimpleFeature f = fi.next();
+            assertEquals("roads.12", f.getID());
+            assertEquals("abc", f.getAttribute("name"));
+            assertEquals(target, f.getFeatureType());
+            assertFalse(fi.hasNext());
+        }
+    }
+
+    @Test
+    public void testBuildAndSelectLevel() throws Exception {
+        FeatureTypeInfo ft = featureType(3);
+        Catalog catalog = catalog(ft);
+        GeoServerResourceLoader loader = new GeoServerResourceLoader(folder.getRoot());
+        SimpleFeatureSource source = zigzag(1);
+
+        ManagedGeneralization generalization = new ManagedGeneralization(catalog, loader);
+        try {
+            SimpleFeatureSource decorated = generalization.decorate(ft, source);
+            waitForLevels(generalization, ft.getId());
+
+            // tolerances are 2, 1 and 0.5, a distance of 1.5 selects the middle level
+            SimpleFeatureCollection features = decorated.getFeatures(query(1.5));
+            assertTrue(features instanceof LevelFeatureCollection);
+            SimpleFeature generalized = DataUtilities.first(features);
+            assertEquals("zigzag.0", generalized.getID());
+            SimpleFeature level = DataUtilities.first(generalization.getStore()
+                    .getFeatureSource(ManagedGeneralization.getLevelTypeName(ft.getId(), 1))
+                    .getFeatures());
+            assertEquals(level.getDefaultGeometry(), generalized.getDefaultGeometry());
+            Geometry original = (Geometry) DataUtilities.first(source.getFeatures())
+                    .getDefaultGeometry();
+            assertTrue(((Geometry) generalized.getDefaultGeometry())
+                    .getNumPoints() < original.getNumPoints());
+
+            // too small a distance, or no distance at all, hit the original data
+            assertFalse(decorated.getFeatures(query(0.1)) instanceof LevelFeatureCollection);
+            assertFalse(decorated
+                    .getFeatures(new Query("zigzag")) instanceof LevelFeatureCollection);
+        } finally {
+            generalization.onDispose();
+        }
+    }
+
+    @Test
+    public void testReuseStoredLevels() throws Exception {
+        FeatureTypeInfo ft = featureType(2);
+        Catalog catalog = catalog(ft);
+        GeoServerResourceLoader loader = new GeoServerResourceLoader(folder.getRoot());
+
+        CountingGeneralization generalization = new CountingGeneralization(catalog, loader);
+        try {
+            generalization.decorate(ft, zigzag(1));
+            waitForLevels(generalization, ft.getId());
+            assertEquals(1, generalization.builds.get());
+        } finally {
+            generalization.onDispose();
+        }
+
+        // same data after a restart, the stored levels are used
+        generalization = new CountingGeneralization(catalog, loader);
+        try {
+            generalization.decorate(ft, zigzag(1));
+            waitForLevels(generalization, ft.getId());
+            assertEquals(0, generalization.builds.get());
+        } finally {
+            generalization.onDispose();
+        }
+
+        // the data changed, the levels are built again
+        generalization = new CountingGeneralization(catalog, loader);
+        try {
+            generalization.decorate(ft, zigzag(2));
+            waitForLevels(generalization, ft.getId());
+            assertEquals(1, generalization.builds.get());
+        } finally {
+            generalization.onDispose();
+        }
+    }
+
+    static class CountingGeneralization extends ManagedGeneralization {
+
+        AtomicInteger builds = new AtomicInteger();
+
+        CountingGeneralization(Catalog catalog, GeoServerResourceLoader loader) {
+            super(catalog, loader);
+        }
+
+        @Override
+        double[] buildLevels(Levels layerLevels, SimpleFeatureSource source) throws IOException {
+            builds.incrementAndGet();
+            return super.buildLevels(layerLevels, source);
+        }
+    }
+
+    FeatureTypeInfo featureType(int levels) {
+        MetadataMap metadata = new MetadataMap();
+        metadata.put(ManagedGeneralization.LEVELS_KEY, levels);
+        FeatureTypeInfo ft = createNiceMock(FeatureTypeInfo.class);
+        expect(ft.getId()).andReturn("ft1").anyTimes();
+        expect(ft.prefixedName()).andReturn("test:zigzag").anyTimes();
+        expect(ft.getMetadata()).andReturn(metadata).anyTimes();
+        replay(ft);
+        return ft;
+    }
+
+    Catalog catalog(FeatureTypeInfo ft) {
+        Catalog catalog = createNiceMock(Catalog.class);
+        expect(catalog.getFeatureType(ft.getId())).andReturn(ft).anyTimes();
+        replay(catalog);
+        return catalog;
+    }
+
+    /**
+     * Zigzag lines spanning 512 units, with a 1 unit amplitude
+     */
+    SimpleFeatureSource zigzag(int count) throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("zigzag", "geom:LineString,name:String");
+        ListFeatureCollection fc = new ListFeatureCollection(type);
+        GeometryFactory gf = new GeometryFactory();
+        for (int i = 0; i < count; i++) {
+            Coordinate[] coordinates = new Coordinate[513];
+            for (int x = 0; x < coordinates.length; x++) {
+                coordinates[x] = new Coordinate(x, i * 2 + (x % 2 == 0 ? 0 : 1));
+            }
+            fc.add(SimpleFeatureBuilder.build(type,
+                    new Object[] { gf.createLineString(coordinates), "line" + i },
+                    "zigzag." + i));
+        }
+        return DataUtilities.source(fc);
+    }
+
+    Query query(double distance) {
+        Query query = new Query("zigzag");
+        query.getHints().put(Hints.GEOMETRY_DISTANCE, distance);
+        return query;
+    }
+
+    void waitForLevels(ManagedGeneralization generalization, String featureTypeId)
+            throws Exception {
+        for (int i = 0; i < 300; i++) {
+            ManagedGeneralization.Levels levels = generalization.levels.get(featureTypeId);
+            if (levels != null && levels.ready) {
+                return;
+            }
+            assertFalse(levels != null && levels.failed);
+            Thread.sleep(100);
+        }
+        throw new AssertionError("The generalized levels were not built in time");
+    }
+}
@@ -156,13 +156,13 @@ public class MonitorFilter implements GeoServerFilter {
         data.setResponseLength(((MonitorServletResponse)response).getContentLength());
         data.setResponseStatus(((MonitorServletResponse)response).getStatus());
         
-        if (error != null) {
+        if (error != null && data.getStatus() != Status.CANCELLED) {
             data.setStatus(Status.FAILED);
             data.setErrorMessage(error.getLocalizedMessage());
             data.setError(error);
         }
         
-        if (data.getStatus() != Status.FAILED) {
+        if (data.getStatus() != Status.FAILED && data.getStatus() != Status.CANCELLED) {
             data.setStatus(Status.FINISHED);
         }
         
@@ -219,6 +219,11 @@ public class RequestData implements Serializable {
      */
     private BoundingBox bbox;
 
+    /**
+     * Number of in flight resources (e.g., JDBC statements) cancelled along with the request
+     */
+    private long cancelledResources;
+
     public long getId() {
         return id;
     }
@@ -518,6 +523,7 @@ public class RequestData implements Serializable {
         clone.setResponseStatus(responseStatus);
         clone.setHttpReferer(httpReferer);
         clone.setBbox(bbox);
+        clone.setCancelledResources(cancelledResources);
      
         return clone;
     }
@@ -550,6 +556,14 @@ public class RequestData implements Serializable {
     public void setBbox(BoundingBox bbox) {
         this.bbox = bbox;
     }
+
+    public long getCancelledResources() {
+        return cancelledResources;
+    }
+
+    public void setCancelledResources(long cancelledResources) {
+        this.cancelledResources = cancelledResources;
+    }
     
     
 }
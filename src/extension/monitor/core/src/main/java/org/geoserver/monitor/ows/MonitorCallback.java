@@ -26,6 +26,7 @@ import org.geoserver.monitor.ows.wms.GetLegendGraphicHandler;
 import org.geoserver.monitor.ows.wms.GetMapHandler;
 import org.geoserver.ows.DispatcherCallback;
 import org.geoserver.ows.Request;
+import org.geoserver.ows.RequestCancellation;
 import org.geoserver.ows.Response;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.Operation;
@@ -107,16 +108,27 @@ public class MonitorCallback implements DispatcherCallback {
     }
     
     public void finished(Request request) {
-        if (request.getError() != null) {
+        RequestCancellation cancellation = RequestCancellation.get();
+        boolean cancelled = cancellation != null && cancellation.isCancelled();
+        if (request.getError() != null || cancelled) {
             RequestData data = monitor.current();
             if (data == null) {
                 //will happen in cases where the filter is not active
                 return;
             }
             
-            data.setStatus(Status.FAILED);
-            data.setErrorMessage(request.getError().getLocalizedMessage());
-            data.setError(request.getError());
+            if (cancelled) {
+                // the client went away or the request timed out
+                data.setStatus(Status.CANCELLED);
+                data.setCancelledResources(cancellation.getCancelledResources());
+                data.setErrorMessage(cancellation.getCancelReason());
+            } else {
+                data.setStatus(Status.FAILED);
+            }
+            if (request.getError() != null) {
+                data.setErrorMessage(request.getError().getLocalizedMessage());
+                data.setError(request.getError());
+            }
             
             monitor.update();
         }
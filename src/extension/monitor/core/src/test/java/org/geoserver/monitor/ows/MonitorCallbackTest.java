@@ -34,7 +34,9 @@ import org.geoserver.monitor.MonitorConfig;
 import org.geoserver.monitor.MonitorDAO;
 import org.geoserver.monitor.MonitorTestData;
 import org.geoserver.monitor.RequestData;
+import org.geoserver.monitor.RequestData.Status;
 import org.geoserver.ows.Request;
+import org.geoserver.ows.RequestCancellation;
 import org.geoserver.platform.GeoServerResourceLoader;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.Service;
@@ -164,6 +166,24 @@ public class MonitorCallbackTest {
         monitor.complete();
     }
     
+    @Test
+    public void testCancelled() throws Exception {
+        RequestCancellation cancellation = new RequestCancellation();
+        cancellation.register(() -> {});
+        cancellation.register(() -> {});
+        cancellation.cancel("Client disconnected");
+        RequestCancellation.set(cancellation);
+        try {
+            callback.finished(new Request());
+        } finally {
+            RequestCancellation.remove();
+        }
+
+        assertEquals(Status.CANCELLED, data.getStatus());
+        assertEquals(2, data.getCancelledResources());
+        assertEquals("Client disconnected", data.getErrorMessage());
+    }
+
     @Test
     public void testBasic() throws Exception {
         callback.operationDispatched(new Request(), op("foo", "bar", "1.2.3", null));
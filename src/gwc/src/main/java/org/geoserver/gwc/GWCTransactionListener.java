@@ -28,7 +28,6 @@ import org.geoserver.wfs.TransactionEvent;
 import org.geoserver.wfs.TransactionEventType;
 import org.geoserver.wfs.TransactionPlugin;
 import org.geoserver.wfs.WFSException;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.geotools.referencing.CRS;
@@ -198,8 +197,7 @@ public class GWCTransactionListener implements TransactionPlugin {
             return;
         }
 
-        final SimpleFeatureCollection affectedFeatures = event.getAffectedFeatures();
-        final ReferencedEnvelope affectedBounds = affectedFeatures.getBounds();
+        final ReferencedEnvelope affectedBounds = event.getAffectedBounds();
 
         final TransactionType transaction = event.getRequest();
 
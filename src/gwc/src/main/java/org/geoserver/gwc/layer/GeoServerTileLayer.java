@@ -33,6 +33,8 @@ import javax.servlet.http.HttpServletRequest;
 
 import com.google.common.collect.Iterables;
 import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CoverageInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.KeywordInfo;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
@@ -47,16 +49,21 @@ import org.geoserver.gwc.config.GWCConfig;
 import org.geoserver.gwc.dispatch.GwcServiceDispatcherCallback;
 import org.geoserver.ows.LocalWorkspace;
 import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
 import org.geoserver.ows.URLMangler;
+import org.geoserver.ows.util.KvpMap;
 import org.geoserver.ows.util.RequestUtils;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wms.GetLegendGraphicRequest;
+import org.geoserver.wms.GetMap;
 import org.geoserver.wms.GetMapRequest;
+import org.geoserver.wms.MapLayerInfo;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WebMap;
 import org.geoserver.wms.capabilities.LegendSample;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
+import org.geotools.styling.Style;
 import org.geotools.util.logging.Logging;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.config.ConfigurationException;
@@ -107,6 +114,12 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
 
     public static final ThreadLocal<WebMap> WEB_MAP = new ThreadLocal<WebMap>();
 
+    /**
+     * When set to true, meta tiles are rendered calling the GetMap operation directly instead of
+     * going through the OWS {@link Dispatcher}, see {@link #dispatchGetMap}
+     */
+    public static final String GWC_DIRECT_RENDERING = "GWC_DIRECT_RENDERING";
+
     private String configErrorMessage;
 
     private Map<String, GridSubset> subSets;
@@ -125,6 +138,10 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
 
     private WMS wms;
 
+    private GetMap getMap;
+
+    private Boolean directRendering;
+
     public GeoServerTileLayer(final PublishedInfo publishedInfo, final GWCConfig configDefaults, final GridSetBroker gridsets) {
         checkNotNull(publishedInfo, "publishedInfo");
         checkNotNull(gridsets, "gridsets");
@@ -651,10 +668,24 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         return metaKey.toString();
     }
 
+    /**
+     * Renders the meta tile. By default the GetMap request goes through the OWS {@link Dispatcher}
+     * so that control-flow, monitoring and the dispatcher callbacks see it. When
+     * {@link #GWC_DIRECT_RENDERING} is enabled the request is instead built straight from the
+     * catalog and handed to the GetMap operation, skipping the KVP parsing, as long as the tile
+     * parameters do not need it.
+     */
     private WebMap dispatchGetMap(final ConveyorTile tile, final MetaTile metaTile)
             throws Exception {
 
         Map<String, String> params = buildGetMap(tile, metaTile);
+        if (isDirectRendering()) {
+            GetMapRequest request = buildGetMapRequest(tile, metaTile, params);
+            if (request != null) {
+                return renderGetMap(request, params);
+            }
+        }
+
         WebMap map;
         try {
             HttpServletRequest actualRequest = tile.servletReq;
@@ -717,13 +748,167 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         params.put("TRANSPARENT", "true");
         params.put(GWC_SEED_INTERCEPT_TOKEN, "true");
 
+        params.putAll(getFilteredParameters(tile));
+
+        return params;
+    }
+
+    private Map<String, String> getFilteredParameters(final ConveyorTile tile) {
         Map<String, String> filteredParams = tile.getFullParameters();
         if (filteredParams.isEmpty()) {
             filteredParams = getDefaultParameterFilters();
         }
-        params.putAll(filteredParams);
+        return filteredParams;
+    }
 
-        return params;
+    private boolean isDirectRendering() {
+        if (directRendering == null) {
+            directRendering = Boolean.valueOf(GeoServerExtensions
+                    .getProperty(GWC_DIRECT_RENDERING));
+        }
+        return directRendering;
+    }
+
+    /**
+     * Builds the GetMap request for the meta tile out of the layer configuration, resolving the
+     * layers and styles through the WMS catalog so that data security still applies.
+     * 
+     * @return the request, or null if the tile parameters (other than a style name) require the
+     *         full KVP parsing, or the layer cannot be rendered this way
+     */
+    private GetMapRequest buildGetMapRequest(final ConveyorTile tile, final MetaTile metaTile,
+            final Map<String, String> params) throws Exception {
+        String styleName = null;
+        for (Map.Entry<String, String> param : getFilteredParameters(tile).entrySet()) {
+            String value = param.getValue();
+            if (value == null || value.isEmpty()) {
+                continue;
+            }
+            if ("STYLES".equalsIgnoreCase(param.getKey())) {
+                styleName = value;
+            } else {
+                return null;
+            }
+        }
+
+        final Catalog catalog = getWms().getCatalog();
+        final PublishedInfo published = getPublishedInfo();
+        List<MapLayerInfo> layers = new ArrayList<MapLayerInfo>();
+        List<Style> styles = new ArrayList<Style>();
+        if (published instanceof LayerInfo) {
+            LayerInfo layer = catalog.getLayer(published.getId());
+            if (layer == null) {
+                return null;
+            }
+            StyleInfo style = getStyle(catalog, layer, styleName);
+            if (!addMapLayer(layer, style, layers, styles)) {
+                return null;
+            }
+        } else if (published instanceof LayerGroupInfo && styleName == null) {
+            LayerGroupInfo group = catalog.getLayerGroup(published.getId());
+            if (group == null) {
+                return null;
+            }
+            List<LayerInfo> groupLayers = group.layers();
+            List<StyleInfo> groupStyles = group.styles();
+            for (int i = 0; i < groupLayers.size(); i++) {
+                LayerInfo layer = groupLayers.get(i);
+                StyleInfo style = i < groupStyles.size() ? groupStyles.get(i) : null;
+                if (style == null && layer != null) {
+                    style = layer.getDefaultStyle();
+                }
+                if (!addMapLayer(layer, style, layers, styles)) {
+                    return null;
+                }
+            }
+        } else {
+            return null;
+        }
+        if (layers.isEmpty()) {
+            return null;
+        }
+
+        final GridSubset gridSubset = getGridSubset(tile.getGridSetId());
+        final String srs = gridSubset.getSRS().toString();
+        final CoordinateReferenceSystem crs = CRS.decode(srs);
+        final BoundingBox bbox = metaTile.getMetaTileBounds();
+
+        GetMapRequest request = new GetMapRequest();
+        request.setRequest("GetMap");
+        request.setVersion("1.1.1");
+        request.setLayers(layers);
+        request.setStyles(styles);
+        request.setSRS(srs);
+        request.setCrs(crs);
+        request.setBbox(new ReferencedEnvelope(bbox.getMinX(), bbox.getMaxX(), bbox.getMinY(),
+                bbox.getMaxY(), crs));
+        request.setWidth(metaTile.getMetaTileWidth());
+        request.setHeight(metaTile.getMetaTileHeight());
+        request.setFormat(tile.getMimeType().getFormat());
+        request.setTransparent(true);
+        request.setExceptions(GetMapRequest.SE_XML);
+        request.setRawKvp(params);
+
+        return request;
+    }
+
+    private StyleInfo getStyle(Catalog catalog, LayerInfo layer, String styleName) {
+        StyleInfo defaultStyle = layer.getDefaultStyle();
+        if (styleName == null || defaultStyle != null
+                && (styleName.equals(defaultStyle.getName()) || styleName.equals(defaultStyle
+                        .prefixedName()))) {
+            return defaultStyle;
+        }
+        for (StyleInfo style : layer.getStyles()) {
+            if (styleName.equals(style.getName()) || styleName.equals(style.prefixedName())) {
+                return style;
+            }
+        }
+        return catalog.getStyleByName(styleName);
+    }
+
+    /**
+     * Adds a local vector or raster layer to the request, cascaded layers are left to the
+     * dispatcher
+     */
+    private boolean addMapLayer(LayerInfo layer, StyleInfo style, List<MapLayerInfo> layers,
+            List<Style> styles) throws IOException {
+        if (layer == null || style == null || !layer.isEnabled()) {
+            return false;
+        }
+        ResourceInfo resource = layer.getResource();
+        if (!(resource instanceof FeatureTypeInfo) && !(resource instanceof CoverageInfo)) {
+            return false;
+        }
+        layers.add(new MapLayerInfo(layer));
+        styles.add(style.getStyle());
+        return true;
+    }
+
+    /**
+     * Runs the GetMap operation, exposing to it an OWS request equivalent to the dispatched one
+     */
+    private WebMap renderGetMap(final GetMapRequest getMapRequest,
+            final Map<String, String> params) {
+        Request request = new Request();
+        request.setService("WMS");
+        request.setVersion("1.1.1");
+        request.setRequest("GetMap");
+        request.setKvp(new KvpMap(params));
+        request.setRawKvp(new KvpMap(params));
+
+        Request previous = Dispatcher.REQUEST.get();
+        Dispatcher.REQUEST.set(request);
+        try {
+            return getGetMap().run(getMapRequest);
+        } finally {
+            // reset the old request
+            if (previous != null) {
+                Dispatcher.REQUEST.set(previous);
+            } else {
+                Dispatcher.REQUEST.remove();
+            }
+        }
     }
 
     private boolean tryCacheFetch(ConveyorTile tile) {
@@ -1361,4 +1546,20 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
     void setWms(WMS wms) {
         this.wms = wms;
     }
+
+    private GetMap getGetMap() {
+        if (getMap == null) {
+            // the operation bean, so that the GetMap callbacks are run
+            getMap = (GetMap) GeoServerExtensions.bean("wmsGetMap");
+        }
+        return getMap;
+    }
+
+    void setGetMap(GetMap getMap) {
+        this.getMap = getMap;
+    }
+
+    void setDirectRendering(boolean directRendering) {
+        this.directRendering = directRendering;
+    }
 }
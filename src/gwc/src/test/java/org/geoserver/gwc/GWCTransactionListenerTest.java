@@ -31,7 +31,6 @@ import net.opengis.wfs.TransactionType;
 
 import org.geoserver.wfs.TransactionEvent;
 import org.geoserver.wfs.TransactionEventType;
-import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.geometry.jts.ReferencedEnvelope3D;
 import org.geotools.referencing.CRS;
@@ -237,9 +236,7 @@ public class GWCTransactionListenerTest {
 
         ImmutableSet.of("theLayer", "theGroup"));
 
-        SimpleFeatureCollection affectedFeatures = mock(SimpleFeatureCollection.class);
-        when(affectedFeatures.getBounds()).thenReturn(affectedBounds);
-        when(event.getAffectedFeatures()).thenReturn(affectedFeatures);
+        when(event.getAffectedBounds()).thenReturn(affectedBounds);
 
         listener.dataStoreChange(event);
     }
@@ -70,14 +70,18 @@ import org.geoserver.ows.LocalWorkspace;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Request;
 import org.geoserver.wms.GetLegendGraphicOutputFormat;
+import org.geoserver.wms.GetMap;
+import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.WebMap;
 import org.geoserver.wms.capabilities.LegendSample;
 import org.geoserver.wms.map.RenderedImageMap;
 import org.geoserver.wms.map.RenderedImageMapResponse;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.styling.Style;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.config.XMLGridSubset;
 import org.geowebcache.conveyor.Conveyor.CacheResult;
@@ -101,6 +105,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import org.springframework.mock.web.MockHttpServletRequest;
@@ -590,6 +596,81 @@ public class GeoServerTileLayerTest {
         verify(mockGWC, times(1)).getResponseEncoder(eq(mimeType), isA(RenderedImageMap.class));
     }
 
+    @Test
+    public void testGetTileDirectRendering() throws Exception {
+        StyleInfo defaultStyle = mock(StyleInfo.class);
+        Style style = mock(Style.class);
+        when(defaultStyle.getName()).thenReturn("default_style");
+        when(defaultStyle.prefixedName()).thenReturn("default_style");
+        when(defaultStyle.getStyle()).thenReturn(style);
+        layerInfo.setDefaultStyle(defaultStyle);
+        WMS wms = mock(WMS.class);
+        when(wms.getCatalog()).thenReturn(catalog);
+
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        final RenderedImageMap renderedMap = new RenderedImageMap(new WMSMapContent(), image,
+                "image/png");
+        final List<GetMapRequest> requests = new ArrayList<GetMapRequest>();
+        GetMap getMap = mock(GetMap.class);
+        when(getMap.run((GetMapRequest) anyObject())).thenAnswer(new Answer<WebMap>() {
+            @Override
+            public WebMap answer(InvocationOnMock invocation) throws Throwable {
+                // the GetMap operation sees an OWS request, like when dispatched
+                assertEquals("MockLayerInfoName",
+                        Dispatcher.REQUEST.get().getRawKvp().get("layers"));
+                requests.add((GetMapRequest) invocation.getArguments()[0]);
+                return renderedMap;
+            }
+        });
+
+        MimeType mimeType = MimeType.createFromFormat("image/png");
+        when(mockGWC.getResponseEncoder(eq(mimeType), (RenderedImageMap) anyObject())).thenReturn(
+                mock(RenderedImageMapResponse.class));
+        StorageBroker storageBroker = mock(StorageBroker.class);
+        when(storageBroker.get((TileObject) anyObject())).thenReturn(false);
+
+        layerInfoTileLayer = new GeoServerTileLayer(layerInfo, defaults, gridSetBroker);
+        layerInfoTileLayer.setWms(wms);
+        layerInfoTileLayer.setGetMap(getMap);
+        layerInfoTileLayer.setDirectRendering(true);
+
+        long[] tileIndex = { 0, 0, 0 };
+        ConveyorTile tile = new ConveyorTile(storageBroker, layerInfoTileLayer.getName(),
+                "EPSG:4326", tileIndex, mimeType, null, new MockHttpServletRequest(),
+                new MockHttpServletResponse());
+        ConveyorTile returned = layerInfoTileLayer.getTile(tile);
+        assertNotNull(returned);
+        assertNotNull(returned.getBlob());
+        assertEquals(200, returned.getStatus());
+        assertNull(Dispatcher.REQUEST.get());
+
+        // rendered without going through the dispatcher
+        verify(mockGWC, times(0)).dispatchOwsRequest((Map) anyObject(), (Cookie[]) anyObject());
+        assertEquals(1, requests.size());
+        GetMapRequest request = requests.get(0);
+        assertEquals(1, request.getLayers().size());
+        assertSame(layerInfo, request.getLayers().get(0).getLayerInfo());
+        assertSame(style, request.getStyles().get(0));
+        assertEquals("EPSG:4326", request.getSRS());
+        assertEquals("image/png", request.getFormat());
+        assertTrue(request.isTransparent());
+        assertEquals("true",
+                request.getRawKvp().get(GeoServerTileLayer.GWC_SEED_INTERCEPT_TOKEN));
+
+        // a layer hidden by security goes through the dispatcher, that will report the error
+        when(catalog.getLayer(eq(layerInfo.getId()))).thenReturn(null);
+        Resource mockResult = mock(Resource.class);
+        when(mockGWC.dispatchOwsRequest((Map) anyObject(), (Cookie[]) anyObject())).thenReturn(
+                mockResult);
+        tile = new ConveyorTile(storageBroker, layerInfoTileLayer.getName(), "EPSG:4326",
+                new long[] { 1, 0, 0 }, mimeType, null, new MockHttpServletRequest(),
+                new MockHttpServletResponse());
+        GeoServerTileLayer.WEB_MAP.set(renderedMap);
+        layerInfoTileLayer.getTile(tile);
+        verify(mockGWC, times(1)).dispatchOwsRequest((Map) anyObject(), (Cookie[]) anyObject());
+        assertEquals(1, requests.size());
+    }
+
     @Test
     public void testGetMimeTypes() throws Exception {
 
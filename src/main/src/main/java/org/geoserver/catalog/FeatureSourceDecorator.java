@@ -0,0 +1,38 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.catalog;
+
+import java.io.IOException;
+
+import org.geotools.data.simple.SimpleFeatureSource;
+
+/**
+ * Extension point allowing to decorate the feature source of a simple feature type before
+ * GeoServer applies its own wrappers (definition query, reprojection and the like) on top of it.
+ * <br>
+ * The source handed to the decorator exposes the native CRS of the data, with the feature type and
+ * attribute names configured in GeoServer. Decorators must preserve its nature, that is, a
+ * {@link org.geotools.data.FeatureStore} or {@link org.geotools.data.FeatureLocking} should be
+ * decorated by an object implementing the same interface, or writes will be disabled.
+ *
+ * The extension point is used as follows:
+ *
+ * <pre>
+ * for (FeatureSourceDecorator decorator : GeoServerExtensions.extensions(FeatureSourceDecorator.class)) {
+ *     fs = decorator.decorate(info, fs);
+ * }
+ * </pre>
+ *
+ * @see ResourcePool#getFeatureSource(FeatureTypeInfo, org.geotools.factory.Hints)
+ */
+public interface FeatureSourceDecorator {
+
+    /**
+     * Decorates the feature source of the specified feature type, or returns it as is if the
+     * decorator has nothing to do with it
+     */
+    SimpleFeatureSource decorate(FeatureTypeInfo info, SimpleFeatureSource source)
+            throws IOException;
+}
@@ -1266,6 +1266,14 @@ public class ResourcePool {
             fs = dataStore.getFeatureSource(info.getQualifiedName());   
         }
 
+        //
+        // decorators (e.g., managed generalization levels)
+        //
+        for (FeatureSourceDecorator decorator : GeoServerExtensions
+                .extensions(FeatureSourceDecorator.class)) {
+            fs = decorator.decorate(info, fs);
+        }
+
         //
         // reprojection
         //
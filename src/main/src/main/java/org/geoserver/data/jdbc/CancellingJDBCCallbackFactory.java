@@ -0,0 +1,91 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.data.jdbc;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.geoserver.ows.RequestCancellation;
+import org.geoserver.ows.RequestCancellation.Cancellable;
+import org.geotools.jdbc.JDBCCallbackFactory;
+import org.geotools.jdbc.JDBCFeatureReader;
+import org.geotools.jdbc.JDBCReaderCallback;
+
+/**
+ * JDBC callback factory registering the statements of the feature readers with the
+ * {@link RequestCancellation} of the current request, so that they get cancelled via
+ * {@link Statement#cancel()} when the request is abandoned (e.g., rendering timeout).
+ * <p>
+ * To enable it, set the "Callback factory" parameter of the JDBC store to
+ * {@value #NAME}.
+ */
+public class CancellingJDBCCallbackFactory implements JDBCCallbackFactory {
+
+    public static final String NAME = "request-cancellation";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public JDBCReaderCallback createReaderCallback() {
+        return new CancellingReaderCallback();
+    }
+
+    static class CancellingReaderCallback implements JDBCReaderCallback {
+
+        RequestCancellation cancellation;
+
+        Cancellable cancellable;
+
+        @Override
+        public void init(JDBCFeatureReader reader) {
+            cancellation = RequestCancellation.get();
+        }
+
+        @Override
+        public void beforeQuery(Statement st) {
+            if (cancellation != null) {
+                cancellable = st::cancel;
+                cancellation.register(cancellable);
+            }
+        }
+
+        @Override
+        public void afterQuery(Statement st) {
+            // the statement is still in use while reading the results
+        }
+
+        @Override
+        public void queryError(Exception e) {
+            unregister();
+        }
+
+        @Override
+        public void beforeNext(ResultSet rs) {
+        }
+
+        @Override
+        public void afterNext(ResultSet rs, boolean hasMore) {
+        }
+
+        @Override
+        public void rowError(Exception e) {
+        }
+
+        @Override
+        public void finish(JDBCFeatureReader reader) {
+            unregister();
+        }
+
+        private void unregister() {
+            if (cancellation != null && cancellable != null) {
+                cancellation.unregister(cancellable);
+                cancellable = null;
+            }
+        }
+    }
+}
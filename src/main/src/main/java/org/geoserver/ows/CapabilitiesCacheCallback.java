@@ -0,0 +1,330 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.IOUtils;
+import org.geoserver.catalog.PublishedInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.security.GeoServerSecurityManager;
+import org.geoserver.security.SecurityManagerListener;
+import org.geoserver.security.SecurityUtils;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Dispatcher callback caching the output of GetCapabilities requests, for all services.
+ * <p>
+ * Documents are keyed by service, version, local workspace/layer, the user with its roles and the
+ * version of the data access rules, the request URL and its parameters, and the current update
+ * sequence. Since the update sequence is incremented at each catalog and configuration change,
+ * modifications make older entries unreachable, and the cache is flushed as soon as a request
+ * notices the sequence changed. Changes to the security configuration flush it as well.
+ * Entries are stored gzipped, the cache is bounded in size, and concurrent requests for the same
+ * document wait for a single generation.
+ * <p>
+ * The cached documents are served with an ETag derived from the key, clients sending a matching
+ * <code>If-None-Match</code> header get back a 304 without the document being generated.
+ */
+public class CapabilitiesCacheCallback extends AbstractDispatcherCallback
+        implements GeoServerLifecycleHandler, SecurityManagerListener {
+
+    static final Logger LOGGER = Logging.getLogger(CapabilitiesCacheCallback.class);
+
+    /**
+     * Time to live, in seconds, of a cached capabilities document. A non positive value disables
+     * the cache
+     */
+    public static final String CAPABILITIES_CACHE_TTL = "CAPABILITIES_CACHE_TTL";
+
+    /**
+     * Maximum size of the cache, in bytes of compressed documents
+     */
+    public static final String CAPABILITIES_CACHE_SIZE = "CAPABILITIES_CACHE_SIZE";
+
+    static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+
+    static final String GET_CAPABILITIES = "GetCapabilities";
+
+    private final GeoServer geoServer;
+
+    private final Cache<String, byte[]> cache;
+
+    private volatile long updateSequence = -1;
+
+    public CapabilitiesCacheCallback(GeoServer geoServer) {
+        this(geoServer, GeoServerExtensions.getLongProperty(CAPABILITIES_CACHE_TTL, 0),
+                GeoServerExtensions.getLongProperty(CAPABILITIES_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+    }
+
+    /**
+     * Builds a new cache
+     *
+     * @param geoServer The GeoServer configuration
+     * @param timeToLive The time to live of the entries, in seconds
+     * @param maxSize The maximum size of the cache, in bytes of compressed documents
+     */
+    public CapabilitiesCacheCallback(GeoServer geoServer, long timeToLive, long maxSize) {
+        this.geoServer = geoServer;
+        if (timeToLive > 0) {
+            this.cache = CacheBuilder.newBuilder().expireAfterWrite(timeToLive, TimeUnit.SECONDS)
+                    .maximumWeight(maxSize).weigher((String k, byte[] v) -> v.length).build();
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * Listens to the security manager, to drop the cached documents when the security
+     * configuration changes
+     */
+    public void setSecurityManager(GeoServerSecurityManager securityManager) {
+        securityManager.addListener(this);
+    }
+
+    /**
+     * Returns true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    @Override
+    public Response responseDispatched(Request request, Operation operation, Object result,
+            Response response) {
+        if (!isEnabled() || !isCacheable(request, operation)) {
+            return response;
+        }
+
+        // flush old entries in case the configuration changed
+        long currentSequence = geoServer.getGlobal().getUpdateSequence();
+        if (currentSequence != updateSequence) {
+            cache.invalidateAll();
+            updateSequence = currentSequence;
+        }
+
+        String key = buildKey(request, operation, currentSequence);
+        String etag = "\"" + Hashing.md5().hashString(key, StandardCharsets.UTF_8).toString()
+                + "\"";
+        String ifNoneMatch = request.getHttpRequest().getHeader("If-None-Match");
+        if (etag.equals(ifNoneMatch)) {
+            LOGGER.finer("ETag matches, returning 304");
+            throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+
+        return new CachingResponse(response, key, etag);
+    }
+
+    boolean isCacheable(Request request, Operation operation) {
+        return request.isGet() && !request.isSOAP() && request.getHttpRequest() != null
+                && operation != null && GET_CAPABILITIES.equalsIgnoreCase(operation.getId());
+    }
+
+    String buildKey(Request request, Operation operation, long sequence) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(operation.getService().getId()).append('|');
+        sb.append(operation.getService().getVersion()).append('|');
+        sb.append(sequence).append('|');
+
+        // local workspace and layer
+        WorkspaceInfo ws = LocalWorkspace.get();
+        if (ws != null) {
+            sb.append(ws.getName());
+        }
+        sb.append('|');
+        PublishedInfo published = LocalPublished.get();
+        if (published != null) {
+            sb.append(published.getName());
+        }
+        sb.append('|');
+
+        // the capabilities only contain the layers the user can access
+        sb.append(SecurityUtils.getAccessKey()).append('|');
+
+        // the request URL and the headers used to build the proxied back-links
+        HttpServletRequest httpRequest = request.getHttpRequest();
+        sb.append(httpRequest.getRequestURL()).append('|');
+        for (String header : new String[] { "X-Forwarded-Proto", "X-Forwarded-Host",
+                "X-Forwarded-Path", "Forwarded", "Host" }) {
+            String value = httpRequest.getHeader(header);
+            if (value != null) {
+                sb.append(header).append('=').append(value).append('|');
+            }
+        }
+
+        // the request parameters, sorted to make the key independent of their order
+        Map<String, Object> rawKvp = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        if (request.getRawKvp() != null) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> kvp = request.getRawKvp();
+            rawKvp.putAll(kvp);
+        }
+        for (Map.Entry<String, Object> entry : rawKvp.entrySet()) {
+            sb.append(entry.getKey().toUpperCase()).append('=').append(entry.getValue())
+                    .append('&');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Drops all cached documents
+     */
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Number of cached documents, for testing purposes
+     */
+    long size() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public void handlePostChanged(GeoServerSecurityManager securityManager) {
+        clear();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        clear();
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+
+    /**
+     * Response wrapper serving the document from the cache, or generating and caching it
+     */
+    class CachingResponse extends Response {
+
+        final Response delegate;
+
+        final String key;
+
+        final String etag;
+
+        CachingResponse(Response delegate, String key, String etag) {
+            super(delegate.getBinding(), delegate.getOutputFormats());
+            this.delegate = delegate;
+            this.key = key;
+            this.etag = etag;
+        }
+
+        @Override
+        public boolean canHandle(Operation operation) {
+            return delegate.canHandle(operation);
+        }
+
+        @Override
+        public String getMimeType(Object value, Operation operation) throws ServiceException {
+            return delegate.getMimeType(value, operation);
+        }
+
+        @Override
+        public String[][] getHeaders(Object value, Operation operation) throws ServiceException {
+            String[][] headers = delegate.getHeaders(value, operation);
+            int size = headers == null ? 0 : headers.length;
+            String[][] result = new String[size + 1][];
+            if (headers != null) {
+                System.arraycopy(headers, 0, result, 0, size);
+            }
+            result[size] = new String[] { "ETag", etag };
+            return result;
+        }
+
+        @Override
+        public String getPreferredDisposition(Object value, Operation operation) {
+            return delegate.getPreferredDisposition(value, operation);
+        }
+
+        @Override
+        public String getAttachmentFileName(Object value, Operation operation) {
+            return delegate.getAttachmentFileName(value, operation);
+        }
+
+        @Override
+        public String getCharset(Operation operation) {
+            return delegate.getCharset(operation);
+        }
+
+        @Override
+        public void write(Object value, OutputStream output, Operation operation)
+                throws IOException, ServiceException {
+            byte[] document;
+            try {
+                document = cache.get(key, () -> {
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    try (GZIPOutputStream gzos = new GZIPOutputStream(bos)) {
+                        delegate.write(value, gzos, operation);
+                    }
+                    return bos.toByteArray();
+                });
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof ServiceException) {
+                    throw (ServiceException) cause;
+                }
+                throw new ServiceException(cause);
+            } catch (UncheckedExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof ServiceException) {
+                    throw (ServiceException) cause;
+                }
+                throw new ServiceException(cause);
+            }
+
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.finest("Serving capabilities document for " + key);
+            }
+            try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(document))) {
+                IOUtils.copy(is, output);
+            }
+        }
+    }
+}
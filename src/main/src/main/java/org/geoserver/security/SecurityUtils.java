@@ -9,10 +9,15 @@ import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.TreeSet;
 
+import org.geoserver.security.impl.DataAccessRuleDAO;
 import org.geoserver.security.password.RandomPasswordProvider;
 import org.geotools.data.Query;
 import org.opengis.filter.Filter;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
 
 /**
  * Common security utility methods. 
@@ -142,6 +147,33 @@ public class SecurityUtils {
         }
     }
     
+    /**
+     * Describes the data access granted to the current user: its name, its roles and the version
+     * of the data access rules. Caches of contents filtered by the data security can use it in
+     * their keys, entries computed before a rule change then become unreachable.
+     */
+    public static String getAccessKey() {
+        StringBuilder sb = new StringBuilder();
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null) {
+            sb.append(auth.getName());
+            if (auth.getAuthorities() != null) {
+                TreeSet<String> roles = new TreeSet<>();
+                for (GrantedAuthority authority : auth.getAuthorities()) {
+                    roles.add(authority.getAuthority());
+                }
+                sb.append(roles);
+            }
+        }
+        DataAccessRuleDAO dao = DataAccessRuleDAO.get();
+        if (dao != null) {
+            // reloads the rules if the property file changed
+            dao.getRules();
+            sb.append('@').append(dao.getLastModified());
+        }
+        return sb.toString();
+    }
+
     /**
      * Creates the inverse permutation array.
      */
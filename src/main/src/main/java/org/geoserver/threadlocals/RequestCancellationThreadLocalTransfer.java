@@ -0,0 +1,35 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.threadlocals;
+
+import java.util.Map;
+
+import org.geoserver.ows.RequestCancellation;
+
+/**
+ * Transfers the {@link RequestCancellation} to another thread, so that resources acquired there
+ * are cancelled along with the request
+ */
+public class RequestCancellationThreadLocalTransfer implements ThreadLocalTransfer {
+
+    public static final String KEY = RequestCancellation.class.getName() + "#threadLocal";
+
+    @Override
+    public void collect(Map<String, Object> storage) {
+        storage.put(KEY, RequestCancellation.get());
+    }
+
+    @Override
+    public void apply(Map<String, Object> storage) {
+        RequestCancellation cancellation = (RequestCancellation) storage.get(KEY);
+        RequestCancellation.set(cancellation);
+    }
+
+    @Override
+    public void cleanup() {
+        RequestCancellation.remove();
+    }
+
+}
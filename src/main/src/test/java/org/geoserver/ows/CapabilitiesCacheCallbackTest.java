@@ -0,0 +1,146 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.Service;
+import org.geoserver.platform.ServiceException;
+import org.geotools.util.Version;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+public class CapabilitiesCacheCallbackTest {
+
+    GeoServer geoServer;
+
+    Operation operation;
+
+    AtomicInteger writes = new AtomicInteger();
+
+    Response response = new Response(String.class) {
+
+        @Override
+        public String getMimeType(Object value, Operation operation) throws ServiceException {
+            return "text/xml";
+        }
+
+        @Override
+        public void write(Object value, OutputStream output, Operation operation)
+                throws IOException, ServiceException {
+            writes.incrementAndGet();
+            output.write(((String) value).getBytes("UTF-8"));
+        }
+    };
+
+    @Before
+    public void setup() {
+        GeoServerInfo global = createNiceMock(GeoServerInfo.class);
+        expect(global.getUpdateSequence()).andReturn(10l).anyTimes();
+        replay(global);
+        geoServer = createNiceMock(GeoServer.class);
+        expect(geoServer.getGlobal()).andReturn(global).anyTimes();
+        replay(geoServer);
+        Service service = new Service("wms", null, new Version("1.3.0"),
+                Collections.singletonList("GetCapabilities"));
+        operation = new Operation("GetCapabilities", service, null, new Object[0]);
+    }
+
+    Request buildRequest(String etag) {
+        MockHttpServletRequest http = new MockHttpServletRequest("GET", "/geoserver/wms");
+        if (etag != null) {
+            http.addHeader("If-None-Match", etag);
+        }
+        Request request = new Request();
+        request.setHttpRequest(http);
+        request.setGet(true);
+        Map<String, Object> kvp = new HashMap<>();
+        kvp.put("SERVICE", "WMS");
+        kvp.put("REQUEST", "GetCapabilities");
+        request.setRawKvp(kvp);
+        return request;
+    }
+
+    @Test
+    public void testDisabled() {
+        CapabilitiesCacheCallback callback = new CapabilitiesCacheCallback(geoServer, 0, 1000);
+        assertSame(response, callback.responseDispatched(buildRequest(null), operation, "abc",
+                response));
+    }
+
+    @Test
+    public void testCachedAndEtag() throws Exception {
+        CapabilitiesCacheCallback callback = new CapabilitiesCacheCallback(geoServer, 60, 100000);
+        Response r1 = callback.responseDispatched(buildRequest(null), operation, "abc", response);
+        assertNotSame(response, r1);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        r1.write("abc", bos, operation);
+        assertEquals("abc", bos.toString("UTF-8"));
+
+        Response r2 = callback.responseDispatched(buildRequest(null), operation, "abc", response);
+        bos = new ByteArrayOutputStream();
+        r2.write("abc", bos, operation);
+        assertEquals("abc", bos.toString("UTF-8"));
+        assertEquals(1, writes.get());
+        assertEquals(1, callback.size());
+
+        // conditional request
+        String[][] headers = r2.getHeaders("abc", operation);
+        String etag = headers[headers.length - 1][1];
+        try {
+            callback.responseDispatched(buildRequest(etag), operation, "abc", response);
+            fail("Should have returned a 304");
+        } catch (HttpErrorCodeException e) {
+            assertEquals(HttpServletResponse.SC_NOT_MODIFIED, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testUserAndSecurityChanges() throws Exception {
+        CapabilitiesCacheCallback callback = new CapabilitiesCacheCallback(geoServer, 60, 100000);
+        try {
+            // same roles, different users, as access rules can be user specific
+            for (String user : new String[] { "alice", "bob" }) {
+                SecurityContextHolder.getContext().setAuthentication(
+                        new UsernamePasswordAuthenticationToken(user, null, Collections
+                                .singletonList(new SimpleGrantedAuthority("ROLE_USER"))));
+                Response r = callback.responseDispatched(buildRequest(null), operation, "abc",
+                        response);
+                r.write("abc", new ByteArrayOutputStream(), operation);
+            }
+            assertEquals(2, writes.get());
+            assertEquals(2, callback.size());
+
+            // a security configuration change drops everything
+            callback.handlePostChanged(null);
+            assertEquals(0, callback.size());
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+}
@@ -239,6 +239,7 @@ public class Dispatcher extends AbstractController {
 
             // store it in the thread local
             REQUEST.set(request);
+            RequestCancellation.set(new RequestCancellation());
             
             //find the service
             try {
@@ -279,6 +280,7 @@ public class Dispatcher extends AbstractController {
         } finally {
             fireFinishedCallback(request);
             REQUEST.remove();
+            RequestCancellation.remove();
         }
 
         return null;
@@ -1017,6 +1019,10 @@ public class Dispatcher extends AbstractController {
                 try {
                     outputStrategy.flush(req.getHttpResponse());
                 } catch(IOException e) {
+                    RequestCancellation cancellation = RequestCancellation.get();
+                    if (cancellation != null) {
+                        cancellation.cancel("client disconnected");
+                    }
                     throw new ClientStreamAbortedException(e);
                 }
                 abortResponse = true;
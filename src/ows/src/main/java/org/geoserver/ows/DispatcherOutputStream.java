@@ -12,7 +12,8 @@ import java.io.OutputStream;
  * A wrapper for a Dispatcher destination output stream that signals
  * {@link IOException}s thrown while writing to the underlying destination as
  * ignorable for OWS exception reporting, by throwing a
- * {@link ClientStreamAbortedException}.
+ * {@link ClientStreamAbortedException}. The {@link RequestCancellation} of the request, if any,
+ * gets cancelled at the same time, so that work still running on its behalf stops as well.
  * 
  * @author Gabriel Roldan (TOPP)
  * @version $Id$
@@ -21,8 +22,11 @@ import java.io.OutputStream;
 public final class DispatcherOutputStream extends OutputStream {
     private final OutputStream real;
 
+    private final RequestCancellation cancellation;
+
     public DispatcherOutputStream(OutputStream real) {
         this.real = real;
+        this.cancellation = RequestCancellation.get();
     }
 
     /**
@@ -32,7 +36,7 @@ public final class DispatcherOutputStream extends OutputStream {
         try {
             real.flush();
         } catch (IOException e) {
-            throw new ClientStreamAbortedException(e);
+            throw aborted(e);
         }
     }
 
@@ -43,7 +47,7 @@ public final class DispatcherOutputStream extends OutputStream {
         try {
             real.write(b, off, len);
         } catch (IOException e) {
-            throw new ClientStreamAbortedException(e);
+            throw aborted(e);
         }
     }
 
@@ -54,7 +58,7 @@ public final class DispatcherOutputStream extends OutputStream {
         try {
             real.write(b);
         } catch (IOException e) {
-            throw new ClientStreamAbortedException(e);
+            throw aborted(e);
         }
     }
 
@@ -65,8 +69,14 @@ public final class DispatcherOutputStream extends OutputStream {
         try {
             real.close();
         } catch (IOException e) {
-            throw new ClientStreamAbortedException(e);
+            throw aborted(e);
         }
     }
 
+    private ClientStreamAbortedException aborted(IOException e) {
+        if (cancellation != null) {
+            cancellation.cancel("client disconnected");
+        }
+        return new ClientStreamAbortedException(e);
+    }
 }
@@ -0,0 +1,150 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * Cancellation handle for the OWS request being executed in the current thread.
+ * <p>
+ * Code acquiring long running resources on behalf of the request (e.g., JDBC statements) can
+ * register a {@link Cancellable} with it, and unregister it once done. When the request is
+ * abandoned, because the rendering timeout elapsed or the client disconnected, calling
+ * {@link #cancel(String)} will cancel all the registered resources, freeing connections and I/O
+ * immediately instead of letting them run to completion.
+ * <p>
+ * The handle is bound to the request thread by the {@link Dispatcher}, and cancelled by the
+ * {@link DispatcherOutputStream} as soon as a write to the client fails. Code writing the response
+ * in a loop can call {@link #checkCancelled()} to stop early. The number of resources actually
+ * cancelled is tracked, and reported by the monitoring extension along with the request.
+ */
+public class RequestCancellation {
+
+    static final Logger LOGGER = Logging.getLogger(RequestCancellation.class);
+
+    /**
+     * A resource that can be cancelled from a thread other than the one using it
+     */
+    public interface Cancellable {
+        void cancel() throws Exception;
+    }
+
+    static final ThreadLocal<RequestCancellation> CANCELLATION =
+            new ThreadLocal<RequestCancellation>();
+
+    private final Set<Cancellable> resources = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger cancelledResources = new AtomicInteger();
+
+    private volatile String cancelReason;
+
+    public static void set(RequestCancellation cancellation) {
+        CANCELLATION.set(cancellation);
+    }
+
+    public static RequestCancellation get() {
+        return CANCELLATION.get();
+    }
+
+    public static void remove() {
+        CANCELLATION.remove();
+    }
+
+    /**
+     * Throws a {@link ClientStreamAbortedException} if the request bound to the current thread has
+     * been cancelled, meant to be called by the output formats while looping over the features
+     */
+    public static void checkCancelled() throws ClientStreamAbortedException {
+        RequestCancellation cancellation = CANCELLATION.get();
+        if (cancellation != null && cancellation.isCancelled()) {
+            throw new ClientStreamAbortedException(
+                    "Request cancelled: " + cancellation.getCancelReason());
+        }
+    }
+
+    /**
+     * Registers a resource to be cancelled along with the request. If the request is already
+     * cancelled the resource is cancelled right away.
+     */
+    public void register(Cancellable resource) {
+        resources.add(resource);
+        if (isCancelled()) {
+            cancelResource(resource);
+        }
+    }
+
+    /**
+     * Unregisters a resource, to be called once the resource is no longer in use
+     */
+    public void unregister(Cancellable resource) {
+        resources.remove(resource);
+    }
+
+    /**
+     * Returns true if the request has been cancelled
+     */
+    public boolean isCancelled() {
+        return cancelReason != null;
+    }
+
+    /**
+     * Returns the reason the request was cancelled for, or null if it was not cancelled
+     */
+    public String getCancelReason() {
+        return cancelReason;
+    }
+
+    /**
+     * Returns the number of resources (e.g., JDBC statements) cancelled along with the request
+     */
+    public int getCancelledResources() {
+        return cancelledResources.get();
+    }
+
+    /**
+     * Cancels the request, and all the resources registered with it
+     *
+     * @param reason The reason for the cancellation, for logging purposes
+     */
+    public void cancel(String reason) {
+        synchronized (this) {
+            if (cancelReason != null) {
+                return;
+            }
+            cancelReason = reason;
+        }
+        int count = 0;
+        for (Cancellable resource : resources) {
+            if (cancelResource(resource)) {
+                count++;
+            }
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Request cancelled (" + reason + "), " + count
+                    + " in flight resources cancelled");
+        }
+    }
+
+    private boolean cancelResource(Cancellable resource) {
+        if (!resources.remove(resource)) {
+            // already done, or cancelled by someone else
+            return false;
+        }
+        try {
+            resource.cancel();
+            cancelledResources.incrementAndGet();
+            return true;
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to cancel resource " + resource, e);
+            return false;
+        }
+    }
+}
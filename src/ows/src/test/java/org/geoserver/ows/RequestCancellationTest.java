@@ -0,0 +1,83 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.ows;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.ows.RequestCancellation.Cancellable;
+import org.junit.Test;
+
+public class RequestCancellationTest {
+
+    @Test
+    public void testCancelRegistered() {
+        RequestCancellation cancellation = new RequestCancellation();
+        AtomicInteger cancelled = new AtomicInteger();
+        Cancellable done = () -> cancelled.incrementAndGet();
+        Cancellable running = () -> cancelled.incrementAndGet();
+        cancellation.register(done);
+        cancellation.register(running);
+        cancellation.unregister(done);
+
+        assertFalse(cancellation.isCancelled());
+        cancellation.cancel("test");
+        assertTrue(cancellation.isCancelled());
+        assertEquals("test", cancellation.getCancelReason());
+        assertEquals(1, cancelled.get());
+        assertEquals(1, cancellation.getCancelledResources());
+
+        // cancelling again is a no-op
+        cancellation.cancel("again");
+        assertEquals("test", cancellation.getCancelReason());
+        assertEquals(1, cancelled.get());
+    }
+
+    @Test
+    public void testRegisterAfterCancel() {
+        RequestCancellation cancellation = new RequestCancellation();
+        cancellation.cancel("test");
+        AtomicInteger cancelled = new AtomicInteger();
+        cancellation.register(() -> cancelled.incrementAndGet());
+        assertEquals(1, cancelled.get());
+    }
+
+    @Test
+    public void testCancelOnWriteFailure() throws Exception {
+        RequestCancellation cancellation = new RequestCancellation();
+        RequestCancellation.set(cancellation);
+        try {
+            OutputStream broken = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("Broken pipe");
+                }
+            };
+            DispatcherOutputStream out = new DispatcherOutputStream(broken);
+            RequestCancellation.checkCancelled();
+            try {
+                out.write(1);
+                fail("Should have failed writing");
+            } catch (ClientStreamAbortedException e) {
+                // expected
+            }
+            assertTrue(cancellation.isCancelled());
+            try {
+                RequestCancellation.checkCancelled();
+                fail("Should have thrown, the request is cancelled");
+            } catch (ClientStreamAbortedException e) {
+                // expected
+            }
+        } finally {
+            RequestCancellation.remove();
+        }
+    }
+}
@@ -407,6 +407,27 @@ public class GeoServerExtensions implements ApplicationContextAware, Application
         return getProperty(propertyName, context);
     }
     
+    /**
+     * Looks up for a named numeric property with {@link #getProperty(String)}.
+     * 
+     * @param propertyName The property name to lookup.
+     * @param defaultValue The value returned when the property is not set, or is not a number
+     * 
+     * @return The property value, or the default value
+     */
+    public static long getLongProperty(String propertyName, long defaultValue) {
+        String value = getProperty(propertyName);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid value for " + propertyName + ": " + value + ", using "
+                        + defaultValue + " instead");
+            }
+        }
+        return defaultValue;
+    }
+
     /**
      * Looks up for a named string property into the following contexts (in order):
      * <ul>
@@ -272,6 +272,14 @@ public class GeoServerExtensionsTest {
         assertEquals("ABC", GeoServerExtensions.getProperty("TEST_PROPERTY", (ServletContext) null));
     }
     
+    @Test
+    public void testLongProperty() {
+        assertEquals(10, GeoServerExtensions.getLongProperty("TEST_PROPERTY", 10));
+        System.setProperty("TEST_PROPERTY", " 25 ");
+        assertEquals(25, GeoServerExtensions.getLongProperty("TEST_PROPERTY", 10));
+        assertEquals(10, GeoServerExtensions.getLongProperty("UNSET_TEST_PROPERTY", 10));
+    }
+
     @Test
     public void testWebProperty() {
         ServletContext servletContext = createMock(ServletContext.class);
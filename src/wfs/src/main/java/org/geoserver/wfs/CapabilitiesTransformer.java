@@ -34,6 +34,8 @@ import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.KeywordInfo;
 import org.geoserver.catalog.MetadataLinkInfo;
 import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.catalog.Predicates;
+import org.geoserver.catalog.util.CloseableIterator;
 import org.geoserver.config.ContactInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.ResourceErrorHandling;
@@ -56,10 +58,10 @@ import org.geotools.xs.XS;
 import org.opengis.feature.type.AttributeType;
 import org.opengis.feature.type.Name;
 import org.opengis.feature.type.Schema;
+import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory;
 import org.opengis.filter.capability.FunctionName;
 import org.opengis.parameter.Parameter;
-import org.vfny.geoserver.global.FeatureTypeInfoTitleComparator;
 import org.vfny.geoserver.util.ResponseUtils;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
@@ -120,6 +122,21 @@ public abstract class CapabilitiesTransformer extends TransformerBase {
     }
     
     
+    /**
+     * Returns the feature types to be listed in the capabilities document, sorted by title and
+     * eventually filtered by namespace prefix. Feature types are streamed out of the catalog
+     * instead of being loaded all in memory, the caller is responsible for closing the iterator.
+     * 
+     * @param namespace The namespace prefix, or null to get all feature types
+     */
+    protected CloseableIterator<FeatureTypeInfo> listFeatureTypes(String namespace) {
+        Filter filter = Predicates.equal("enabled", Boolean.TRUE);
+        if (namespace != null) {
+            filter = Predicates.and(filter, Predicates.equal("namespace.prefix", namespace));
+        }
+        return catalog.list(FeatureTypeInfo.class, filter, null, null, Predicates.asc("title"));
+    }
+
     /**
      * It turns out that the he WFS 1.0 and 1.1 specifications don't actually support an updatesequence-based
      * getcapabilities operation.  There's no mention of an updatesequence request parameter in the getcapabilities
@@ -671,43 +688,32 @@ public abstract class CapabilitiesTransformer extends TransformerBase {
 
                 end("Operations");
 
-                List featureTypes = new ArrayList(catalog.getFeatureTypes());
-                
-                // filter out disabled feature types
-                for (Iterator it = featureTypes.iterator(); it.hasNext();) {
-                    FeatureTypeInfo ft = (FeatureTypeInfo) it.next();
-                    if(!ft.enabled())
-                        it.remove();
-                }
-                
-                // filter the layers if a namespace filter has been set
-                if(request.getNamespace() != null) {
-                    String namespace = request.getNamespace();
-                    for (Iterator it = featureTypes.iterator(); it.hasNext();) {
-                        FeatureTypeInfo ft = (FeatureTypeInfo) it.next();
-                        if(!namespace.equals(ft.getNamespace().getPrefix()))
-                            it.remove();
-                    }
-                }
-                
-                Collections.sort(featureTypes, new FeatureTypeInfoTitleComparator());
-                for (Iterator it = featureTypes.iterator(); it.hasNext();) {
-                    FeatureTypeInfo ftype = (FeatureTypeInfo) it.next();
-                    try {
-                        mark();
-                        handleFeatureType(ftype);
-                        commit();
-                    } catch (RuntimeException e) {
-                        if (skipMisconfigured) {
-                            reset();
-                            LOGGER.log(Level.WARNING,
-                                    "Couldn't encode WFS Capabilities entry for FeatureType: "
-                                         + ftype.getPrefixedName(),
-                                     e);
-                        } else {
-                            throw e;
+                CloseableIterator<FeatureTypeInfo> featureTypes = listFeatureTypes(request
+                        .getNamespace());
+                try {
+                    while (featureTypes.hasNext()) {
+                        FeatureTypeInfo ftype = featureTypes.next();
+                        if (!ftype.enabled()) {
+                            continue;
+                        }
+                        try {
+                            mark();
+                            handleFeatureType(ftype);
+                            commit();
+                        } catch (RuntimeException e) {
+                            if (skipMisconfigured) {
+                                reset();
+                                LOGGER.log(Level.WARNING,
+                                        "Couldn't encode WFS Capabilities entry for FeatureType: "
+                                             + ftype.getPrefixedName(),
+                                         e);
+                            } else {
+                                throw e;
+                            }
                         }
                     }
+                } finally {
+                    featureTypes.close();
                 }
 
                 end("FeatureTypeList");
@@ -1394,44 +1400,30 @@ public abstract class CapabilitiesTransformer extends TransformerBase {
             }
             
             protected void featureTypes(boolean crs, String namespace) {
-                List featureTypes = new ArrayList(catalog.getFeatureTypes());
-                
-                // filter out disabled feature types
-                for (Iterator it = featureTypes.iterator(); it.hasNext();) {
-                    FeatureTypeInfo ft = (FeatureTypeInfo) it.next();
-                    if(!ft.enabled())
-                        it.remove();
-                }
-                
-                // filter the layers if a namespace filter has been set
-                if(namespace != null) {
-                    for (Iterator it = featureTypes.iterator(); it.hasNext();) {
-                        FeatureTypeInfo ft = (FeatureTypeInfo) it.next();
-                        if(!namespace.equals(ft.getNamespace().getPrefix()))
-                            it.remove();
-                    }
-                }
-                
-                Collections.sort(featureTypes, new FeatureTypeInfoTitleComparator());
-                for (Iterator i = featureTypes.iterator(); i.hasNext();) {
-                    FeatureTypeInfo featureType = (FeatureTypeInfo) i.next();
-                    if(featureType.enabled()) {
-                        try {
-                            mark();
-                            featureType(featureType, crs);
-                            commit();
-                        } catch (RuntimeException ex) {
-                            if (skipMisconfigured) {
-                                reset();
-                                LOGGER.log(Level.WARNING,
-                                        "Couldn't encode WFS capabilities entry for featuretype: "
-                                            + featureType.getPrefixedName(),
-                                        ex);
-                            } else {
-                                throw ex;
+                CloseableIterator<FeatureTypeInfo> featureTypes = listFeatureTypes(namespace);
+                try {
+                    while (featureTypes.hasNext()) {
+                        FeatureTypeInfo featureType = featureTypes.next();
+                        if(featureType.enabled()) {
+                            try {
+                                mark();
+                                featureType(featureType, crs);
+                                commit();
+                            } catch (RuntimeException ex) {
+                                if (skipMisconfigured) {
+                                    reset();
+                                    LOGGER.log(Level.WARNING,
+                                            "Couldn't encode WFS capabilities entry for featuretype: "
+                                                + featureType.getPrefixedName(),
+                                            ex);
+                                } else {
+                                    throw ex;
+                                }
                             }
                         }
                     }
+                } finally {
+                    featureTypes.close();
                 }
             }
 
@@ -2263,7 +2255,7 @@ public abstract class CapabilitiesTransformer extends TransformerBase {
             }
 
             protected void featureTypeList() {
-                if (catalog.getFeatureTypes().isEmpty()) {
+                if (catalog.count(FeatureTypeInfo.class, Predicates.acceptAll()) == 0) {
                     return;
                 }
                 
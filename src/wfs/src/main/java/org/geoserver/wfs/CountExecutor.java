@@ -6,7 +6,10 @@
 package org.geoserver.wfs;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
+import org.geoserver.catalog.FeatureTypeInfo;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
 
@@ -27,18 +30,57 @@ class CountExecutor {
 
     int providedCount = COUNT_UNSET;
 
+    FeatureTypeInfo meta;
+
+    FeatureCountCache countCache;
+
+    Future<Integer> future;
+
     public CountExecutor(FeatureSource source, Query query) {
         this.source = source;
         this.query = query;
     }
 
+    /**
+     * Builds an executor delegating the count to the {@link FeatureCountCache}
+     */
+    public CountExecutor(FeatureSource source, Query query, FeatureTypeInfo meta,
+            FeatureCountCache countCache) {
+        this(source, query);
+        this.meta = meta;
+        this.countCache = countCache;
+    }
+
     public CountExecutor(int providedCount) {
         this.providedCount = providedCount;
     }
     
+    /**
+     * Starts computing the count in background, if the count cache allows it
+     */
+    public void prefetch() {
+        if (providedCount == COUNT_UNSET && countCache != null && future == null) {
+            future = countCache.submit(meta, source, query);
+        }
+    }
+
     public int getCount() throws IOException {
         if(providedCount != COUNT_UNSET) {
             return providedCount;
+        } else if (future != null) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the feature count", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to compute the feature count", e.getCause());
+            }
+        } else if (countCache != null) {
+            return countCache.getCount(meta, source, query);
         } else {
             // make sure we get a count by getting a feature colleciton
             // FeatureSource.getCount(...) can return -1
@@ -37,6 +37,7 @@ import org.geotools.data.FeatureWriter;
 import org.geotools.data.simple.SimpleFeatureLocking;
 import org.geotools.data.simple.SimpleFeatureStore;
 import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.xml.EMFUtils;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -44,8 +45,6 @@ import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import com.vividsolutions.jts.geom.Envelope;
-
 
 /**
  * Processes standard Delete elements
@@ -116,18 +115,17 @@ public class DeleteElementHandler extends AbstractTransactionElementHandler {
                     store.getSchema(), request.getVersion());
             filter = WFSReprojectionUtil.normalizeFilterCRS(filter, store.getSchema(), declaredCRS);
             
-            // notify listeners
+            // compute damaged area, stores able to do so compute it without reading the features
+            ReferencedEnvelope damaged = store.getBounds(new Query(elementName.getLocalPart(), filter));
+
+            // notify listeners, sharing the damaged area with them
             TransactionEvent event = new TransactionEvent(TransactionEventType.PRE_DELETE, request,
                     elementName, store.getFeatures(filter));
             event.setSource( Delete.WFS11.unadapt((Delete)delete));
-            listener.dataStoreChange( event );
-
-            // compute damaged area
-            Envelope damaged = store.getBounds(new Query(elementName.getLocalPart(), filter));
-
-            if (damaged == null) {
-                damaged = store.getFeatures(filter).getBounds();
+            if (damaged != null) {
+                event.setAffectedBounds(damaged);
             }
+            listener.dataStoreChange( event );
 
             if ((request.getLockId() != null) && store instanceof FeatureLocking
                     && (request.isReleaseActionSome())) {
@@ -0,0 +1,162 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.FeatureCollection;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Prefetches the feature collections of multi query GetFeature requests, so that the queries
+ * following the first one read their data while the previous ones are being encoded. The output
+ * order and the per query limits are unchanged, as the prefetched collections are the same ones
+ * GetFeature would have returned. Nothing is prefetched unless {@link #WFS_PREFETCH_THREADS} is
+ * set.
+ * <p>
+ * The prefetches still running when the request is finished, because the response has been
+ * written or has failed, are cancelled.
+ */
+public class FeatureCollectionPrefetcher extends AbstractDispatcherCallback
+        implements GeoServerLifecycleHandler {
+
+    /**
+     * Number of threads prefetching collections. A non positive value disables prefetching
+     */
+    public static final String WFS_PREFETCH_THREADS = "WFS_PREFETCH_THREADS";
+
+    /**
+     * Number of features each collection can read ahead of the encoder
+     */
+    public static final String WFS_PREFETCH_QUEUE_SIZE = "WFS_PREFETCH_QUEUE_SIZE";
+
+    /**
+     * Maximum number of collections waiting for a prefetch thread
+     */
+    static final int MAX_PENDING = 100;
+
+    /**
+     * The prefetches started by the current request
+     */
+    static final ThreadLocal<List<PrefetchingFeatureCollection>> PREFETCHES =
+            new ThreadLocal<>();
+
+    private final ExecutorService executor;
+
+    private final int queueSize;
+
+    public FeatureCollectionPrefetcher() {
+        this((int) GeoServerExtensions.getLongProperty(WFS_PREFETCH_THREADS, 0),
+                (int) GeoServerExtensions.getLongProperty(WFS_PREFETCH_QUEUE_SIZE, 1000));
+    }
+
+    /**
+     * Builds a new prefetcher
+     *
+     * @param threads The number of prefetching threads
+     * @param queueSize The number of features each collection can read ahead
+     */
+    public FeatureCollectionPrefetcher(int threads, int queueSize) {
+        this.queueSize = queueSize;
+        if (threads > 0) {
+            this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(MAX_PENDING), new ThreadFactoryBuilder()
+                            .setDaemon(true).setNameFormat("WFSPrefetcher-%d").build());
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Returns true if prefetching is enabled
+     */
+    public boolean isEnabled() {
+        return executor != null;
+    }
+
+    /**
+     * Starts prefetching all collections but the first one, which is going to be encoded right
+     * away, replacing them in the list. Only simple feature collections are prefetched.
+     */
+    @SuppressWarnings("unchecked")
+    public void prefetch(List results) {
+        if (!isEnabled()) {
+            return;
+        }
+        for (int i = 1; i < results.size(); i++) {
+            FeatureCollection fc = (FeatureCollection) results.get(i);
+            if (!(fc instanceof SimpleFeatureCollection)) {
+                continue;
+            }
+            PrefetchingFeatureCollection prefetching = new PrefetchingFeatureCollection(
+                    (SimpleFeatureCollection) fc, queueSize);
+            try {
+                prefetching.start(executor);
+            } catch (RejectedExecutionException e) {
+                // too busy, the remaining collections will be read while encoding
+                return;
+            }
+            List<PrefetchingFeatureCollection> prefetches = PREFETCHES.get();
+            if (prefetches == null) {
+                prefetches = new ArrayList<>();
+                PREFETCHES.set(prefetches);
+            }
+            prefetches.add(prefetching);
+            results.set(i, prefetching);
+        }
+    }
+
+    /**
+     * Cancels the prefetches started by the current request
+     */
+    public void cancelPrefetches() {
+        List<PrefetchingFeatureCollection> prefetches = PREFETCHES.get();
+        PREFETCHES.remove();
+        if (prefetches != null) {
+            for (PrefetchingFeatureCollection prefetching : prefetches) {
+                prefetching.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void finished(Request request) {
+        cancelPrefetches();
+    }
+
+    @Override
+    public void onReset() {
+        // nothing to do
+    }
+
+    @Override
+    public void onDispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        // nothing to do
+    }
+}
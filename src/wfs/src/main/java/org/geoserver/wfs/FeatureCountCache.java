@@ -0,0 +1,416 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.security.SecurityUtils;
+import org.geoserver.security.decorators.SecuredFeatureSource;
+import org.geoserver.security.decorators.SecuredFeatureTypeInfo;
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.Transaction;
+import org.geotools.factory.Hints;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.util.logging.Logging;
+import org.opengis.filter.Filter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Computes the feature counts backing the WFS 2.0 numberMatched attribute, which on large tables
+ * can take longer than extracting the requested page.
+ * <p>
+ * The counts can be:
+ * <ul>
+ * <li>cached for a configurable time ({@link #WFS_COUNT_CACHE_TTL} seconds), the entries of a
+ * feature type are dropped when a WFS transaction touches it or it's modified in the catalog</li>
+ * <li>computed in background threads ({@link #WFS_COUNT_THREADS}), concurrently with the
+ * encoding of the features</li>
+ * <li>estimated from the PostGIS table statistics when neither the query nor the layer have a
+ * filter, and no data security limits apply ({@link #WFS_COUNT_ESTIMATE}), the exact count is
+ * used for any other case</li>
+ * </ul>
+ * All of the above are disabled by default.
+ */
+public class FeatureCountCache
+        implements TransactionListener, CatalogListener, GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(FeatureCountCache.class);
+
+    /**
+     * Time to live, in seconds, of a cached count. A non positive value disables the cache
+     */
+    public static final String WFS_COUNT_CACHE_TTL = "WFS_COUNT_CACHE_TTL";
+
+    /**
+     * Maximum number of cached counts
+     */
+    public static final String WFS_COUNT_CACHE_SIZE = "WFS_COUNT_CACHE_SIZE";
+
+    /**
+     * Number of threads computing counts in background. A non positive value makes the counts
+     * run in the request thread, when needed by the output format
+     */
+    public static final String WFS_COUNT_THREADS = "WFS_COUNT_THREADS";
+
+    /**
+     * When set to true, unfiltered counts against PostGIS tables are estimated from the table
+     * statistics instead of running a full count
+     */
+    public static final String WFS_COUNT_ESTIMATE = "WFS_COUNT_ESTIMATE";
+
+    private final Catalog catalog;
+
+    private final Cache<CountKey, Integer> cache;
+
+    private final ExecutorService executor;
+
+    private final boolean estimate;
+
+    public FeatureCountCache(Catalog catalog) {
+        this(catalog, GeoServerExtensions.getLongProperty(WFS_COUNT_CACHE_TTL, 0) * 1000,
+                GeoServerExtensions.getLongProperty(WFS_COUNT_CACHE_SIZE, 1000),
+                (int) GeoServerExtensions.getLongProperty(WFS_COUNT_THREADS, 0),
+                Boolean.parseBoolean(GeoServerExtensions.getProperty(WFS_COUNT_ESTIMATE)));
+    }
+
+    /**
+     * Builds a new count cache
+     *
+     * @param catalog The catalog to listen to
+     * @param timeToLive The time to live of the cached counts, in milliseconds
+     * @param maxEntries The maximum number of cached counts
+     * @param threads The number of threads computing counts in background
+     * @param estimate Whether to estimate unfiltered counts from the table statistics
+     */
+    public FeatureCountCache(Catalog catalog, long timeToLive, long maxEntries, int threads,
+            boolean estimate) {
+        this.catalog = catalog;
+        this.estimate = estimate;
+        if (timeToLive > 0) {
+            this.cache = CacheBuilder.newBuilder().maximumSize(Math.max(1, maxEntries))
+                    .expireAfterWrite(timeToLive, TimeUnit.MILLISECONDS).build();
+            catalog.addListener(this);
+        } else {
+            this.cache = null;
+        }
+        if (threads > 0) {
+            this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("WFSCounter-%d").build());
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Returns true if the counts can be computed in background
+     */
+    public boolean isAsynchronous() {
+        return executor != null;
+    }
+
+    /**
+     * Counts the features matched by the query, using the cache and the table statistics when
+     * enabled and applicable
+     *
+     * @param meta The feature type being counted
+     * @param source The feature source to count against
+     * @param query The count query
+     * @throws IOException
+     */
+    public int getCount(FeatureTypeInfo meta, FeatureSource source, Query query)
+            throws IOException {
+        CountKey key = cache != null ? getKey(meta, query) : null;
+        if (key != null) {
+            Integer cached = cache.getIfPresent(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        int count = -1;
+        if (estimate) {
+            count = getEstimatedCount(meta, source, query);
+        }
+        if (count < 0) {
+            // make sure we get a count by getting a feature collection
+            // FeatureSource.getCount(...) can return -1
+            count = source.getFeatures(query).size();
+        }
+
+        if (key != null && count >= 0) {
+            cache.put(key, count);
+        }
+        return count;
+    }
+
+    /**
+     * Starts computing the count in background, returns null if asynchronous counts are
+     * disabled or the executor is saturated
+     */
+    public Future<Integer> submit(final FeatureTypeInfo meta, final FeatureSource source,
+            final Query query) {
+        if (executor == null) {
+            return null;
+        }
+        // the count has to run on behalf of the same user and request, data security and
+        // the cache key depend on it
+        final ThreadLocalsTransfer transfer = new ThreadLocalsTransfer();
+        Callable<Integer> task = () -> {
+            try {
+                transfer.apply();
+                return getCount(meta, source, query);
+            } finally {
+                transfer.cleanup();
+            }
+        };
+        try {
+            return executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    CountKey getKey(FeatureTypeInfo meta, Query query) {
+        // joins are not part of the fingerprint, don't cache them
+        if (meta.getId() == null || (query.getJoins() != null && !query.getJoins().isEmpty())) {
+            return null;
+        }
+        // filters are compared with equals, two different objects representing the same filter
+        // at worst miss the cache, while two different filters never share an entry
+        Filter filter = query.getFilter() != null ? query.getFilter() : Filter.INCLUDE;
+        Object viewParams = query.getHints() != null
+                ? query.getHints().get(Hints.VIRTUAL_TABLE_PARAMETERS) : null;
+        return new CountKey(meta.getId(), SecurityUtils.getAccessKey(), filter, viewParams);
+    }
+
+    /**
+     * Estimates the count out of the PostGIS table statistics, returns -1 if the query or the
+     * layer have a filter, data security limits the source, the table is not a PostGIS one, or
+     * the statistics are not available
+     */
+    int getEstimatedCount(FeatureTypeInfo meta, FeatureSource source, Query query) {
+        if ((query.getFilter() != null && query.getFilter() != Filter.INCLUDE)
+                || (query.getJoins() != null && !query.getJoins().isEmpty())
+                || meta.filter() != null
+                || meta instanceof SecuredFeatureTypeInfo
+                || source instanceof SecuredFeatureSource
+                || meta.getMetadata().containsKey(FeatureTypeInfo.JDBC_VIRTUAL_TABLE)) {
+            return -1;
+        }
+        try {
+            DataAccess access = meta.getStore().getDataStore(null);
+            if (!(access instanceof JDBCDataStore)) {
+                return -1;
+            }
+            JDBCDataStore store = (JDBCDataStore) access;
+            if (!store.getSQLDialect().getClass().getSimpleName().startsWith("PostGIS")) {
+                return -1;
+            }
+            String table = quote(meta.getNativeName());
+            if (store.getDatabaseSchema() != null) {
+                table = quote(store.getDatabaseSchema()) + "." + table;
+            }
+            Connection cx = store.getConnection(Transaction.AUTO_COMMIT);
+            try (PreparedStatement ps = cx
+                    .prepareStatement("SELECT reltuples::bigint FROM pg_class WHERE oid = ?::regclass")) {
+                ps.setString(1, table);
+                try (ResultSet rs = ps.executeQuery()) {
+                    // never analyzed tables report 0 or -1
+                    if (rs.next() && rs.getLong(1) > 0) {
+                        return (int) Math.min(rs.getLong(1), Integer.MAX_VALUE);
+                    }
+                }
+            } finally {
+                store.closeSafe(cx);
+            }
+        } catch (IOException | SQLException e) {
+            LOGGER.log(Level.FINE,
+                    "Failed to estimate the feature count for " + meta.prefixedName(), e);
+        }
+        return -1;
+    }
+
+    private String quote(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Drops all cached counts for the given resource
+     */
+    public void invalidate(String resourceId) {
+        if (cache != null && resourceId != null) {
+            cache.asMap().keySet().removeIf(k -> resourceId.equals(k.resourceId));
+        }
+    }
+
+    /**
+     * Drops all cached counts
+     */
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Number of cached counts, for testing purposes
+     */
+    long size() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        if (cache == null || event.getType() == TransactionEventType.PRE_INSERT) {
+            // inserted features are not in the store yet, wait for the post insert
+            return;
+        }
+        QName name = event.getLayerName();
+        FeatureTypeInfo ft = null;
+        if (name != null) {
+            ft = catalog.getFeatureTypeByName(name.getNamespaceURI(), name.getLocalPart());
+        }
+        if (ft != null) {
+            invalidate(ft.getId());
+        } else {
+            clear();
+        }
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do, new resources are not cached yet
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    private void invalidate(CatalogInfo info) {
+        if (info instanceof ResourceInfo) {
+            invalidate(info.getId());
+        } else if (info instanceof LayerInfo) {
+            ResourceInfo resource = ((LayerInfo) info).getResource();
+            if (resource != null) {
+                invalidate(resource.getId());
+            }
+        } else if (info instanceof StoreInfo) {
+            // the store might now point to different data
+            clear();
+        }
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        clear();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+
+    static final class CountKey {
+        final String resourceId;
+
+        final String accessKey;
+
+        final Filter filter;
+
+        final Object viewParams;
+
+        CountKey(String resourceId, String accessKey, Filter filter, Object viewParams) {
+            this.resourceId = resourceId;
+            this.accessKey = accessKey;
+            this.filter = filter;
+            this.viewParams = viewParams;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(resourceId, accessKey, filter, viewParams);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof CountKey)) {
+                return false;
+            }
+            CountKey other = (CountKey) obj;
+            return resourceId.equals(other.resourceId)
+                    && Objects.equals(accessKey, other.accessKey)
+                    && filter.equals(other.filter) && Objects.equals(viewParams, other.viewParams);
+        }
+
+        @Override
+        public String toString() {
+            return resourceId + "/" + accessKey + "/" + filter + "/" + viewParams;
+        }
+    }
+}
@@ -34,16 +34,20 @@ import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Request;
 import org.geoserver.ows.URLMangler.URLType;
 import org.geoserver.ows.util.KvpMap;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetFeatureRequest;
 import org.geoserver.wfs.request.Lock;
 import org.geoserver.wfs.request.LockFeatureRequest;
 import org.geoserver.wfs.request.LockFeatureResponse;
 import org.geoserver.wfs.request.Query;
+import org.geotools.data.DataAccess;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Join;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.factory.Hints;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.NameImpl;
@@ -57,14 +61,17 @@ import org.geotools.filter.visitor.PostPreProcessFilterSplittingVisitor;
 import org.geotools.filter.visitor.SimplifyingFilterVisitor;
 import org.geotools.geometry.GeneralEnvelope;
 import org.geotools.geometry.jts.LiteCoordinateSequenceFactory;
+import org.geotools.jdbc.JDBCDataStore;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.geotools.xml.Encoder;
 import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.PropertyDescriptor;
 import org.opengis.filter.And;
 import org.opengis.filter.ExcludeFilter;
 import org.opengis.filter.Filter;
@@ -79,6 +86,7 @@ import org.opengis.filter.PropertyIsNull;
 import org.opengis.filter.expression.ExpressionVisitor;
 import org.opengis.filter.expression.PropertyName;
 import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
 import org.opengis.filter.spatial.BBOX;
 import org.opengis.filter.spatial.Beyond;
 import org.opengis.filter.spatial.BinarySpatialOperator;
@@ -310,8 +318,17 @@ public class GetFeature {
             // See GEOS-5085.
             totalOffset = 0;
         }
+        // key-set paging replaces the offset, the cursor tells where the previous page ended
+        PagingCursor cursor = getPagingCursor(request);
+        if (cursor != null) {
+            totalOffset = -1;
+        }
         int offset = totalOffset;
-        
+        // sort key values of the last feature returned, and the index of its query
+        Object[] lastKeys = null;
+        int lastKeysQueryIndex = -1;
+        PagingCursor nextCursor = null;
+
         // feature collection size, we may need to calculate it
         // optimization: WFS 1.0 does not require count unless we have multiple query elements
         // and we are asked to perform a global limit on the results returned
@@ -320,6 +337,7 @@ public class GetFeature {
 
         List results = new ArrayList();
         final List<CountExecutor> totalCountExecutors = new ArrayList<CountExecutor>();
+        FeatureCountCache countCache = GeoServerExtensions.bean(FeatureCountCache.class);
         try {
             for (int i = 0; (i < queries.size()) && (count < maxFeatures); i++) {
 
@@ -486,6 +504,22 @@ public class GetFeature {
                         && meta.getFeatureType() instanceof SimpleFeatureType) {
                     validateSortBy(sortBy, meta, request);
                 }
+                if (cursor != null && (sortBy == null || sortBy.isEmpty() || joins != null
+                        || !(meta.getFeatureType() instanceof SimpleFeatureType))) {
+                    throw new WFSException(request,
+                            "Cursor paging requires a sortBy on each query, and does not "
+                                    + "support joins or complex features",
+                            "InvalidParameterValue").locator(PagingCursor.CURSOR);
+                }
+                List<SortBy> cursorSort = null;
+                if (cursor != null) {
+                    cursorSort = getCursorSortBy(sortBy, meta, request);
+                    // the sort keys have to be loaded to build the next cursor, the shaving
+                    // below removes them from the output if they were not requested
+                    if (allPropNames.get(0) != null) {
+                        allPropNames.set(0, addSortProperties(allPropNames.get(0), cursorSort));
+                    }
+                }
 
                 // load primary feature source
                 Hints hints = null;
@@ -505,6 +539,10 @@ public class GetFeature {
                 org.geotools.data.Query gtQuery = toDataQuery(query, filter, offset,
                         queryMaxFeatures, source, request, allPropNames.get(0), viewParam,
                             joins, primaryTypeName, primaryAlias);
+                boolean seeking = cursor != null && i <= cursor.getQueryIndex();
+                if (cursor != null) {
+                    applyCursor(cursor, i, gtQuery, cursorSort, request);
+                }
 
                 LOGGER.fine("Query is " + query + "\n To gt2: " + gtQuery);
 
@@ -527,13 +565,30 @@ public class GetFeature {
                 }
 
                 int size = 0;
-                if (calculateSize) {
+                if (cursor != null) {
+                    // the next link is written before the features, read the page once and
+                    // take the cursor from its last feature, no need to query the keys again
+                    List<SimpleFeature> page = new ArrayList<>();
+                    try (SimpleFeatureIterator fi = ((SimpleFeatureCollection) features)
+                            .features()) {
+                        while (fi.hasNext()) {
+                            page.add(fi.next());
+                        }
+                    }
+                    features = new ListFeatureCollection(
+                            (SimpleFeatureType) features.getSchema(), page);
+                    size = page.size();
+                    if (size > 0) {
+                        lastKeys = getSortKeys(page.get(size - 1), cursorSort);
+                        lastKeysQueryIndex = i;
+                    }
+                } else if (calculateSize) {
                     size = features.size();
                 }
                 
                 //update the count
                 count += size;
-                
+
                 //if offset is present we need to check the size of this returned feature collection
                 // and adjust the offset for the next feature collection accordingly
                 if (offset > 0) {
@@ -565,13 +620,14 @@ public class GetFeature {
                 if (!isNumberMatchedSkipped) {
                         if (calculateSize
                                 && (queryMaxFeatures == Integer.MAX_VALUE || size < queryMaxFeatures)
-                                && offset <= 0) {
+                                && offset <= 0 && !seeking) {
                         totalCountExecutors.add(new CountExecutor(size));
                     } else {
                         org.geotools.data.Query qTotal = toDataQuery(query, filter, 0,
                                 Integer.MAX_VALUE, source, request, allPropNames.get(0), viewParam,
                                 joins, primaryTypeName, primaryAlias);
-                        totalCountExecutors.add(new CountExecutor(source, qTotal));
+                        totalCountExecutors
+                                .add(new CountExecutor(source, qTotal, meta, countCache));
                     }
                 }
 
@@ -612,8 +668,19 @@ public class GetFeature {
                     throw e;
                 }
             }
-            
-            
+
+            if (cursor != null && count >= maxFeatures && lastKeys != null) {
+                for (Object key : lastKeys) {
+                    if (key == null) {
+                        throw new WFSException(request,
+                                "Cursor paging cannot continue past features having null sort "
+                                        + "values, use offset based paging instead",
+                                "InvalidParameterValue").locator(PagingCursor.CURSOR);
+                    }
+                }
+                nextCursor = new PagingCursor(lastKeysQueryIndex, lastKeys);
+            }
+
             // total count represents the total count of the features matched for this query in cases
             // where the client has limited the result set size, so we compute it lazily
             if (isNumberMatchedSkipped) {
@@ -624,7 +691,11 @@ public class GetFeature {
             } else {
                 // ok, in this case we're forced to run the queries to discover the actual total count
                 // We do so lazily, not all output formats need it, leveraging the fact that BigInteger
-                // is not final to wrap it in a lazy loading proxy
+                // is not final to wrap it in a lazy loading proxy. The counts can also start
+                // in background, running while the features are encoded
+                for (CountExecutor executor : totalCountExecutors) {
+                    executor.prefetch();
+                }
                 Enhancer enhancer = new Enhancer();
                 enhancer.setSuperclass(BigInteger.class);
                 enhancer.setCallback(new LazyLoader() {
@@ -684,10 +755,147 @@ public class GetFeature {
             lockId = response.getLockId();
         }
 
-        return buildResults(request, totalOffset, maxFeatures, count, totalCount, results, lockId);
+        // let the following queries read their data while the first one gets encoded
+        if (results.size() > 1 && !request.isResultTypeHits()) {
+            FeatureCollectionPrefetcher prefetcher = GeoServerExtensions
+                    .bean(FeatureCollectionPrefetcher.class);
+            if (prefetcher != null) {
+                prefetcher.prefetch(results);
+            }
+        }
+
+        return buildResults(request, totalOffset, maxFeatures, count, totalCount, results, lockId,
+                nextCursor);
+    }
+
+    /**
+     * Returns the key-set paging cursor requested by the client, if any. Cursors are supported
+     * only for WFS 2.0 requests returning features
+     */
+    PagingCursor getPagingCursor(GetFeatureRequest request) {
+        Request dispatcherRequest = Dispatcher.REQUEST.get();
+        if (dispatcherRequest == null || dispatcherRequest.getRawKvp() == null
+                || !request.getVersion().startsWith("2") || request.isResultTypeHits()) {
+            return null;
+        }
+        String token = (String) new KvpMap(dispatcherRequest.getRawKvp()).get(PagingCursor.CURSOR);
+        if (token == null || token.trim().isEmpty()) {
+            return null;
+        }
+        token = token.trim();
+        if (PagingCursor.START.equals(token)) {
+            return PagingCursor.start(0);
+        }
+        try {
+            return PagingCursor.decode(token);
+        } catch (IllegalArgumentException e) {
+            throw new WFSException(request, "Invalid paging cursor: " + token, e,
+                    "InvalidParameterValue").locator(PagingCursor.CURSOR);
+        }
+    }
+
+    /**
+     * Returns the sort used for cursor paging, the requested one followed by the primary key
+     * attributes, so that the order is total and the last feature of a page can be sought past
+     */
+    List<SortBy> getCursorSortBy(List<SortBy> sortBy, FeatureTypeInfo meta,
+            GetFeatureRequest request) throws IOException {
+        List<String> pkNames = getPrimaryKeyNames(meta);
+        if (pkNames.isEmpty()) {
+            throw new WFSException(request,
+                    "Cursor paging requires the primary key of " + meta.prefixedName()
+                            + " to be exposed as attributes, use offset based paging instead",
+                    "InvalidParameterValue").locator(PagingCursor.CURSOR);
+        }
+        List<SortBy> sorting = new ArrayList<>(sortBy);
+        for (String pkName : pkNames) {
+            boolean sorted = false;
+            for (SortBy sb : sortBy) {
+                sorted |= pkName.equals(localName(sb.getPropertyName()));
+            }
+            if (!sorted) {
+                sorting.add(filterFactory.sort(pkName, SortOrder.ASCENDING));
+            }
+        }
+        return sorting;
+    }
+
+    /**
+     * Returns the names of the published attributes mapping the primary key columns. The
+     * published feature type does not carry the column user data, the native one is checked
+     */
+    List<String> getPrimaryKeyNames(FeatureTypeInfo meta) throws IOException {
+        List<String> names = new ArrayList<>();
+        DataAccess access = meta.getStore().getDataStore(null);
+        FeatureType nativeType = access.getSchema(meta.getQualifiedNativeName());
+        FeatureType published = meta.getFeatureType();
+        for (PropertyDescriptor pd : nativeType.getDescriptors()) {
+            if (Boolean.TRUE.equals(pd.getUserData().get(JDBCDataStore.JDBC_PRIMARY_KEY_COLUMN))
+                    && published.getDescriptor(pd.getName().getLocalPart()) != null) {
+                names.add(pd.getName().getLocalPart());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns a copy of the property names with the sort attributes that are missing
+     */
+    List<PropertyName> addSortProperties(List<PropertyName> properties, List<SortBy> sortBy) {
+        List<PropertyName> result = new ArrayList<>(properties);
+        for (SortBy sb : sortBy) {
+            String name = localName(sb.getPropertyName());
+            boolean found = false;
+            for (PropertyName pn : properties) {
+                found |= name.equals(localName(pn));
+            }
+            if (!found) {
+                result.add(filterFactory.property(name));
+            }
+        }
+        return result;
+    }
+
+    private String localName(PropertyName property) {
+        String name = property.getPropertyName();
+        return name.substring(name.indexOf(':') + 1);
     }
 
+    /**
+     * Returns the sort key values of the feature, in sort order
+     */
+    Object[] getSortKeys(SimpleFeature feature, List<SortBy> sortBy) {
+        Object[] keys = new Object[sortBy.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = sortBy.get(i).getPropertyName().evaluate(feature);
+        }
+        return keys;
+    }
 
+    /**
+     * Restricts the query to the features following the cursor position: queries before the
+     * cursor one have already been returned in full, the cursor query is sought past its last
+     * returned feature, the following ones are read from the beginning
+     */
+    void applyCursor(PagingCursor cursor, int queryIndex, org.geotools.data.Query gtQuery,
+            List<SortBy> cursorSort, GetFeatureRequest request) {
+        gtQuery.setSortBy(cursorSort.toArray(new SortBy[cursorSort.size()]));
+
+        if (queryIndex < cursor.getQueryIndex()) {
+            gtQuery.setFilter(Filter.EXCLUDE);
+        } else if (queryIndex == cursor.getQueryIndex()) {
+            Filter seek;
+            try {
+                seek = cursor.toSeekFilter(cursorSort, filterFactory);
+            } catch (IllegalArgumentException e) {
+                throw new WFSException(request, e.getMessage(), e, "InvalidParameterValue")
+                        .locator(PagingCursor.CURSOR);
+            }
+            if (seek != Filter.INCLUDE) {
+                gtQuery.setFilter(filterFactory.and(gtQuery.getFilter(), seek));
+            }
+        }
+    }
 
     protected void processStoredQueries(GetFeatureRequest request) {
         List queries = request.getAdaptedQueries();
@@ -720,6 +928,16 @@ public class GetFeature {
      */
     protected FeatureCollectionResponse buildResults(GetFeatureRequest request, int offset, int maxFeatures, 
         int count, BigInteger total, List results, String lockId) {
+        return buildResults(request, offset, maxFeatures, count, total, results, lockId, null);
+    }
+
+    /**
+     * Allows subclasses to alter the result generation, when using cursor paging the next link
+     * carries the cursor instead of the offset
+     */
+    protected FeatureCollectionResponse buildResults(GetFeatureRequest request, int offset,
+            int maxFeatures, int count, BigInteger total, List results, String lockId,
+            PagingCursor nextCursor) {
 
         FeatureCollectionResponse result = request.createResponse();
         result.setNumberOfFeatures(BigInteger.valueOf(count));
@@ -763,7 +981,16 @@ public class GetFeature {
                 result.setPrevious(buildURL(request.getBaseUrl(), "wfs", kvp, URLType.SERVICE));
             }
 
-            if (count > 0 && offset > -1) {
+            if (nextCursor != null) {
+                // next, key-set paging, there is no going back
+                if (maxFeatures <= count) {
+                    // kvp maps hold upper case keys, and do not normalize on remove
+                    kvp.remove("STARTINDEX");
+                    kvp.put(PagingCursor.CURSOR, nextCursor.encode());
+                    kvp.put("count", String.valueOf(maxFeatures));
+                    result.setNext(buildURL(request.getBaseUrl(), "wfs", kvp, URLType.SERVICE));
+                }
+            } else if (count > 0 && offset > -1) {
                 //next
 
                 // don't return a next if we are at the end.
@@ -6,7 +6,15 @@
 package org.geoserver.wfs;
 
 import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.xml.namespace.QName;
 
@@ -20,15 +28,39 @@ import net.opengis.wfs20.Wfs20Factory;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.NamespaceInfo;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.util.KvpMap;
+import org.geoserver.ows.Request;
 import org.geoserver.wfs.request.GetFeatureRequest;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.feature.visitor.UniqueVisitor;
+import org.geotools.util.logging.Logging;
 import org.geotools.wfs.PropertyValueCollection;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.filter.Filter;
 import org.opengis.filter.FilterFactory2;
 import org.opengis.filter.expression.PropertyName;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.xml.sax.helpers.NamespaceSupport;
 
 public class GetPropertyValue {
 
+    static final Logger LOGGER = Logging.getLogger(GetPropertyValue.class);
+
+    /**
+     * Vendor parameter asking for the distinct values of a plain attribute, instead of one value
+     * per feature
+     */
+    public static final String DISTINCT = "DISTINCT";
+
     GetFeature delegate;
 
     Catalog catalog;
@@ -63,22 +95,20 @@ public class GetPropertyValue {
                     .locator("valueReference");
         }
 
-        // do a getFeature request
-        GetFeatureType getFeature = Wfs20Factory.eINSTANCE.createGetFeatureType();
-        getFeature.getAbstractQueryExpression().add(request.getAbstractQueryExpression());
-        getFeature.setResolve(request.getResolve());
-        getFeature.setResolveDepth(request.getResolveDepth());
-        getFeature.setResolveTimeout(request.getResolveTimeout());
-        getFeature.setCount(request.getCount());
-
-        FeatureCollectionType fc = (FeatureCollectionType) delegate.run(
-                GetFeatureRequest.adapt(getFeature)).getAdaptee();
-
         QueryType query = (QueryType) request.getAbstractQueryExpression();
         QName typeName = (QName) query.getTypeNames().iterator().next();
         FeatureTypeInfo featureType = catalog.getFeatureTypeByName(typeName.getNamespaceURI(),
                 typeName.getLocalPart());
 
+        // a plain attribute of a simple feature type can be read alone, and its distinct
+        // values computed by the store
+        String attributeName = getSimpleAttributeName(request.getValueReference(), featureType);
+        boolean distinct = attributeName != null && isDistinctRequested();
+        if (attributeName != null && query.getAbstractProjectionClause().isEmpty()) {
+            query.getAbstractProjectionClause()
+                    .add(new QName(typeName.getNamespaceURI(), attributeName));
+        }
+
         try {
 
             PropertyName propertyName = filterFactory.property(request.getValueReference(),
@@ -91,18 +121,127 @@ public class GetPropertyValue {
                 throw new WFSException(request, "No such attribute: " + request.getValueReference());
             }
 
-            // create value collection type from feature collection
             ValueCollectionType vc = Wfs20Factory.eINSTANCE.createValueCollectionType();
-            vc.setTimeStamp(fc.getTimeStamp());
-            vc.setNumberMatched(fc.getNumberMatched());
-            vc.setNumberReturned(fc.getNumberReturned());
-            vc.getMember().add(new PropertyValueCollection(fc.getMember().iterator().next(), descriptor, propertyName));
+            FeatureCollection features;
+            if (distinct) {
+                // count limits the distinct values, not the features they are computed from
+                features = getDistinctValues(request.getVersion(), query, featureType,
+                        descriptor, request.getCount());
+                vc.setTimeStamp(Calendar.getInstance());
+                vc.setNumberMatched(BigInteger.valueOf(features.size()));
+                vc.setNumberReturned(BigInteger.valueOf(features.size()));
+            } else {
+                // do a getFeature request
+                GetFeatureType getFeature = Wfs20Factory.eINSTANCE.createGetFeatureType();
+                getFeature.getAbstractQueryExpression().add(query);
+                getFeature.setResolve(request.getResolve());
+                getFeature.setResolveDepth(request.getResolveDepth());
+                getFeature.setResolveTimeout(request.getResolveTimeout());
+                getFeature.setCount(request.getCount());
+
+                FeatureCollectionType fc = (FeatureCollectionType) delegate.run(
+                        GetFeatureRequest.adapt(getFeature)).getAdaptee();
+
+                // create value collection type from feature collection
+                vc.setTimeStamp(fc.getTimeStamp());
+                vc.setNumberMatched(fc.getNumberMatched());
+                vc.setNumberReturned(fc.getNumberReturned());
+                features = (FeatureCollection) fc.getMember().iterator().next();
+            }
+            vc.getMember().add(new PropertyValueCollection(features, descriptor, propertyName));
             return vc;
         } catch (IOException e) {
             throw new WFSException(request, e);
         }
     }
 
+    /**
+     * Returns the attribute name if the value reference is a plain (optionally prefixed) attribute
+     * name of a simple feature type, null otherwise
+     */
+    String getSimpleAttributeName(String valueReference, FeatureTypeInfo featureType) {
+        if (featureType == null || valueReference.indexOf('/') >= 0
+                || valueReference.indexOf('[') >= 0 || valueReference.indexOf('@') >= 0) {
+            return null;
+        }
+        String name = valueReference.substring(valueReference.indexOf(':') + 1);
+        try {
+            FeatureType schema = featureType.getFeatureType();
+            if (schema instanceof SimpleFeatureType
+                    && ((SimpleFeatureType) schema).getDescriptor(name) != null) {
+                return name;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not load the feature type, not optimizing", e);
+        }
+        return null;
+    }
+
+    /**
+     * Checks the {@link #DISTINCT} vendor parameter
+     */
+    boolean isDistinctRequested() {
+        Request dispatcherRequest = Dispatcher.REQUEST.get();
+        if (dispatcherRequest == null || dispatcherRequest.getRawKvp() == null) {
+            return false;
+        }
+        Object distinct = new KvpMap(dispatcherRequest.getRawKvp()).get(DISTINCT);
+        return distinct != null && Boolean.valueOf(String.valueOf(distinct).trim());
+    }
+
+    /**
+     * Collects the distinct values of the attribute running a {@link UniqueVisitor} directly on
+     * the layer feature source, so that the store can turn it into a single query. The values are
+     * sorted when possible, and only then cut to the requested count, or to the service maximum
+     * number of features
+     */
+    FeatureCollection getDistinctValues(String version, QueryType query,
+            FeatureTypeInfo featureType, AttributeDescriptor descriptor, BigInteger count)
+            throws IOException {
+        FeatureSource<? extends FeatureType, ? extends Feature> source = featureType
+                .getFeatureSource(null, null);
+        FeatureType schema = source.getSchema();
+        Filter filter = query.getFilter() != null ? query.getFilter() : Filter.INCLUDE;
+        CoordinateReferenceSystem declaredCRS = WFSReprojectionUtil.getDeclaredCrs(schema,
+                version);
+        if (declaredCRS != null) {
+            filter = WFSReprojectionUtil.normalizeFilterCRS(filter, schema, declaredCRS);
+        }
+        Query gtQuery = new Query(schema.getName().getLocalPart(), filter,
+                new String[] { descriptor.getLocalName() });
+        gtQuery.setHandle(query.getHandle());
+
+        UniqueVisitor visitor = new UniqueVisitor(descriptor.getLocalName());
+        visitor.setPreserveOrder(true);
+        source.getFeatures(gtQuery).accepts(visitor, null);
+
+        Collection<Object> values = visitor.getUnique();
+        try {
+            values = new TreeSet<>(values);
+        } catch (ClassCastException | NullPointerException e) {
+            // values are not comparable, keep the store order
+        }
+        int limit = count != null ? count.intValue() : delegate.getWFS().getMaxFeatures();
+        if (limit > 0 && values.size() > limit) {
+            List<Object> limited = new ArrayList<>(limit);
+            Iterator<Object> it = values.iterator();
+            while (limited.size() < limit) {
+                limited.add(it.next());
+            }
+            values = limited;
+        }
+
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName(schema.getName());
+        tb.add(descriptor);
+        SimpleFeatureType type = tb.buildFeatureType();
+        ListFeatureCollection result = new ListFeatureCollection(type);
+        for (Object value : values) {
+            result.add(SimpleFeatureBuilder.build(type, new Object[] { value }, null));
+        }
+        return result;
+    }
+
     public void setFilterFactory(FilterFactory2 filterFactory) {
         this.filterFactory = filterFactory;
 
@@ -7,9 +7,11 @@ package org.geoserver.wfs;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -120,6 +122,10 @@ public class LockFeature {
             // prepare the response object
             LockFeatureResponse response = request.createResponse();
             response.setLockId(fLock.getAuthorization());
+
+            // keeps track of the locked features, to avoid scanning all stores on release/refresh
+            LockRegistry.LockRecord record = new LockRegistry.LockRecord(
+                    fLock.getAuthorization(), fLock.getDuration());
             
             // go thru each lock request, and try to perform locks on a feature
             // by feature basis
@@ -203,6 +209,7 @@ public class LockFeature {
                                 LOGGER.fine("Lock " + fid + " (authID:" + fLock.getAuthorization()
                                     + ")");
                                 response.addLockedFeature( fid);
+                                record.add(meta.getStore().getId(), meta.getId(), fid.getID());
 
                                 // lockedFids.add(fid);
                             } else if (numberLocked == 0) {
@@ -215,6 +222,7 @@ public class LockFeature {
                                 LOGGER.warning("Lock " + numberLocked + " " + fid + " (authID:"
                                     + fLock.getAuthorization() + ") duplicated FeatureID!");
                                 response.addLockedFeature(fid);
+                                record.add(meta.getStore().getId(), meta.getId(), fid.getID());
 
                                 // lockedFids.add(fid);
                             }
@@ -268,6 +276,11 @@ public class LockFeature {
                 throw new WFSException(request, "Could not aquire locks for:" + notLocked);
             }
 
+            LockRegistry registry = LockRegistry.get();
+            if (registry != null) {
+                registry.put(record);
+            }
+
             return response;
         } catch (WFSException e) {
             // release locks when something fails
@@ -293,7 +306,7 @@ public class LockFeature {
         try {
             boolean refresh = false;
 
-            List dataStores = catalog.getDataStores();
+            List dataStores = getLockStores(lockId);
 
             for (Iterator i = dataStores.iterator(); i.hasNext();) {
                 DataStoreInfo meta = (DataStoreInfo) i.next();
@@ -340,6 +353,11 @@ public class LockFeature {
             if (!refresh) {
                 // throw exception? or ignore...
             }
+
+            LockRegistry registry = LockRegistry.get();
+            if (registry != null) {
+                registry.release(lockId);
+            }
         } catch (Exception e) {
             throw new WFSException(e);
         }
@@ -382,6 +400,11 @@ public class LockFeature {
                 // TODO: implement LockingManger.releaseAll()
                 // count += lockingManager.releaseAll();
             }
+
+            LockRegistry registry = LockRegistry.get();
+            if (registry != null) {
+                registry.releaseAll();
+            }
         } catch (Exception e) {
             throw new WFSException(e);
         }
@@ -389,7 +412,7 @@ public class LockFeature {
 
     public boolean exists(String lockId) throws WFSException {
         try {
-            List dataStores = catalog.getDataStores();
+            List dataStores = getLockStores(lockId);
 
             for (Iterator i = dataStores.iterator(); i.hasNext();) {
                 DataStoreInfo meta = (DataStoreInfo) i.next();
@@ -428,7 +451,7 @@ public class LockFeature {
         try {
             boolean refresh = false;
 
-            List dataStores = catalog.getDataStores();
+            List dataStores = getLockStores(lockId);
 
             for (Iterator i = dataStores.iterator(); i.hasNext();) {
                 DataStoreInfo meta = (DataStoreInfo) i.next();
@@ -475,11 +498,36 @@ public class LockFeature {
             if (!refresh) {
                 // throw exception? or ignore...
             }
+
+            LockRegistry registry = LockRegistry.get();
+            if (registry != null) {
+                registry.refresh(lockId);
+            }
         } catch (Exception e) {
             throw new WFSException(e);
         }
     }
 
+    /**
+     * Returns the stores that might hold the given lock: the ones recorded in the
+     * {@link LockRegistry} when the lock is known to it, all the catalog stores otherwise
+     */
+    List<DataStoreInfo> getLockStores(String lockId) {
+        LockRegistry registry = LockRegistry.get();
+        Set<String> storeIds = registry == null ? null : registry.getStoreIds(lockId);
+        if (storeIds == null) {
+            return catalog.getDataStores();
+        }
+        List<DataStoreInfo> result = new ArrayList<>();
+        for (String storeId : storeIds) {
+            DataStoreInfo store = catalog.getDataStore(storeId);
+            if (store != null) {
+                result.add(store);
+            }
+        }
+        return result;
+    }
+
     private FeatureId fid(String fid) {
         return filterFactory.featureId(fid);
     }
@@ -0,0 +1,606 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInitializer;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.resource.Resource;
+import org.geoserver.platform.resource.ResourceStore;
+import org.geotools.data.FeatureLock;
+import org.geotools.data.FeatureLocking;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.util.logging.Logging;
+import org.opengis.filter.FilterFactory;
+import org.opengis.filter.identity.FeatureId;
+
+/**
+ * Keeps track of the features locked by the WFS LockFeature operation, indexed by lock id and by
+ * feature id.
+ * <p>
+ * The locks themselves are still enforced by the {@link org.geotools.data.LockingManager} of each
+ * store, the registry allows {@link LockFeature} to release, refresh and check a lock against the
+ * stores actually holding it, instead of scanning all the stores in the catalog.
+ * <p>
+ * When {@link #WFS_LOCK_PERSISTENCE} is set to true each lock is saved in its own entry of the
+ * resource store (the data directory, or a database when a JDBC resource store is in use), and
+ * the unexpired locks are acquired again in the stores at startup, so that they survive a restart.
+ * Each lookup compares the lock entry with the one last seen, so that the registry state follows
+ * the changes made by other nodes sharing the resource store. Enforcement is not shared, a lock is
+ * only held by the stores of the node that took it, or restored it at startup.
+ */
+public class LockRegistry implements GeoServerInitializer {
+
+    static final Logger LOGGER = Logging.getLogger(LockRegistry.class);
+
+    /**
+     * When set to true, the registry is persisted and the locks restored at startup
+     */
+    public static final String WFS_LOCK_PERSISTENCE = "WFS_LOCK_PERSISTENCE";
+
+    /**
+     * Path of the registry directory in the resource store, holding one entry per lock
+     */
+    static final String LOCKS_PATH = "wfs-locks";
+
+    /**
+     * The features locked by a single lock, organized by store and feature type ids
+     */
+    public static class LockRecord {
+
+        final String lockId;
+
+        /**
+         * The lock duration in milliseconds, zero for locks that never expire
+         */
+        final long duration;
+
+        long expiry;
+
+        /**
+         * The last modification time of the persisted entry this record was read from, or saved to
+         */
+        long lastModified;
+
+        final Map<String, Map<String, Set<String>>> features = new LinkedHashMap<>();
+
+        public LockRecord(String lockId, long duration) {
+            this.lockId = lockId;
+            this.duration = duration;
+        }
+
+        /**
+         * Records a locked feature
+         */
+        public void add(String storeId, String featureTypeId, String fid) {
+            Map<String, Set<String>> types = features.get(storeId);
+            if (types == null) {
+                types = new LinkedHashMap<>();
+                features.put(storeId, types);
+            }
+            Set<String> fids = types.get(featureTypeId);
+            if (fids == null) {
+                fids = new LinkedHashSet<>();
+                types.put(featureTypeId, fids);
+            }
+            fids.add(fid);
+        }
+
+        /**
+         * Forgets about the given features, returns true if any was part of the lock
+         *
+         * @param fids The feature ids, by feature type id
+         */
+        boolean remove(Map<String, Set<String>> fids) {
+            boolean removed = false;
+            for (Iterator<Map<String, Set<String>>> it = features.values().iterator(); it
+                    .hasNext();) {
+                Map<String, Set<String>> types = it.next();
+                for (Map.Entry<String, Set<String>> entry : fids.entrySet()) {
+                    Set<String> locked = types.get(entry.getKey());
+                    if (locked != null && locked.removeAll(entry.getValue())) {
+                        removed = true;
+                        if (locked.isEmpty()) {
+                            types.remove(entry.getKey());
+                        }
+                    }
+                }
+                if (types.isEmpty()) {
+                    it.remove();
+                }
+            }
+            return removed;
+        }
+
+        public boolean isEmpty() {
+            return features.isEmpty();
+        }
+
+        boolean isExpired(long now) {
+            return duration > 0 && expiry <= now;
+        }
+    }
+
+    private final Resource directory;
+
+    final Map<String, LockRecord> locks = new HashMap<>();
+
+    /**
+     * The lock ids, by feature type id and feature id
+     */
+    private final Map<String, Map<String, String>> lockIds = new HashMap<>();
+
+    private boolean loaded;
+
+    public LockRegistry(ResourceStore resourceStore) {
+        this(Boolean.parseBoolean(GeoServerExtensions.getProperty(WFS_LOCK_PERSISTENCE))
+                ? resourceStore.get(LOCKS_PATH) : null);
+    }
+
+    /**
+     * Builds a new registry
+     *
+     * @param directory The directory the locks are persisted into, or null to keep them in
+     *        memory only
+     */
+    LockRegistry(Resource directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Looks up the registry among the application context beans
+     *
+     * @return the registry, or null if not available
+     */
+    static LockRegistry get() {
+        return GeoServerExtensions.bean(LockRegistry.class);
+    }
+
+    @Override
+    public void initialize(GeoServer geoServer) throws Exception {
+        if (directory == null) {
+            return;
+        }
+        List<LockRecord> restore;
+        synchronized (this) {
+            load();
+            restore = new ArrayList<>(locks.values());
+        }
+        Catalog catalog = geoServer.getCatalog();
+        for (LockRecord record : restore) {
+            restore(catalog, record);
+        }
+    }
+
+    /**
+     * Acquires again the locks of a persisted record in the stores
+     */
+    void restore(Catalog catalog, LockRecord record) {
+        long remaining = 0;
+        if (record.duration > 0) {
+            remaining = record.expiry - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+        }
+        FeatureLock lock = new RestoredLock(record.lockId, remaining);
+        FilterFactory ff = CommonFactoryFinder.getFilterFactory(null);
+        for (Map<String, Set<String>> types : record.features.values()) {
+            for (Map.Entry<String, Set<String>> entry : types.entrySet()) {
+                FeatureTypeInfo info = catalog.getFeatureType(entry.getKey());
+                if (info == null) {
+                    LOGGER.warning("Cannot restore lock " + record.lockId
+                            + ", feature type " + entry.getKey() + " is not in the catalog anymore");
+                    continue;
+                }
+                try {
+                    FeatureSource source = info.getFeatureSource(null, null);
+                    if (!(source instanceof FeatureLocking)) {
+                        continue;
+                    }
+                    Set<FeatureId> ids = new HashSet<>();
+                    for (String fid : entry.getValue()) {
+                        ids.add(ff.featureId(fid));
+                    }
+                    FeatureLocking locking = (FeatureLocking) source;
+                    locking.setFeatureLock(lock);
+                    int locked = locking.lockFeatures(new Query(info.getName(), ff.id(ids)));
+                    if (locked < ids.size()) {
+                        LOGGER.warning("Restored " + locked + " out of " + ids.size()
+                                + " locked features of " + info.prefixedName() + " for lock "
+                                + record.lockId);
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to restore lock " + record.lockId + " on "
+                            + info.prefixedName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers the features locked by a LockFeature request, the expiry is computed from the
+     * current time
+     */
+    public synchronized void put(LockRecord record) {
+        if (record.duration < 0 || record.isEmpty()) {
+            return;
+        }
+        load();
+        long now = System.currentTimeMillis();
+        // locks that no client looks up anymore are dropped here
+        for (LockRecord existing : new ArrayList<>(locks.values())) {
+            if (existing.isExpired(now)) {
+                remove(existing.lockId);
+            }
+        }
+        record.expiry = now + record.duration;
+        add(record);
+        save(record);
+    }
+
+    /**
+     * Returns the ids of the stores holding features locked by the given lock
+     *
+     * @return the store ids, or null if the lock is not known
+     */
+    public synchronized Set<String> getStoreIds(String lockId) {
+        LockRecord record = lookup(lockId);
+        return record == null ? null : Collections.unmodifiableSet(
+                new LinkedHashSet<>(record.features.keySet()));
+    }
+
+    /**
+     * Returns the features of a feature type locked by the given lock
+     *
+     * @return the feature ids, empty if the lock is not known or does not hold any feature of the
+     *         type
+     */
+    public synchronized Set<String> getFids(String lockId, String featureTypeId) {
+        LockRecord record = lookup(lockId);
+        if (record != null) {
+            for (Map<String, Set<String>> types : record.features.values()) {
+                Set<String> fids = types.get(featureTypeId);
+                if (fids != null) {
+                    return Collections.unmodifiableSet(new LinkedHashSet<>(fids));
+                }
+            }
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * Returns the unexpired lock holding a feature, among the locks taken or looked up on this
+     * node
+     *
+     * @return the lock id, or null if the feature is not locked
+     */
+    public synchronized String getLockId(String featureTypeId, String fid) {
+        load();
+        Map<String, String> fids = lockIds.get(featureTypeId);
+        String lockId = fids == null ? null : fids.get(fid);
+        if (lookup(lockId) == null) {
+            return null;
+        }
+        // the lookup reads the lock again if another node modified it
+        fids = lockIds.get(featureTypeId);
+        return fids != null && lockId.equals(fids.get(fid)) ? lockId : null;
+    }
+
+    /**
+     * Returns true if the lock is known and has not expired
+     */
+    public synchronized boolean exists(String lockId) {
+        return lookup(lockId) != null;
+    }
+
+    /**
+     * Restarts the expiry of a lock, from the current time
+     */
+    public synchronized void refresh(String lockId) {
+        LockRecord record = lookup(lockId);
+        if (record != null) {
+            record.expiry = System.currentTimeMillis() + record.duration;
+            save(record);
+        }
+    }
+
+    /**
+     * Forgets about some of the features of a lock, e.g. the ones modified by a transaction
+     * using releaseAction=SOME. The lock is released when no feature is left
+     *
+     * @param fids The released feature ids, by feature type id
+     */
+    public synchronized void release(String lockId, Map<String, Set<String>> fids) {
+        LockRecord record = lookup(lockId);
+        if (record != null) {
+            unindex(record);
+            boolean removed = record.remove(fids);
+            index(record);
+            if (removed) {
+                if (record.isEmpty()) {
+                    remove(lockId);
+                } else {
+                    save(record);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets about a lock
+     */
+    public synchronized void release(String lockId) {
+        load();
+        remove(lockId);
+    }
+
+    /**
+     * Forgets about all locks
+     */
+    public synchronized void releaseAll() {
+        load();
+        if (directory != null && directory.getType() == Resource.Type.DIRECTORY) {
+            // including the ones added by other nodes
+            for (Resource entry : directory.list()) {
+                entry.delete();
+            }
+        }
+        for (String lockId : new ArrayList<>(locks.keySet())) {
+            remove(lockId);
+        }
+    }
+
+    /**
+     * Returns the unexpired record of a lock, reading it again if its persisted entry has been
+     * modified or removed by another node
+     */
+    private LockRecord lookup(String lockId) {
+        if (lockId == null) {
+            return null;
+        }
+        load();
+        LockRecord record = locks.get(lockId);
+        if (directory != null) {
+            Resource entry = getEntry(lockId);
+            if (entry.getType() != Resource.Type.RESOURCE) {
+                if (record != null) {
+                    forget(record);
+                }
+                return null;
+            }
+            long lastModified = entry.lastmodified();
+            if (record == null || record.lastModified != lastModified) {
+                if (record != null) {
+                    forget(record);
+                }
+                record = read(entry);
+                if (record == null) {
+                    return null;
+                }
+                record.lastModified = lastModified;
+                add(record);
+            }
+        }
+        if (record != null && record.isExpired(System.currentTimeMillis())) {
+            remove(lockId);
+            return null;
+        }
+        return record;
+    }
+
+    private void add(LockRecord record) {
+        LockRecord previous = locks.put(record.lockId, record);
+        if (previous != null) {
+            unindex(previous);
+        }
+        index(record);
+    }
+
+    private void forget(LockRecord record) {
+        locks.remove(record.lockId);
+        unindex(record);
+    }
+
+    private void remove(String lockId) {
+        LockRecord record = locks.get(lockId);
+        if (record != null) {
+            forget(record);
+        }
+        if (directory != null) {
+            getEntry(lockId).delete();
+        }
+    }
+
+    private void index(LockRecord record) {
+        for (Map<String, Set<String>> types : record.features.values()) {
+            for (Map.Entry<String, Set<String>> type : types.entrySet()) {
+                Map<String, String> fids = lockIds.get(type.getKey());
+                if (fids == null) {
+                    fids = new HashMap<>();
+                    lockIds.put(type.getKey(), fids);
+                }
+                for (String fid : type.getValue()) {
+                    fids.put(fid, record.lockId);
+                }
+            }
+        }
+    }
+
+    private void unindex(LockRecord record) {
+        for (Map<String, Set<String>> types : record.features.values()) {
+            for (Map.Entry<String, Set<String>> type : types.entrySet()) {
+                Map<String, String> fids = lockIds.get(type.getKey());
+                if (fids == null) {
+                    continue;
+                }
+                for (String fid : type.getValue()) {
+                    fids.remove(fid, record.lockId);
+                }
+                if (fids.isEmpty()) {
+                    lockIds.remove(type.getKey());
+                }
+            }
+        }
+    }
+
+    private Resource getEntry(String lockId) {
+        // the encoded id is a valid file name, but for the asterisk
+        return directory.get(encode(lockId).replace("*", "%2A") + ".txt");
+    }
+
+    /**
+     * Loads the persisted locks, once, dropping the expired ones
+     */
+    private void load() {
+        if (loaded || directory == null) {
+            loaded = true;
+            return;
+        }
+        loaded = true;
+        if (directory.getType() != Resource.Type.DIRECTORY) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Resource entry : directory.list()) {
+            if (entry.getType() != Resource.Type.RESOURCE) {
+                continue;
+            }
+            LockRecord record = read(entry);
+            if (record == null || record.isExpired(now) || record.isEmpty()) {
+                entry.delete();
+            } else {
+                record.lastModified = entry.lastmodified();
+                add(record);
+            }
+        }
+    }
+
+    /**
+     * Reads a persisted lock: the first line holds the URL encoded lock id, the duration and the
+     * expiry, each following one a locked feature as the URL encoded store id, feature type id
+     * and feature id, all separated by tabs
+     */
+    private LockRecord read(Resource entry) {
+        try (InputStream is = entry.in();
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            String[] fields = line == null ? null : line.split("\t");
+            if (fields == null || fields.length != 3) {
+                return null;
+            }
+            LockRecord record = new LockRecord(decode(fields[0]), Long.parseLong(fields[1]));
+            record.expiry = Long.parseLong(fields[2]);
+            while ((line = reader.readLine()) != null) {
+                fields = line.split("\t");
+                if (fields.length == 3) {
+                    record.add(decode(fields[0]), decode(fields[1]), decode(fields[2]));
+                }
+            }
+            return record;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to load the WFS lock from " + entry.path(), e);
+            return null;
+        }
+    }
+
+    private void save(LockRecord record) {
+        if (directory == null) {
+            return;
+        }
+        Resource entry = getEntry(record.lockId);
+        try (OutputStream os = entry.out();
+                Writer writer = new OutputStreamWriter(os, StandardCharsets.UTF_8)) {
+            writer.write(encode(record.lockId) + "\t" + record.duration + "\t" + record.expiry
+                    + "\n");
+            for (Map.Entry<String, Map<String, Set<String>>> store : record.features
+                    .entrySet()) {
+                for (Map.Entry<String, Set<String>> type : store.getValue().entrySet()) {
+                    for (String fid : type.getValue()) {
+                        writer.write(encode(store.getKey()));
+                        writer.write('\t');
+                        writer.write(encode(type.getKey()));
+                        writer.write('\t');
+                        writer.write(encode(fid));
+                        writer.write('\n');
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save the WFS lock to " + entry.path(), e);
+        }
+        record.lastModified = entry.lastmodified();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A feature lock with a known authorization, used to acquire again persisted locks
+     */
+    static class RestoredLock implements FeatureLock {
+
+        final String authorization;
+
+        final long duration;
+
+        RestoredLock(String authorization, long duration) {
+            this.authorization = authorization;
+            this.duration = duration;
+        }
+
+        @Override
+        public String getAuthorization() {
+            return authorization;
+        }
+
+        @Override
+        public long getDuration() {
+            return duration;
+        }
+    }
+}
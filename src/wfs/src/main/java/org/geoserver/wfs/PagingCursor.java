@@ -0,0 +1,239 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+import org.geotools.util.Converters;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.expression.PropertyName;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+
+/**
+ * Key-set paging cursor for GetFeature, allows to page through large results at a constant cost
+ * per page, instead of having the data source skip over all the features before the requested
+ * offset.
+ * <p>
+ * The cursor holds the index of the query being paged, and the sort key values of the last feature
+ * returned. The sort keys always end with the primary key, so they identify a single feature, and
+ * the cursor is turned into a "seek" filter {@code (k1, ..., pk) > (v1, ..., vpk)} selecting the
+ * features following the last one returned. It travels in the {@code next} links as an opaque,
+ * URL safe token.
+ */
+public class PagingCursor {
+
+    /**
+     * The vendor parameter carrying the cursor. Use {@link #START} to request the first page
+     */
+    public static final String CURSOR = "cursor";
+
+    /**
+     * The cursor value requesting the first page
+     */
+    public static final String START = "*";
+
+    static final int VERSION = 2;
+
+    static final byte NULL = 0, STRING = 1, LONG = 2, DOUBLE = 3, DATE = 4, BOOLEAN = 5,
+            TIMESTAMP = 6, DECIMAL = 7;
+
+    final int queryIndex;
+
+    final Object[] keys;
+
+    public PagingCursor(int queryIndex, Object[] keys) {
+        this.queryIndex = queryIndex;
+        this.keys = keys;
+    }
+
+    /**
+     * Returns a cursor that starts from the beginning of the specified query
+     */
+    public static PagingCursor start(int queryIndex) {
+        return new PagingCursor(queryIndex, null);
+    }
+
+    /**
+     * The index of the query being paged, the previous ones have already been fully returned
+     */
+    public int getQueryIndex() {
+        return queryIndex;
+    }
+
+    /**
+     * The sort key values of the last feature returned, or null if the query has to be read from
+     * the beginning
+     */
+    public Object[] getKeys() {
+        return keys;
+    }
+
+    /**
+     * Builds the filter selecting the features following the cursor position, given the query
+     * sort order, or {@link Filter#INCLUDE} if the query has to be read from the beginning
+     */
+    public Filter toSeekFilter(List<SortBy> sortBy, FilterFactory2 ff) {
+        if (keys == null) {
+            return Filter.INCLUDE;
+        }
+        if (sortBy == null || sortBy.size() != keys.length) {
+            throw new IllegalArgumentException(
+                    "The cursor does not match the query sort order, it has " + keys.length
+                            + " keys");
+        }
+
+        // (k1 > v1) or (k1 = v1 and k2 > v2) or ... or (k1 = v1 and ... and pk > vpk)
+        List<Filter> alternatives = new ArrayList<>();
+        List<Filter> equalities = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            PropertyName property = sortBy.get(i).getPropertyName();
+            Literal value = ff.literal(keys[i]);
+            Filter following = sortBy.get(i).getSortOrder() == SortOrder.DESCENDING
+                    ? ff.less(property, value) : ff.greater(property, value);
+            alternatives.add(and(ff, equalities, following));
+            equalities.add(ff.equals(property, value));
+        }
+        return alternatives.size() == 1 ? alternatives.get(0) : ff.or(alternatives);
+    }
+
+    private Filter and(FilterFactory2 ff, List<Filter> equalities, Filter last) {
+        if (equalities.isEmpty()) {
+            return last;
+        }
+        List<Filter> filters = new ArrayList<>(equalities);
+        filters.add(last);
+        return ff.and(filters);
+    }
+
+    /**
+     * Encodes the cursor as an opaque, URL safe token
+     */
+    public String encode() {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeInt(VERSION);
+            dos.writeInt(queryIndex);
+            dos.writeInt(keys == null ? -1 : keys.length);
+            if (keys != null) {
+                for (Object key : keys) {
+                    writeValue(dos, key);
+                }
+            }
+            dos.flush();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bos.toByteArray());
+        } catch (IOException e) {
+            // cannot happen, we are writing in memory
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeValue(DataOutputStream dos, Object value) throws IOException {
+        if (value == null) {
+            dos.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            dos.writeByte(BOOLEAN);
+            dos.writeBoolean((Boolean) value);
+        } else if (value instanceof Timestamp) {
+            // keep the nanoseconds, or the seek would return again the last feature
+            dos.writeByte(TIMESTAMP);
+            dos.writeLong(((Timestamp) value).getTime());
+            dos.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof Date) {
+            dos.writeByte(DATE);
+            dos.writeLong(((Date) value).getTime());
+        } else if (value instanceof Byte || value instanceof Short || value instanceof Integer
+                || value instanceof Long) {
+            dos.writeByte(LONG);
+            dos.writeLong(((Number) value).longValue());
+        } else if (value instanceof Float || value instanceof Double) {
+            dos.writeByte(DOUBLE);
+            dos.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+            // exact numbers are kept as text, they might not fit a long or a double
+            dos.writeByte(DECIMAL);
+            dos.writeUTF(value.toString());
+        } else {
+            dos.writeByte(STRING);
+            dos.writeUTF(Converters.convert(value, String.class));
+        }
+    }
+
+    /**
+     * Decodes a token generated by {@link #encode()}
+     *
+     * @throws IllegalArgumentException if the token is not valid
+     */
+    public static PagingCursor decode(String token) {
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(token);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (dis.readInt() != VERSION) {
+                throw new IllegalArgumentException("Unsupported cursor version");
+            }
+            int queryIndex = dis.readInt();
+            int keyCount = dis.readInt();
+            if (queryIndex < 0 || keyCount < -1 || keyCount > bytes.length) {
+                throw new IllegalArgumentException("Invalid cursor contents");
+            }
+            Object[] keys = null;
+            if (keyCount >= 0) {
+                keys = new Object[keyCount];
+                for (int i = 0; i < keyCount; i++) {
+                    keys[i] = readValue(dis);
+                }
+            }
+            return new PagingCursor(queryIndex, keys);
+        } catch (IOException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + token, e);
+        }
+    }
+
+    private static Object readValue(DataInputStream dis) throws IOException {
+        byte type = dis.readByte();
+        switch (type) {
+        case NULL:
+            return null;
+        case BOOLEAN:
+            return dis.readBoolean();
+        case DATE:
+            return new Date(dis.readLong());
+        case TIMESTAMP:
+            Timestamp timestamp = new Timestamp(dis.readLong());
+            timestamp.setNanos(dis.readInt());
+            return timestamp;
+        case DECIMAL:
+            return new BigDecimal(dis.readUTF());
+        case LONG:
+            return dis.readLong();
+        case DOUBLE:
+            return dis.readDouble();
+        case STRING:
+            return dis.readUTF();
+        default:
+            throw new IllegalArgumentException("Invalid cursor value type " + type);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PagingCursor [queryIndex=" + queryIndex + ", keys=" + Arrays.toString(keys) + "]";
+    }
+}
@@ -0,0 +1,202 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * A feature collection reading its contents in a background thread into a bounded queue, so that
+ * the data source I/O overlaps with the encoding of the collections preceding it in the response.
+ * <p>
+ * Only the first call to {@link #features()} uses the prefetched features, any further call reads
+ * again from the delegate. If the producer is still waiting for a thread when the features are
+ * requested, the prefetch is abandoned and the features are read from the delegate, as the pool
+ * might be busy with producers waiting on other requests. The prefetch is {@link #cancel()
+ * cancelled} when the response is complete or failed, the producer then stops reading and
+ * releases the data source.
+ */
+class PrefetchingFeatureCollection extends DecoratingSimpleFeatureCollection {
+
+    static final Logger LOGGER = Logging.getLogger(PrefetchingFeatureCollection.class);
+
+    static final int PENDING = 0, RUNNING = 1, CONSUMED = 2, ABORTED = 3;
+
+    static final Object END = new Object();
+
+    final BlockingQueue<Object> queue;
+
+    final AtomicInteger state = new AtomicInteger(PENDING);
+
+    volatile boolean closed;
+
+    volatile boolean producerDone;
+
+    /**
+     * @param delegate The collection to prefetch
+     * @param queueSize The maximum number of features read ahead
+     */
+    PrefetchingFeatureCollection(SimpleFeatureCollection delegate, int queueSize) {
+        super(delegate);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+    }
+
+    /**
+     * Starts reading the features with the given executor
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the executor cannot take the task
+     */
+    void start(Executor executor) {
+        // the features have to be read on behalf of the same user and request, data security
+        // and the request cancellation depend on it
+        final ThreadLocalsTransfer transfer = new ThreadLocalsTransfer();
+        executor.execute(() -> {
+            try {
+                transfer.apply();
+                produce();
+            } finally {
+                transfer.cleanup();
+            }
+        });
+    }
+
+    /**
+     * Stops the prefetch, called once the response is complete or failed. If the features were
+     * not requested, any later call to {@link #features()} reads from the delegate
+     */
+    void cancel() {
+        if (state.compareAndSet(PENDING, ABORTED) || state.compareAndSet(RUNNING, ABORTED)) {
+            LOGGER.fine("Prefetched features were not consumed, abandoning the prefetch");
+        }
+        closed = true;
+        queue.clear();
+    }
+
+    void produce() {
+        // the features might have been requested, or the prefetch cancelled, while this task
+        // was waiting for a thread, do not run the query in that case
+        if (closed || !state.compareAndSet(PENDING, RUNNING)) {
+            producerDone = true;
+            return;
+        }
+        try {
+            try (SimpleFeatureIterator fi = delegate.features()) {
+                while (fi.hasNext()) {
+                    if (!put(fi.next())) {
+                        return;
+                    }
+                }
+            } catch (RuntimeException e) {
+                put(new PrefetchFailure(e));
+                return;
+            }
+            put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state.compareAndSet(RUNNING, ABORTED);
+        } finally {
+            producerDone = true;
+        }
+    }
+
+    /**
+     * Queues the item, returns false if the prefetch has been cancelled in the meantime
+     */
+    boolean put(Object item) throws InterruptedException {
+        while (!closed && !queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            // waiting for the encoder, or for the end of the request
+        }
+        return !closed;
+    }
+
+    @Override
+    public SimpleFeatureIterator features() {
+        if (state.compareAndSet(RUNNING, CONSUMED)) {
+            return new PrefetchedIterator();
+        } else if (state.compareAndSet(PENDING, ABORTED)) {
+            // the producer did not start yet, and might not for a while
+            LOGGER.fine("Prefetch not started yet, reading the features directly");
+        }
+        return delegate.features();
+    }
+
+    class PrefetchedIterator implements SimpleFeatureIterator {
+
+        Object next;
+
+        boolean done;
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                Object item = take();
+                if (item == END) {
+                    done = true;
+                } else if (item instanceof PrefetchFailure) {
+                    done = true;
+                    throw ((PrefetchFailure) item).exception;
+                } else {
+                    next = item;
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public SimpleFeature next() throws NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature result = (SimpleFeature) next;
+            next = null;
+            return result;
+        }
+
+        Object take() {
+            try {
+                while (true) {
+                    Object item = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (item != null) {
+                        return item;
+                    } else if (producerDone && queue.isEmpty()) {
+                        throw new IllegalStateException(
+                                "Feature prefetching terminated before reading all features");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for features", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+
+    static final class PrefetchFailure {
+        final RuntimeException exception;
+
+        PrefetchFailure(RuntimeException exception) {
+            this.exception = exception;
+            LOGGER.log(Level.FINE, "Feature prefetch failed", exception);
+        }
+    }
+}
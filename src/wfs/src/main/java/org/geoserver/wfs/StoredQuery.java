@@ -9,10 +9,14 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
@@ -28,13 +32,23 @@ import net.opengis.wfs20.StoredQueryType;
 import net.opengis.wfs20.TitleType;
 import net.opengis.wfs20.Wfs20Factory;
 
+import org.eclipse.emf.ecore.util.EcoreUtil;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.wfs.kvp.QNameKvpParser;
+import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.filter.v2_0.FES;
+import org.geotools.filter.visitor.DefaultFilterVisitor;
+import org.geotools.filter.visitor.DuplicatingFilterVisitor;
 import org.geotools.wfs.v2_0.WFS;
 import org.geotools.wfs.v2_0.WFSConfiguration;
 import org.geotools.xml.Parser;
 import org.geotools.xs.XS;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.Id;
+import org.opengis.filter.expression.Literal;
+import org.opengis.filter.identity.Identifier;
+import org.opengis.filter.identity.ResourceId;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -77,8 +91,21 @@ public class StoredQuery {
         DEFAULT = new StoredQuery(desc, null);
     }
 
+    /**
+     * Matches the parameter references in the query expressions
+     */
+    static final Pattern PARAMETER = Pattern.compile("\\$\\{([^}]*)\\}");
+
     StoredQueryDescriptionType queryDef;
     Catalog catalog;
+
+    /**
+     * The query expressions parsed once, with the parameters still unbound, or null if the
+     * parameters can only be substituted in the query expression text
+     */
+    List<QueryType> templates;
+
+    boolean templatesParsed;
     
     public StoredQuery(StoredQueryDescriptionType query, Catalog catalog) {
         this.queryDef = query;
@@ -189,6 +216,185 @@ public class StoredQuery {
     }
     
     public List<QueryType> compile(StoredQueryType query) {
+        List<QueryType> templates = getTemplates();
+        if (templates == null) {
+            return compileText(query);
+        }
+
+        Map<String, String> values = new HashMap<>();
+        for (ParameterType p : query.getParameter()) {
+            values.put(p.getName(), p.getValue());
+        }
+        List<QueryType> list = new ArrayList<>();
+        for (QueryType template : templates) {
+            QueryType compiled = EcoreUtil.copy(template);
+            Filter filter = (Filter) template.getAbstractSelectionClause();
+            if (filter != null) {
+                compiled.setAbstractSelectionClause(
+                        filter.accept(new ParameterBindingVisitor(values), null));
+            }
+            list.add(compiled);
+        }
+        return list;
+    }
+
+    /**
+     * Returns the parsed query expressions, parsing them on first access. The query expressions
+     * are parsed with the parameter references in place, and can be used as templates only if all
+     * of the references ended up in filter literals or resource ids, where they can be bound
+     * without going back to the text.
+     */
+    synchronized List<QueryType> getTemplates() {
+        if (!templatesParsed) {
+            templates = parseTemplates();
+            templatesParsed = true;
+        }
+        return templates;
+    }
+
+    List<QueryType> parseTemplates() {
+        List<QueryType> result = new ArrayList<>();
+        for (QueryExpressionTextType qe : queryDef.getQueryExpressionText()) {
+            String text = qe.getValue();
+            QueryType parsed;
+            try {
+                parsed = parse(text);
+            } catch (Exception e) {
+                // parameters used where the parser does not accept them, e.g. coordinates
+                return null;
+            }
+            if (parsed == null) {
+                return null;
+            }
+            ParameterCountingVisitor counter = new ParameterCountingVisitor();
+            Filter filter = (Filter) parsed.getAbstractSelectionClause();
+            if (filter != null) {
+                filter.accept(counter, null);
+            }
+            if (counter.count != countParameters(text)) {
+                // parameters used outside of the filter, e.g. in the type names
+                return null;
+            }
+            result.add(parsed);
+        }
+        return result;
+    }
+
+    static int countParameters(String text) {
+        int count = 0;
+        Matcher matcher = PARAMETER.matcher(text);
+        while (matcher.find()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Replaces the parameter references in a string with the parameter values, the references to
+     * parameters without a value are left untouched
+     */
+    static String bind(String text, Map<String, String> values) {
+        if (text.indexOf("${") < 0) {
+            return text;
+        }
+        Matcher matcher = PARAMETER.matcher(text);
+        StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            String value = values.get(matcher.group(1));
+            matcher.appendReplacement(sb,
+                    Matcher.quoteReplacement(value != null ? value : matcher.group()));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    QueryType parse(String text) throws Exception {
+        Parser p = new Parser(new WFSConfiguration());
+        //"inject" namespace mappings
+        if (catalog != null) {
+            p.getNamespaces().add(new CatalogNamespaceSupport(catalog));
+        }
+        return (QueryType) p.parse(new ByteArrayInputStream(text.getBytes()));
+    }
+
+    /**
+     * Counts the parameter references in the filter literals and resource ids
+     */
+    static class ParameterCountingVisitor extends DefaultFilterVisitor {
+
+        int count;
+
+        @Override
+        public Object visit(Literal expression, Object data) {
+            if (expression.getValue() instanceof String) {
+                count += countParameters((String) expression.getValue());
+            }
+            return data;
+        }
+
+        @Override
+        public Object visit(Id filter, Object data) {
+            for (Identifier id : filter.getIdentifiers()) {
+                count += countParameters(String.valueOf(id.getID()));
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Binds the parameter values into the filter literals and resource ids
+     */
+    static class ParameterBindingVisitor extends DuplicatingFilterVisitor {
+
+        static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+        Map<String, String> values;
+
+        ParameterBindingVisitor(Map<String, String> values) {
+            super(FF);
+            this.values = values;
+        }
+
+        @Override
+        public Object visit(Literal expression, Object extraData) {
+            if (expression.getValue() instanceof String) {
+                String value = (String) expression.getValue();
+                String bound = bind(value, values);
+                if (bound != value) {
+                    return FF.literal(bound);
+                }
+            }
+            return super.visit(expression, extraData);
+        }
+
+        @Override
+        public Object visit(Id filter, Object extraData) {
+            Set<Identifier> ids = new HashSet<>();
+            for (Identifier id : filter.getIdentifiers()) {
+                String value = String.valueOf(id.getID());
+                String bound = bind(value, values);
+                if (bound == value) {
+                    ids.add(id);
+                } else if (id instanceof ResourceId) {
+                    ResourceId rid = (ResourceId) id;
+                    if (rid.getStartTime() != null || rid.getEndTime() != null) {
+                        ids.add(FF.resourceId(bound, rid.getStartTime(), rid.getEndTime()));
+                    } else {
+                        ids.add(FF.resourceId(bound, rid.getFeatureVersion(), rid.getVersion()));
+                    }
+                } else {
+                    ids.add(FF.featureId(bound));
+                }
+            }
+            return FF.id(ids);
+        }
+    }
+
+    /**
+     * Compiles the query expressions by substituting the parameters in their text, used when the
+     * parameters cannot be bound into the parsed expressions
+     */
+    List<QueryType> compileText(StoredQueryType query) {
         List list = new ArrayList();
 
         for (QueryExpressionTextType qe : queryDef.getQueryExpressionText()) {
@@ -206,15 +412,8 @@ public class StoredQuery {
             }
             
             //parse
-            Parser p = new Parser(new WFSConfiguration());
-            //"inject" namespace mappings
-            if (catalog != null) {
-                p.getNamespaces().add(new CatalogNamespaceSupport(catalog));
-            }
             try {
-                QueryType compiled = 
-                    (QueryType) p.parse(new ByteArrayInputStream(sb.toString().getBytes()));
-                list.add(compiled);
+                list.add(parse(sb.toString()));
             } 
             catch(Exception e) {
                 throw new RuntimeException(e);
@@ -11,6 +11,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,6 +26,10 @@ import org.geotools.wfs.v2_0.WFSConfiguration;
 import org.geotools.xml.Encoder;
 import org.geotools.xml.Parser;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
 import net.opengis.wfs20.StoredQueryDescriptionType;
 
 /**
@@ -41,6 +47,33 @@ public class StoredQueryProvider {
 
     /** logger */
     static Logger LOGGER = Logging.getLogger(StoredQueryProvider.class);
+
+    /**
+     * The parsed stored queries, by file name, shared among providers as they are created on each
+     * request. Keyed by resource loader so that different data directories are kept apart
+     */
+    static final LoadingCache<GeoServerResourceLoader, Map<String, CachedStoredQuery>> CACHE =
+            CacheBuilder.newBuilder().weakKeys().build(
+                    new CacheLoader<GeoServerResourceLoader, Map<String, CachedStoredQuery>>() {
+                        @Override
+                        public Map<String, CachedStoredQuery> load(GeoServerResourceLoader key) {
+                            return new ConcurrentHashMap<>();
+                        }
+                    });
+
+    /**
+     * A parsed stored query, along with the last modification time of its file
+     */
+    static class CachedStoredQuery {
+        final StoredQuery query;
+
+        final long lastModified;
+
+        CachedStoredQuery(StoredQuery query, long lastModified) {
+            this.query = query;
+            this.lastModified = lastModified;
+        }
+    }
     
     /** catalog */
     Catalog catalog;
@@ -75,7 +108,7 @@ public class StoredQueryProvider {
         Resource dir = storedQueryDir();
         for (Resource f : dir.list()) {
             try {
-                queries.add(parseStoredQuery(f, p));
+                queries.add(getCachedStoredQuery(f, p));
             } catch (Exception e) {
                 LOGGER.log(Level.WARNING, "Error occured parsing stored query: " + f, e);
             }
@@ -115,7 +148,9 @@ public class StoredQueryProvider {
      * @param query The stored query
      */
     public void removeStoredQuery(StoredQuery query) {
-        storedQueryDir().get(toFilename(query.getName())).delete();
+        String filename = toFilename(query.getName());
+        storedQueryDir().get(filename).delete();
+        getCache().remove(filename);
     }
     
     /**
@@ -125,6 +160,7 @@ public class StoredQueryProvider {
         for (Resource file : storedQueryDir().list()) {
             file.delete();
         }
+        getCache().clear();
     }
 
     
@@ -143,10 +179,11 @@ public class StoredQueryProvider {
             Resource res = storedQueryDir().get(toFilename(name));
             
             if (res.getType() != Type.RESOURCE) {
+                getCache().remove(res.name());
                 return null;
             }
             
-            return parseStoredQuery(res);
+            return getCachedStoredQuery(res, null);
         } 
         catch(Exception e) {
             throw new RuntimeException("Error accessign stoed query: " + name, e);
@@ -175,6 +212,7 @@ public class StoredQueryProvider {
             }
             finally {
                 bout.close();
+                getCache().remove(f.name());
             }
         }
         catch(IOException e) {
@@ -191,6 +229,26 @@ public class StoredQueryProvider {
         return loader.get("wfs/query");
     }
     
+    Map<String, CachedStoredQuery> getCache() {
+        return CACHE.getUnchecked(loader);
+    }
+
+    /**
+     * Returns the stored query in the given file, parsing it only if the file changed since the
+     * last time it was parsed
+     */
+    StoredQuery getCachedStoredQuery(Resource file, Parser p) throws Exception {
+        Map<String, CachedStoredQuery> cache = getCache();
+        long lastModified = file.lastmodified();
+        CachedStoredQuery cached = cache.get(file.name());
+        if (cached != null && cached.lastModified == lastModified) {
+            return cached.query;
+        }
+        StoredQuery query = p == null ? parseStoredQuery(file) : parseStoredQuery(file, p);
+        cache.put(file.name(), new CachedStoredQuery(query, lastModified));
+        return query;
+    }
+
     StoredQuery parseStoredQuery(Resource file) throws Exception {
         return parseStoredQuery(file, new Parser(new WFSConfiguration()));
     }
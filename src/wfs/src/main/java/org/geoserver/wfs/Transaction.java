@@ -10,11 +10,13 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -34,9 +36,11 @@ import org.geotools.data.DefaultTransaction;
 import org.geotools.data.FeatureLockException;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.FeatureStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.opengis.feature.Feature;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.filter.FilterFactory;
+import org.opengis.filter.identity.FeatureId;
 import org.springframework.context.ApplicationContext;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -163,7 +167,7 @@ public class Transaction {
         }
 
         // setup the transaction listener multiplexer
-        TransactionListenerMux multiplexer = new TransactionListenerMux();
+        TransactionListenerMux multiplexer = new TransactionListenerMux(request);
 
         // the geotools transaction
         transaction = getDatastoreTransaction(request);
@@ -377,6 +381,11 @@ public class Transaction {
                         lockRelease(lockId);
                     } else if (request.isReleaseActionSome()) {
                         lockRefresh(lockId);
+                        // the modified features are not locked anymore
+                        LockRegistry registry = LockRegistry.get();
+                        if (registry != null && !multiplexer.releasedFids.isEmpty()) {
+                            registry.release(lockId, multiplexer.releasedFids);
+                        }
                     }
                 }
             }
@@ -653,6 +662,18 @@ public class Transaction {
      *
      */
     private class TransactionListenerMux implements TransactionListener {
+
+        final TransactionRequest request;
+
+        /**
+         * The locked features updated or deleted with releaseAction=SOME, by feature type id
+         */
+        final Map<String, Set<String>> releasedFids = new HashMap<>();
+
+        TransactionListenerMux(TransactionRequest request) {
+            this.request = request;
+        }
+
         public void dataStoreChange(List listeners, TransactionEvent event)
             throws WFSException {
             for (Iterator it = listeners.iterator(); it.hasNext();) {
@@ -663,8 +684,48 @@ public class Transaction {
 
         public void dataStoreChange(TransactionEvent event)
             throws WFSException {
+            collectReleasedFids(event);
             dataStoreChange(transactionPlugins, event);
             dataStoreChange(transactionListeners, event);
         }
+
+        /**
+         * Collects the affected features that are part of the lock, reading only the ones the lock
+         * holds instead of all the affected features
+         */
+        void collectReleasedFids(TransactionEvent event) {
+            LockRegistry registry = LockRegistry.get();
+            if (request.getLockId() == null || !request.isReleaseActionSome()
+                    || (event.getType() != TransactionEventType.PRE_UPDATE
+                            && event.getType() != TransactionEventType.PRE_DELETE)
+                    || event.getLayerName() == null || registry == null) {
+                return;
+            }
+            QName name = event.getLayerName();
+            FeatureTypeInfo info = catalog.getFeatureTypeByName(name.getNamespaceURI(),
+                    name.getLocalPart());
+            if (info == null) {
+                return;
+            }
+            Set<String> locked = registry.getFids(request.getLockId(), info.getId());
+            if (locked.isEmpty()) {
+                return;
+            }
+            Set<FeatureId> ids = new HashSet<>();
+            for (String fid : locked) {
+                ids.add(filterFactory.featureId(fid));
+            }
+            Set<String> fids = releasedFids.get(info.getId());
+            if (fids == null) {
+                fids = new HashSet<>();
+                releasedFids.put(info.getId(), fids);
+            }
+            try (SimpleFeatureIterator fi = event.getAffectedFeatures()
+                    .subCollection(filterFactory.id(ids)).features()) {
+                while (fi.hasNext()) {
+                    fids.add(fi.next().getID());
+                }
+            }
+        }
     }
 }
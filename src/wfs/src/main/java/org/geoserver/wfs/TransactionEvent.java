@@ -15,6 +15,7 @@ import net.opengis.wfs.UpdateElementType;
 import org.geoserver.wfs.request.TransactionRequest;
 import org.geotools.data.Transaction;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 
 
 /**
@@ -37,6 +38,7 @@ public class TransactionEvent {
     private QName layerName;
     private Object source;
     private final TransactionRequest request;
+    private ReferencedEnvelope affectedBounds;
 
     public TransactionEvent(TransactionEventType type, TransactionRequest request, QName layerName,
             SimpleFeatureCollection affectedFeatures) {
@@ -68,6 +70,26 @@ public class TransactionEvent {
         return affectedFeatures;
     }
     
+    /**
+     * The bounds of the features that are being manipulated. The transaction handlers provide them
+     * whenever they already had to compute them, otherwise they are computed on first access from
+     * {@link #getAffectedFeatures()}. Listeners that only need the dirty area should use this
+     * method rather than scanning the affected features themselves.
+     */
+    public ReferencedEnvelope getAffectedBounds() {
+        if (affectedBounds == null && affectedFeatures != null) {
+            affectedBounds = affectedFeatures.getBounds();
+        }
+        return affectedBounds;
+    }
+
+    /**
+     * Sets the bounds of the features that are being manipulated
+     */
+    public void setAffectedBounds(ReferencedEnvelope affectedBounds) {
+        this.affectedBounds = affectedBounds;
+    }
+    
     /**
      * The name of the layer / feature type that this transaction effects.
      */
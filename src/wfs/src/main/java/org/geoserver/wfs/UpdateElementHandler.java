@@ -36,6 +36,7 @@ import org.geotools.factory.GeoTools;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.geometry.jts.GeometryCoordinateSequenceTransformer;
 import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.operation.projection.PointOutsideEnvelopeException;
 import org.opengis.feature.simple.SimpleFeature;
@@ -229,19 +230,18 @@ public class UpdateElementHandler extends AbstractTransactionElementHandler {
             Set<FeatureId> fids = new HashSet<FeatureId>();
             LOGGER.finer("Preprocess to remember modification as a set of fids");
             
+            // the same pass computes the damaged area, so that listeners do not need to
+            // scan the features again
             SimpleFeatureCollection features = store.getFeatures(filter);
-            TransactionEvent event = new TransactionEvent(TransactionEventType.PRE_UPDATE, request,
-                    elementName, features);
-            event.setSource(Update.WFS11.unadapt(update));
-            
-            listener.dataStoreChange( event );
-
+            ReferencedEnvelope damaged = new ReferencedEnvelope(
+                    store.getSchema().getCoordinateReferenceSystem());
             FeatureIterator preprocess = features.features();
 
             try {
                 while (preprocess.hasNext()) {
                     SimpleFeature feature = (SimpleFeature) preprocess.next();
                     fids.add(feature.getIdentifier());
+                    damaged.expandToInclude(ReferencedEnvelope.reference(feature.getBounds()));
                 }
             } catch (NoSuchElementException e) {
                 throw new WFSException(request, "Could not aquire FeatureIDs", e);
@@ -249,6 +249,13 @@ public class UpdateElementHandler extends AbstractTransactionElementHandler {
                 preprocess.close();
             }
 
+            TransactionEvent event = new TransactionEvent(TransactionEventType.PRE_UPDATE, request,
+                    elementName, features);
+            event.setSource(Update.WFS11.unadapt(update));
+            event.setAffectedBounds(damaged);
+            
+            listener.dataStoreChange( event );
+
             try {
                 store.modifyFeatures(names, values, filter);
             } catch( Exception e) {
@@ -289,18 +296,26 @@ public class UpdateElementHandler extends AbstractTransactionElementHandler {
                 // grab final ids. Not using fetureIds as they may contain different version
                 // information after the update
                 Set<FeatureId> changedIds = new HashSet<FeatureId>();
+                ReferencedEnvelope changedBounds = new ReferencedEnvelope(
+                        store.getSchema().getCoordinateReferenceSystem());
                 SimpleFeatureIterator iterator = changed.features();
                 try{
                     while(iterator.hasNext()){
-                        changedIds.add(iterator.next().getIdentifier());
+                        SimpleFeature feature = iterator.next();
+                        changedIds.add(feature.getIdentifier());
+                        changedBounds.expandToInclude(
+                                ReferencedEnvelope.reference(feature.getBounds()));
                     }
                 }finally{
                     iterator.close();
                 }
                 response.addUpdatedFeatures(handle, changedIds);
 
-                listener.dataStoreChange(new TransactionEvent(TransactionEventType.POST_UPDATE,
-                        request, elementName, changed, Update.WFS11.unadapt(update)));
+                TransactionEvent postEvent = new TransactionEvent(
+                        TransactionEventType.POST_UPDATE, request, elementName, changed,
+                        Update.WFS11.unadapt(update));
+                postEvent.setAffectedBounds(changedBounds);
+                listener.dataStoreChange(postEvent);
                 
             }
 
@@ -10,6 +10,7 @@ import net.sf.json.JSONException;
 import org.geoserver.config.GeoServer;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Request;
+import org.geoserver.ows.RequestCancellation;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
@@ -52,6 +53,12 @@ import java.util.logging.Logger;
 public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
     private final Logger LOGGER = org.geotools.util.logging.Logging.getLogger(this.getClass());
 
+    /**
+     * When set to true, simple features are encoded with {@link GeoJSONBuilder} instead of the
+     * faster {@link GeoJSONStreamingWriter}
+     */
+    public static final String LEGACY_ENCODER = "GEOSERVER_GEOJSON_LEGACY_ENCODER";
+
     // store the response type
     private final boolean jsonp;
 
@@ -163,7 +170,23 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             // encode the features and extract information about the CRS and if geometry exists
             boolean hasGeom = false;
             CoordinateReferenceSystem crs;
-            if (!isComplex) {
+            ReferencedEnvelope bounds = null;
+            if (!isComplex && !"true".equals(GeoServerExtensions.getProperty(LEGACY_ENCODER))) {
+                // write the features straight to the output, the builder is unaware of them
+                GeoJSONStreamingWriter featureWriter = new GeoJSONStreamingWriter(outWriter,
+                        numDecimals, id_option, featureBounding);
+                for (FeatureCollection collection : resultsList) {
+                    try (FeatureIterator iterator = collection.features()) {
+                        while (iterator.hasNext()) {
+                            RequestCancellation.checkCancelled();
+                            featureWriter.write((SimpleFeature) iterator.next());
+                        }
+                    }
+                }
+                hasGeom = featureWriter.hasGeometry();
+                crs = featureWriter.getCrs();
+                bounds = featureWriter.getBounds();
+            } else if (!isComplex) {
                 FeaturesInfo featuresInfo = encodeSimpleFeatures(jsonWriter, resultsList, id_option, featureBounding);
                 hasGeom = featuresInfo.hasGeometry;
                 crs = featuresInfo.crs;
@@ -190,8 +213,9 @@ public class GeoJSONGetFeatureResponse extends WFSGetFeatureOutputFormat {
             
             // Bounding box for featurecollection
             if (hasGeom && featureBounding) {
-                ReferencedEnvelope e = null;
-                for (int i = 0; i < resultsList.size(); i++) {
+                // use the bounds gathered while encoding, if available
+                ReferencedEnvelope e = bounds;
+                for (int i = 0; bounds == null && i < resultsList.size(); i++) {
                     FeatureCollection collection = resultsList.get(i);
                     if (e == null) {
                         e = collection.getBounds();
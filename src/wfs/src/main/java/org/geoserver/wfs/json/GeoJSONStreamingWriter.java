@@ -0,0 +1,546 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.json;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.json.util.JSONUtils;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.geometry.jts.coordinatesequence.CoordinateSequences;
+import org.geotools.referencing.CRS;
+import org.geotools.util.Converters;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.geom.impl.CoordinateArraySequence;
+
+/**
+ * Encodes simple features as GeoJSON directly on a {@link Writer}, producing the same output as the
+ * {@link GeoJSONBuilder} based encoding. The attribute keys, the axis order and the value encoders
+ * are computed once per feature type, the coordinates are formatted without intermediate objects
+ * whenever possible, and the feature bounds are gathered while the coordinates are written.
+ * <p>
+ * The writer only handles the contents of the "features" array, the caller is responsible for
+ * opening and closing it.
+ */
+class GeoJSONStreamingWriter {
+
+    /**
+     * Maximum number of decimals handled by the fast number formatting
+     */
+    static final int MAX_DECIMALS = 8;
+
+    private static final long[] SCALE = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L,
+            10000000L, 100000000L };
+
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0d);
+
+    // value encoders
+    static final int GENERIC = 0;
+
+    static final int GEOMETRY = 1;
+
+    static final int DOUBLE = 2;
+
+    static final int INTEGER = 3;
+
+    private final Writer writer;
+
+    private final int numDecimals;
+
+    private final String idOption;
+
+    private final boolean featureBounding;
+
+    private final Map<SimpleFeatureType, FeatureTypePlan> plans = new IdentityHashMap<>();
+
+    private final char[] buffer = new char[32];
+
+    private FeatureTypePlan lastPlan;
+
+    private boolean first = true;
+
+    // current feature state
+    private CRS.AxisOrder axisOrder = CRS.AxisOrder.EAST_NORTH;
+
+    private final Envelope featureBounds = new Envelope();
+
+    // collection wide information
+    private boolean hasGeometry;
+
+    private CoordinateReferenceSystem crs;
+
+    private Envelope bounds;
+
+    private CoordinateReferenceSystem boundsCrs;
+
+    /**
+     * Builds a new writer
+     *
+     * @param writer The target writer
+     * @param numDecimals The number of decimals used for coordinates and bounding boxes
+     * @param idOption The id policy, null for the feature id, empty for no id, otherwise the name
+     *        of the attribute providing the id
+     * @param featureBounding If true, the bounding box of each feature is encoded
+     */
+    public GeoJSONStreamingWriter(Writer writer, int numDecimals, String idOption,
+            boolean featureBounding) {
+        this.writer = writer;
+        this.numDecimals = numDecimals;
+        this.idOption = idOption;
+        this.featureBounding = featureBounding;
+    }
+
+    /**
+     * Writes a feature, separating it from the previous one
+     */
+    public void write(SimpleFeature feature) throws IOException {
+        FeatureTypePlan plan = getPlan(feature.getFeatureType());
+        if (plan.hasDefaultGeometry && crs == null) {
+            crs = plan.crs;
+        }
+        axisOrder = plan.axisOrder;
+        featureBounds.setToNull();
+
+        writer.write(first ? "{\"type\":\"Feature\"" : ",{\"type\":\"Feature\"");
+        first = false;
+        if (idOption == null) {
+            writer.write(",\"id\":");
+            writeValue(feature.getID());
+        } else if (idOption.length() != 0) {
+            writer.write(",\"id\":");
+            writeValue(plan.idIndex >= 0 ? feature.getAttribute(plan.idIndex) : null);
+        }
+
+        writer.write(",\"geometry\":");
+        Geometry geometry = (Geometry) feature.getDefaultGeometry();
+        if (geometry != null) {
+            writeGeometry(geometry);
+            hasGeometry = true;
+        } else {
+            writer.write("null");
+        }
+        if (plan.geometryName != null) {
+            writer.write(plan.geometryName);
+        }
+
+        writer.write(",\"properties\":{");
+        final int[] indexes = plan.indexes;
+        final String[] keys = plan.keys;
+        final int[] encoders = plan.encoders;
+        for (int i = 0; i < indexes.length; i++) {
+            writer.write(keys[i]);
+            writeValue(feature.getAttribute(indexes[i]), encoders[i]);
+        }
+        if (featureBounding && !featureBounds.isNull()) {
+            writer.write(indexes.length > 0 ? ",\"bbox\":" : "\"bbox\":");
+            writeBoundingBox(featureBounds);
+            if (bounds == null) {
+                bounds = new Envelope(featureBounds);
+                boundsCrs = plan.boundsCrs;
+            } else {
+                bounds.expandToInclude(featureBounds);
+            }
+        }
+        writer.write("}}");
+    }
+
+    /**
+     * Returns true if at least one feature had a default geometry
+     */
+    public boolean hasGeometry() {
+        return hasGeometry;
+    }
+
+    /**
+     * Returns the CRS of the first feature type having a default geometry
+     */
+    public CoordinateReferenceSystem getCrs() {
+        return crs;
+    }
+
+    /**
+     * Returns the bounds of the features written so far, or null if feature bounding is disabled
+     * or no feature had geometries
+     */
+    public ReferencedEnvelope getBounds() {
+        if (bounds == null) {
+            return null;
+        }
+        return new ReferencedEnvelope(bounds, boundsCrs);
+    }
+
+    private FeatureTypePlan getPlan(SimpleFeatureType type) {
+        FeatureTypePlan plan = lastPlan;
+        if (plan == null || plan.type != type) {
+            plan = plans.get(type);
+            if (plan == null) {
+                plan = new FeatureTypePlan(type, idOption);
+                plans.put(type, plan);
+            }
+            lastPlan = plan;
+        }
+        return plan;
+    }
+
+    private void writeValue(Object value, int encoder) throws IOException {
+        switch (encoder) {
+        case GEOMETRY:
+            if (value instanceof Geometry) {
+                writeGeometry((Geometry) value);
+                return;
+            }
+            break;
+        case DOUBLE:
+            if (value instanceof Double) {
+                writeNumber((Double) value, MAX_DECIMALS);
+                return;
+            }
+            break;
+        case INTEGER:
+            if (value instanceof Integer || value instanceof Long || value instanceof Short
+                    || value instanceof Byte) {
+                writer.write(Long.toString(((Number) value).longValue()));
+                return;
+            }
+            break;
+        }
+        writeValue(value);
+    }
+
+    /**
+     * Writes a value the same way {@link GeoJSONBuilder#value(Object)} does
+     */
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+        } else if (value instanceof Geometry) {
+            writeGeometry((Geometry) value);
+        } else if (value instanceof Double) {
+            writeNumber((Double) value, MAX_DECIMALS);
+        } else if (value instanceof List || value instanceof Map) {
+            // rare enough, let the builder handle the nesting
+            GeoJSONBuilder builder = new GeoJSONBuilder(writer);
+            builder.setNumberOfDecimals(numDecimals);
+            builder.setAxisOrder(axisOrder);
+            if (value instanceof List) {
+                builder.writeList((List) value);
+            } else {
+                builder.writeMap((Map) value);
+            }
+        } else if (value instanceof Date || value instanceof Calendar) {
+            writer.write(JSONUtils.valueToString(Converters.convert(value, String.class)));
+        } else {
+            writer.write(JSONUtils.valueToString(value));
+        }
+    }
+
+    private void writeGeometry(Geometry geometry) throws IOException {
+        writer.write("{\"type\":\"");
+        writer.write(GeoJSONBuilder.getGeometryName(geometry));
+
+        final int geometryType = GeoJSONBuilder.getGeometryType(geometry);
+        if (geometryType == GeoJSONBuilder.MULTIGEOMETRY) {
+            writer.write("\",\"geometries\":[");
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeGeometry(geometry.getGeometryN(i));
+            }
+            writer.write("]}");
+            return;
+        }
+
+        writer.write("\",\"coordinates\":");
+        switch (geometryType) {
+        case GeoJSONBuilder.POINT:
+            Coordinate c = ((Point) geometry).getCoordinate();
+            if (c != null) {
+                writeCoordinate(c.x, c.y, c.z);
+            } else {
+                writer.write("[]");
+            }
+            break;
+        case GeoJSONBuilder.LINESTRING:
+            writeCoordinates(((LineString) geometry).getCoordinateSequence());
+            break;
+        case GeoJSONBuilder.MULTIPOINT:
+            writeCoordinates(new CoordinateArraySequence(geometry.getCoordinates()));
+            break;
+        case GeoJSONBuilder.POLYGON:
+            writePolygon((Polygon) geometry);
+            break;
+        case GeoJSONBuilder.MULTILINESTRING:
+            writer.write('[');
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeCoordinates(((LineString) geometry.getGeometryN(i)).getCoordinateSequence());
+            }
+            writer.write(']');
+            break;
+        case GeoJSONBuilder.MULTIPOLYGON:
+            writer.write('[');
+            for (int i = 0, n = geometry.getNumGeometries(); i < n; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writePolygon((Polygon) geometry.getGeometryN(i));
+            }
+            writer.write(']');
+            break;
+        }
+        writer.write('}');
+    }
+
+    private void writePolygon(Polygon polygon) throws IOException {
+        writer.write('[');
+        writeCoordinates(polygon.getExteriorRing().getCoordinateSequence());
+        for (int i = 0, n = polygon.getNumInteriorRing(); i < n; i++) {
+            writer.write(',');
+            writeCoordinates(polygon.getInteriorRingN(i).getCoordinateSequence());
+        }
+        writer.write(']');
+    }
+
+    private void writeCoordinates(CoordinateSequence coords) throws IOException {
+        // guess the dimension of the coordinate sequence, as GeoJSONBuilder does
+        final boolean hasZ = CoordinateSequences.coordinateDimension(coords) > 2;
+        writer.write('[');
+        for (int i = 0, n = coords.size(); i < n; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeCoordinate(coords.getX(i), coords.getY(i),
+                    hasZ ? coords.getOrdinate(i, 2) : Double.NaN);
+        }
+        writer.write(']');
+    }
+
+    private void writeCoordinate(double x, double y, double z) throws IOException {
+        if (featureBounding) {
+            featureBounds.expandToInclude(x, y);
+        }
+        writer.write('[');
+        if (axisOrder == CRS.AxisOrder.NORTH_EAST) {
+            writeRounded(y);
+            writer.write(',');
+            writeRounded(x);
+        } else {
+            writeRounded(x);
+            writer.write(',');
+            writeRounded(y);
+        }
+        if (!Double.isNaN(z)) {
+            writer.write(',');
+            writeRounded(z);
+        }
+        writer.write(']');
+    }
+
+    private void writeBoundingBox(Envelope env) throws IOException {
+        writer.write('[');
+        if (axisOrder == CRS.AxisOrder.NORTH_EAST) {
+            writeRounded(env.getMinY());
+            writer.write(',');
+            writeRounded(env.getMinX());
+            writer.write(',');
+            writeRounded(env.getMaxY());
+            writer.write(',');
+            writeRounded(env.getMaxX());
+        } else {
+            writeRounded(env.getMinX());
+            writer.write(',');
+            writeRounded(env.getMinY());
+            writer.write(',');
+            writeRounded(env.getMaxX());
+            writer.write(',');
+            writeRounded(env.getMaxY());
+        }
+        writer.write(']');
+    }
+
+    private void writeRounded(double value) throws IOException {
+        writeNumber(RoundingUtil.round(value, numDecimals), numDecimals);
+    }
+
+    private void writeNumber(double value, int decimals) throws IOException {
+        int start = formatNumber(value, decimals, buffer);
+        if (start >= 0) {
+            writer.write(buffer, start, buffer.length - start);
+        } else {
+            // also throws the same exception as the builder on NaN and infinite values
+            writer.write(JSONUtils.numberToString(value));
+        }
+    }
+
+    /**
+     * Formats the value as {@link JSONUtils#numberToString(Number)} would, writing it at the end of
+     * the buffer. Only values that are exactly represented with the given number of decimals and
+     * are not going to be printed in scientific notation are handled, in this case the start
+     * position of the value in the buffer is returned, -1 otherwise.
+     */
+    static int formatNumber(double value, int decimals, char[] buffer) {
+        if (decimals < 0 || decimals > MAX_DECIMALS) {
+            return -1;
+        }
+        int pos = buffer.length;
+        double abs = Math.abs(value);
+        if (abs == 0) {
+            if (Double.doubleToRawLongBits(value) == NEGATIVE_ZERO) {
+                return -1;
+            }
+            buffer[--pos] = '0';
+            return pos;
+        }
+        // Double.toString switches to scientific notation outside of this range (NaN fails too)
+        if (!(abs >= 1e-3 && abs < 1e7)) {
+            return -1;
+        }
+        // less than 15 significant digits, so the shortest representation of the double, the
+        // one Double.toString uses, is the decimal we are about to write
+        final long scale = SCALE[decimals];
+        final long units = Math.round(abs * scale);
+        if ((double) units / scale != abs) {
+            return -1;
+        }
+
+        long fraction = units % scale;
+        if (fraction != 0) {
+            int digits = decimals;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            for (int i = 0; i < digits; i++) {
+                buffer[--pos] = (char) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            buffer[--pos] = '.';
+        }
+        long integer = units / scale;
+        do {
+            buffer[--pos] = (char) ('0' + integer % 10);
+            integer /= 10;
+        } while (integer != 0);
+        if (value < 0) {
+            buffer[--pos] = '-';
+        }
+        return pos;
+    }
+
+    /**
+     * The encoding plan of a feature type: what gets written for each attribute, and how
+     */
+    static class FeatureTypePlan {
+
+        final SimpleFeatureType type;
+
+        final boolean hasDefaultGeometry;
+
+        final CoordinateReferenceSystem crs;
+
+        final CoordinateReferenceSystem boundsCrs;
+
+        final CRS.AxisOrder axisOrder;
+
+        /**
+         * The encoded geometry name member, including the leading comma, or null
+         */
+        final String geometryName;
+
+        /**
+         * Index of the attribute used as the feature id, -1 if missing
+         */
+        final int idIndex;
+
+        /**
+         * Indexes, encoded keys (including the separating comma) and encoders of the attributes
+         * written in the feature properties
+         */
+        final int[] indexes;
+
+        final String[] keys;
+
+        final int[] encoders;
+
+        FeatureTypePlan(SimpleFeatureType type, String idOption) {
+            this.type = type;
+            this.boundsCrs = type.getCoordinateReferenceSystem();
+            GeometryDescriptor defaultGeometry = type.getGeometryDescriptor();
+            if (defaultGeometry != null) {
+                this.hasDefaultGeometry = true;
+                this.crs = defaultGeometry.getCoordinateReferenceSystem();
+                this.axisOrder = CRS.getAxisOrder(crs);
+                this.geometryName = ",\"geometry_name\":"
+                        + JSONUtils.valueToString(defaultGeometry.getLocalName());
+            } else {
+                // If we don't know, assume EAST_NORTH so that no swapping occurs
+                this.hasDefaultGeometry = false;
+                this.crs = null;
+                this.axisOrder = CRS.AxisOrder.EAST_NORTH;
+                this.geometryName = null;
+            }
+            this.idIndex = idOption != null && idOption.length() > 0 ? type.indexOf(idOption)
+                    : -1;
+
+            List<AttributeDescriptor> descriptors = type.getAttributeDescriptors();
+            int[] indexes = new int[descriptors.size()];
+            String[] keys = new String[descriptors.size()];
+            int[] encoders = new int[descriptors.size()];
+            int count = 0;
+            for (int i = 0; i < descriptors.size(); i++) {
+                AttributeDescriptor ad = descriptors.get(i);
+                if (idOption != null && idOption.equals(ad.getLocalName())) {
+                    // used as the id
+                    continue;
+                }
+                if (ad.equals(defaultGeometry)) {
+                    // already written as the feature geometry
+                    continue;
+                }
+                indexes[count] = i;
+                keys[count] = (count > 0 ? "," : "") + JSONUtils.quote(ad.getLocalName()) + ":";
+                encoders[count] = getEncoder(ad.getType().getBinding());
+                count++;
+            }
+            this.indexes = Arrays.copyOf(indexes, count);
+            this.keys = Arrays.copyOf(keys, count);
+            this.encoders = Arrays.copyOf(encoders, count);
+        }
+
+        static int getEncoder(Class<?> binding) {
+            if (Geometry.class.isAssignableFrom(binding)) {
+                return GEOMETRY;
+            } else if (Double.class.equals(binding)) {
+                return DOUBLE;
+            } else if (Integer.class.equals(binding) || Long.class.equals(binding)
+                    || Short.class.equals(binding) || Byte.class.equals(binding)) {
+                return INTEGER;
+            }
+            return GENERIC;
+        }
+    }
+}
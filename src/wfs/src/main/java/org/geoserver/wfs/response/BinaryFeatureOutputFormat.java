@@ -0,0 +1,446 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.geoserver.config.GeoServer;
+import org.geoserver.feature.FlatteningFeatureCollection;
+import org.geoserver.ows.RequestCancellation;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wfs.WFSGetFeatureOutputFormat;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geoserver.wfs.request.GetFeatureRequest;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.referencing.CRS;
+import org.geotools.util.Converters;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+
+/**
+ * WFS output format producing a compact, length prefixed binary stream meant for bulk extraction,
+ * encoded directly out of the feature iterator. The stream layout (all numbers big endian, strings
+ * as an int byte length followed by UTF-8 bytes) is:
+ *
+ * <pre>
+ * stream     := "GSBF" version:byte collection* 0:byte
+ * collection := 1:byte typeName:string srs:string wkt:string
+ *               columnCount:int (name:string type:byte nillable:byte)*
+ *               featureCount:long (-1 when unknown)
+ *               index:byte [nodeSize:int itemCount:int nodeCount:int node*]
+ *               (length:int record)* -1:int
+ * record     := nullBitmap:byte[ceil(columnCount / 8)] value*
+ * </pre>
+ *
+ * The first column is always the feature id, as a non nillable string named {@value #FID},
+ * followed by the feature attributes. Only the non null values are written, using the column
+ * types: boolean and byte as one byte,
+ * short, int, long, float and double as their Java counterparts, dates as epoch milliseconds,
+ * geometries as length prefixed 2D WKB, binary values as length prefixed bytes, and any other
+ * value as a string.
+ * <p>
+ * The packed spatial index is written when the {@link #SPATIAL_INDEX} format option is set to
+ * true, see {@link PackedRTree} for its layout. Its leaves hold the offset of the records, in
+ * bytes, from the first record length of the collection. Building the index requires all the
+ * features to be read before the collection header can be written, so the records are spooled to
+ * a temporary file in that case.
+ */
+public class BinaryFeatureOutputFormat extends WFSGetFeatureOutputFormat {
+
+    public static final String MIME_TYPE = "application/x-geoserver-binary";
+
+    /**
+     * Format option enabling the packed spatial index
+     */
+    public static final String SPATIAL_INDEX = "SPATIAL_INDEX";
+
+    static final byte[] MAGIC = { 'G', 'S', 'B', 'F' };
+
+    static final byte VERSION = 2;
+
+    /**
+     * Name of the leading feature id column
+     */
+    static final String FID = "FID";
+
+    // column types
+    static final byte BOOLEAN = 1;
+
+    static final byte BYTE = 2;
+
+    static final byte SHORT = 3;
+
+    static final byte INT = 4;
+
+    static final byte LONG = 5;
+
+    static final byte FLOAT = 6;
+
+    static final byte DOUBLE = 7;
+
+    static final byte STRING = 8;
+
+    static final byte DATE = 9;
+
+    static final byte GEOMETRY = 10;
+
+    static final byte BINARY = 11;
+
+    public BinaryFeatureOutputFormat(GeoServer gs) {
+        super(gs, new LinkedHashSet<>(Arrays.asList("binary", MIME_TYPE)));
+    }
+
+    @Override
+    public String getMimeType(Object value, Operation operation) throws ServiceException {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public String getCapabilitiesElementName() {
+        return "binary";
+    }
+
+    @Override
+    public String getPreferredDisposition(Object value, Operation operation) {
+        return DISPOSITION_ATTACH;
+    }
+
+    @Override
+    public String getAttachmentFileName(Object value, Operation operation) {
+        GetFeatureRequest request = GetFeatureRequest.adapt(operation.getParameters()[0]);
+        String outputFileName = request.getQueries().get(0).getTypeNames().get(0).getLocalPart();
+        return outputFileName + ".gsb";
+    }
+
+    @Override
+    protected void write(FeatureCollectionResponse featureCollection, OutputStream output,
+            Operation getFeature) throws IOException, ServiceException {
+        boolean spatialIndex = false;
+        GetFeatureRequest request = GetFeatureRequest.adapt(getFeature.getParameters()[0]);
+        if (request != null && request.getFormatOptions() != null) {
+            Map<String, ?> formatOptions = request.getFormatOptions();
+            Object value = formatOptions.get(SPATIAL_INDEX);
+            spatialIndex = value != null && Boolean.valueOf(String.valueOf(value));
+        }
+        write(featureCollection.getFeature(), spatialIndex, output);
+    }
+
+    /**
+     * Writes the collections in the binary format, optionally including a spatial index in each
+     * collection header
+     */
+    public void write(List<FeatureCollection> collections, boolean spatialIndex,
+            OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        for (FeatureCollection fc : collections) {
+            if (!(fc.getSchema() instanceof SimpleFeatureType)) {
+                throw new ServiceException(
+                        "The binary output format supports only simple features");
+            }
+            // Flatten the collection if necessary (the request was a WFS 2.0 joining GetFeature
+            // one, the features contain other SimpleFeature as attributes)
+            SimpleFeatureCollection sfc = FlatteningFeatureCollection
+                    .flatten((SimpleFeatureCollection) fc);
+            if (spatialIndex) {
+                writeIndexed(sfc, out);
+            } else {
+                writeStreaming(sfc, out);
+            }
+        }
+        out.writeByte(0);
+        out.flush();
+    }
+
+    private void writeStreaming(SimpleFeatureCollection fc, DataOutputStream out)
+            throws IOException {
+        RecordEncoder encoder = new RecordEncoder(fc.getSchema());
+        writeHeader(encoder, -1, out);
+        out.writeByte(0);
+        try (SimpleFeatureIterator it = fc.features()) {
+            while (it.hasNext()) {
+                RequestCancellation.checkCancelled();
+                encoder.encode(it.next());
+                encoder.writeTo(out);
+            }
+        }
+        out.writeInt(-1);
+    }
+
+    private void writeIndexed(SimpleFeatureCollection fc, DataOutputStream out)
+            throws IOException {
+        RecordEncoder encoder = new RecordEncoder(fc.getSchema());
+        PackedRTree tree = new PackedRTree(PackedRTree.DEFAULT_NODE_SIZE);
+        long count = 0;
+        File spool = File.createTempFile("binaryFeatures", ".gsb");
+        try {
+            // read the features only once, spooling the records while gathering their bounds
+            try (DataOutputStream spoolOut = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(spool), 64 * 1024));
+                    SimpleFeatureIterator it = fc.features()) {
+                long offset = 0;
+                while (it.hasNext()) {
+                    RequestCancellation.checkCancelled();
+                    SimpleFeature feature = it.next();
+                    encoder.encode(feature);
+                    Geometry geometry = (Geometry) feature.getDefaultGeometry();
+                    if (geometry != null && !geometry.isEmpty()) {
+                        tree.add(geometry.getEnvelopeInternal(), offset);
+                    }
+                    offset += encoder.writeTo(spoolOut);
+                    count++;
+                }
+            }
+
+            writeHeader(encoder, count, out);
+            if (tree.size() > 0) {
+                out.writeByte(1);
+                out.writeInt(tree.nodeSize);
+                out.writeInt(tree.size());
+                out.writeInt(PackedRTree.getNodeCount(tree.size(), tree.nodeSize));
+                tree.write(out);
+            } else {
+                out.writeByte(0);
+            }
+            try (InputStream in = new BufferedInputStream(new FileInputStream(spool))) {
+                IOUtils.copy(in, out);
+            }
+            out.writeInt(-1);
+        } finally {
+            spool.delete();
+        }
+    }
+
+    private void writeHeader(RecordEncoder encoder, long count, DataOutputStream out)
+            throws IOException {
+        SimpleFeatureType schema = encoder.schema;
+        out.writeByte(1);
+        writeString(schema.getTypeName(), out);
+        CoordinateReferenceSystem crs = schema.getCoordinateReferenceSystem();
+        String srs = "";
+        String wkt = "";
+        if (crs != null) {
+            srs = CRS.toSRS(crs);
+            try {
+                wkt = crs.toWKT();
+            } catch (UnsupportedOperationException e) {
+                // not all CRS can be formatted as WKT, the srs will have to do
+            }
+        }
+        writeString(srs == null ? "" : srs, out);
+        writeString(wkt, out);
+        out.writeInt(encoder.types.length);
+        writeString(FID, out);
+        out.writeByte(STRING);
+        out.writeByte(0);
+        for (int i = 1; i < encoder.types.length; i++) {
+            AttributeDescriptor ad = schema.getDescriptor(i - 1);
+            writeString(ad.getLocalName(), out);
+            out.writeByte(encoder.types[i]);
+            out.writeByte(ad.isNillable() ? 1 : 0);
+        }
+        out.writeLong(count);
+    }
+
+    static void writeString(String value, DataOutputStream out) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte getColumnType(Class<?> binding) {
+        if (Boolean.class.equals(binding)) {
+            return BOOLEAN;
+        } else if (Byte.class.equals(binding)) {
+            return BYTE;
+        } else if (Short.class.equals(binding)) {
+            return SHORT;
+        } else if (Integer.class.equals(binding)) {
+            return INT;
+        } else if (Long.class.equals(binding)) {
+            return LONG;
+        } else if (Float.class.equals(binding)) {
+            return FLOAT;
+        } else if (Double.class.equals(binding)) {
+            return DOUBLE;
+        } else if (Date.class.isAssignableFrom(binding)) {
+            return DATE;
+        } else if (Geometry.class.isAssignableFrom(binding)) {
+            return GEOMETRY;
+        } else if (byte[].class.equals(binding)) {
+            return BINARY;
+        }
+        return STRING;
+    }
+
+    static Class<?> getColumnClass(byte type) {
+        switch (type) {
+        case BOOLEAN:
+            return Boolean.class;
+        case BYTE:
+            return Byte.class;
+        case SHORT:
+            return Short.class;
+        case INT:
+            return Integer.class;
+        case LONG:
+            return Long.class;
+        case FLOAT:
+            return Float.class;
+        case DOUBLE:
+            return Double.class;
+        case DATE:
+            return Date.class;
+        case GEOMETRY:
+            return Geometry.class;
+        case BINARY:
+            return byte[].class;
+        default:
+            return String.class;
+        }
+    }
+
+    /**
+     * Encodes the features of a given type into a reusable buffer, the feature id first and then
+     * the attributes
+     */
+    static class RecordEncoder {
+
+        final SimpleFeatureType schema;
+
+        final byte[] types;
+
+        final Class<?>[] classes;
+
+        final Object[] values;
+
+        final byte[] nulls;
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+
+        final DataOutputStream data = new DataOutputStream(buffer);
+
+        final WKBWriter wkbWriter = new WKBWriter();
+
+        RecordEncoder(SimpleFeatureType schema) {
+            this.schema = schema;
+            int count = schema.getAttributeCount() + 1;
+            this.types = new byte[count];
+            this.classes = new Class<?>[count];
+            types[0] = STRING;
+            classes[0] = String.class;
+            for (int i = 1; i < count; i++) {
+                types[i] = getColumnType(schema.getDescriptor(i - 1).getType().getBinding());
+                classes[i] = getColumnClass(types[i]);
+            }
+            this.values = new Object[count];
+            this.nulls = new byte[(count + 7) / 8];
+        }
+
+        /**
+         * Encodes the feature in the buffer, replacing the previous one
+         */
+        void encode(SimpleFeature feature) throws IOException {
+            buffer.reset();
+            Arrays.fill(nulls, (byte) 0);
+            for (int i = 0; i < types.length; i++) {
+                Object value = i == 0 ? feature.getID() : feature.getAttribute(i - 1);
+                if (value != null && !classes[i].isInstance(value)) {
+                    Object converted = Converters.convert(value, classes[i]);
+                    if (converted == null && types[i] == STRING) {
+                        converted = value.toString();
+                    }
+                    value = converted;
+                }
+                values[i] = value;
+                if (value == null) {
+                    nulls[i >> 3] |= 1 << (i & 7);
+                }
+            }
+            data.write(nulls);
+            for (int i = 0; i < types.length; i++) {
+                if (values[i] != null) {
+                    writeValue(types[i], values[i]);
+                }
+            }
+            data.flush();
+        }
+
+        private void writeValue(byte type, Object value) throws IOException {
+            switch (type) {
+            case BOOLEAN:
+                data.writeBoolean((Boolean) value);
+                break;
+            case BYTE:
+                data.writeByte((Byte) value);
+                break;
+            case SHORT:
+                data.writeShort((Short) value);
+                break;
+            case INT:
+                data.writeInt((Integer) value);
+                break;
+            case LONG:
+                data.writeLong((Long) value);
+                break;
+            case FLOAT:
+                data.writeFloat((Float) value);
+                break;
+            case DOUBLE:
+                data.writeDouble((Double) value);
+                break;
+            case DATE:
+                data.writeLong(((Date) value).getTime());
+                break;
+            case GEOMETRY:
+                byte[] wkb = wkbWriter.write((Geometry) value);
+                data.writeInt(wkb.length);
+                data.write(wkb);
+                break;
+            case BINARY:
+                byte[] bytes = (byte[]) value;
+                data.writeInt(bytes.length);
+                data.write(bytes);
+                break;
+            default:
+                writeString((String) value, data);
+            }
+        }
+
+        /**
+         * Writes the length prefixed record, returning the number of bytes written
+         */
+        int writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+            return 4 + buffer.size();
+        }
+    }
+}
@@ -5,12 +5,12 @@
  */
 package org.geoserver.wfs.response;
 
-import com.google.common.escape.Escaper;
-import com.google.common.escape.Escapers;
+import org.apache.commons.io.output.StringBuilderWriter;
 import org.eclipse.xsd.XSDElementDeclaration;
 import org.eclipse.xsd.impl.XSDElementDeclarationImpl;
 import org.geoserver.config.GeoServer;
 import org.geoserver.feature.FlatteningFeatureCollection;
+import org.geoserver.ows.RequestCancellation;
 import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wfs.WFSGetFeatureOutputFormat;
@@ -28,16 +28,19 @@ import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.feature.type.PropertyDescriptor;
 
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTWriter;
+
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.NumberFormat;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Locale;
-import java.util.regex.Pattern;
 
 /**
  * WFS output format for a GetFeature operation in which the outputFormat is "csv".
@@ -50,8 +53,6 @@ import java.util.regex.Pattern;
  */
 public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
 
-    static final Pattern CSV_ESCAPES = Pattern.compile("[\"\n,\r]");
-
     public CSVOutputFormat(GeoServer gs) {
         //this is the name of your output format, it is the string
         // that will be used when requesting the format in a 
@@ -154,20 +155,20 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
         FeatureIterator<?> i = fc.features();
         try {
             while( i.hasNext() ) {                
+                RequestCancellation.checkCancelled();
                 Feature f = i.next();
                 // dump fid
-                w.write(prepCSVField(f.getIdentifier().getID()));
-                w.write(",");
+                writeCSVField(f.getIdentifier().getID(), w);
+                w.write(',');
                 if (f instanceof SimpleFeature) {
                     // dump attributes
                     for ( int j = 0; j < ((SimpleFeature) f).getAttributeCount(); j++ ) {
                         Object att = ((SimpleFeature) f).getAttribute( j );
                         if ( att != null ) {
-                            String value = formatters[j].format(att);
-                            w.write( value );
+                            formatters[j].write(att, w);
                         }
                         if ( j < ((SimpleFeature) f).getAttributeCount()-1 ) {
-                            w.write(",");    
+                            w.write(',');
                         }
                     }
                 } else {
@@ -215,11 +216,17 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
         w.flush();
     }
 
-    private AttrFormatter[] getFormatters(FeatureType schema) {
+    /**
+     * Builds the per attribute writers, picking the specialized ones based on the attribute
+     * bindings. Each writer still checks the actual value type, falling back on the generic
+     * behavior if the binding was not accurate.
+     */
+    AttrFormatter[] getFormatters(FeatureType schema) {
         if(schema instanceof SimpleFeatureType) {
             // prepare the formatter for numbers
+            int numDecimals = getInfo().getGeoServer().getSettings().getNumDecimals();
             NumberFormat coordFormatter = NumberFormat.getInstance(Locale.US);
-            coordFormatter.setMaximumFractionDigits(getInfo().getGeoServer().getSettings().getNumDecimals());
+            coordFormatter.setMaximumFractionDigits(numDecimals);
             coordFormatter.setGroupingUsed(false);
 
             SimpleFeatureType sft = (SimpleFeatureType) schema;
@@ -227,7 +234,12 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
             int i = 0;
             for (AttributeDescriptor attributeDescriptor : sft.getAttributeDescriptors()) {
                 Class<?> binding = attributeDescriptor.getType().getBinding();
-                if(Number.class.isAssignableFrom(binding)) {
+                if (binding == Integer.class || binding == Long.class || binding == Short.class
+                        || binding == Byte.class) {
+                    formatters[i] = new IntegerFormatter(coordFormatter);
+                } else if (binding == Double.class || binding == Float.class) {
+                    formatters[i] = new DoubleFormatter(coordFormatter, numDecimals);
+                } else if(Number.class.isAssignableFrom(binding)) {
                     formatters[i] = new NumberFormatter(coordFormatter);
                 } else if (java.sql.Date.class.isAssignableFrom(binding)) {
                     formatters[i] = sqlDateFormatter;
@@ -235,6 +247,8 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
                     formatters[i] = sqlTimeFormatter;
                 } else if (java.util.Date.class.isAssignableFrom(binding)) {
                     formatters[i] = juDateFormatter;
+                } else if (Geometry.class.isAssignableFrom(binding)) {
+                    formatters[i] = new GeometryFormatter();
                 } else {
                     formatters[i] = defaultFormatter;
                 }
@@ -246,8 +260,11 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
         }
     }
 
-    private interface AttrFormatter {
-        String format(Object att);
+    /**
+     * Writes a non null attribute value in the CSV output
+     */
+    interface AttrFormatter {
+        void write(Object att, Writer w) throws IOException;
     }
 
     private static class NumberFormatter implements AttrFormatter {
@@ -258,15 +275,86 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
         }
 
         @Override
-        public String format(Object att) {
-            return coordFormatter.format(att);
+        public void write(Object att, Writer w) throws IOException {
+            w.write(coordFormatter.format(att));
+        }
+    }
+
+    /**
+     * Integral numbers, no rounding nor grouping, can be written directly
+     */
+    private static class IntegerFormatter extends NumberFormatter {
+
+        public IntegerFormatter(NumberFormat coordFormatter) {
+            super(coordFormatter);
+        }
+
+        @Override
+        public void write(Object att, Writer w) throws IOException {
+            if (att instanceof Integer || att instanceof Long || att instanceof Short
+                    || att instanceof Byte) {
+                w.write(Long.toString(((Number) att).longValue()));
+            } else {
+                super.write(att, w);
+            }
+        }
+    }
+
+    /**
+     * Floating point numbers. {@link NumberFormat} works off the shortest decimal representation
+     * of the value, the same returned by {@link Double#toString(double)}, so whenever that one
+     * does not use the scientific notation and fits in the configured number of decimals it can
+     * be written as is
+     */
+    private static class DoubleFormatter extends NumberFormatter {
+
+        private final int numDecimals;
+
+        public DoubleFormatter(NumberFormat coordFormatter, int numDecimals) {
+            super(coordFormatter);
+            this.numDecimals = numDecimals;
+        }
+
+        @Override
+        public void write(Object att, Writer w) throws IOException {
+            String value = null;
+            if (att instanceof Double || att instanceof Float) {
+                value = formatDouble(((Number) att).doubleValue(), numDecimals);
+            }
+            if (value != null) {
+                w.write(value);
+            } else {
+                super.write(att, w);
+            }
+        }
+    }
+
+    /**
+     * Formats the value like {@link NumberFormat} would, or returns null if rounding or special
+     * value handling is required
+     */
+    static String formatDouble(double value, int numDecimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return null;
+        }
+        String s = Double.toString(value);
+        int dot = s.indexOf('.');
+        if (dot < 0 || s.indexOf('E') >= 0) {
+            return null;
         }
+        int decimals = s.length() - dot - 1;
+        if (decimals == 1 && s.charAt(dot + 1) == '0') {
+            return s.substring(0, dot);
+        } else if (decimals <= numDecimals) {
+            return s;
+        }
+        return null;
     }
 
     private static class JUDateFormatter implements AttrFormatter {
         @Override
-        public String format(Object att) {
-            return prepCSVField(DateUtil.serializeDateTime((Date) att));
+        public void write(Object att, Writer w) throws IOException {
+            writeCSVField(DateUtil.serializeDateTime((Date) att), w);
         }
     }
 
@@ -274,8 +362,8 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
 
     private static class SQLDateFormatter implements AttrFormatter {
         @Override
-        public String format(Object att) {
-            return prepCSVField(DateUtil.serializeSqlDate((java.sql.Date) att));
+        public void write(Object att, Writer w) throws IOException {
+            writeCSVField(DateUtil.serializeSqlDate((java.sql.Date) att), w);
         }
     }
 
@@ -283,17 +371,38 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
 
     private static class SQLTimeFormatter implements AttrFormatter {
         @Override
-        public String format(Object att) {
-            return prepCSVField(DateUtil.serializeSqlTime((java.sql.Time) att));
+        public void write(Object att, Writer w) throws IOException {
+            writeCSVField(DateUtil.serializeSqlTime((java.sql.Time) att), w);
         }
     }
 
     private static AttrFormatter sqlTimeFormatter = new SQLTimeFormatter();
 
+    /**
+     * Encodes geometries as WKT, reusing the same writer and buffer for all features (the output
+     * is the same as {@link Geometry#toString()})
+     */
+    private static class GeometryFormatter implements AttrFormatter {
+        private final WKTWriter wktWriter = new WKTWriter();
+
+        private final StringBuilderWriter buffer = new StringBuilderWriter();
+
+        @Override
+        public void write(Object att, Writer w) throws IOException {
+            if (att instanceof Geometry) {
+                buffer.getBuilder().setLength(0);
+                wktWriter.write((Geometry) att, buffer);
+                writeCSVField(buffer.getBuilder(), w);
+            } else {
+                writeCSVField(att.toString(), w);
+            }
+        }
+    }
+
     private static class DefaultFormatter implements AttrFormatter {
         @Override
-        public String format(Object att) {
-            return prepCSVField(att.toString());
+        public void write(Object att, Writer w) throws IOException {
+            writeCSVField(att.toString(), w);
         }
     }
 
@@ -320,8 +429,6 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
         return value;
     }
 
-    private static Escaper escaper =  Escapers.builder().addEscape('"', "\"\"").build();
-
     /*
      * The CSV "spec" explains that fields with certain properties must be
      * delimited by double quotes, and also that double quotes within fields
@@ -329,18 +436,59 @@ public class CSVOutputFormat extends WFSGetFeatureOutputFormat {
      * obeys the CSV spec.
      */    
     private static String prepCSVField(String field){
-    	// "embedded double-quote characters must be represented by a pair of double-quote characters."
-        String mod = escaper.escape(field);
-
-    	/*
-    	 * Enclose string in double quotes if it contains double quotes, commas, or newlines
-    	 */
-        if (CSV_ESCAPES.matcher(mod).find()) {
-            mod = "\"" + mod + "\"";
-    	}
-    	
-		return mod;
-    	
+        if (!needsQuotes(field)) {
+            return field;
+        }
+        StringBuilder sb = new StringBuilder(field.length() + 8);
+        sb.append('"');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            // "embedded double-quote characters must be represented by a pair of double-quote characters."
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+    /**
+     * Same as {@link #prepCSVField(String)}, but writing directly to the output, without
+     * allocating a new string
+     */
+    static void writeCSVField(CharSequence field, Writer w) throws IOException {
+        boolean quote = needsQuotes(field);
+        if (quote) {
+            w.write('"');
+        }
+        if (!quote && field instanceof String) {
+            w.write((String) field);
+        } else {
+            for (int i = 0; i < field.length(); i++) {
+                char c = field.charAt(i);
+                if (c == '"') {
+                    w.write('"');
+                }
+                w.write(c);
+            }
+        }
+        if (quote) {
+            w.write('"');
+        }
+    }
+
+    /**
+     * Fields containing double quotes, commas or newlines must be enclosed in double quotes
+     */
+    static boolean needsQuotes(CharSequence field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '"' || c == ',' || c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
     }
     
     @Override
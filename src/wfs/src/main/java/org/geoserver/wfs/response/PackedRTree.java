@@ -0,0 +1,232 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * A static, packed R-tree over feature bounds, built bottom up after sorting the items along a
+ * Hilbert curve, and serialized as a flat array of nodes.
+ * <p>
+ * The nodes are written root first, level by level, and the leaves last. Each node is made of its
+ * bounds (minx, miny, maxx, maxy as doubles) followed by a long, which is the position of the first
+ * child node for internal nodes, and the value associated to the item (e.g., a byte offset) for the
+ * leaves. Each level holds {@code ceil(childLevelSize / nodeSize)} nodes, so readers can compute
+ * the level boundaries out of the number of items and the node size alone.
+ */
+class PackedRTree {
+
+    static final int DEFAULT_NODE_SIZE = 16;
+
+    /**
+     * Size of a serialized node, in bytes
+     */
+    static final int NODE_BYTES = 4 * 8 + 8;
+
+    private static final int HILBERT_MAX = (1 << 16) - 1;
+
+    final int nodeSize;
+
+    private double[] bounds = new double[4 * 1024];
+
+    private long[] values = new long[1024];
+
+    private int count;
+
+    private final Envelope extent = new Envelope();
+
+    PackedRTree(int nodeSize) {
+        if (nodeSize < 2) {
+            throw new IllegalArgumentException("Node size must be at least 2");
+        }
+        this.nodeSize = nodeSize;
+    }
+
+    /**
+     * Adds an item to the tree
+     */
+    void add(Envelope envelope, long value) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+            bounds = Arrays.copyOf(bounds, count * 8);
+        }
+        int i = count * 4;
+        bounds[i] = envelope.getMinX();
+        bounds[i + 1] = envelope.getMinY();
+        bounds[i + 2] = envelope.getMaxX();
+        bounds[i + 3] = envelope.getMaxY();
+        values[count] = value;
+        extent.expandToInclude(envelope);
+        count++;
+    }
+
+    /**
+     * Number of items in the tree
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the number of nodes of the tree, leaves included
+     */
+    static int getNodeCount(int items, int nodeSize) {
+        int levelSize = items;
+        int nodes = items;
+        do {
+            levelSize = (levelSize + nodeSize - 1) / nodeSize;
+            nodes += levelSize;
+        } while (levelSize > 1);
+        return nodes;
+    }
+
+    /**
+     * Builds the tree and writes it out, see the class javadoc for the layout. The tree must hold at
+     * least one item.
+     */
+    void write(DataOutput out) throws IOException {
+        if (count == 0) {
+            throw new IllegalStateException("Cannot build an empty tree");
+        }
+        final int nodeCount = getNodeCount(count, nodeSize);
+        double[] nodeBounds = new double[nodeCount * 4];
+        long[] nodeValues = new long[nodeCount];
+
+        // the leaves, sorted along the Hilbert curve, go at the end
+        int levelStart = nodeCount - count;
+        int[] order = sortByHilbert();
+        for (int i = 0; i < count; i++) {
+            int item = order[i];
+            System.arraycopy(bounds, item * 4, nodeBounds, (levelStart + i) * 4, 4);
+            nodeValues[levelStart + i] = values[item];
+        }
+
+        // then each level groups nodeSize nodes of the level below
+        int levelSize = count;
+        while (levelSize > 1) {
+            int parentSize = (levelSize + nodeSize - 1) / nodeSize;
+            int parentStart = levelStart - parentSize;
+            for (int p = 0; p < parentSize; p++) {
+                int parent = parentStart + p;
+                int firstChild = levelStart + p * nodeSize;
+                int lastChild = Math.min(firstChild + nodeSize, levelStart + levelSize);
+                double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+                for (int c = firstChild; c < lastChild; c++) {
+                    minX = Math.min(minX, nodeBounds[c * 4]);
+                    minY = Math.min(minY, nodeBounds[c * 4 + 1]);
+                    maxX = Math.max(maxX, nodeBounds[c * 4 + 2]);
+                    maxY = Math.max(maxY, nodeBounds[c * 4 + 3]);
+                }
+                nodeBounds[parent * 4] = minX;
+                nodeBounds[parent * 4 + 1] = minY;
+                nodeBounds[parent * 4 + 2] = maxX;
+                nodeBounds[parent * 4 + 3] = maxY;
+                nodeValues[parent] = firstChild;
+            }
+            levelStart = parentStart;
+            levelSize = parentSize;
+        }
+        // a single item gets a root on top of it, the loop above does not create it
+        if (levelStart == 1) {
+            System.arraycopy(nodeBounds, 4, nodeBounds, 0, 4);
+            nodeValues[0] = 1;
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            out.writeDouble(nodeBounds[i * 4]);
+            out.writeDouble(nodeBounds[i * 4 + 1]);
+            out.writeDouble(nodeBounds[i * 4 + 2]);
+            out.writeDouble(nodeBounds[i * 4 + 3]);
+            out.writeLong(nodeValues[i]);
+        }
+    }
+
+    /**
+     * Returns the item indexes sorted by the Hilbert code of their center
+     */
+    private int[] sortByHilbert() {
+        final double width = extent.getWidth();
+        final double height = extent.getHeight();
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            double cx = (bounds[i * 4] + bounds[i * 4 + 2]) / 2;
+            double cy = (bounds[i * 4 + 1] + bounds[i * 4 + 3]) / 2;
+            int x = width > 0 ? (int) (HILBERT_MAX * (cx - extent.getMinX()) / width) : 0;
+            int y = height > 0 ? (int) (HILBERT_MAX * (cy - extent.getMinY()) / height) : 0;
+            // flip the sign bit so that the signed sort follows the unsigned Hilbert order
+            keys[i] = ((hilbert(x, y) << 32) | i) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    /**
+     * Position of a point along a 16 bits Hilbert curve, see "Fast Hilbert curve generation,
+     * sorting, and range queries" (rawrunprotected.org)
+     */
+    static long hilbert(int x, int y) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int A = a | (b >> 1);
+        int B = (a >> 1) ^ a;
+        int C = ((c >> 1) ^ (b & (d >> 1))) ^ c;
+        int D = ((a & (c >> 1)) ^ (d >> 1)) ^ d;
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        A = ((a & (a >> 2)) ^ (b & (b >> 2)));
+        B = ((a & (b >> 2)) ^ (b & ((a ^ b) >> 2)));
+        C ^= ((a & (c >> 2)) ^ (b & (d >> 2)));
+        D ^= ((b & (c >> 2)) ^ ((a ^ b) & (d >> 2)));
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        A = ((a & (a >> 4)) ^ (b & (b >> 4)));
+        B = ((a & (b >> 4)) ^ (b & ((a ^ b) >> 4)));
+        C ^= ((a & (c >> 4)) ^ (b & (d >> 4)));
+        D ^= ((b & (c >> 4)) ^ ((a ^ b) & (d >> 4)));
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        C ^= ((a & (c >> 8)) ^ (b & (d >> 8)));
+        D ^= ((b & (c >> 8)) ^ ((a ^ b) & (d >> 8)));
+
+        a = C ^ (C >> 1);
+        b = D ^ (D >> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return ((i1 << 1) | i0) & 0xFFFFFFFFL;
+    }
+}
@@ -28,12 +28,14 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.SimpleTimeZone;
 import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.namespace.QName;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.CatalogBuilder;
 import org.geoserver.catalog.FeatureTypeInfo;
@@ -56,11 +58,19 @@ import org.geoserver.wfs.WFSGetFeatureOutputFormat;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.request.FeatureCollectionResponse;
 import org.geoserver.wfs.request.GetFeatureRequest;
+import org.geoserver.wfs.request.Query;
+import org.geotools.data.DataAccess;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.shapefile.ShapefileDumper;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.data.store.ContentFeatureSource;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.jdbc.JDBCFeatureSource;
+import org.geotools.jdbc.JDBCFeatureStore;
+import org.geotools.jdbc.NullPrimaryKey;
+import org.geotools.jdbc.PrimaryKey;
 import org.geotools.referencing.CRS;
 import org.geotools.util.logging.Logging;
 import org.geotools.wfs.v1_1.WFS;
@@ -68,6 +78,7 @@ import org.geotools.wfs.v1_1.WFSConfiguration;
 import org.geotools.xml.Encoder;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
@@ -98,6 +109,7 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     private GeoServerResourceLoader resourceLoader;
     private long maxShpSize = Long.getLong("GS_SHP_MAX_SIZE", Integer.MAX_VALUE);
     private long maxDbfSize = Long.getLong("GS_DBF_MAX_SIZE", Integer.MAX_VALUE);
+    private boolean streaming = Boolean.getBoolean("GS_SHAPEZIP_STREAMING");
     
     /**
      * @deprecated use {@link #ShapeZipOutputFormat(GeoServer)}
@@ -186,6 +198,13 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
      */
     public void write(List<SimpleFeatureCollection> collections, Charset charset, OutputStream output, 
         final GetFeatureRequest request) throws IOException, ServiceException {
+        List<SimpleFeatureCollection> sorted = streaming && canStream(collections, request)
+                ? sortForStreaming(collections) : null;
+        if (sorted != null && !isEmpty(sorted)) {
+            writeStreaming(sorted, charset, output, request);
+            return;
+        }
+
         //We might get multiple featurecollections in our response (multiple queries?) so we need to
         //write out multiple shapefile sets, one for each query response.
         final File tempDir = IOUtils.createTempDirectory("shpziptemp");
@@ -259,6 +278,114 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         }
     }
 
+    /**
+     * Returns true if all the collections can be written without going through a temporary
+     * directory. File splitting, when configured, schemas requiring the features to be split
+     * by geometry type, requests asking for a specific order (the streaming writer needs to
+     * sort on the natural order) and database tables without a primary key (no natural order)
+     * are handled by {@link ShapefileDumper} only.
+     */
+    private boolean canStream(List<SimpleFeatureCollection> collections,
+            GetFeatureRequest request) throws IOException {
+        if (maxShpSize < Integer.MAX_VALUE || maxDbfSize < Integer.MAX_VALUE) {
+            return false;
+        }
+        if (request != null) {
+            for (Query query : request.getQueries()) {
+                if (query.getSortBy() != null && !query.getSortBy().isEmpty()) {
+                    return false;
+                }
+            }
+        }
+        for (SimpleFeatureCollection collection : collections) {
+            if (!StreamingShapefileWriter.canWrite(collection.getSchema())
+                    || !hasNaturalOrder(collection.getSchema())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if none of the collections has features. Empty results are small, they are
+     * left to {@link ShapefileDumper} so that the zip has the same contents in both modes,
+     * including the README warning about the empty result
+     */
+    private boolean isEmpty(List<SimpleFeatureCollection> collections) {
+        for (SimpleFeatureCollection collection : collections) {
+            if (!collection.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns false if the schema comes from a database table without a primary key, which
+     * cannot be sorted on its natural order
+     */
+    private boolean hasNaturalOrder(SimpleFeatureType schema) throws IOException {
+        FeatureTypeInfo ftInfo = catalog.getFeatureTypeByName(schema.getName());
+        if (ftInfo == null) {
+            // not a catalog layer, e.g. a process output
+            return true;
+        }
+        DataAccess<?, ?> access = ftInfo.getStore().getDataStore(null);
+        if (!(access instanceof JDBCDataStore)) {
+            return true;
+        }
+        ContentFeatureSource source = ((JDBCDataStore) access)
+                .getFeatureSource(ftInfo.getNativeName());
+        PrimaryKey key = null;
+        if (source instanceof JDBCFeatureStore) {
+            key = ((JDBCFeatureStore) source).getPrimaryKey();
+        } else if (source instanceof JDBCFeatureSource) {
+            key = ((JDBCFeatureSource) source).getPrimaryKey();
+        }
+        return key != null && !(key instanceof NullPrimaryKey);
+    }
+
+    /**
+     * Sorts the collections on their natural order, so that the two passes of the streaming
+     * writer read the features in the same order, or returns null if any cannot be sorted
+     */
+    private List<SimpleFeatureCollection> sortForStreaming(
+            List<SimpleFeatureCollection> collections) {
+        List<SimpleFeatureCollection> result = new ArrayList<>();
+        for (SimpleFeatureCollection collection : collections) {
+            SimpleFeatureCollection sorted = StreamingShapefileWriter.sort(collection);
+            if (sorted == null) {
+                return null;
+            }
+            result.add(sorted);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the shapefiles directly in the zip output, see {@link StreamingShapefileWriter}
+     */
+    private void writeStreaming(List<SimpleFeatureCollection> collections, Charset charset,
+            OutputStream output, GetFeatureRequest request) throws IOException {
+        ZipOutputStream zipOut = new ZipOutputStream(output);
+        StreamingShapefileWriter writer = new StreamingShapefileWriter(zipOut, charset);
+        for (SimpleFeatureCollection collection : collections) {
+            SimpleFeatureType schema = collection.getSchema();
+            FeatureTypeInfo ftInfo = getFeatureTypeInfo(schema);
+            String fileName = new FileNameSource(getClass()).getShapeName(ftInfo, "");
+            writer.write(collection, fileName, getPrj(request, schema));
+        }
+
+        // dump the request
+        Request dispatcherRequest = Dispatcher.REQUEST.get();
+        if (dispatcherRequest != null && request != null) {
+            zipOut.putNextEntry(new ZipEntry(getRequestDumpName(collections.get(0))));
+            writeRequestDump(dispatcherRequest, request, new CloseShieldOutputStream(zipOut));
+            zipOut.closeEntry();
+        }
+        zipOut.finish();
+    }
+
     /**
      * Dumps the request
      * @param simpleFeatureCollection
@@ -271,49 +398,50 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         }
         
         // build the target file
-        FeatureTypeInfo ftInfo = getFeatureTypeInfo(fc.getSchema());
-        String fileName = new FileNameSource(getClass()).getRequestDumpName(ftInfo) + ".txt";
-        File target = new File(tempDir, fileName);
+        File target = new File(tempDir, getRequestDumpName(fc));
         
-        try {
-            if(request.isGet()) {
-                final HttpServletRequest httpRequest = request.getHttpRequest();
-                String baseUrl = ResponseUtils.baseURL(httpRequest);
-                String path = request.getPath();
-                //encode proxy url if existing
-                String mangledUrl = ResponseUtils.buildURL(baseUrl, path, null, URLType.SERVICE);
-                StringBuilder url = new StringBuilder();
-                String parameters = httpRequest.getQueryString();
-                url.append(mangledUrl).append("?").append(parameters);
-                FileUtils.writeStringToFile(target, url.toString());
-            } else {
-                org.geotools.xml.Configuration cfg = null;
-                QName elementName = null;
-                if(gft.getVersion().equals("1.1.0")) {
-                    cfg = new WFSConfiguration();
-                    elementName = WFS.GetFeature;
-                } else {
-                    cfg = new org.geotools.wfs.v1_0.WFSConfiguration();
-                    elementName = org.geotools.wfs.v1_0.WFS.GetFeature;
-                }
-                FileOutputStream fos = null;
-                try {
-                    fos = new FileOutputStream(target);
-                    Encoder encoder = new Encoder(cfg);
-                    encoder.setIndenting(true);
-                    encoder.setIndentSize(2);
-                    encoder.encode(gft, elementName, fos);
-                } finally {
-                    if(fos != null)
-                        fos.close();
-                }
-            }
+        try (OutputStream os = new FileOutputStream(target)) {
+            writeRequestDump(request, gft, os);
         } catch(IOException e) {
             throw new WFSException(gft, "Failed to dump the WFS request");
         }
         
     }
 
+    private String getRequestDumpName(SimpleFeatureCollection fc) {
+        FeatureTypeInfo ftInfo = getFeatureTypeInfo(fc.getSchema());
+        return new FileNameSource(getClass()).getRequestDumpName(ftInfo) + ".txt";
+    }
+
+    private void writeRequestDump(Request request, GetFeatureRequest gft, OutputStream os)
+            throws IOException {
+        if(request.isGet()) {
+            final HttpServletRequest httpRequest = request.getHttpRequest();
+            String baseUrl = ResponseUtils.baseURL(httpRequest);
+            String path = request.getPath();
+            //encode proxy url if existing
+            String mangledUrl = ResponseUtils.buildURL(baseUrl, path, null, URLType.SERVICE);
+            StringBuilder url = new StringBuilder();
+            String parameters = httpRequest.getQueryString();
+            url.append(mangledUrl).append("?").append(parameters);
+            os.write(url.toString().getBytes());
+        } else {
+            org.geotools.xml.Configuration cfg = null;
+            QName elementName = null;
+            if(gft.getVersion().equals("1.1.0")) {
+                cfg = new WFSConfiguration();
+                elementName = WFS.GetFeature;
+            } else {
+                cfg = new org.geotools.wfs.v1_0.WFSConfiguration();
+                elementName = org.geotools.wfs.v1_0.WFS.GetFeature;
+            }
+            Encoder encoder = new Encoder(cfg);
+            encoder.setIndenting(true);
+            encoder.setIndentSize(2);
+            encoder.encode(gft, elementName, os);
+        }
+    }
+
     private void createEmptyZipWarning(File tempDir) throws IOException {
         PrintWriter pw = null;
         try {
@@ -361,12 +489,17 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
     private void changeWKTFormatIfFileFormatIsESRI(File tempDir, GetFeatureRequest request,
             String fileName, SimpleFeatureType remappedSchema) throws FactoryException,
             IOException, FileNotFoundException {
-        
+        if (isESRIFormatRequested(request)) {
+            replaceOGCPrjFileByESRIPrjFile(tempDir, fileName, remappedSchema);
+        }
+    }
+
+    private boolean isESRIFormatRequested(GetFeatureRequest request) {
         boolean useEsriFormat = false;
         
         // if the request originates from the WPS we won't actually have any GetFeatureType request
         if(request == null) {
-            return;
+            return false;
         }
         
         Map<String, ?> formatOptions = request.getFormatOptions();
@@ -380,19 +513,37 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
             useEsriFormat = "ESRI".equalsIgnoreCase(requestedPrjFileFormat);
         }
         
-        if (useEsriFormat) {
-            replaceOGCPrjFileByESRIPrjFile(tempDir, fileName, remappedSchema);
-        }
+        return useEsriFormat;
     }
 
     private void replaceOGCPrjFileByESRIPrjFile(File tempDir, String fileName,
             SimpleFeatureType remappedSchema) throws FactoryException, IOException,
             FileNotFoundException {
-        final Integer epsgCode = CRS.lookupEpsgCode(remappedSchema.getGeometryDescriptor()
+        String data = getESRIPrj(remappedSchema);
+
+        if (data != null) {
+            File prjShapeFile = new File(tempDir, fileName + ".prj");
+            prjShapeFile.delete();
+
+            BufferedWriter out = new BufferedWriter(new FileWriter(prjShapeFile));
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Looks up the ESRI WKT for the schema CRS in user_projections/esri.properties, returns null
+     * if not found
+     */
+    private String getESRIPrj(SimpleFeatureType schema) throws FactoryException, IOException {
+        final Integer epsgCode = CRS.lookupEpsgCode(schema.getGeometryDescriptor()
                 .getCoordinateReferenceSystem(), true);
         if(epsgCode == null){
             LOGGER.info("Can't find the EPSG code for the shapefile CRS");
-            return;
+            return null;
         }
         Resource file = resourceLoader.get("user_projections/esri.properties");
 
@@ -409,23 +560,38 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
 
             String data = (String) properties.get(epsgCode.toString());
 
-            if (data != null) {
-                File prjShapeFile = new File(tempDir, fileName + ".prj");
-                prjShapeFile.delete();
-
-                BufferedWriter out = new BufferedWriter(new FileWriter(prjShapeFile));
-                try {
-                    out.write(data);
-                } finally {
-                    out.close();
-                }
-            } else {
+            if (data == null) {
                 LOGGER.info("Requested shapefile with ESRI WKT .prj format but couldn't find an entry for ESPG code "
                         + epsgCode + " in esri.properties");
             }
+            return data;
         } else {
             LOGGER.info("Requested shapefile with ESRI WKT .prj format but the esri.properties file does not exist in the user_projections directory");
+            return null;
+        }
+    }
+
+    /**
+     * Returns the .prj contents for the streaming mode, either the ESRI or the OGC WKT
+     */
+    private String getPrj(GetFeatureRequest request, SimpleFeatureType schema)
+            throws IOException {
+        CoordinateReferenceSystem crs = schema.getCoordinateReferenceSystem();
+        if (crs == null) {
+            return null;
+        }
+        if (isESRIFormatRequested(request)) {
+            try {
+                String esri = getESRIPrj(schema);
+                if (esri != null) {
+                    return esri;
+                }
+            } catch (FactoryException e) {
+                throw new IOException("Failed to write out the ESRI style prj file", e);
+            }
         }
+        // same single line format used by the shapefile store
+        return crs.toWKT().replaceAll("\n", "").replaceAll("  ", "");
     }
 
     /**
@@ -453,6 +619,19 @@ public class ShapeZipOutputFormat extends WFSGetFeatureOutputFormat implements A
         this.applicationContext = applicationContext;
     }
     
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Enables writing the shapefiles straight into the zip output, without a temporary
+     * directory, whenever the requested data allows it (disabled by default, can also be enabled
+     * with the GS_SHAPEZIP_STREAMING system variable)
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
     public long getMaxShpSize() {
         return maxShpSize;
     }
@@ -0,0 +1,428 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.geoserver.ows.RequestCancellation;
+import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.dbf.DbaseFileHeader;
+import org.geotools.data.shapefile.dbf.DbaseFileWriter;
+import org.geotools.data.shapefile.shp.JTSUtilities;
+import org.geotools.data.shapefile.shp.ShapeHandler;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.factory.Hints;
+import org.geotools.feature.AttributeTypeBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.sort.SortBy;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Writes shapefiles straight into a {@link ZipOutputStream}, without using a temporary directory.
+ * <p>
+ * Zip entries have to be written one after the other, while the shapefile headers contain the
+ * number of records, the file length and the bounds. The collection is thus read twice: the first
+ * pass writes the .dbf (the record count is taken from {@link SimpleFeatureCollection#size()})
+ * and measures the geometries, the second one writes the .shp, and the .shx is generated from
+ * the record lengths collected during the first pass.
+ * <p>
+ * The .dbf and .shp records have to be in the same order, the collection is thus read sorted on
+ * its natural order (the primary key for database tables, the feature id otherwise), see
+ * {@link #sort(SimpleFeatureCollection)}, and the second pass checks the feature ids against the
+ * ones seen in the first.
+ * <p>
+ * Only schemas with a single geometry attribute of a specific type are supported, see
+ * {@link #canWrite(SimpleFeatureType)}, and no file splitting is performed.
+ */
+class StreamingShapefileWriter {
+
+    static final int SHAPEFILE_HEADER_LENGTH = 100;
+
+    static final int RECORD_HEADER_LENGTH = 8;
+
+    static final int NULL_GEOMETRY_LENGTH = 4;
+
+    static final List<Class<?>> SUPPORTED_GEOMETRIES = Arrays.asList(Point.class,
+            MultiPoint.class, LineString.class, MultiLineString.class, Polygon.class,
+            MultiPolygon.class);
+
+    private final ZipOutputStream zip;
+
+    private final Charset charset;
+
+    private final Set<String> entries = new HashSet<>();
+
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+    StreamingShapefileWriter(ZipOutputStream zip, Charset charset) {
+        this.zip = zip;
+        this.charset = charset;
+    }
+
+    /**
+     * Returns true if the schema has a single geometry attribute, bound to a geometry type that
+     * maps to a shapefile type
+     */
+    static boolean canWrite(SimpleFeatureType schema) {
+        GeometryDescriptor geometry = null;
+        for (AttributeDescriptor ad : schema.getAttributeDescriptors()) {
+            if (ad instanceof GeometryDescriptor) {
+                if (geometry != null) {
+                    return false;
+                }
+                geometry = (GeometryDescriptor) ad;
+            }
+        }
+        return geometry != null
+                && SUPPORTED_GEOMETRIES.contains(geometry.getType().getBinding());
+    }
+
+    /**
+     * Returns the collection sorted on its natural order, or null if it cannot be sorted without
+     * losing the changes it makes to the features (e.g., reprojection or retyping wrappers that
+     * do not carry the sort over)
+     */
+    static SimpleFeatureCollection sort(SimpleFeatureCollection collection) {
+        SimpleFeatureCollection sorted;
+        try {
+            sorted = collection.sort(SortBy.NATURAL_ORDER);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return null;
+        }
+        if (sorted == null || !collection.getSchema().equals(sorted.getSchema())) {
+            return null;
+        }
+        return sorted;
+    }
+
+    /**
+     * Writes the .dbf, .shp, .shx, .prj and .cst entries for the given collection
+     *
+     * @param collection The features to write, sorted with {@link #sort(SimpleFeatureCollection)}
+     * @param fileName The shapefile name, made unique among the ones written so far
+     * @param prj The projection file contents, or null if not available
+     */
+    void write(SimpleFeatureCollection collection, String fileName, String prj)
+            throws IOException {
+        fileName = getUniqueName(fileName);
+        SimpleFeatureType schema = collection.getSchema();
+        GeometryDescriptor gd = schema.getGeometryDescriptor();
+        ShapeType shapeType = getShapeType(gd);
+        ShapeHandler handler = shapeType.getShapeHandler(new GeometryFactory());
+        List<AttributeDescriptor> attributes = getDbfAttributes(schema);
+        DbaseFileHeader header = createDbaseHeader(attributes);
+        int count = collection.size();
+        header.setNumRecords(count);
+
+        // first pass, write the dbf and measure the geometries
+        RecordIndex lengths = new RecordIndex();
+        Envelope bounds = new Envelope();
+        zip.putNextEntry(new ZipEntry(fileName + ".dbf"));
+        OutputStream os = new BufferedOutputStream(new CloseShieldOutputStream(zip), 65536);
+        DbaseFileWriter dbf = new DbaseFileWriter(header, Channels.newChannel(os), charset);
+        Object[] record = new Object[attributes.size()];
+        try (SimpleFeatureIterator fi = collection.features()) {
+            while (fi.hasNext()) {
+                RequestCancellation.checkCancelled();
+                SimpleFeature f = fi.next();
+                for (int i = 0; i < record.length; i++) {
+                    record[i] = getDbfValue(f.getAttribute(attributes.get(i).getLocalName()),
+                            header.getFieldType(i));
+                }
+                dbf.write(record);
+
+                Geometry g = prepareGeometry(f, shapeType);
+                if (g == null) {
+                    lengths.add(NULL_GEOMETRY_LENGTH, f.getID());
+                } else {
+                    lengths.add(handler.getLength(g), f.getID());
+                    bounds.expandToInclude(g.getEnvelopeInternal());
+                }
+            }
+        }
+        dbf.close();
+        zip.closeEntry();
+        if (lengths.size() != count) {
+            throw new IOException("Expected " + count + " features in " + fileName
+                    + " but found " + lengths.size()
+                    + ", was the data modified while writing it out?");
+        }
+
+        // second pass, the .shp
+        long shpLength = SHAPEFILE_HEADER_LENGTH + (long) count * RECORD_HEADER_LENGTH
+                + lengths.total;
+        if (shpLength > Integer.MAX_VALUE) {
+            throw new IOException("The shapefile " + fileName + " would be larger than 2GB");
+        }
+        zip.putNextEntry(new ZipEntry(fileName + ".shp"));
+        os = new BufferedOutputStream(new CloseShieldOutputStream(zip), 65536);
+        writeHeader(os, shapeType, (int) shpLength, bounds);
+        try (SimpleFeatureIterator fi = collection.features()) {
+            int recordNumber = 0;
+            while (fi.hasNext() && recordNumber < count) {
+                RequestCancellation.checkCancelled();
+                SimpleFeature f = fi.next();
+                if (!lengths.hasFid(recordNumber, f.getID())) {
+                    throw new IOException("Feature " + (recordNumber + 1) + " of " + fileName
+                            + " is not the one written in the dbf, "
+                            + "was the data modified while writing it out?");
+                }
+                Geometry g = prepareGeometry(f, shapeType);
+                int length = g == null ? NULL_GEOMETRY_LENGTH : handler.getLength(g);
+                if (length != lengths.get(recordNumber)) {
+                    throw new IOException("Geometry " + (recordNumber + 1) + " of " + fileName
+                            + " changed while writing it out");
+                }
+                ByteBuffer bb = getBuffer(RECORD_HEADER_LENGTH + length);
+                bb.order(ByteOrder.BIG_ENDIAN);
+                bb.putInt(++recordNumber);
+                bb.putInt(length / 2);
+                bb.order(ByteOrder.LITTLE_ENDIAN);
+                if (g == null) {
+                    bb.putInt(ShapeType.NULL.id);
+                } else {
+                    bb.putInt(shapeType.id);
+                    handler.write(bb, g);
+                }
+                os.write(bb.array(), 0, bb.position());
+            }
+            if (recordNumber != count) {
+                throw new IOException("Expected " + count + " features in " + fileName
+                        + " but found " + recordNumber
+                        + ", was the data modified while writing it out?");
+            }
+        }
+        os.flush();
+        zip.closeEntry();
+
+        // the index, computed from the record lengths
+        zip.putNextEntry(new ZipEntry(fileName + ".shx"));
+        os = new BufferedOutputStream(new CloseShieldOutputStream(zip), 65536);
+        writeHeader(os, shapeType, SHAPEFILE_HEADER_LENGTH + count * RECORD_HEADER_LENGTH,
+                bounds);
+        ByteBuffer bb = getBuffer(RECORD_HEADER_LENGTH);
+        int offset = SHAPEFILE_HEADER_LENGTH;
+        for (int i = 0; i < count; i++) {
+            int length = lengths.get(i);
+            bb.clear();
+            bb.order(ByteOrder.BIG_ENDIAN);
+            bb.putInt(offset / 2);
+            bb.putInt(length / 2);
+            os.write(bb.array(), 0, RECORD_HEADER_LENGTH);
+            offset += RECORD_HEADER_LENGTH + length;
+        }
+        os.flush();
+        zip.closeEntry();
+
+        // the small accessory files
+        if (prj != null) {
+            writeEntry(fileName + ".prj", prj.getBytes(Charset.forName("ISO-8859-1")));
+        }
+        writeEntry(fileName + ".cst", charset.name().getBytes(Charset.forName("ISO-8859-1")));
+    }
+
+    void writeEntry(String name, byte[] contents) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(contents);
+        zip.closeEntry();
+    }
+
+    String getUniqueName(String fileName) {
+        String result = fileName;
+        for (int i = 1; !entries.add(result); i++) {
+            result = fileName + i;
+        }
+        return result;
+    }
+
+    Geometry prepareGeometry(SimpleFeature feature, ShapeType shapeType) {
+        Geometry g = (Geometry) feature.getDefaultGeometry();
+        if (g == null || g.isEmpty()) {
+            return null;
+        }
+        return JTSUtilities.convertToCollection(g, shapeType);
+    }
+
+    ByteBuffer getBuffer(int size) {
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Writes the header shared by the .shp and .shx files
+     */
+    void writeHeader(OutputStream os, ShapeType shapeType, int length, Envelope bounds)
+            throws IOException {
+        ByteBuffer bb = getBuffer(SHAPEFILE_HEADER_LENGTH);
+        bb.order(ByteOrder.BIG_ENDIAN);
+        bb.putInt(9994);
+        for (int i = 0; i < 5; i++) {
+            bb.putInt(0);
+        }
+        bb.putInt(length / 2);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(1000);
+        bb.putInt(shapeType.id);
+        if (bounds.isNull()) {
+            bb.putDouble(0).putDouble(0).putDouble(0).putDouble(0);
+        } else {
+            bb.putDouble(bounds.getMinX()).putDouble(bounds.getMinY())
+                    .putDouble(bounds.getMaxX()).putDouble(bounds.getMaxY());
+        }
+        // z and m ranges
+        bb.putDouble(0).putDouble(0).putDouble(0).putDouble(0);
+        os.write(bb.array(), 0, SHAPEFILE_HEADER_LENGTH);
+    }
+
+    static ShapeType getShapeType(GeometryDescriptor gd) {
+        Class<?> binding = gd.getType().getBinding();
+        Object dimension = gd.getUserData().get(Hints.COORDINATE_DIMENSION);
+        boolean z = dimension instanceof Integer && ((Integer) dimension) > 2;
+        if (Point.class.equals(binding)) {
+            return z ? ShapeType.POINTZ : ShapeType.POINT;
+        } else if (MultiPoint.class.equals(binding)) {
+            return z ? ShapeType.MULTIPOINTZ : ShapeType.MULTIPOINT;
+        } else if (LineString.class.equals(binding) || MultiLineString.class.equals(binding)) {
+            return z ? ShapeType.ARCZ : ShapeType.ARC;
+        } else {
+            return z ? ShapeType.POLYGONZ : ShapeType.POLYGON;
+        }
+    }
+
+    static List<AttributeDescriptor> getDbfAttributes(SimpleFeatureType schema) {
+        List<AttributeDescriptor> result = new ArrayList<>();
+        for (AttributeDescriptor ad : schema.getAttributeDescriptors()) {
+            if (!(ad instanceof GeometryDescriptor)) {
+                result.add(ad);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Builds the dbf header with the column mapping of the shapefile store, after making sure the
+     * attribute names fit in the 10 chars dbf limit without clashing
+     */
+    static DbaseFileHeader createDbaseHeader(List<AttributeDescriptor> attributes)
+            throws IOException {
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName("dbf");
+        AttributeTypeBuilder ab = new AttributeTypeBuilder();
+        Set<String> names = new HashSet<>();
+        for (AttributeDescriptor ad : attributes) {
+            ab.init(ad);
+            tb.add(ab.buildDescriptor(getFieldName(ad.getLocalName(), names)));
+        }
+        return DbaseHeaderBuilder.createHeader(tb.buildFeatureType());
+    }
+
+    /**
+     * Truncates the name to 10 chars, replacing its tail with a counter on clashes, the same way
+     * the shapefile dumper does
+     */
+    static String getFieldName(String name, Set<String> names) {
+        String result = name.length() > 10 ? name.substring(0, 10) : name;
+        for (int i = 0; !names.add(result.toUpperCase()); i++) {
+            String suffix = String.valueOf(i);
+            result = name.substring(0, Math.min(name.length(), 10 - suffix.length())) + suffix;
+        }
+        return result;
+    }
+
+    static Object getDbfValue(Object value, char type) {
+        if (value == null) {
+            return null;
+        } else if (type == 'C' && !(value instanceof String)) {
+            return value.toString();
+        } else if (value instanceof Calendar) {
+            return ((Calendar) value).getTime();
+        }
+        return value;
+    }
+
+    /**
+     * Gives access to the dbf header builder of {@link ShapefileDataStore}, never instantiated
+     */
+    static class DbaseHeaderBuilder extends ShapefileDataStore {
+
+        private DbaseHeaderBuilder() {
+            super((URL) null);
+        }
+
+        static DbaseFileHeader createHeader(SimpleFeatureType schema) throws IOException {
+            return createDbaseHeader(schema);
+        }
+    }
+
+    /**
+     * A growable list of record lengths and feature id hashes, kept as primitives as there is one
+     * per feature
+     */
+    static class RecordIndex {
+        int[] lengths = new int[1024];
+
+        int[] fids = new int[1024];
+
+        int size;
+
+        long total;
+
+        void add(int length, String fid) {
+            if (size == lengths.length) {
+                lengths = Arrays.copyOf(lengths, size * 2);
+                fids = Arrays.copyOf(fids, size * 2);
+            }
+            fids[size] = fid == null ? 0 : fid.hashCode();
+            lengths[size++] = length;
+            total += length;
+        }
+
+        int get(int i) {
+            return lengths[i];
+        }
+
+        boolean hasFid(int i, String fid) {
+            return fids[i] == (fid == null ? 0 : fid.hashCode());
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -98,11 +99,24 @@ public class GML32OutputFormat extends GML3OutputFormat {
     }
 
     @Override
-    protected void setAdditionalSchemaLocations(Encoder encoder, GetFeatureRequest request, WFSInfo wfs) {
+    protected Map<String, String> getAdditionalSchemaLocations(GetFeatureRequest request,
+            WFSInfo wfs) {
         //since wfs 2.0 schema does not depend on gml 3.2 schema we register it manually
         String loc = wfs.isCanonicalSchemaLocation() ? GML.CANONICAL_SCHEMA_LOCATION : 
             ResponseUtils.buildSchemaURL(request.getBaseUrl(), "gml/3.2.1/gml.xsd");
-        encoder.setSchemaLocation(GML.NAMESPACE, loc);
+        return Collections.singletonMap(GML.NAMESPACE, loc);
+    }
+
+    @Override
+    protected GML3StreamingEncoder createStreamingEncoder(
+            Map<String, Set<ResourceInfo>> resources, int numDecimals, WFSInfo wfs) {
+        Map<String, String> prefixes = getPrefixes(resources);
+        if (prefixes == null) {
+            return null;
+        }
+        return new GML3StreamingEncoder(true, new FeatureTypeSchemaBuilder.GML32(geoServer),
+                prefixes, wfs.getGML().get(WFSInfo.Version.V_20).getSrsNameStyle().toSrsSyntax(),
+                numDecimals, wfs.isFeatureBounding(), !wfs.isCiteCompliant(), false);
     }
 
     @Override
@@ -21,9 +21,11 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -74,6 +76,12 @@ public class GML3OutputFormat extends WFSGetFeatureOutputFormat {
     public static final boolean OPTIMIZED_ENCODING = Boolean.parseBoolean(System.getProperty(
             "GML_OPTIMIZED_ENCODING", "true"));
 
+    /**
+     * Enables the streaming encoder for simple features, see {@link GML3StreamingEncoder}
+     */
+    public static final boolean STREAMING_ENCODING = Boolean.parseBoolean(System.getProperty(
+            "GML_STREAMING_ENCODING", "false"));
+
     GeoServer geoServer;
     Catalog catalog;
     WFSConfiguration configuration;
@@ -174,6 +182,17 @@ public class GML3OutputFormat extends WFSGetFeatureOutputFormat {
         }
 
         WFSInfo wfs = getInfo();
+
+        // simple features can skip the generic, schema driven encoder
+        if (STREAMING_ENCODING && request != null) {
+            GML3StreamingEncoder streamingEncoder = createStreamingEncoder(ns2metas, numDecimals,
+                    wfs);
+            if (streamingEncoder != null && streamingEncoder.canEncode(featureCollections)) {
+                streamingEncoder.encode(results, getSchemaLocations(ns2metas, request, wfs),
+                        output, Charset.forName(geoServer.getSettings().getCharset()));
+                return;
+            }
+        }
         
         //set feature bounding parameter
         //JD: this is quite bad as its not at all thread-safe, once we remove the configuration
@@ -221,44 +240,63 @@ public class GML3OutputFormat extends WFSGetFeatureOutputFormat {
         Encoder encoder = createEncoder(configuration, ns2metas, gft);
         encoder.setEncoding(Charset.forName( geoServer.getSettings().getCharset() ));
 
+        //declare wfs and application schema locations
+        for (Map.Entry<String, String> entry : getSchemaLocations(ns2metas, request, wfs)
+                .entrySet()) {
+            encoder.setSchemaLocation(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Set<ResourceInfo>> entry : ns2metas.entrySet()) {
+            for (ResourceInfo ri : entry.getValue()) {
+                if (!(ri instanceof FeatureTypeInfo)) {
+                    encoder.getNamespaces().declarePrefix(ri.getStore().getWorkspace().getName(),
+                            entry.getKey());
+                }
+            }
+        }
+
+        setAdditionalSchemaLocations(encoder, request, wfs);
+        if (this.isComplexFeature(results)) {
+            complexFeatureStreamIntercept(results, output, encoder);
+        } else {
+            encode(results, output, encoder);
+        }
+        
+    }
+    
+    /**
+     * Returns the schema locations of the WFS and application schemas, keyed by namespace URI
+     */
+    protected Map<String, String> getSchemaLocations(Map<String, Set<ResourceInfo>> ns2metas,
+            GetFeatureRequest request, WFSInfo wfs) throws IOException {
+        Map<String, String> locations = new LinkedHashMap<String, String>();
         if (wfs.isCanonicalSchemaLocation()) {
-            encoder.setSchemaLocation(getWfsNamespace(), getCanonicalWfsSchemaLocation());
+            locations.put(getWfsNamespace(), getCanonicalWfsSchemaLocation());
         } else {
-            encoder.setSchemaLocation(getWfsNamespace(),
+            locations.put(getWfsNamespace(),
                     buildSchemaURL(request.getBaseURL(), getRelativeWfsSchemaLocation()));
         }
 
-        //declare application schema namespaces
-        
         Map<String, String> params = params("service", "WFS", "version", request.getVersion(), 
                 "request", "DescribeFeatureType");
-        for (Iterator i = ns2metas.entrySet().iterator(); i.hasNext();) {
-            Map.Entry entry = (Map.Entry) i.next();
-
-            String namespaceURI = (String) entry.getKey();
-            Set metas = (Set) entry.getValue();
+        for (Map.Entry<String, Set<ResourceInfo>> entry : ns2metas.entrySet()) {
+            String namespaceURI = entry.getKey();
 
             StringBuffer typeNames = new StringBuffer();
-            for (Iterator m = metas.iterator(); m.hasNext();) {
-                ResourceInfo ri = (ResourceInfo) m.next();
+            for (Iterator<ResourceInfo> m = entry.getValue().iterator(); m.hasNext();) {
+                ResourceInfo ri = m.next();
                 if(ri instanceof FeatureTypeInfo) {
                     FeatureTypeInfo meta = (FeatureTypeInfo) ri;
                     FeatureType featureType = meta.getFeatureType();
                     Object userSchemaLocation = featureType.getUserData().get("schemaURI");
                     if (userSchemaLocation != null && userSchemaLocation instanceof Map) {
                         Map<String, String> schemaURIs = (Map<String, String>) userSchemaLocation;
-                        for (String namespace : schemaURIs.keySet()) {
-                            encoder.setSchemaLocation(namespace, schemaURIs.get(namespace));
-                        }
+                        locations.putAll(schemaURIs);
                     } else {
                         typeNames.append(meta.getPrefixedName());
                         if (m.hasNext()) {
                             typeNames.append(",");
                         }
                     }
-                } else {
-                    encoder.getNamespaces().declarePrefix(ri.getStore().getWorkspace().getName(),
-                            namespaceURI);
                 }
             }
 
@@ -268,19 +306,55 @@ public class GML3OutputFormat extends WFSGetFeatureOutputFormat {
                 String schemaLocation = buildURL(request.getBaseURL(), "wfs", params, URLType.SERVICE);
                 LOGGER.finer("Unable to find user-defined schema location for: " + namespaceURI
                         + ". Using a built schema location by default: " + schemaLocation);
-                encoder.setSchemaLocation(namespaceURI, schemaLocation);
+                locations.put(namespaceURI, schemaLocation);
             }
         }
 
-        setAdditionalSchemaLocations(encoder, request, wfs);
-        if (this.isComplexFeature(results)) {
-            complexFeatureStreamIntercept(results, output, encoder);
-        } else {
-            encode(results, output, encoder);
+        locations.putAll(getAdditionalSchemaLocations(request, wfs));
+        return locations;
+    }
+
+    /**
+     * Hook for subclasses needing to declare extra schema locations
+     */
+    protected Map<String, String> getAdditionalSchemaLocations(GetFeatureRequest request,
+            WFSInfo wfs) {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Builds the streaming encoder for simple features, or returns null if the output cannot be
+     * streamed
+     */
+    protected GML3StreamingEncoder createStreamingEncoder(
+            Map<String, Set<ResourceInfo>> resources, int numDecimals, WFSInfo wfs) {
+        Map<String, String> prefixes = getPrefixes(resources);
+        if (prefixes == null) {
+            return null;
         }
-        
+        return new GML3StreamingEncoder(false, configuration.getSchemaBuilder(), prefixes,
+                wfs.getGML().get(WFSInfo.Version.V_11).getSrsNameStyle().toSrsSyntax(),
+                numDecimals, wfs.isFeatureBounding(), !wfs.isCiteCompliant(),
+                wfs.isEncodeFeatureMember());
     }
-    
+
+    /**
+     * Maps the namespace URIs to the prefixes of the feature types, returns null if some resource
+     * is not a feature type
+     */
+    protected Map<String, String> getPrefixes(Map<String, Set<ResourceInfo>> resources) {
+        Map<String, String> prefixes = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Set<ResourceInfo>> entry : resources.entrySet()) {
+            for (ResourceInfo ri : entry.getValue()) {
+                if (!(ri instanceof FeatureTypeInfo) || ri.getNamespace() == null) {
+                    return null;
+                }
+                prefixes.put(entry.getKey(), ri.getNamespace().getPrefix());
+            }
+        }
+        return prefixes;
+    }
+
     protected void setNumDecimals(int numDecimals) {
         GMLConfiguration gml = configuration.getDependency(GMLConfiguration.class);
         if (gml != null) {
@@ -0,0 +1,653 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.geoserver.ows.RequestCancellation;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.jts.CurvedGeometry;
+import org.geotools.gml2.SrsSyntax;
+import org.geotools.referencing.CRS;
+import org.geotools.util.Converters;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.Name;
+import org.opengis.geometry.BoundingBox;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Streaming GML 3.1 (WFS 1.1) and GML 3.2 (WFS 2.0) encoder for simple features, writing straight
+ * to a {@link XMLStreamWriter} instead of going through the schema driven
+ * {@link org.geotools.xml.Encoder}.
+ * <p>
+ * For each feature type an encoding plan is computed upfront, holding the element names, the
+ * srsName of the geometries and the GML elements matching the schema advertised by
+ * DescribeFeatureType, so that encoding a feature is a straight loop over its attributes. Types
+ * the plan cannot represent (e.g., attributes overriding the GML ones) make
+ * {@link #canEncode(List)} return false, and the caller falls back on the generic encoder.
+ */
+public class GML3StreamingEncoder {
+
+    static final Logger LOGGER = Logging.getLogger(GML3StreamingEncoder.class);
+
+    static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+
+    static final String GML = "gml";
+
+    static final String WFS = "wfs";
+
+    static final String XSI = "xsi";
+
+    final boolean gml32;
+
+    final String gmlNamespace;
+
+    final String wfsNamespace;
+
+    final FeatureTypeSchemaBuilder schemaBuilder;
+
+    final Map<String, String> prefixes;
+
+    final SrsSyntax srsSyntax;
+
+    final boolean featureBounding;
+
+    final boolean encodeSrsDimension;
+
+    final boolean encodeFeatureMember;
+
+    final Map<SimpleFeatureType, EncodingPlan> plans = new IdentityHashMap<>();
+
+    final int numDecimals;
+
+    final long scale;
+
+    final StringBuilder sb = new StringBuilder();
+
+    final char[] digits = new char[18];
+
+    char[] buffer = new char[1024];
+
+    XMLStreamWriter writer;
+
+    /**
+     * Builds a new encoder
+     *
+     * @param gml32 True for GML 3.2 in a WFS 2.0 collection, false for GML 3.1 in a WFS 1.1 one
+     * @param schemaBuilder The schema builder used by DescribeFeatureType
+     * @param prefixes The prefixes of the feature type namespaces, keyed by namespace URI
+     * @param srsSyntax The srsName syntax
+     * @param numDecimals The number of decimals used for the ordinates
+     * @param featureBounding Whether to encode the bounds of each feature
+     * @param encodeSrsDimension Whether to encode the srsDimension attribute
+     * @param encodeFeatureMember Whether to use featureMember instead of featureMembers (GML 3.1)
+     */
+    public GML3StreamingEncoder(boolean gml32, FeatureTypeSchemaBuilder schemaBuilder,
+            Map<String, String> prefixes, SrsSyntax srsSyntax, int numDecimals,
+            boolean featureBounding, boolean encodeSrsDimension, boolean encodeFeatureMember) {
+        this.gml32 = gml32;
+        this.gmlNamespace = gml32 ? org.geotools.gml3.v3_2.GML.NAMESPACE
+                : org.geotools.gml3.GML.NAMESPACE;
+        this.wfsNamespace = gml32 ? org.geotools.wfs.v2_0.WFS.NAMESPACE
+                : org.geoserver.wfs.xml.v1_1_0.WFS.NAMESPACE;
+        this.schemaBuilder = schemaBuilder;
+        this.prefixes = prefixes;
+        this.srsSyntax = srsSyntax;
+        this.featureBounding = featureBounding;
+        this.encodeSrsDimension = encodeSrsDimension;
+        this.encodeFeatureMember = encodeFeatureMember;
+        // past 15 decimals we are beyond the double precision anyways
+        this.numDecimals = Math.max(0, Math.min(numDecimals, 15));
+        long s = 1;
+        for (int i = 0; i < this.numDecimals; i++) {
+            s *= 10;
+        }
+        this.scale = s;
+    }
+
+    /**
+     * Returns true if all the collections can be encoded by this encoder, computing their
+     * encoding plans in the process
+     */
+    public boolean canEncode(List<FeatureCollection> collections) {
+        // WFS 2.0 nests each collection in its own member when there are many
+        if (gml32 && collections.size() > 1) {
+            return false;
+        }
+        for (String prefix : prefixes.values()) {
+            if (prefix == null || GML.equals(prefix) || WFS.equals(prefix)
+                    || XSI.equals(prefix)) {
+                return false;
+            }
+        }
+        for (FeatureCollection fc : collections) {
+            if (!(fc.getSchema() instanceof SimpleFeatureType)
+                    || getPlan((SimpleFeatureType) fc.getSchema()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    EncodingPlan getPlan(SimpleFeatureType type) {
+        if (plans.containsKey(type)) {
+            return plans.get(type);
+        }
+        EncodingPlan plan = buildPlan(type);
+        plans.put(type, plan);
+        return plan;
+    }
+
+    EncodingPlan buildPlan(SimpleFeatureType type) {
+        Name name = type.getName();
+        String prefix = prefixes.get(name.getNamespaceURI());
+        if (prefix == null) {
+            return null;
+        }
+        List<AttributeDescriptor> descriptors = type.getAttributeDescriptors();
+        AttributePlan[] attributes = new AttributePlan[descriptors.size()];
+        for (int i = 0; i < descriptors.size(); i++) {
+            AttributeDescriptor ad = descriptors.get(i);
+            // GML attributes are encoded in the GML namespace by the generic encoder
+            if (schemaBuilder.filterAttributeType(ad)) {
+                return null;
+            }
+            Name typeName = schemaBuilder.findTypeName(ad.getType().getBinding());
+            if (typeName == null) {
+                return null;
+            }
+            AttributePlan ap = new AttributePlan(i, ad.getLocalName(), ad.getMinOccurs(),
+                    ad.isNillable());
+            if (ad instanceof GeometryDescriptor) {
+                ap.geometry = true;
+                ap.srsName = getSrsName(((GeometryDescriptor) ad).getCoordinateReferenceSystem());
+                ap.binding = ad.getType().getBinding();
+                String[] multi = getMultiElements(typeName.getLocalPart());
+                if (multi != null) {
+                    ap.multiElement = multi[0];
+                    ap.memberElement = multi[1];
+                }
+            }
+            attributes[i] = ap;
+        }
+        // the feature bounds are the ones of the default geometry
+        String defaultSrsName = null;
+        GeometryDescriptor gd = type.getGeometryDescriptor();
+        if (gd != null) {
+            defaultSrsName = attributes[type.indexOf(gd.getLocalName())].srsName;
+        }
+        return new EncodingPlan(prefix, name.getNamespaceURI(), name.getLocalPart(), attributes,
+                defaultSrsName);
+    }
+
+    String getSrsName(CoordinateReferenceSystem crs) {
+        if (crs == null) {
+            return null;
+        }
+        try {
+            Integer code = CRS.lookupEpsgCode(crs, true);
+            if (code != null) {
+                return srsSyntax.getPrefix() + code;
+            }
+            return CRS.lookupIdentifier(crs, true);
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Could not lookup an identifier for " + crs, e);
+            return null;
+        }
+    }
+
+    /**
+     * The multi geometry element and its member element matching the schema property type
+     */
+    static String[] getMultiElements(String propertyType) {
+        switch (propertyType) {
+        case "MultiSurfacePropertyType":
+            return new String[] { "MultiSurface", "surfaceMember" };
+        case "MultiPolygonPropertyType":
+            return new String[] { "MultiPolygon", "polygonMember" };
+        case "MultiCurvePropertyType":
+            return new String[] { "MultiCurve", "curveMember" };
+        case "MultiLineStringPropertyType":
+            return new String[] { "MultiLineString", "lineStringMember" };
+        case "MultiPointPropertyType":
+            return new String[] { "MultiPoint", "pointMember" };
+        case "MultiGeometryPropertyType":
+            return new String[] { "MultiGeometry", "geometryMember" };
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * Encodes the collections, which must have been checked with {@link #canEncode(List)}
+     *
+     * @param results The GetFeature results
+     * @param schemaLocations The schema locations, keyed by namespace URI
+     * @param output The output stream
+     * @param charset The output charset
+     * @throws IOException
+     */
+    public void encode(FeatureCollectionResponse results, Map<String, String> schemaLocations,
+            OutputStream output, Charset charset) throws IOException {
+        try {
+            writer = XMLOutputFactory.newInstance().createXMLStreamWriter(output,
+                    charset.name());
+            writer.writeStartDocument(charset.name(), "1.0");
+            writer.writeStartElement(WFS, "FeatureCollection", wfsNamespace);
+            writer.writeNamespace(WFS, wfsNamespace);
+            writer.writeNamespace(GML, gmlNamespace);
+            writer.writeNamespace(XSI, XSI_NAMESPACE);
+            for (Map.Entry<String, String> entry : prefixes.entrySet()) {
+                writer.writeNamespace(entry.getValue(), entry.getKey());
+            }
+            writeCollectionAttributes(results);
+            if (schemaLocations != null && !schemaLocations.isEmpty()) {
+                StringBuilder locations = new StringBuilder();
+                for (Map.Entry<String, String> entry : schemaLocations.entrySet()) {
+                    if (locations.length() > 0) {
+                        locations.append(' ');
+                    }
+                    locations.append(entry.getKey()).append(' ').append(entry.getValue());
+                }
+                writer.writeAttribute(XSI, XSI_NAMESPACE, "schemaLocation",
+                        locations.toString());
+            }
+
+            boolean membersOpen = false;
+            for (FeatureCollection fc : results.getFeature()) {
+                EncodingPlan plan = getPlan((SimpleFeatureType) fc.getSchema());
+                try (FeatureIterator<Feature> fi = fc.features()) {
+                    while (fi.hasNext()) {
+                        RequestCancellation.checkCancelled();
+                        SimpleFeature feature = (SimpleFeature) fi.next();
+                        if (gml32) {
+                            writer.writeStartElement(WFS, "member", wfsNamespace);
+                        } else if (encodeFeatureMember) {
+                            writer.writeStartElement(GML, "featureMember", gmlNamespace);
+                        } else if (!membersOpen) {
+                            writer.writeStartElement(GML, "featureMembers", gmlNamespace);
+                            membersOpen = true;
+                        }
+                        writeFeature(feature, plan);
+                        if (gml32 || encodeFeatureMember) {
+                            writer.writeEndElement();
+                        }
+                    }
+                }
+            }
+            if (membersOpen) {
+                writer.writeEndElement();
+            }
+
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Failed to encode the GML output", e);
+        }
+    }
+
+    void writeCollectionAttributes(FeatureCollectionResponse results)
+            throws XMLStreamException {
+        BigInteger returned = results.getNumberOfFeatures();
+        String timeStamp = results.getTimeStamp() != null
+                ? formatDateTime(results.getTimeStamp().getTimeInMillis()) : null;
+        if (gml32) {
+            writer.writeAttribute("timeStamp", timeStamp != null ? timeStamp
+                    : formatDateTime(Calendar.getInstance().getTimeInMillis()));
+            BigInteger matched = results.getTotalNumberOfFeatures();
+            writer.writeAttribute("numberMatched",
+                    matched == null || matched.signum() < 0 ? "unknown" : matched.toString());
+            writer.writeAttribute("numberReturned",
+                    returned != null ? returned.toString() : "0");
+            if (results.getNext() != null) {
+                writer.writeAttribute("next", results.getNext());
+            }
+            if (results.getPrevious() != null) {
+                writer.writeAttribute("previous", results.getPrevious());
+            }
+        } else {
+            if (returned != null) {
+                writer.writeAttribute("numberOfFeatures", returned.toString());
+            }
+            if (timeStamp != null) {
+                writer.writeAttribute("timeStamp", timeStamp);
+            }
+        }
+        if (results.getLockId() != null) {
+            writer.writeAttribute("lockId", results.getLockId());
+        }
+    }
+
+    void writeFeature(SimpleFeature feature, EncodingPlan plan) throws XMLStreamException {
+        String id = feature.getID();
+        writer.writeStartElement(plan.prefix, plan.localName, plan.namespace);
+        if (id != null) {
+            writer.writeAttribute(GML, gmlNamespace, "id", id);
+        }
+        if (featureBounding) {
+            writeBounds(feature.getBounds(), plan);
+        }
+        for (AttributePlan ap : plan.attributes) {
+            Object value = feature.getAttribute(ap.index);
+            if (value instanceof Geometry && ((Geometry) value).isEmpty()) {
+                value = null;
+            }
+            if (value == null) {
+                if (ap.minOccurs == 0) {
+                    continue;
+                }
+                writer.writeStartElement(plan.prefix, ap.name, plan.namespace);
+                if (ap.nillable) {
+                    writer.writeAttribute(XSI, XSI_NAMESPACE, "nil", "true");
+                }
+                writer.writeEndElement();
+                continue;
+            }
+
+            writer.writeStartElement(plan.prefix, ap.name, plan.namespace);
+            if (value instanceof Geometry) {
+                Geometry g = (Geometry) value;
+                if (g instanceof CurvedGeometry) {
+                    g = ((CurvedGeometry<?>) g).linearize();
+                }
+                String gid = id != null ? id + "." + ap.name : null;
+                writeGeometry(g, gid, ap, true, getDimension(g));
+            } else {
+                writer.writeCharacters(toString(value));
+            }
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+    }
+
+    void writeBounds(BoundingBox bounds, EncodingPlan plan) throws XMLStreamException {
+        if (bounds == null || bounds.isEmpty()) {
+            return;
+        }
+        writer.writeStartElement(GML, "boundedBy", gmlNamespace);
+        writer.writeStartElement(GML, "Envelope", gmlNamespace);
+        if (encodeSrsDimension) {
+            writer.writeAttribute("srsDimension", "2");
+        }
+        String srsName = plan.defaultSrsName;
+        if (srsName != null) {
+            writer.writeAttribute("srsName", srsName);
+        }
+        writer.writeStartElement(GML, "lowerCorner", gmlNamespace);
+        sb.setLength(0);
+        appendOrdinate(bounds.getMinX());
+        sb.append(' ');
+        appendOrdinate(bounds.getMinY());
+        flushCharacters();
+        writer.writeEndElement();
+        writer.writeStartElement(GML, "upperCorner", gmlNamespace);
+        sb.setLength(0);
+        appendOrdinate(bounds.getMaxX());
+        sb.append(' ');
+        appendOrdinate(bounds.getMaxY());
+        flushCharacters();
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    void writeGeometry(Geometry g, String id, AttributePlan ap, boolean top, int dimension)
+            throws XMLStreamException {
+        if (g instanceof Point) {
+            startGeometry("Point", id, ap, top, dimension);
+            writer.writeStartElement(GML, "pos", gmlNamespace);
+            writeCoordinates(((Point) g).getCoordinateSequence(), dimension);
+            writer.writeEndElement();
+            writer.writeEndElement();
+        } else if (g instanceof LineString) {
+            startGeometry("LineString", id, ap, top, dimension);
+            writePosList(((LineString) g).getCoordinateSequence(), dimension);
+            writer.writeEndElement();
+        } else if (g instanceof Polygon) {
+            Polygon polygon = (Polygon) g;
+            startGeometry("Polygon", id, ap, top, dimension);
+            writeRing("exterior", polygon.getExteriorRing(), dimension);
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                writeRing("interior", polygon.getInteriorRingN(i), dimension);
+            }
+            writer.writeEndElement();
+        } else if (g instanceof GeometryCollection) {
+            String element;
+            String member;
+            if (top && ap.multiElement != null && ap.binding.isInstance(g)) {
+                element = ap.multiElement;
+                member = ap.memberElement;
+            } else if (g instanceof MultiPoint) {
+                element = "MultiPoint";
+                member = "pointMember";
+            } else if (g instanceof MultiLineString) {
+                element = gml32 ? "MultiCurve" : "MultiLineString";
+                member = gml32 ? "curveMember" : "lineStringMember";
+            } else if (g instanceof MultiPolygon) {
+                element = gml32 ? "MultiSurface" : "MultiPolygon";
+                member = gml32 ? "surfaceMember" : "polygonMember";
+            } else {
+                element = "MultiGeometry";
+                member = "geometryMember";
+            }
+            startGeometry(element, id, ap, top, dimension);
+            for (int i = 0; i < g.getNumGeometries(); i++) {
+                writer.writeStartElement(GML, member, gmlNamespace);
+                writeGeometry(g.getGeometryN(i), id != null ? id + "." + (i + 1) : null, ap,
+                        false, dimension);
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+        } else {
+            throw new IllegalArgumentException("Unsupported geometry type " + g.getClass());
+        }
+    }
+
+    void startGeometry(String element, String id, AttributePlan ap, boolean top, int dimension)
+            throws XMLStreamException {
+        writer.writeStartElement(GML, element, gmlNamespace);
+        // GML 3.2 requires an id on all geometries
+        if (gml32 && id != null) {
+            writer.writeAttribute(GML, gmlNamespace, "id", id);
+        }
+        if (top) {
+            if (ap.srsName != null) {
+                writer.writeAttribute("srsName", ap.srsName);
+            }
+            if (encodeSrsDimension) {
+                writer.writeAttribute("srsDimension", String.valueOf(dimension));
+            }
+        }
+    }
+
+    void writeRing(String element, LineString ring, int dimension) throws XMLStreamException {
+        writer.writeStartElement(GML, element, gmlNamespace);
+        writer.writeStartElement(GML, "LinearRing", gmlNamespace);
+        writePosList(ring.getCoordinateSequence(), dimension);
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+    void writePosList(CoordinateSequence cs, int dimension) throws XMLStreamException {
+        writer.writeStartElement(GML, "posList", gmlNamespace);
+        writeCoordinates(cs, dimension);
+        writer.writeEndElement();
+    }
+
+    void writeCoordinates(CoordinateSequence cs, int dimension) throws XMLStreamException {
+        sb.setLength(0);
+        for (int i = 0; i < cs.size(); i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            appendOrdinate(cs.getOrdinate(i, 0));
+            sb.append(' ');
+            appendOrdinate(cs.getOrdinate(i, 1));
+            if (dimension > 2) {
+                sb.append(' ');
+                appendOrdinate(cs.getOrdinate(i, 2));
+            }
+        }
+        flushCharacters();
+    }
+
+    private void flushCharacters() throws XMLStreamException {
+        int length = sb.length();
+        if (buffer.length < length) {
+            buffer = new char[Math.max(length, buffer.length * 2)];
+        }
+        sb.getChars(0, length, buffer, 0);
+        writer.writeCharacters(buffer, 0, length);
+    }
+
+    /**
+     * Appends the ordinate rounded to the configured number of decimals, without trailing zeroes
+     */
+    void appendOrdinate(double value) {
+        double scaled = value * scale;
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(scaled) >= 1e15) {
+            sb.append(value);
+            return;
+        }
+        long rounded = Math.round(scaled);
+        if (rounded < 0) {
+            sb.append('-');
+            rounded = -rounded;
+        }
+        sb.append(rounded / scale);
+        long fraction = rounded % scale;
+        if (fraction != 0) {
+            int last = -1;
+            for (int i = numDecimals - 1; i >= 0; i--) {
+                digits[i] = (char) ('0' + fraction % 10);
+                fraction /= 10;
+                if (last == -1 && digits[i] != '0') {
+                    last = i;
+                }
+            }
+            sb.append('.');
+            sb.append(digits, 0, last + 1);
+        }
+    }
+
+    static int getDimension(Geometry g) {
+        Coordinate c = g.getCoordinate();
+        return c != null && !Double.isNaN(c.z) ? 3 : 2;
+    }
+
+    String toString(Object value) {
+        if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof java.sql.Date || value instanceof java.sql.Time) {
+            return value.toString();
+        } else if (value instanceof Date) {
+            return formatDateTime(((Date) value).getTime());
+        } else if (value instanceof Calendar) {
+            return formatDateTime(((Calendar) value).getTimeInMillis());
+        } else if (value instanceof byte[]) {
+            return Base64.getEncoder().encodeToString((byte[]) value);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return value.toString();
+        }
+        String converted = Converters.convert(value, String.class);
+        return converted != null ? converted : value.toString();
+    }
+
+    static String formatDateTime(long time) {
+        return DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochMilli(time));
+    }
+
+    /**
+     * The precomputed encoding steps for a feature type
+     */
+    static final class EncodingPlan {
+        final String prefix;
+
+        final String namespace;
+
+        final String localName;
+
+        final AttributePlan[] attributes;
+
+        final String defaultSrsName;
+
+        EncodingPlan(String prefix, String namespace, String localName,
+                AttributePlan[] attributes, String defaultSrsName) {
+            this.prefix = prefix;
+            this.namespace = namespace;
+            this.localName = localName;
+            this.attributes = attributes;
+            this.defaultSrsName = defaultSrsName;
+        }
+
+    }
+
+    /**
+     * The precomputed encoding steps for a single attribute
+     */
+    static final class AttributePlan {
+        final int index;
+
+        final String name;
+
+        final int minOccurs;
+
+        final boolean nillable;
+
+        boolean geometry;
+
+        String srsName;
+
+        Class<?> binding;
+
+        String multiElement;
+
+        String memberElement;
+
+        AttributePlan(int index, String name, int minOccurs, boolean nillable) {
+            this.index = index;
+            this.name = name;
+            this.minOccurs = minOccurs;
+            this.nillable = nillable;
+        }
+    }
+}
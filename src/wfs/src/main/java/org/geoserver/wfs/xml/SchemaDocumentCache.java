@@ -0,0 +1,316 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.eclipse.xsd.XSDSchema;
+import org.eclipse.xsd.util.XSDResourceImpl;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.PublishedInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.ServiceInfo;
+import org.geoserver.config.SettingsInfo;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.ows.LocalPublished;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.security.GeoServerSecurityManager;
+import org.geoserver.security.SecurityManagerListener;
+import org.geoserver.security.SecurityUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Caches the XML schema documents returned by DescribeFeatureType, so that the XSD model of the
+ * feature types is not built again each time a client describes the same types.
+ * <p>
+ * The documents are cached by schema builder (hence GML version), feature type ids, base URL,
+ * charset, virtual service, and the user with its roles and the version of the data access rules,
+ * since data security can hide attributes. The entries referring to a feature type are dropped
+ * when the feature type or its layer are modified or removed, the whole cache is dropped on store,
+ * namespace and workspace changes, on settings and service changes, on security configuration
+ * changes, and on reload/reset.
+ * <p>
+ * The cache holds at most {@link #WFS_SCHEMA_CACHE_SIZE} documents, a non positive value disables
+ * it.
+ */
+public class SchemaDocumentCache
+        implements CatalogListener, GeoServerLifecycleHandler, SecurityManagerListener {
+
+    /**
+     * Maximum number of cached schema documents, defaults to {@link #DEFAULT_SIZE}
+     */
+    public static final String WFS_SCHEMA_CACHE_SIZE = "WFS_SCHEMA_CACHE_SIZE";
+
+    static final long DEFAULT_SIZE = 100;
+
+    private final Cache<SchemaKey, byte[]> cache;
+
+    public SchemaDocumentCache(GeoServer geoServer) {
+        this(geoServer, GeoServerExtensions.getLongProperty(WFS_SCHEMA_CACHE_SIZE, DEFAULT_SIZE));
+    }
+
+    /**
+     * Builds a new schema cache
+     *
+     * @param geoServer The configuration to listen to
+     * @param maxEntries The maximum number of cached documents, a non positive value disables the
+     *        cache
+     */
+    public SchemaDocumentCache(GeoServer geoServer, long maxEntries) {
+        if (maxEntries > 0) {
+            this.cache = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+            geoServer.getCatalog().addListener(this);
+            geoServer.addListener(new ConfigurationListenerAdapter() {
+                @Override
+                public void handlePostGlobalChange(GeoServerInfo global) {
+                    clear();
+                }
+
+                @Override
+                public void handleSettingsAdded(SettingsInfo settings) {
+                    clear();
+                }
+
+                @Override
+                public void handleSettingsPostModified(SettingsInfo settings) {
+                    clear();
+                }
+
+                @Override
+                public void handleSettingsRemoved(SettingsInfo settings) {
+                    clear();
+                }
+
+                @Override
+                public void handlePostServiceChange(ServiceInfo service) {
+                    clear();
+                }
+
+                @Override
+                public void handleServiceRemove(ServiceInfo service) {
+                    clear();
+                }
+            });
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * Listens to the security manager, to drop the cached documents when the security
+     * configuration changes
+     */
+    public void setSecurityManager(GeoServerSecurityManager securityManager) {
+        securityManager.addListener(this);
+    }
+
+    /**
+     * Looks up the cache among the application context beans
+     *
+     * @return the cache, or null if not available
+     */
+    public static SchemaDocumentCache get() {
+        return GeoServerExtensions.bean(SchemaDocumentCache.class);
+    }
+
+    /**
+     * Writes out the schema document describing the given feature types, building it only if not
+     * found in the cache
+     */
+    public void write(FeatureTypeSchemaBuilder builder, FeatureTypeInfo[] featureTypes,
+            String baseUrl, String charset, OutputStream output) throws IOException {
+        if (cache == null) {
+            build(builder, featureTypes, baseUrl, charset, output);
+            return;
+        }
+        SchemaKey key = new SchemaKey(builder, featureTypes, baseUrl, charset);
+        byte[] document = cache.getIfPresent(key);
+        if (document == null) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            build(builder, featureTypes, baseUrl, charset, bos);
+            document = bos.toByteArray();
+            cache.put(key, document);
+        }
+        output.write(document);
+    }
+
+    /**
+     * Builds and serializes the schema document, without caching it
+     */
+    public static void build(FeatureTypeSchemaBuilder builder, FeatureTypeInfo[] featureTypes,
+            String baseUrl, String charset, OutputStream output) throws IOException {
+        XSDSchema schema = builder.build(featureTypes, baseUrl);
+        schema.updateElement();
+        XSDResourceImpl.serialize(output, schema.getElement(), charset);
+    }
+
+    /**
+     * Drops the documents describing the given feature type
+     */
+    public void invalidate(String featureTypeId) {
+        if (cache != null && featureTypeId != null) {
+            cache.asMap().keySet().removeIf(k -> k.featureTypeIds.contains(featureTypeId));
+        }
+    }
+
+    /**
+     * Drops all cached documents
+     */
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Number of cached documents, for testing purposes
+     */
+    long size() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do, new feature types are not cached yet
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    private void invalidate(CatalogInfo info) {
+        if (info instanceof ResourceInfo) {
+            invalidate(info.getId());
+        } else if (info instanceof LayerInfo) {
+            ResourceInfo resource = ((LayerInfo) info).getResource();
+            if (resource != null) {
+                invalidate(resource.getId());
+            }
+        } else if (!(info instanceof PublishedInfo) && !(info instanceof StyleInfo)) {
+            // store, namespace and workspace changes can alter any schema
+            clear();
+        }
+    }
+
+    @Override
+    public void handlePostChanged(GeoServerSecurityManager securityManager) {
+        clear();
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        clear();
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+
+    static final class SchemaKey {
+        final String builder;
+
+        final List<String> featureTypeIds;
+
+        final String baseUrl;
+
+        final String charset;
+
+        final String workspace;
+
+        final String published;
+
+        final String accessKey;
+
+        SchemaKey(FeatureTypeSchemaBuilder builder, FeatureTypeInfo[] featureTypes,
+                String baseUrl, String charset) {
+            this.builder = builder.getClass().getName();
+            this.featureTypeIds = new ArrayList<>(featureTypes.length);
+            for (FeatureTypeInfo featureType : featureTypes) {
+                featureTypeIds.add(featureType.getId());
+            }
+            this.baseUrl = baseUrl;
+            this.charset = charset;
+            WorkspaceInfo ws = LocalWorkspace.get();
+            this.workspace = ws != null ? ws.getName() : null;
+            PublishedInfo p = LocalPublished.get();
+            this.published = p != null ? p.getName() : null;
+            this.accessKey = SecurityUtils.getAccessKey();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(builder, featureTypeIds, baseUrl, charset, workspace, published,
+                    accessKey);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SchemaKey)) {
+                return false;
+            }
+            SchemaKey other = (SchemaKey) obj;
+            return builder.equals(other.builder) && featureTypeIds.equals(other.featureTypeIds)
+                    && Objects.equals(baseUrl, other.baseUrl)
+                    && Objects.equals(charset, other.charset)
+                    && Objects.equals(workspace, other.workspace)
+                    && Objects.equals(published, other.published)
+                    && Objects.equals(accessKey, other.accessKey);
+        }
+
+        @Override
+        public String toString() {
+            return builder + "/" + featureTypeIds + "/" + baseUrl + "/" + workspace + "/"
+                    + published + "/" + accessKey;
+        }
+    }
+}
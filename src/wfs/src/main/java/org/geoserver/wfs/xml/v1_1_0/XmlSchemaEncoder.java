@@ -18,8 +18,6 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.apache.commons.codec.binary.Base64;
-import org.eclipse.xsd.XSDSchema;
-import org.eclipse.xsd.util.XSDResourceImpl;
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.config.GeoServer;
@@ -32,6 +30,7 @@ import org.geoserver.wfs.WFSDescribeFeatureTypeOutputFormat;
 import org.geoserver.wfs.WFSInfo;
 import org.geoserver.wfs.request.DescribeFeatureTypeRequest;
 import org.geoserver.wfs.xml.FeatureTypeSchemaBuilder;
+import org.geoserver.wfs.xml.SchemaDocumentCache;
 import org.geotools.xml.Schemas;
 
 
@@ -104,12 +103,14 @@ public class XmlSchemaEncoder extends WFSDescribeFeatureTypeOutputFormat {
         Object request = describeFeatureType.getParameters()[0];
         DescribeFeatureTypeRequest req = DescribeFeatureTypeRequest.adapt(request);
         
-        XSDSchema schema = schemaBuilder.build(featureTypeInfos, req.getBaseURL());
-
-        //serialize
-        schema.updateElement();
         final String encoding = gs.getSettings().getCharset();
-        XSDResourceImpl.serialize(output, schema.getElement(), encoding);
+        SchemaDocumentCache cache = SchemaDocumentCache.get();
+        if (cache != null) {
+            cache.write(schemaBuilder, featureTypeInfos, req.getBaseURL(), encoding, output);
+        } else {
+            SchemaDocumentCache.build(schemaBuilder, featureTypeInfos, req.getBaseURL(), encoding,
+                    output);
+        }
     }
     
     public static class V20 extends XmlSchemaEncoder {
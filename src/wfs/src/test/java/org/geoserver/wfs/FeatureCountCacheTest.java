@@ -0,0 +1,136 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Future;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+public class FeatureCountCacheTest {
+
+    Catalog catalog;
+
+    FeatureTypeInfo ft;
+
+    ListFeatureCollection features;
+
+    Query query;
+
+    @Before
+    public void setup() throws Exception {
+        ft = createNiceMock(FeatureTypeInfo.class);
+        expect(ft.getId()).andReturn("ft1").anyTimes();
+        replay(ft);
+        catalog = createNiceMock(Catalog.class);
+        expect(catalog.getFeatureTypeByName("http://www.test.org", "t")).andReturn(ft)
+                .anyTimes();
+        replay(catalog);
+
+        SimpleFeatureType type = DataUtilities.createType("t", "name:String");
+        features = new ListFeatureCollection(type);
+        for (int i = 0; i < 3; i++) {
+            features.add(SimpleFeatureBuilder.build(type, new Object[] { "f" + i }, "t." + i));
+        }
+        query = new Query("t");
+    }
+
+    SimpleFeatureSource mockSource(int expectedCalls) throws Exception {
+        SimpleFeatureSource source = createMock(SimpleFeatureSource.class);
+        expect(source.getFeatures(query)).andReturn(features).times(expectedCalls);
+        replay(source);
+        return source;
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        FeatureCountCache cache = new FeatureCountCache(catalog, 0, 10, 0, false);
+        assertFalse(cache.isAsynchronous());
+        SimpleFeatureSource source = mockSource(2);
+        assertEquals(3, cache.getCount(ft, source, query));
+        assertEquals(3, cache.getCount(ft, source, query));
+        assertEquals(0, cache.size());
+        verify(source);
+    }
+
+    @Test
+    public void testCachedAndInvalidated() throws Exception {
+        FeatureCountCache cache = new FeatureCountCache(catalog, 60000, 10, 0, false);
+        SimpleFeatureSource source = mockSource(2);
+        assertEquals(3, cache.getCount(ft, source, query));
+        assertEquals(3, cache.getCount(ft, source, query));
+        assertEquals(1, cache.size());
+
+        // a transaction on the type drops the cached count
+        cache.dataStoreChange(new TransactionEvent(TransactionEventType.POST_INSERT, null,
+                new QName("http://www.test.org", "t"), null));
+        assertEquals(0, cache.size());
+        assertEquals(3, cache.getCount(ft, source, query));
+        verify(source);
+    }
+
+    @Test
+    public void testEqualFiltersShareEntry() throws Exception {
+        FeatureCountCache cache = new FeatureCountCache(catalog, 60000, 10, 0, false);
+        FilterFactory2 ff = CommonFactoryFinder.getFilterFactory2();
+        Query q1 = new Query("t", ff.equals(ff.property("name"), ff.literal("f1")));
+        Query q2 = new Query("t", ff.equals(ff.property("name"), ff.literal("f1")));
+        Query q3 = new Query("t", ff.equals(ff.property("name"), ff.literal("f2")));
+
+        assertEquals(cache.getKey(ft, q1), cache.getKey(ft, q2));
+        assertFalse(cache.getKey(ft, q1).equals(cache.getKey(ft, q3)));
+    }
+
+    @Test
+    public void testNoEstimateWithLayerFilter() throws Exception {
+        FeatureTypeInfo filtered = createNiceMock(FeatureTypeInfo.class);
+        expect(filtered.getId()).andReturn("ft2").anyTimes();
+        expect(filtered.filter()).andReturn(Filter.EXCLUDE).anyTimes();
+        replay(filtered);
+
+        // the estimate would count the whole table, the exact count is used instead
+        FeatureCountCache cache = new FeatureCountCache(catalog, 0, 10, 0, true);
+        SimpleFeatureSource source = mockSource(1);
+        assertEquals(-1, cache.getEstimatedCount(filtered, source, query));
+        assertEquals(3, cache.getCount(filtered, source, query));
+        verify(source);
+    }
+
+    @Test
+    public void testAsynchronous() throws Exception {
+        FeatureCountCache cache = new FeatureCountCache(catalog, 0, 10, 1, false);
+        assertTrue(cache.isAsynchronous());
+        SimpleFeatureSource source = mockSource(1);
+        CountExecutor executor = new CountExecutor(source, query, ft, cache);
+        executor.prefetch();
+        Future<Integer> future = executor.future;
+        assertEquals(Integer.valueOf(3), future.get());
+        assertEquals(3, executor.getCount());
+        verify(source);
+        cache.onDispose();
+    }
+}
@@ -182,6 +182,22 @@ public class GetCapabilitiesTest extends WFSTestSupport {
                 "/wfs:WFS_Capabilities/wfs:FeatureTypeList/wfs:FeatureType", doc).getLength());
     }
 
+    @Test
+    public void testTypeTitleOrder() throws Exception {
+        Document doc = getAsDOM("wfs?service=WFS&version=1.0.0&request=getCapabilities");
+
+        XpathEngine xpath = XMLUnit.newXpathEngine();
+        NodeList titles = xpath.getMatchingNodes(
+                "/wfs:WFS_Capabilities/wfs:FeatureTypeList/wfs:FeatureType/wfs:Title", doc);
+        assertTrue(titles.getLength() > 1);
+        for (int i = 1; i < titles.getLength(); i++) {
+            String previous = titles.item(i - 1).getTextContent();
+            String current = titles.item(i).getTextContent();
+            assertTrue(previous + " should come before " + current,
+                    previous.compareTo(current) <= 0);
+        }
+    }
+
     @Test
     public void testTypeNames() throws Exception {
         // filter on an existing namespace
@@ -0,0 +1,178 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.geoserver.platform.resource.FileSystemResourceStore;
+import org.geoserver.platform.resource.Resource;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LockRegistryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    LockRegistry.LockRecord record(String lockId, long duration) {
+        LockRegistry.LockRecord record = new LockRegistry.LockRecord(lockId, duration);
+        record.add("store1", "type1", "type1.1");
+        record.add("store1", "type1", "type1.2");
+        record.add("store2", "type2", "type2.1\twith\nspecial chars");
+        return record;
+    }
+
+    @Test
+    public void testLookups() throws Exception {
+        LockRegistry registry = new LockRegistry((Resource) null);
+        registry.put(record("lock1", 60000));
+
+        assertTrue(registry.exists("lock1"));
+        assertFalse(registry.exists("lock2"));
+        assertEquals(new LinkedHashSet<>(Arrays.asList("store1", "store2")),
+                registry.getStoreIds("lock1"));
+        assertNull(registry.getStoreIds("lock2"));
+
+        registry.release("lock1");
+        assertFalse(registry.exists("lock1"));
+    }
+
+    @Test
+    public void testReleaseSome() throws Exception {
+        LockRegistry registry = new LockRegistry((Resource) null);
+        registry.put(record("lock1", 60000));
+
+        Map<String, Set<String>> released = new HashMap<>();
+        released.put("type2", Collections.singleton("type2.1\twith\nspecial chars"));
+        registry.release("lock1", released);
+        assertTrue(registry.exists("lock1"));
+        assertEquals(Collections.singleton("store1"), registry.getStoreIds("lock1"));
+
+        released.put("type1", new HashSet<>(Arrays.asList("type1.1", "type1.2")));
+        registry.release("lock1", released);
+        assertFalse(registry.exists("lock1"));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        LockRegistry registry = new LockRegistry((Resource) null);
+        registry.put(record("lock1", 1));
+        // a lock without expiry
+        registry.put(record("lock2", 0));
+        Thread.sleep(10);
+
+        assertFalse(registry.exists("lock1"));
+        assertNull(registry.getStoreIds("lock1"));
+        assertTrue(registry.exists("lock2"));
+    }
+
+    @Test
+    public void testFidIndex() throws Exception {
+        LockRegistry registry = new LockRegistry((Resource) null);
+        registry.put(record("lock1", 60000));
+        LockRegistry.LockRecord other = new LockRegistry.LockRecord("lock2", 60000);
+        other.add("store1", "type1", "type1.3");
+        registry.put(other);
+
+        assertEquals("lock1", registry.getLockId("type1", "type1.1"));
+        assertEquals("lock2", registry.getLockId("type1", "type1.3"));
+        assertNull(registry.getLockId("type1", "type1.4"));
+        assertNull(registry.getLockId("type2", "type1.1"));
+        assertEquals(new LinkedHashSet<>(Arrays.asList("type1.1", "type1.2")),
+                registry.getFids("lock1", "type1"));
+        assertEquals(Collections.emptySet(), registry.getFids("lock2", "type2"));
+
+        // released features are not indexed anymore
+        registry.release("lock1", Collections.singletonMap("type1",
+                Collections.singleton("type1.1")));
+        assertNull(registry.getLockId("type1", "type1.1"));
+        assertEquals("lock1", registry.getLockId("type1", "type1.2"));
+
+        registry.release("lock1");
+        assertNull(registry.getLockId("type1", "type1.2"));
+        assertEquals("lock2", registry.getLockId("type1", "type1.3"));
+    }
+
+    @Test
+    public void testPruneExpired() throws Exception {
+        LockRegistry registry = new LockRegistry((Resource) null);
+        registry.put(record("lock1", 1));
+        Thread.sleep(10);
+
+        // never looked up again, dropped when a new lock is added
+        registry.put(record("lock2", 60000));
+        assertEquals(Collections.singleton("lock2"), registry.locks.keySet());
+        assertEquals("lock2", registry.getLockId("type1", "type1.1"));
+    }
+
+    @Test
+    public void testNotRegistered() throws Exception {
+        LockRegistry registry = new LockRegistry((Resource) null);
+        // locks used only to check availability, and empty locks, are not tracked
+        registry.put(record("lock1", -1));
+        registry.put(new LockRegistry.LockRecord("lock2", 60000));
+        assertFalse(registry.exists("lock1"));
+        assertFalse(registry.exists("lock2"));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        FileSystemResourceStore store = new FileSystemResourceStore(folder.getRoot());
+        Resource resource = store.get(LockRegistry.LOCKS_PATH);
+        LockRegistry registry = new LockRegistry(resource);
+        registry.put(record("lock1", 60000));
+        registry.put(record("lock2", 60000));
+        registry.release("lock2");
+        assertEquals(Resource.Type.DIRECTORY, resource.getType());
+        assertEquals(1, resource.list().size());
+
+        // another registry reading the same directory, e.g., after a restart
+        LockRegistry other = new LockRegistry(store.get(LockRegistry.LOCKS_PATH));
+        assertTrue(other.exists("lock1"));
+        assertFalse(other.exists("lock2"));
+        assertEquals(new LinkedHashSet<>(Arrays.asList("store1", "store2")),
+                other.getStoreIds("lock1"));
+
+        other.releaseAll();
+        assertFalse(new LockRegistry(store.get(LockRegistry.LOCKS_PATH)).exists("lock1"));
+    }
+
+    @Test
+    public void testSharedStore() throws Exception {
+        FileSystemResourceStore store = new FileSystemResourceStore(folder.getRoot());
+        LockRegistry node1 = new LockRegistry(store.get(LockRegistry.LOCKS_PATH));
+        LockRegistry node2 = new LockRegistry(store.get(LockRegistry.LOCKS_PATH));
+        assertFalse(node2.exists("lock1"));
+
+        // a lock taken on another node after startup
+        node1.put(record("lock1", 60000));
+        assertTrue(node2.exists("lock1"));
+        assertEquals("lock1", node2.getLockId("type2", "type2.1\twith\nspecial chars"));
+
+        // some features released on the other node, past the file system time resolution
+        Thread.sleep(1100);
+        node1.release("lock1", Collections.singletonMap("type2",
+                Collections.singleton("type2.1\twith\nspecial chars")));
+        assertEquals(Collections.singleton("store1"), node2.getStoreIds("lock1"));
+        assertNull(node2.getLockId("type2", "type2.1\twith\nspecial chars"));
+
+        // and the lock released there
+        node1.release("lock1");
+        assertFalse(node2.exists("lock1"));
+        assertNull(node2.getLockId("type1", "type1.1"));
+    }
+}
@@ -0,0 +1,115 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.sort.SortBy;
+import org.opengis.filter.sort.SortOrder;
+
+public class PagingCursorTest {
+
+    static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+    @Test
+    public void testEncodeDecode() {
+        Date date = new Date(1234567890L);
+        BigDecimal decimal = new BigDecimal("12345678901234567890.123");
+        PagingCursor cursor = new PagingCursor(2,
+                new Object[] { "abc", 10, 1.5, date, true, decimal });
+        PagingCursor decoded = PagingCursor.decode(cursor.encode());
+
+        assertEquals(2, decoded.getQueryIndex());
+        assertArrayEquals(new Object[] { "abc", 10L, 1.5, date, true, decimal },
+                decoded.getKeys());
+    }
+
+    @Test
+    public void testEncodeTimestampNanos() {
+        Timestamp timestamp = new Timestamp(1234567890L);
+        timestamp.setNanos(890123456);
+        PagingCursor cursor = new PagingCursor(0, new Object[] { timestamp });
+        Object decoded = PagingCursor.decode(cursor.encode()).getKeys()[0];
+
+        assertTrue(decoded instanceof Timestamp);
+        assertEquals(timestamp, decoded);
+        assertEquals(890123456, ((Timestamp) decoded).getNanos());
+    }
+
+    @Test
+    public void testEncodeStart() {
+        PagingCursor decoded = PagingCursor.decode(PagingCursor.start(1).encode());
+        assertEquals(1, decoded.getQueryIndex());
+        assertNull(decoded.getKeys());
+        assertEquals(Filter.INCLUDE, decoded.toSeekFilter(null, FF));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeInvalid() {
+        PagingCursor.decode("notACursor");
+    }
+
+    @Test
+    public void testSeekFilter() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("t", "name:String,value:int,pk:int");
+        // the primary key is always the last sort key
+        List<SortBy> sortBy = Arrays.asList(FF.sort("name", SortOrder.ASCENDING),
+                FF.sort("value", SortOrder.DESCENDING), FF.sort("pk", SortOrder.ASCENDING));
+        PagingCursor cursor = new PagingCursor(0, new Object[] { "b", 5, 3 });
+        Filter seek = cursor.toSeekFilter(sortBy, FF);
+
+        // name greater
+        assertTrue(seek.evaluate(feature(type, "c", 10, 1)));
+        // same name, lower value
+        assertTrue(seek.evaluate(feature(type, "b", 4, 2)));
+        // same keys, following primary key
+        assertTrue(seek.evaluate(feature(type, "b", 5, 4)));
+        // the last feature returned, and the ones before it
+        assertFalse(seek.evaluate(feature(type, "b", 5, 3)));
+        assertFalse(seek.evaluate(feature(type, "b", 5, 2)));
+        assertFalse(seek.evaluate(feature(type, "b", 6, 5)));
+        assertFalse(seek.evaluate(feature(type, "a", 1, 6)));
+    }
+
+    @Test
+    public void testSeekFilterSingleKey() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("t", "name:String,value:int,pk:int");
+        PagingCursor cursor = new PagingCursor(0, new Object[] { 3 });
+        Filter seek = cursor.toSeekFilter(
+                Collections.singletonList(FF.sort("pk", SortOrder.ASCENDING)), FF);
+
+        assertTrue(seek.evaluate(feature(type, "a", 1, 4)));
+        assertFalse(seek.evaluate(feature(type, "a", 1, 3)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSeekFilterMismatch() {
+        PagingCursor cursor = new PagingCursor(0, new Object[] { "b", 5 });
+        cursor.toSeekFilter(Collections.singletonList(FF.sort("name", SortOrder.ASCENDING)), FF);
+    }
+
+    SimpleFeature feature(SimpleFeatureType type, String name, int value, int pk) {
+        return SimpleFeatureBuilder.build(type, new Object[] { name, value, pk }, "t." + pk);
+    }
+}
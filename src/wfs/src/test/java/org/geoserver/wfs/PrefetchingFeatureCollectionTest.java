@@ -0,0 +1,187 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+public class PrefetchingFeatureCollectionTest {
+
+    ListFeatureCollection features;
+
+    ExecutorService executor;
+
+    @Before
+    public void setup() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("t", "name:String");
+        features = new ListFeatureCollection(type);
+        for (int i = 0; i < 10; i++) {
+            features.add(SimpleFeatureBuilder.build(type, new Object[] { "f" + i }, "t." + i));
+        }
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    List<String> readIds(PrefetchingFeatureCollection fc) {
+        List<String> ids = new ArrayList<>();
+        try (SimpleFeatureIterator fi = fc.features()) {
+            while (fi.hasNext()) {
+                ids.add(fi.next().getID());
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void testOrderPreserved() throws Exception {
+        // a queue smaller than the collection makes the producer wait on the consumer
+        PrefetchingFeatureCollection fc = new PrefetchingFeatureCollection(features, 3);
+        fc.start(executor);
+        while (fc.state.get() == PrefetchingFeatureCollection.PENDING) {
+            Thread.sleep(10);
+        }
+        List<String> ids = readIds(fc);
+        assertEquals(PrefetchingFeatureCollection.CONSUMED, fc.state.get());
+        assertEquals(10, ids.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("t." + i, ids.get(i));
+        }
+        // a second read goes straight to the delegate
+        assertEquals(ids, readIds(fc));
+    }
+
+    @Test
+    public void testCancelWithoutConsumer() throws Exception {
+        PrefetchingFeatureCollection fc = new PrefetchingFeatureCollection(features, 1);
+        fc.start(executor);
+        // the producer waits for the consumer until cancelled
+        Thread.sleep(300);
+        assertFalse(fc.producerDone);
+        fc.cancel();
+        while (!fc.producerDone) {
+            Thread.sleep(50);
+        }
+        assertEquals(PrefetchingFeatureCollection.ABORTED, fc.state.get());
+        // the features are read again from the delegate
+        assertEquals(10, readIds(fc).size());
+    }
+
+    @Test
+    public void testNotStarted() throws Exception {
+        AtomicInteger opened = new AtomicInteger();
+        SimpleFeatureCollection counting = new DecoratingSimpleFeatureCollection(features) {
+            @Override
+            public SimpleFeatureIterator features() {
+                opened.incrementAndGet();
+                return super.features();
+            }
+        };
+        // the only thread is busy, e.g. with a producer waiting on another request
+        CountDownLatch latch = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        PrefetchingFeatureCollection fc = new PrefetchingFeatureCollection(counting, 1);
+        fc.start(executor);
+
+        // the features are read from the delegate, without waiting for the producer
+        assertEquals(10, readIds(fc).size());
+        assertEquals(PrefetchingFeatureCollection.ABORTED, fc.state.get());
+        assertEquals(1, opened.get());
+
+        // once it gets a thread the producer does not run the query
+        latch.countDown();
+        while (!fc.producerDone) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, opened.get());
+    }
+
+    @Test
+    public void testCancelBeforeStart() throws Exception {
+        AtomicInteger opened = new AtomicInteger();
+        SimpleFeatureCollection counting = new DecoratingSimpleFeatureCollection(features) {
+            @Override
+            public SimpleFeatureIterator features() {
+                opened.incrementAndGet();
+                return super.features();
+            }
+        };
+        PrefetchingFeatureCollection fc = new PrefetchingFeatureCollection(counting, 1);
+        fc.cancel();
+        fc.produce();
+        assertTrue(fc.producerDone);
+        assertEquals(0, opened.get());
+    }
+
+    @Test
+    public void testPrefetcherSkipsFirst() throws Exception {
+        FeatureCollectionPrefetcher prefetcher = new FeatureCollectionPrefetcher(1, 10);
+        try {
+            assertTrue(prefetcher.isEnabled());
+            List<Object> results = new ArrayList<>();
+            results.add(features);
+            results.add(features);
+            prefetcher.prefetch(results);
+            assertSame(features, results.get(0));
+            assertTrue(results.get(1) instanceof PrefetchingFeatureCollection);
+            assertEquals(10, readIds((PrefetchingFeatureCollection) results.get(1)).size());
+        } finally {
+            prefetcher.finished(null);
+            prefetcher.onDispose();
+        }
+        assertNull(FeatureCollectionPrefetcher.PREFETCHES.get());
+        assertFalse(new FeatureCollectionPrefetcher(0, 10).isEnabled());
+    }
+
+    @Test
+    public void testFinishedCancels() throws Exception {
+        FeatureCollectionPrefetcher prefetcher = new FeatureCollectionPrefetcher(1, 1);
+        try {
+            List<Object> results = new ArrayList<>();
+            results.add(features);
+            results.add(features);
+            prefetcher.prefetch(results);
+            PrefetchingFeatureCollection fc = (PrefetchingFeatureCollection) results.get(1);
+            // the request completes without encoding the second collection
+            prefetcher.finished(null);
+            while (!fc.producerDone) {
+                Thread.sleep(50);
+            }
+            assertEquals(PrefetchingFeatureCollection.ABORTED, fc.state.get());
+        } finally {
+            prefetcher.onDispose();
+        }
+    }
+}
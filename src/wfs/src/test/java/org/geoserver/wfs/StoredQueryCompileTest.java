@@ -0,0 +1,125 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+
+import net.opengis.wfs20.ParameterType;
+import net.opengis.wfs20.QueryExpressionTextType;
+import net.opengis.wfs20.QueryType;
+import net.opengis.wfs20.StoredQueryDescriptionType;
+import net.opengis.wfs20.StoredQueryType;
+import net.opengis.wfs20.Wfs20Factory;
+
+import org.geotools.filter.v2_0.FES;
+import org.geotools.wfs.v2_0.WFS;
+import org.junit.Test;
+import org.opengis.filter.Id;
+import org.opengis.filter.PropertyIsEqualTo;
+import org.opengis.filter.expression.Literal;
+
+public class StoredQueryCompileTest {
+
+    static final String SF = "http://cite.opengeospatial.org/gmlsf";
+
+    StoredQuery storedQuery(String query) {
+        Wfs20Factory factory = Wfs20Factory.eINSTANCE;
+        StoredQueryDescriptionType desc = factory.createStoredQueryDescriptionType();
+        desc.setId("test");
+        QueryExpressionTextType text = factory.createQueryExpressionTextType();
+        text.setReturnFeatureTypes(new ArrayList());
+        text.setLanguage(StoredQueryProvider.LANGUAGE);
+        text.setValue("<wfs:Query xmlns:wfs='" + WFS.NAMESPACE + "' xmlns:fes='" + FES.NAMESPACE
+                + "' xmlns:sf='" + SF + "' " + query + "</wfs:Query>");
+        desc.getQueryExpressionText().add(text);
+        return new StoredQuery(desc, null);
+    }
+
+    StoredQueryType call(String... nameValues) {
+        Wfs20Factory factory = Wfs20Factory.eINSTANCE;
+        StoredQueryType sq = factory.createStoredQueryType();
+        sq.setId("test");
+        for (int i = 0; i < nameValues.length; i += 2) {
+            ParameterType p = factory.createParameterType();
+            p.setName(nameValues[i]);
+            p.setValue(nameValues[i + 1]);
+            sq.getParameter().add(p);
+        }
+        return sq;
+    }
+
+    @Test
+    public void testBindResourceId() throws Exception {
+        StoredQuery sq = StoredQuery.DEFAULT;
+        assertNotNull(sq.getTemplates());
+        assertSame(sq.getTemplates(), sq.getTemplates());
+
+        List<QueryType> compiled = sq.compile(call("ID", "PrimitiveGeoFeature.f001"));
+        assertEquals(1, compiled.size());
+        Id filter = (Id) compiled.get(0).getAbstractSelectionClause();
+        assertEquals(1, filter.getIdentifiers().size());
+        assertEquals("PrimitiveGeoFeature.f001",
+                filter.getIdentifiers().iterator().next().getID());
+
+        // the template is not modified by the binding
+        compiled = sq.compile(call("ID", "PrimitiveGeoFeature.f002"));
+        filter = (Id) compiled.get(0).getAbstractSelectionClause();
+        assertEquals("PrimitiveGeoFeature.f002",
+                filter.getIdentifiers().iterator().next().getID());
+    }
+
+    @Test
+    public void testBindLiteral() throws Exception {
+        StoredQuery sq = storedQuery("typeNames='sf:PrimitiveGeoFeature'>"
+                + "<fes:Filter><fes:PropertyIsEqualTo>"
+                + "<fes:ValueReference>name</fes:ValueReference>"
+                + "<fes:Literal>${NAME}</fes:Literal>"
+                + "</fes:PropertyIsEqualTo></fes:Filter>");
+        assertNotNull(sq.getTemplates());
+
+        // values are bound as they are, no XML escaping needed
+        List<QueryType> compiled = sq.compile(call("NAME", "a <b> & c"));
+        QueryType query = compiled.get(0);
+        assertEquals(new QName(SF, "PrimitiveGeoFeature"), query.getTypeNames().get(0));
+        PropertyIsEqualTo filter = (PropertyIsEqualTo) query.getAbstractSelectionClause();
+        assertEquals("a <b> & c", ((Literal) filter.getExpression2()).getValue());
+    }
+
+    @Test
+    public void testTextFallback() throws Exception {
+        // parameters outside of the filter can only be substituted in the text
+        StoredQuery sq = storedQuery("typeNames='${TYPE}'>"
+                + "<fes:Filter><fes:PropertyIsEqualTo>"
+                + "<fes:ValueReference>name</fes:ValueReference>"
+                + "<fes:Literal>${NAME}</fes:Literal>"
+                + "</fes:PropertyIsEqualTo></fes:Filter>");
+        assertNull(sq.getTemplates());
+
+        List<QueryType> compiled = sq.compile(call("TYPE", "sf:PrimitiveGeoFeature", "NAME",
+                "name-f001"));
+        QueryType query = compiled.get(0);
+        assertEquals(new QName(SF, "PrimitiveGeoFeature"), query.getTypeNames().get(0));
+        PropertyIsEqualTo filter = (PropertyIsEqualTo) query.getAbstractSelectionClause();
+        assertEquals("name-f001", ((Literal) filter.getExpression2()).getValue());
+    }
+
+    @Test
+    public void testBind() throws Exception {
+        // parameters without a value are left in place
+        assertEquals("a-1-b-${Y}",
+                StoredQuery.bind("a-${X}-b-${Y}", Collections.singletonMap("X", "1")));
+        assertEquals("$1\\", StoredQuery.bind("${X}", Collections.singletonMap("X", "$1\\")));
+        assertEquals(2, StoredQuery.countParameters("${A}${B} ${C"));
+    }
+}
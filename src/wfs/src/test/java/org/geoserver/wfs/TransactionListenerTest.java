@@ -18,6 +18,7 @@ import org.geoserver.data.test.CiteTestData;
 import org.junit.Before;
 import org.junit.Test;
 import org.opengis.feature.Feature;
+import org.opengis.geometry.BoundingBox;
 import org.w3c.dom.Document;
 
 /**
@@ -66,6 +67,7 @@ public class TransactionListenerTest extends WFSTestSupport {
         assertEquals(1, listener.features.size());
         Feature deleted = (Feature) listener.features.get(0);
         assertEquals("t0000", deleted.getProperty("id").getValue());
+        assertBounds(deleted, listener.bounds.get(0));
     }
 
     @Test
@@ -154,5 +156,17 @@ public class TransactionListenerTest extends WFSTestSupport {
         assertEquals("t0003", updatedAfter.getProperty("id").getValue());
         
         assertEquals(2, listener.features.size());
+
+        // the bounds are computed while gathering the updated feature ids
+        assertBounds(updatedBefore, listener.bounds.get(0));
+        assertBounds(updatedAfter, listener.bounds.get(1));
+    }
+
+    void assertBounds(Feature expected, Object actual) {
+        BoundingBox bounds = (BoundingBox) actual;
+        assertEquals(expected.getBounds().getMinX(), bounds.getMinX(), 0d);
+        assertEquals(expected.getBounds().getMinY(), bounds.getMinY(), 0d);
+        assertEquals(expected.getBounds().getMaxX(), bounds.getMaxX(), 0d);
+        assertEquals(expected.getBounds().getMaxY(), bounds.getMaxY(), 0d);
     }
 }
@@ -13,15 +13,18 @@ import org.geotools.data.DataUtilities;
 public class TransactionListenerTester implements TransactionListener {
     List events = new ArrayList();
     List features = new ArrayList();
+    List bounds = new ArrayList();
     
     public void clear() {
         events.clear();
         features.clear();
+        bounds.clear();
     }
 
     public void dataStoreChange(TransactionEvent event) throws WFSException {
         events.add(event);
         features.addAll(DataUtilities.list(event.getAffectedFeatures()));
+        bounds.add(event.getAffectedBounds());
     }
     
     
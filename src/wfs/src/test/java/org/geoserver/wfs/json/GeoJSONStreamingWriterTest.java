@@ -0,0 +1,152 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Random;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class GeoJSONStreamingWriterTest {
+
+    String format(double value, int decimals) {
+        char[] buffer = new char[32];
+        int start = GeoJSONStreamingWriter.formatNumber(value, decimals, buffer);
+        return start < 0 ? null : new String(buffer, start, buffer.length - start);
+    }
+
+    @Test
+    public void testFormatNumber() {
+        assertEquals("0", format(0, 4));
+        assertEquals("1", format(1, 4));
+        assertEquals("0.5", format(0.5, 4));
+        assertEquals("-12.25", format(-12.25, 4));
+        assertEquals("0.001", format(0.001, 4));
+        assertEquals("9999999.5", format(9999999.5, 1));
+        // not exactly represented with the given decimals
+        assertNull(format(0.12345, 4));
+        // scientific notation and special values are left to json-lib
+        assertNull(format(0.0001, 4));
+        assertNull(format(1e7, 4));
+        assertNull(format(-0d, 4));
+        assertNull(format(Double.NaN, 4));
+        assertNull(format(Double.POSITIVE_INFINITY, 4));
+        assertNull(format(1, 9));
+    }
+
+    @Test
+    public void testFormatNumberMatchesJsonLib() {
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            int decimals = random.nextInt(GeoJSONStreamingWriter.MAX_DECIMALS + 1);
+            double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(10) - 2);
+            double rounded = RoundingUtil.round(value, decimals);
+            String formatted = format(rounded, decimals);
+            if (formatted != null) {
+                assertEquals(JSONUtils.numberToString(rounded), formatted);
+            }
+        }
+    }
+
+    String writeFeature(SimpleFeatureType type, Object[] values, String idOption,
+            boolean featureBounding) throws Exception {
+        StringWriter sw = new StringWriter();
+        GeoJSONStreamingWriter writer = new GeoJSONStreamingWriter(sw, 4, idOption,
+                featureBounding);
+        writer.write(SimpleFeatureBuilder.build(type, values, "t.1"));
+        return sw.toString();
+    }
+
+    @Test
+    public void testGeometriesMatchBuilder() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("t", "geom:Geometry");
+        String[] wkts = { "POINT(1 2)", "POINT(1.123456 -2.5 3)", "LINESTRING(0 0, 1.5 1, 2 3)",
+                "POLYGON((0 0, 10 0, 10 10, 0 0), (1 1, 2 1, 2 2, 1 1))",
+                "MULTIPOINT(0 0, 1 1)", "MULTILINESTRING((0 0, 1 1), (2 2, 3 3))",
+                "MULTIPOLYGON(((0 0, 1 0, 1 1, 0 0)), ((5 5, 6 5, 6 6, 5 5)))",
+                "GEOMETRYCOLLECTION(POINT(1 1), LINESTRING(0 0, 12345678.12345 1))" };
+        for (String wkt : wkts) {
+            Geometry geometry = new WKTReader().read(wkt);
+            StringWriter expected = new StringWriter();
+            GeoJSONBuilder builder = new GeoJSONBuilder(expected);
+            builder.setNumberOfDecimals(4);
+            builder.writeGeom(geometry);
+
+            assertEquals(wkt,
+                    "{\"type\":\"Feature\",\"geometry\":" + expected
+                            + ",\"geometry_name\":\"geom\",\"properties\":{}}",
+                    writeFeature(type, new Object[] { geometry }, "", false));
+        }
+    }
+
+    @Test
+    public void testProperties() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("t",
+                "name:String,geom:Point,count:Integer,value:Double,other:LineString");
+        Object[] values = new Object[] { "a \"name\"", new WKTReader().read("POINT(1 2)"), 10,
+                1.5, new WKTReader().read("LINESTRING(-1 -1, 5 5)") };
+        JSONObject feature = JSONObject.fromObject(writeFeature(type, values, null, true));
+
+        assertEquals("t.1", feature.getString("id"));
+        assertEquals("geom", feature.getString("geometry_name"));
+        JSONObject properties = feature.getJSONObject("properties");
+        assertEquals("a \"name\"", properties.getString("name"));
+        assertFalse(properties.has("geom"));
+        assertEquals(10, properties.getInt("count"));
+        assertEquals(1.5, properties.getDouble("value"), 0d);
+        assertEquals("LineString", properties.getJSONObject("other").getString("type"));
+        // bounds of all geometries
+        JSONArray bbox = properties.getJSONArray("bbox");
+        assertEquals(-1, bbox.getInt(0));
+        assertEquals(-1, bbox.getInt(1));
+        assertEquals(5, bbox.getInt(2));
+        assertEquals(5, bbox.getInt(3));
+
+        // attribute used as the id
+        feature = JSONObject.fromObject(writeFeature(type, values, "name", false));
+        assertEquals("a \"name\"", feature.getString("id"));
+        properties = feature.getJSONObject("properties");
+        assertFalse(properties.has("name"));
+        assertFalse(properties.has("bbox"));
+    }
+
+    @Test
+    public void testCollectionBounds() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("t", "geom:Point,name:String");
+        StringWriter sw = new StringWriter();
+        GeoJSONStreamingWriter writer = new GeoJSONStreamingWriter(sw, 4, null, true);
+        writer.write(SimpleFeatureBuilder.build(type,
+                new Object[] { new WKTReader().read("POINT(1 2)"), "a" }, "t.1"));
+        writer.write(SimpleFeatureBuilder.build(type, new Object[] { null, "b" }, "t.2"));
+        writer.write(SimpleFeatureBuilder.build(type,
+                new Object[] { new WKTReader().read("POINT(-3 4)"), "c" }, "t.3"));
+
+        JSONArray features = JSONArray.fromObject("[" + sw + "]");
+        assertEquals(3, features.size());
+        assertTrue(features.getJSONObject(1).getJSONObject("geometry").isNullObject());
+        assertTrue(writer.hasGeometry());
+        ReferencedEnvelope bounds = writer.getBounds();
+        assertEquals(-3, bounds.getMinX(), 0d);
+        assertEquals(2, bounds.getMinY(), 0d);
+        assertEquals(1, bounds.getMaxX(), 0d);
+        assertEquals(4, bounds.getMaxY(), 0d);
+    }
+}
@@ -0,0 +1,227 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.geoserver.config.GeoServer;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKBReader;
+
+public class BinaryFeatureOutputFormatTest {
+
+    static final int FEATURES = 100;
+
+    BinaryFeatureOutputFormat format;
+
+    ListFeatureCollection features;
+
+    Date date = new Date(1000000);
+
+    @Before
+    public void setup() throws Exception {
+        GeoServer gs = createNiceMock(GeoServer.class);
+        replay(gs);
+        format = new BinaryFeatureOutputFormat(gs);
+
+        SimpleFeatureType type = DataUtilities.createType("t",
+                "geom:Point,name:String,count:Integer,value:Double,dtg:Date,flag:Boolean");
+        features = new ListFeatureCollection(type);
+        GeometryFactory gf = new GeometryFactory();
+        for (int i = 0; i < FEATURES; i++) {
+            // every tenth feature has no geometry and no name
+            boolean empty = i % 10 == 0;
+            features.add(SimpleFeatureBuilder.build(type,
+                    new Object[] { empty ? null : gf.createPoint(new Coordinate(i, -i)),
+                            empty ? null : "name " + i, i, i / 2d, date, i % 2 == 0 },
+                    "t." + i));
+        }
+    }
+
+    byte[] write(boolean spatialIndex) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        List<FeatureCollection> collections = new ArrayList<>();
+        collections.add(features);
+        format.write(collections, spatialIndex, bos);
+        return bos.toByteArray();
+    }
+
+    String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    DataInputStream readHeader(byte[] bytes, long expectedCount) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        assertArrayEquals(BinaryFeatureOutputFormat.MAGIC, magic);
+        assertEquals(BinaryFeatureOutputFormat.VERSION, in.readByte());
+        assertEquals(1, in.readByte());
+        assertEquals("t", readString(in));
+        assertEquals("", readString(in));
+        assertEquals("", readString(in));
+        assertEquals(7, in.readInt());
+        assertEquals(BinaryFeatureOutputFormat.FID, readString(in));
+        assertEquals(BinaryFeatureOutputFormat.STRING, in.readByte());
+        assertEquals(0, in.readByte());
+        byte[] expectedTypes = { BinaryFeatureOutputFormat.GEOMETRY,
+                BinaryFeatureOutputFormat.STRING, BinaryFeatureOutputFormat.INT,
+                BinaryFeatureOutputFormat.DOUBLE, BinaryFeatureOutputFormat.DATE,
+                BinaryFeatureOutputFormat.BOOLEAN };
+        for (int i = 0; i < expectedTypes.length; i++) {
+            assertEquals(features.getSchema().getDescriptor(i).getLocalName(), readString(in));
+            assertEquals(expectedTypes[i], in.readByte());
+            in.readByte();
+        }
+        assertEquals(expectedCount, in.readLong());
+        return in;
+    }
+
+    void readRecord(DataInputStream in, int i) throws Exception {
+        byte nulls = in.readByte();
+        boolean empty = i % 10 == 0;
+        // the fid is the first column, geometry and name the second and third
+        assertEquals(empty ? 6 : 0, nulls);
+        assertEquals("t." + i, readString(in));
+        if (!empty) {
+            byte[] wkb = new byte[in.readInt()];
+            in.readFully(wkb);
+            Geometry geometry = new WKBReader().read(wkb);
+            assertEquals(new Coordinate(i, -i), geometry.getCoordinate());
+            assertEquals("name " + i, readString(in));
+        }
+        assertEquals(i, in.readInt());
+        assertEquals(i / 2d, in.readDouble(), 0d);
+        assertEquals(date.getTime(), in.readLong());
+        assertEquals(i % 2 == 0, in.readBoolean());
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        DataInputStream in = readHeader(write(false), -1);
+        assertEquals(0, in.readByte());
+        for (int i = 0; i < FEATURES; i++) {
+            assertTrue(in.readInt() > 0);
+            readRecord(in, i);
+        }
+        assertEquals(-1, in.readInt());
+        assertEquals(0, in.readByte());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testSpatialIndex() throws Exception {
+        byte[] bytes = write(true);
+        DataInputStream in = readHeader(bytes, FEATURES);
+        assertEquals(1, in.readByte());
+        int nodeSize = in.readInt();
+        int items = in.readInt();
+        int nodeCount = in.readInt();
+        assertEquals(PackedRTree.DEFAULT_NODE_SIZE, nodeSize);
+        assertEquals(90, items);
+        assertEquals(PackedRTree.getNodeCount(items, nodeSize), nodeCount);
+        // 90 leaves, 6 nodes, one root
+        assertEquals(97, nodeCount);
+        double[] bounds = new double[nodeCount * 4];
+        long[] values = new long[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            for (int j = 0; j < 4; j++) {
+                bounds[i * 4 + j] = in.readDouble();
+            }
+            values[i] = in.readLong();
+        }
+        // the root covers all points, and points to the first node of the next level
+        assertArrayEquals(new double[] { 1, -99, 99, -1 }, Arrays.copyOf(bounds, 4), 0d);
+        assertEquals(1, values[0]);
+
+        // read all the records, remembering their offsets
+        int headerLength = bytes.length - in.available();
+        List<Long> offsets = new ArrayList<>();
+        long offset = 0;
+        for (int i = 0; i < FEATURES; i++) {
+            offsets.add(offset);
+            int length = in.readInt();
+            readRecord(in, i);
+            offset += 4 + length;
+        }
+        assertEquals(-1, in.readInt());
+
+        // each leaf points to the record of the feature having its bounds
+        for (int i = nodeCount - items; i < nodeCount; i++) {
+            int feature = offsets.indexOf(values[i]);
+            assertFalse(feature % 10 == 0);
+            assertEquals(new Envelope(feature, feature, -feature, -feature),
+                    new Envelope(bounds[i * 4], bounds[i * 4 + 2], bounds[i * 4 + 1],
+                            bounds[i * 4 + 3]));
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes,
+                    (int) (headerLength + values[i]), bytes.length));
+            record.readInt();
+            readRecord(record, feature);
+        }
+    }
+
+    @Test
+    public void testConversions() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("t", "count:Integer,label:String");
+        BinaryFeatureOutputFormat.RecordEncoder encoder = new BinaryFeatureOutputFormat.RecordEncoder(
+                type);
+        // values not matching the attribute bindings get converted
+        encoder.encode(SimpleFeatureBuilder.build(type, new Object[] { 10L, 5 }, "t.1"));
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(encoder.buffer.toByteArray()));
+        assertEquals(0, in.readByte());
+        assertEquals("t.1", readString(in));
+        assertEquals(10, in.readInt());
+        assertEquals("5", readString(in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testSingleItemTree() throws Exception {
+        PackedRTree tree = new PackedRTree(PackedRTree.DEFAULT_NODE_SIZE);
+        tree.add(new Envelope(0, 1, 2, 3), 42);
+        assertEquals(2, PackedRTree.getNodeCount(1, tree.nodeSize));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        tree.write(new DataOutputStream(bos));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        for (int node = 0; node < 2; node++) {
+            assertEquals(0, in.readDouble(), 0d);
+            assertEquals(2, in.readDouble(), 0d);
+            assertEquals(1, in.readDouble(), 0d);
+            assertEquals(3, in.readDouble(), 0d);
+            assertEquals(node == 0 ? 1 : 42, in.readLong());
+        }
+        assertEquals(-1, in.read());
+    }
+}
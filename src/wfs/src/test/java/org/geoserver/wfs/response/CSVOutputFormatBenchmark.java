@@ -0,0 +1,88 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.response;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import java.util.Date;
+
+import net.opengis.wfs.WfsFactory;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.SettingsInfo;
+import org.geoserver.wfs.WFSInfo;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Measures the CSV encoding throughput on an in memory collection, run it with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=org.geoserver.wfs.response.CSVOutputFormatBenchmark -Dexec.args="1000000"
+ * </pre>
+ *
+ * Not a unit test, it is not run as part of the build.
+ */
+public class CSVOutputFormatBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        SimpleFeatureType type = DataUtilities.createType("bench",
+                "geom:Point:srid=4326,id:Integer,value:Double,label:String,dtg:Date");
+        ListFeatureCollection features = new ListFeatureCollection(type);
+        GeometryFactory gf = new GeometryFactory();
+        Date date = new Date();
+        for (int i = 0; i < count; i++) {
+            features.add(SimpleFeatureBuilder.build(type,
+                    new Object[] { gf.createPoint(new Coordinate(i % 360 - 180, i % 180 - 90)),
+                            i, i / 8d, "label " + i, date },
+                    "bench." + i));
+        }
+        FeatureCollectionResponse response = FeatureCollectionResponse
+                .adapt(WfsFactory.eINSTANCE.createFeatureCollectionType());
+        response.getFeature().add(features);
+
+        CSVOutputFormat format = new CSVOutputFormat(mockGeoServer());
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            format.write(response, new NullOutputStream(), null);
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            System.out.println("Iteration " + i + ": " + count + " features in " + elapsed
+                    + "ms, " + (count * 1000L / Math.max(elapsed, 1)) + " features/s");
+        }
+    }
+
+    static GeoServer mockGeoServer() {
+        SettingsInfo settings = createNiceMock(SettingsInfo.class);
+        expect(settings.getCharset()).andReturn("UTF-8").anyTimes();
+        expect(settings.getNumDecimals()).andReturn(8).anyTimes();
+        replay(settings);
+        GeoServerInfo global = createNiceMock(GeoServerInfo.class);
+        expect(global.getSettings()).andReturn(settings).anyTimes();
+        replay(global);
+        GeoServer gs = createNiceMock(GeoServer.class);
+        WFSInfo wfs = createNiceMock(WFSInfo.class);
+        expect(wfs.getGeoServer()).andReturn(gs).anyTimes();
+        replay(wfs);
+        expect(gs.getGlobal()).andReturn(global).anyTimes();
+        expect(gs.getSettings()).andReturn(settings).anyTimes();
+        expect(gs.getService(WFSInfo.class)).andReturn(wfs).anyTimes();
+        replay(gs);
+        return gs;
+    }
+}
@@ -30,12 +30,16 @@ import org.opengis.feature.simple.SimpleFeatureType;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 
 public class CSVOutputFormatTest extends WFSTestSupport {
@@ -156,4 +160,36 @@ public class CSVOutputFormatTest extends WFSTestSupport {
         }
         return result;
     }
+
+    @Test
+    public void testDoubleFastPath() throws Exception {
+        NumberFormat formatter = NumberFormat.getInstance(Locale.US);
+        formatter.setMaximumFractionDigits(4);
+        formatter.setGroupingUsed(false);
+        double[] values = { 0, -0d, 1, -1, 0.5, 0.1, 100.0, 1234567.0, 0.0001, 0.00012, 1.23456,
+                Math.PI, 1e7, 1e-5, 12345678.9, Float.valueOf(0.1f).doubleValue() };
+        for (double value : values) {
+            String fast = CSVOutputFormat.formatDouble(value, 4);
+            if (fast != null) {
+                assertEquals(formatter.format(value), fast);
+            }
+        }
+        assertEquals("100", CSVOutputFormat.formatDouble(100d, 4));
+        assertEquals("0.5", CSVOutputFormat.formatDouble(0.5, 4));
+        // rounding and scientific notation are left to NumberFormat
+        assertNull(CSVOutputFormat.formatDouble(Math.PI, 4));
+        assertNull(CSVOutputFormat.formatDouble(1e7, 4));
+        assertNull(CSVOutputFormat.formatDouble(Double.NaN, 4));
+    }
+
+    @Test
+    public void testWriteField() throws Exception {
+        StringWriter sw = new StringWriter();
+        CSVOutputFormat.writeCSVField("plain", sw);
+        sw.write(',');
+        CSVOutputFormat.writeCSVField("with, comma", sw);
+        sw.write(',');
+        CSVOutputFormat.writeCSVField(new StringBuilder("a \"quote\""), sw);
+        assertEquals("plain,\"with, comma\",\"a \"\"quote\"\"\"", sw.toString());
+    }
 }
@@ -57,6 +57,7 @@ import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.FeatureType;
 import org.opengis.filter.Filter;
+import org.opengis.filter.sort.SortBy;
 
 import org.springframework.mock.web.MockHttpServletResponse;
 import com.vividsolutions.jts.geom.Geometry;
@@ -228,6 +229,97 @@ public class ShapeZipTest extends WFSTestSupport {
         checkShapefileIntegrity(expectedTypes, new ByteArrayInputStream(zip));
     }
 
+    @Test
+    public void testStreaming() throws Exception {
+        SimpleFeatureCollection source = getFeatureSource(SystemTestData.BASIC_POLYGONS)
+                .getFeatures();
+        byte[] zip = writeOutStreaming(source);
+        checkShapefileIntegrity(new String[] { "BasicPolygons" }, new ByteArrayInputStream(zip));
+
+        // read back the shapefile and compare with the original
+        File tempFolder = createTempFolder("shp_");
+        ShapefileDataStore ds = null;
+        try {
+            ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+            ZipEntry entry = null;
+            while ((entry = zis.getNextEntry()) != null) {
+                try (FileOutputStream fos = new FileOutputStream(
+                        new File(tempFolder, entry.getName()))) {
+                    copyStream(zis, fos);
+                }
+            }
+            zis.close();
+            ds = new ShapefileDataStore(
+                    new File(tempFolder, "BasicPolygons.shp").toURI().toURL());
+            SimpleFeatureCollection fc = ds.getFeatureSource().getFeatures();
+            assertEquals(source.size(), fc.size());
+            assertTrue(source.getBounds().contains(fc.getBounds()));
+            assertTrue(fc.getBounds().contains(source.getBounds()));
+            // the streaming writer reads the features in natural order
+            try (SimpleFeatureIterator expected = source.sort(SortBy.NATURAL_ORDER).features();
+                    SimpleFeatureIterator actual = fc.features()) {
+                while (expected.hasNext()) {
+                    SimpleFeature e = expected.next();
+                    SimpleFeature a = actual.next();
+                    // ring orientation might change, compare topologically
+                    assertTrue(((Geometry) e.getDefaultGeometry())
+                            .equals((Geometry) a.getDefaultGeometry()));
+                }
+            }
+        } finally {
+            if (ds != null) {
+                ds.dispose();
+            }
+            FileUtils.deleteQuietly(tempFolder);
+        }
+    }
+
+    @Test
+    public void testStreamingGeometryInTheMiddle() throws Exception {
+        byte[] zip = writeOutStreaming(getFeatureSource(GEOMMID).getFeatures());
+
+        checkShapefileIntegrity(new String[] { "geommid" }, new ByteArrayInputStream(zip));
+        checkFieldsAreNotEmpty(new ByteArrayInputStream(zip));
+    }
+
+    @Test
+    public void testStreamingNullGeometries() throws Exception {
+        byte[] zip = writeOutStreaming(getFeatureSource(NULLGEOM).getFeatures());
+
+        checkShapefileIntegrity(new String[] { "nullgeom" }, new ByteArrayInputStream(zip));
+    }
+
+    @Test
+    public void testStreamingEmptyResult() throws Exception {
+        SimpleFeatureCollection empty = getFeatureSource(SystemTestData.BASIC_POLYGONS)
+                .getFeatures(Filter.EXCLUDE);
+        byte[] zip = writeOutStreaming(empty);
+
+        checkShapefileIntegrity(new String[] { "BasicPolygons" }, new ByteArrayInputStream(zip));
+        // same contents as the output written through a temporary directory
+        assertEquals(getEntryNames(writeOut(empty)), getEntryNames(zip));
+    }
+
+    @Test
+    public void testStreamingLongNames() throws Exception {
+        byte[] zip = writeOutStreaming(getFeatureSource(LONGNAMES).getFeatures());
+
+        // the dbf columns are named as in the output written through a temporary directory
+        SimpleFeatureType schema = checkFieldsAreNotEmpty(new ByteArrayInputStream(zip));
+        checkLongNamesSchema(schema);
+    }
+
+    Set<String> getEntryNames(byte[] zip) throws IOException {
+        Set<String> names = new HashSet<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+
     @Test
     public void testLongNames() throws Exception {
         byte[] zip = writeOut(getFeatureSource(LONGNAMES).getFeatures());
@@ -517,6 +609,20 @@ public class ShapeZipTest extends WFSTestSupport {
         return bos.toByteArray();
     }
 
+    /**
+     * Saves the feature source contents into a zipped shapefile without using a temp directory
+     */
+    byte[] writeOutStreaming(FeatureCollection fc) throws IOException {
+        ShapeZipOutputFormat zip = new ShapeZipOutputFormat();
+        zip.setStreaming(true);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        FeatureCollectionResponse fct = 
+            FeatureCollectionResponse.adapt(WfsFactory.eINSTANCE.createFeatureCollectionType());
+        fct.getFeature().add(fc);
+        zip.write(fct, bos, op);
+        return bos.toByteArray();
+    }
+
     private File createTempFolder(String prefix) throws IOException {
         File temp = File.createTempFile(prefix, null);
 
@@ -0,0 +1,234 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.v2_0;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.custommonkey.xmlunit.XMLAssert;
+import org.geoserver.catalog.AttributeTypeInfo;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogBuilder;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.data.test.SystemTestData;
+import org.geoserver.wfs.PagingCursor;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureStore;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.jdbc.JDBCDataStoreFactory;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Tests key-set cursor paging against a JDBC store exposing the primary key columns
+ */
+public class GetFeatureCursorTest extends WFS20TestSupport {
+
+    static final String CURSORS = "gs:Cursors";
+
+    static final String CURSORS_TOO = "gs:CursorsToo";
+
+    @Override
+    protected void setUpInternal(SystemTestData data) throws Exception {
+        Map<String, Serializable> params = new HashMap<>();
+        params.put("dbtype", "h2");
+        params.put("database", new File(getTestData().getDataDirectoryRoot(), "cursors")
+                .getAbsolutePath());
+
+        // the data is written with the primary key generated by the store, as usual
+        DataStore store = DataStoreFinder.getDataStore(params);
+        try {
+            // many features share the same value, the primary key is needed to page them
+            createTable(store, "Cursors", 12);
+            createTable(store, "CursorsToo", 4);
+        } finally {
+            store.dispose();
+        }
+
+        Catalog cat = getCatalog();
+        DataStoreInfo ds = cat.getFactory().createDataStore();
+        ds.setName("cursors");
+        ds.setWorkspace(cat.getDefaultWorkspace());
+        ds.setEnabled(true);
+        ds.getConnectionParameters().putAll(params);
+        ds.getConnectionParameters().put(JDBCDataStoreFactory.EXPOSE_PK.key, "true");
+        cat.add(ds);
+
+        CatalogBuilder cb = new CatalogBuilder(cat);
+        cb.setStore(ds);
+        DataStore published = (DataStore) ds.getDataStore(null);
+        for (String name : new String[] { "Cursors", "CursorsToo" }) {
+            FeatureSource fs = published.getFeatureSource(name);
+            FeatureTypeInfo ft = cb.buildFeatureType(fs);
+            // the key column is not null, publish it as optional so that it is returned only
+            // when requested, like the other attributes
+            List<AttributeTypeInfo> attributes = cb.getAttributes(fs.getSchema(), ft);
+            for (AttributeTypeInfo attribute : attributes) {
+                attribute.setMinOccurs(0);
+            }
+            ft.getAttributes().addAll(attributes);
+            cat.add(ft);
+        }
+    }
+
+    void createTable(DataStore store, String name, int count) throws Exception {
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName(name);
+        tb.setCRS(DefaultGeographicCRS.WGS84);
+        tb.add("geom", Point.class);
+        tb.add("name", String.class);
+        tb.add("value", Integer.class);
+        store.createSchema(tb.buildFeatureType());
+
+        SimpleFeatureStore fs = (SimpleFeatureStore) store.getFeatureSource(name);
+        SimpleFeatureType schema = fs.getSchema();
+        ListFeatureCollection features = new ListFeatureCollection(schema);
+        GeometryFactory gf = new GeometryFactory();
+        for (int i = 0; i < count; i++) {
+            features.add(SimpleFeatureBuilder.build(schema,
+                    new Object[] { gf.createPoint(new Coordinate(i, i)), name + "." + i, i % 3 },
+                    null));
+        }
+        fs.addFeatures(features);
+    }
+
+    @Test
+    public void testStart() throws Exception {
+        Document doc = getAsDOM("wfs?service=WFS&version=2.0.0&request=GetFeature&typeNames="
+                + CURSORS + "&sortBy=value&count=5&cursor=*");
+        XMLAssert.assertXpathEvaluatesTo("5", "count(//" + CURSORS + ")", doc);
+        // the lowest values come first
+        XMLAssert.assertXpathEvaluatesTo("0", "//wfs:member[1]/" + CURSORS + "/gs:value", doc);
+        XMLAssert.assertXpathEvaluatesTo("1", "//wfs:member[5]/" + CURSORS + "/gs:value", doc);
+
+        String next = doc.getDocumentElement().getAttribute("next");
+        assertTrue(next, next.contains(PagingCursor.CURSOR + "="));
+        assertFalse(next, next.toLowerCase().contains("startindex"));
+        assertFalse(next, next.contains(PagingCursor.CURSOR + "=*"));
+    }
+
+    @Test
+    public void testFollowNext() throws Exception {
+        List<Element> features = readAll("wfs?service=WFS&version=2.0.0&request=GetFeature"
+                + "&typeNames=" + CURSORS + "&sortBy=value&count=5&cursor=*", CURSORS);
+
+        // every feature returned exactly once, in value and then primary key order
+        assertEquals(12, features.size());
+        assertEquals(12, getIds(features).size());
+        int previousValue = -1;
+        int previousKey = -1;
+        for (Element feature : features) {
+            int value = Integer.parseInt(getValue(feature, "gs:value"));
+            int key = Integer.parseInt(getValue(feature, "gs:fid"));
+            assertTrue(value > previousValue || value == previousValue && key > previousKey);
+            previousValue = value;
+            previousKey = key;
+        }
+    }
+
+    @Test
+    public void testPrimaryKeyNotInOutput() throws Exception {
+        // paging needs the sort and primary key values, they are not returned if not requested
+        List<Element> features = readAll("wfs?service=WFS&version=2.0.0&request=GetFeature"
+                + "&typeNames=" + CURSORS + "&sortBy=value&count=5&cursor=*&propertyName=name",
+                CURSORS);
+        assertEquals(12, features.size());
+        assertEquals(12, getIds(features).size());
+        for (Element feature : features) {
+            assertEquals(1, feature.getElementsByTagName("gs:name").getLength());
+            assertEquals(0, feature.getElementsByTagName("gs:fid").getLength());
+            assertEquals(0, feature.getElementsByTagName("gs:value").getLength());
+        }
+    }
+
+    @Test
+    public void testAcrossQueries() throws Exception {
+        String request = "wfs?service=WFS&version=2.0.0&request=GetFeature&typeNames=" + CURSORS
+                + "," + CURSORS_TOO + "&sortBy=value&count=5&cursor=*";
+
+        // the third page holds the last two features of the first query and the first three of
+        // the second one
+        Document doc = getAsDOM(request);
+        doc = getAsDOM(getNextPath(doc));
+        doc = getAsDOM(getNextPath(doc));
+        XMLAssert.assertXpathEvaluatesTo("2", "count(//" + CURSORS + ")", doc);
+        XMLAssert.assertXpathEvaluatesTo("3", "count(//" + CURSORS_TOO + ")", doc);
+
+        // the last page resumes within the second query
+        doc = getAsDOM(getNextPath(doc));
+        XMLAssert.assertXpathEvaluatesTo("0", "count(//" + CURSORS + ")", doc);
+        XMLAssert.assertXpathEvaluatesTo("1", "count(//" + CURSORS_TOO + ")", doc);
+        assertFalse(doc.getDocumentElement().hasAttribute("next"));
+
+        List<Element> first = readAll(request, CURSORS);
+        List<Element> second = readAll(request, CURSORS_TOO);
+        assertEquals(12, getIds(first).size());
+        assertEquals(4, getIds(second).size());
+    }
+
+    /**
+     * Follows the next links from the given request, until the last page, and returns the
+     * features of the given type found along the way
+     */
+    List<Element> readAll(String path, String typeName) throws Exception {
+        List<Element> result = new ArrayList<>();
+        while (path != null) {
+            Document doc = getAsDOM(path);
+            assertEquals("wfs:FeatureCollection", doc.getDocumentElement().getNodeName());
+            NodeList features = doc.getElementsByTagName(typeName);
+            for (int i = 0; i < features.getLength(); i++) {
+                result.add((Element) features.item(i));
+            }
+            path = getNextPath(doc);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the next link, relative to the GeoServer root, or null if there is no next page
+     */
+    String getNextPath(Document doc) {
+        if (!doc.getDocumentElement().hasAttribute("next")) {
+            return null;
+        }
+        String next = doc.getDocumentElement().getAttribute("next");
+        return next.substring(next.indexOf("/geoserver/") + "/geoserver/".length());
+    }
+
+    Set<String> getIds(List<Element> features) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (Element feature : features) {
+            ids.add(feature.getAttribute("gml:id"));
+        }
+        return ids;
+    }
+
+    String getValue(Element feature, String name) {
+        return feature.getElementsByTagName(name).item(0).getTextContent();
+    }
+}
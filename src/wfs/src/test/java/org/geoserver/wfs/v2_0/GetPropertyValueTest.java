@@ -42,4 +42,34 @@ public class GetPropertyValueTest extends WFS20TestSupport {
         XMLAssert.assertXpathEvaluatesTo("3", "count(//wfs:member/sf:pointProperty/gml:Point)", dom);
     }
 
+    @Test
+    public void testDistinct() throws Exception {
+        String request = "wfs?service=WFS&version=2.0.0&request=GetPropertyValue"
+                + "&typeNames=cite:RoadSegments&valueReference=NAME";
+        Document dom = getAsDOM(request);
+        XMLAssert.assertXpathEvaluatesTo("5", "count(//wfs:member)", dom);
+
+        dom = getAsDOM(request + "&distinct=true");
+        assertEquals("wfs:ValueCollection", dom.getDocumentElement().getNodeName());
+        XMLAssert.assertXpathEvaluatesTo("3", "count(//wfs:member)", dom);
+        XMLAssert.assertXpathEvaluatesTo("3", "/wfs:ValueCollection/@numberReturned", dom);
+        XMLAssert.assertXpathEvaluatesTo("Dirt Road by Green Forest", "//wfs:member[1]/cite:NAME",
+                dom);
+        XMLAssert.assertXpathEvaluatesTo("Main Street", "//wfs:member[2]/cite:NAME", dom);
+        XMLAssert.assertXpathEvaluatesTo("Route 5", "//wfs:member[3]/cite:NAME", dom);
+
+        // count limits the sorted distinct values
+        dom = getAsDOM(request + "&distinct=true&count=2");
+        XMLAssert.assertXpathEvaluatesTo("2", "count(//wfs:member)", dom);
+        XMLAssert.assertXpathEvaluatesTo("Dirt Road by Green Forest", "//wfs:member[1]/cite:NAME",
+                dom);
+        XMLAssert.assertXpathEvaluatesTo("Main Street", "//wfs:member[2]/cite:NAME", dom);
+
+        // the request filter is applied before computing the values
+        dom = getAsDOM(request + "&distinct=true&cql_filter=FID%3C%3E'106'");
+        XMLAssert.assertXpathEvaluatesTo("2", "count(//wfs:member)", dom);
+        XMLAssert.assertXpathEvaluatesTo("Main Street", "//wfs:member[1]/cite:NAME", dom);
+        XMLAssert.assertXpathEvaluatesTo("Route 5", "//wfs:member[2]/cite:NAME", dom);
+    }
+
 }
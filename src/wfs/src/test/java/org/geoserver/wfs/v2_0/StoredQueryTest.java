@@ -6,6 +6,10 @@
 package org.geoserver.wfs.v2_0;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import java.io.ByteArrayInputStream;
 
@@ -188,6 +192,28 @@ public class StoredQueryTest extends WFS20TestSupport {
         assertEquals("ows:ExceptionReport", dom.getDocumentElement().getNodeName());   
     }
     
+    @Test
+    public void testStoredQueryCache() throws Exception {
+        testCreateStoredQuery();
+
+        // parsed once, even by different providers
+        StoredQuery query = new StoredQueryProvider(getCatalog()).getStoredQuery("myStoredQuery");
+        assertNotNull(query);
+        assertSame(query,
+                new StoredQueryProvider(getCatalog()).getStoredQuery("myStoredQuery"));
+
+        // dropping the query invalidates the cache
+        Document dom = getAsDOM("wfs?request=DropStoredQuery&id=myStoredQuery");
+        assertEquals("wfs:DropStoredQueryResponse", dom.getDocumentElement().getNodeName());
+        assertNull(new StoredQueryProvider(getCatalog()).getStoredQuery("myStoredQuery"));
+
+        // and so does creating it again
+        testCreateStoredQuery();
+        StoredQuery created = new StoredQueryProvider(getCatalog()).getStoredQuery("myStoredQuery");
+        assertNotNull(created);
+        assertNotSame(query, created);
+    }
+
     @Test
     public void testDropStoredQuery2() throws Exception {
         Document dom = getAsDOM("wfs?request=DropStoredQuery&storedQuery_id=myStoredQuery");
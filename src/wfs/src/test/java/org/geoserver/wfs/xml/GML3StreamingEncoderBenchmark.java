@@ -0,0 +1,108 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+
+import net.opengis.wfs.WfsFactory;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.config.GeoServer;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geotools.GML;
+import org.geotools.GML.Version;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.gml2.SrsSyntax;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Compares the GML 3.1 encoding throughput of the {@link GML3StreamingEncoder} with the generic
+ * GeoTools encoder on an in memory collection, run it with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=org.geoserver.wfs.xml.GML3StreamingEncoderBenchmark -Dexec.args="100000"
+ * </pre>
+ *
+ * Not a unit test, it is not run as part of the build.
+ */
+public class GML3StreamingEncoderBenchmark {
+
+    static final String NS = "http://www.test.org";
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        SimpleFeatureType type = DataUtilities.createType(NS, "bench",
+                "geom:LineString:srid=4326,id:Integer,value:Double,label:String,dtg:Date");
+        ListFeatureCollection features = new ListFeatureCollection(type);
+        GeometryFactory gf = new GeometryFactory();
+        Date date = new Date();
+        for (int i = 0; i < count; i++) {
+            double x = i % 360 - 180;
+            double y = i % 180 - 90;
+            features.add(SimpleFeatureBuilder.build(type,
+                    new Object[] {
+                            gf.createLineString(new Coordinate[] { new Coordinate(x, y),
+                                    new Coordinate(x + 0.123456, y + 0.654321),
+                                    new Coordinate(x + 0.5, y) }),
+                            i, i / 8d, "label " + i, date },
+                    "bench." + i));
+        }
+        FeatureCollectionResponse response = FeatureCollectionResponse
+                .adapt(WfsFactory.eINSTANCE.createFeatureCollectionType());
+        response.setNumberOfFeatures(BigInteger.valueOf(count));
+        response.getFeature().add(features);
+
+        GML3StreamingEncoder streaming = new GML3StreamingEncoder(false,
+                new FeatureTypeSchemaBuilder.GML3(mockGeoServer()),
+                Collections.singletonMap(NS, "test"), SrsSyntax.EPSG_CODE, 8, true, true, false);
+        if (!streaming.canEncode(response.getFeature())) {
+            throw new IllegalStateException("The streaming encoder cannot handle the collection");
+        }
+        GML generic = new GML(Version.WFS1_1);
+        generic.setNamespace("test", NS);
+
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            streaming.encode(response, Collections.singletonMap(NS, "http://localhost/dft"),
+                    new NullOutputStream(), StandardCharsets.UTF_8);
+            report("Streaming", i, count, start);
+
+            start = System.nanoTime();
+            generic.encode(new NullOutputStream(), features);
+            report("Generic  ", i, count, start);
+        }
+    }
+
+    static void report(String encoder, int iteration, int count, long start) {
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        System.out.println(encoder + " iteration " + iteration + ": " + count + " features in "
+                + elapsed + "ms, " + (count * 1000L / Math.max(elapsed, 1)) + " features/s");
+    }
+
+    static GeoServer mockGeoServer() {
+        Catalog catalog = createNiceMock(Catalog.class);
+        replay(catalog);
+        GeoServer gs = createNiceMock(GeoServer.class);
+        expect(gs.getCatalog()).andReturn(catalog).anyTimes();
+        replay(gs);
+        return gs;
+    }
+}
@@ -0,0 +1,142 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import net.opengis.wfs.WfsFactory;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.config.GeoServer;
+import org.geoserver.wfs.request.FeatureCollectionResponse;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.gml2.SrsSyntax;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class GML3StreamingEncoderTest {
+
+    static final String NS = "http://www.test.org";
+
+    static final String GML = org.geotools.gml3.GML.NAMESPACE;
+
+    FeatureTypeSchemaBuilder schemaBuilder;
+
+    Map<String, String> prefixes = Collections.singletonMap(NS, "test");
+
+    @Before
+    public void setup() {
+        Catalog catalog = createNiceMock(Catalog.class);
+        replay(catalog);
+        GeoServer gs = createNiceMock(GeoServer.class);
+        expect(gs.getCatalog()).andReturn(catalog).anyTimes();
+        replay(gs);
+        schemaBuilder = new FeatureTypeSchemaBuilder.GML3(gs);
+    }
+
+    GML3StreamingEncoder encoder(int numDecimals) {
+        return new GML3StreamingEncoder(false, schemaBuilder, prefixes, SrsSyntax.EPSG_CODE,
+                numDecimals, true, true, false);
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType(NS, "roads",
+                "geom:MultiLineString:srid=4326,label:String,lanes:Integer");
+        ListFeatureCollection features = new ListFeatureCollection(type);
+        Geometry geom = new WKTReader().read("MULTILINESTRING((0 0, 1.123456 1), (2 2, 3 3))");
+        features.add(SimpleFeatureBuilder.build(type, new Object[] { geom, "Main & 1st", 2 },
+                "roads.1"));
+
+        FeatureCollectionResponse response = FeatureCollectionResponse
+                .adapt(WfsFactory.eINSTANCE.createFeatureCollectionType());
+        response.setNumberOfFeatures(BigInteger.ONE);
+        response.getFeature().add(features);
+
+        GML3StreamingEncoder encoder = encoder(3);
+        assertTrue(encoder.canEncode(response.getFeature()));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        encoder.encode(response, Collections.singletonMap(NS, "http://localhost/dft"), bos,
+                StandardCharsets.UTF_8);
+
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        dbf.setNamespaceAware(true);
+        Document doc = dbf.newDocumentBuilder()
+                .parse(new ByteArrayInputStream(bos.toByteArray()));
+        Element root = doc.getDocumentElement();
+        assertEquals("FeatureCollection", root.getLocalName());
+        assertEquals("1", root.getAttribute("numberOfFeatures"));
+
+        NodeList roads = doc.getElementsByTagNameNS(NS, "roads");
+        assertEquals(1, roads.getLength());
+        Element road = (Element) roads.item(0);
+        assertEquals("roads.1", road.getAttributeNS(GML, "id"));
+        assertEquals("featureMembers", road.getParentNode().getLocalName());
+        assertEquals(1, road.getElementsByTagNameNS(GML, "boundedBy").getLength());
+        assertEquals("Main & 1st",
+                road.getElementsByTagNameNS(NS, "label").item(0).getTextContent());
+        assertEquals("2", road.getElementsByTagNameNS(NS, "lanes").item(0).getTextContent());
+
+        // the element depends on the type advertised in DescribeFeatureType
+        String multiElement = GML3StreamingEncoder.getMultiElements(
+                schemaBuilder.findTypeName(MultiLineString.class).getLocalPart())[0];
+        Element multi = (Element) road.getElementsByTagNameNS(GML, multiElement).item(0);
+        assertEquals("EPSG:4326", multi.getAttribute("srsName"));
+        assertEquals("2", multi.getAttribute("srsDimension"));
+        NodeList posLists = multi.getElementsByTagNameNS(GML, "posList");
+        assertEquals(2, posLists.getLength());
+        assertEquals("0 0 1.123 1", posLists.item(0).getTextContent());
+    }
+
+    @Test
+    public void testOrdinates() {
+        GML3StreamingEncoder encoder = encoder(4);
+        assertEquals("10", format(encoder, 10));
+        assertEquals("-0.5", format(encoder, -0.5));
+        assertEquals("0.0001", format(encoder, 0.00012));
+        assertEquals("0", format(encoder, -0.00001));
+        assertEquals("3.1416", format(encoder, Math.PI));
+        assertEquals("NaN", format(encoder, Double.NaN));
+    }
+
+    String format(GML3StreamingEncoder encoder, double value) {
+        encoder.sb.setLength(0);
+        encoder.appendOrdinate(value);
+        return encoder.sb.toString();
+    }
+
+    @Test
+    public void testGMLAttributesFallback() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType(NS, "poi",
+                "geom:Point:srid=4326,name:String");
+        GML3StreamingEncoder encoder = encoder(8);
+        assertFalse(encoder.canEncode(
+                Collections.singletonList(new ListFeatureCollection(type))));
+    }
+}
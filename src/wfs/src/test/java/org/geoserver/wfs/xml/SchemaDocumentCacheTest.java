@@ -0,0 +1,180 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wfs.xml;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.eclipse.xsd.XSDFactory;
+import org.eclipse.xsd.XSDSchema;
+import org.eclipse.xsd.util.XSDConstants;
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.DataStoreInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.config.GeoServer;
+import org.geoserver.security.GeoServerSecurityManager;
+import org.geoserver.wfs.GMLInfo;
+import org.geoserver.wfs.WFSInfo;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+public class SchemaDocumentCacheTest {
+
+    GeoServer gs;
+
+    FeatureTypeInfo ft1;
+
+    FeatureTypeInfo ft2;
+
+    CountingBuilder builder;
+
+    /**
+     * Counts the schemas built, without needing a full catalog to build them
+     */
+    static class CountingBuilder extends FeatureTypeSchemaBuilder {
+
+        int builds;
+
+        CountingBuilder(GeoServer gs) {
+            super(gs);
+        }
+
+        @Override
+        public XSDSchema build(FeatureTypeInfo[] featureTypeInfos, String baseUrl)
+                throws IOException {
+            builds++;
+            XSDSchema schema = XSDFactory.eINSTANCE.createXSDSchema();
+            schema.setSchemaForSchemaQNamePrefix("xsd");
+            schema.getQNamePrefixToNamespaceMap().put("xsd",
+                    XSDConstants.SCHEMA_FOR_SCHEMA_URI_2001);
+            schema.setTargetNamespace("http://www.test.org/" + featureTypeInfos.length);
+            return schema;
+        }
+
+        @Override
+        protected XSDSchema gmlSchema() {
+            return null;
+        }
+
+        @Override
+        protected GMLInfo getGMLConfig(WFSInfo wfs) {
+            return null;
+        }
+    }
+
+    @Before
+    public void setup() {
+        Catalog catalog = createNiceMock(Catalog.class);
+        replay(catalog);
+        gs = createNiceMock(GeoServer.class);
+        expect(gs.getCatalog()).andReturn(catalog).anyTimes();
+        replay(gs);
+        ft1 = featureType("ft1");
+        ft2 = featureType("ft2");
+        builder = new CountingBuilder(gs);
+    }
+
+    FeatureTypeInfo featureType(String id) {
+        FeatureTypeInfo ft = createNiceMock(FeatureTypeInfo.class);
+        expect(ft.getId()).andReturn(id).anyTimes();
+        replay(ft);
+        return ft;
+    }
+
+    byte[] write(SchemaDocumentCache cache, String baseUrl, FeatureTypeInfo... featureTypes)
+            throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        cache.write(builder, featureTypes, baseUrl, "UTF-8", bos);
+        return bos.toByteArray();
+    }
+
+    CatalogPostModifyEvent modifyEvent(CatalogInfo source) {
+        CatalogPostModifyEvent event = createNiceMock(CatalogPostModifyEvent.class);
+        expect(event.getSource()).andReturn(source).anyTimes();
+        replay(event);
+        return event;
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        SchemaDocumentCache cache = new SchemaDocumentCache(gs, 10);
+        byte[] document = write(cache, "http://localhost/geoserver", ft1);
+        assertTrue(new String(document, "UTF-8").contains("http://www.test.org/1"));
+        assertArrayEquals(document, write(cache, "http://localhost/geoserver", ft1));
+        assertEquals(1, builder.builds);
+        assertEquals(1, cache.size());
+
+        // different base URL or feature types, different document
+        write(cache, "http://otherhost/geoserver", ft1);
+        write(cache, "http://localhost/geoserver", ft1, ft2);
+        assertEquals(3, builder.builds);
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        SchemaDocumentCache cache = new SchemaDocumentCache(gs, 10);
+        write(cache, "http://localhost/geoserver", ft1);
+        write(cache, "http://localhost/geoserver", ft2);
+        write(cache, "http://localhost/geoserver", ft1, ft2);
+        assertEquals(3, cache.size());
+
+        // modifying a feature type drops the documents describing it
+        cache.handlePostModifyEvent(modifyEvent(ft2));
+        assertEquals(1, cache.size());
+        write(cache, "http://localhost/geoserver", ft1);
+        assertEquals(3, builder.builds);
+
+        // modifying a store drops everything
+        cache.handlePostModifyEvent(modifyEvent(createNiceMock(DataStoreInfo.class)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSecurity() throws Exception {
+        SchemaDocumentCache cache = new SchemaDocumentCache(gs, 10);
+        try {
+            SecurityContextHolder.getContext().setAuthentication(
+                    new UsernamePasswordAuthenticationToken("user", null,
+                            Arrays.asList(new SimpleGrantedAuthority("ROLE_A"))));
+            write(cache, "http://localhost/geoserver", ft1);
+            // same user with different roles, different document
+            SecurityContextHolder.getContext().setAuthentication(
+                    new UsernamePasswordAuthenticationToken("user", null,
+                            Arrays.asList(new SimpleGrantedAuthority("ROLE_B"))));
+            write(cache, "http://localhost/geoserver", ft1);
+            assertEquals(2, builder.builds);
+            assertEquals(2, cache.size());
+        } finally {
+            SecurityContextHolder.getContext().setAuthentication(null);
+        }
+
+        // security configuration changes drop everything
+        cache.handlePostChanged(createNiceMock(GeoServerSecurityManager.class));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        SchemaDocumentCache cache = new SchemaDocumentCache(gs, 0);
+        write(cache, "http://localhost/geoserver", ft1);
+        write(cache, "http://localhost/geoserver", ft1);
+        assertEquals(2, builder.builds);
+        assertEquals(0, cache.size());
+    }
+}
@@ -32,6 +32,7 @@ import org.geoserver.catalog.WMTSLayerInfo;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.map.MetatileMapOutputFormat;
+import org.geoserver.wms.map.PointAggregatingFeatureSource;
 import org.geoserver.wms.map.RenderedImageMap;
 import org.geoserver.wms.map.RenderedImageMapOutputFormat;
 import org.geotools.coverage.grid.io.GridCoverage2DReader;
@@ -58,6 +59,7 @@ import org.geotools.styling.FeatureTypeConstraint;
 import org.geotools.styling.FeatureTypeStyle;
 import org.geotools.styling.Rule;
 import org.geotools.styling.Style;
+import org.geotools.util.Converters;
 import org.geotools.util.DateRange;
 import org.geotools.util.NumberRange;
 import org.geotools.util.logging.Logging;
@@ -513,7 +515,20 @@ public class GetMap {
 
                     throw new ServiceException("Internal error", exp);
                 }
-                FeatureLayer featureLayer = new FeatureLayer(source, layerStyle);
+                // server side aggregation of dense point layers, if requested
+                PointAggregatingFeatureSource aggregatingSource = null;
+                int aggregationCellSize = getAggregationCellSize(request, mapLayerInfo);
+                if (aggregationCellSize > 0 && PointAggregatingFeatureSource.canAggregate(source)) {
+                    try {
+                        aggregatingSource = new PointAggregatingFeatureSource(source,
+                                mapContent.getRenderingArea(), mapContent.getMapWidth(),
+                                mapContent.getMapHeight(), aggregationCellSize);
+                    } catch (IOException e) {
+                        throw new ServiceException("Internal error", e);
+                    }
+                }
+                FeatureLayer featureLayer = new FeatureLayer(
+                        aggregatingSource != null ? aggregatingSource : source, layerStyle);
                 featureLayer.setTitle(mapLayerInfo.getFeature().prefixedName());
                 featureLayer.getUserData().put("abstract", mapLayerInfo.getDescription());
                 
@@ -549,7 +564,14 @@ public class GetMap {
                         : Integer.MAX_VALUE;
                 definitionQuery.setMaxFeatures(maxFeatures);
 
-                featureLayer.setQuery(definitionQuery);
+                if (aggregatingSource != null) {
+                    // the definition query refers to the original attributes, it has to be
+                    // applied before the aggregation
+                    aggregatingSource.setDefinitionQuery(definitionQuery);
+                    featureLayer.setQuery(new Query(definitionQuery.getTypeName()));
+                } else {
+                    featureLayer.setQuery(definitionQuery);
+                }
                 mapContent.addLayer(featureLayer);
                 
                 layer = featureLayer;
@@ -665,6 +687,27 @@ public class GetMap {
         return map;
     }
 
+    /**
+     * Returns the point aggregation cell size for the layer, looking first at the format options,
+     * and then at the layer configuration, or zero if aggregation is not requested
+     */
+    private int getAggregationCellSize(GetMapRequest request, MapLayerInfo mapLayerInfo) {
+        Object value = request.getFormatOptions().get(PointAggregatingFeatureSource.AGGREGATION_KEY);
+        if (value == null && mapLayerInfo.getLayerInfo() != null) {
+            value = mapLayerInfo.getLayerInfo().getMetadata()
+                    .get(PointAggregatingFeatureSource.AGGREGATION_KEY);
+        }
+        if (value == null) {
+            return 0;
+        }
+        Integer cellSize = Converters.convert(value, Integer.class);
+        if (cellSize == null || cellSize <= 0) {
+            throw new ServiceException("Invalid point aggregation cell size: " + value,
+                    ServiceException.INVALID_PARAMETER_VALUE, "format_options");
+        }
+        return cellSize;
+    }
+
     private void validateSort(FeatureSource<? extends FeatureType, ? extends Feature> source,
             SortBy[] sort, MapLayerInfo mapLayerInfo) {
         FeatureType ft = source.getSchema();
@@ -18,6 +18,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -50,6 +51,7 @@ import org.geoserver.wms.WMSInfo.WMSInterpolation;
 import org.geoserver.wms.WatermarkInfo.Position;
 import org.geoserver.wms.dimension.DimensionDefaultValueSelectionStrategy;
 import org.geoserver.wms.dimension.DimensionDefaultValueSelectionStrategyFactory;
+import org.geoserver.wms.dimension.DimensionDomainCache;
 import org.geoserver.wms.dimension.DimensionFilterBuilder;
 import org.geoserver.wms.featureinfo.GetFeatureInfoOutputFormat;
 import org.geoserver.wms.map.RenderedImageMapOutputFormat;
@@ -251,6 +253,8 @@ public class WMS implements ApplicationContextAware {
 
     private DimensionDefaultValueSelectionStrategyFactory defaultDimensionValueFactory;
 
+    private DimensionDomainCache dimensionDomainCache;
+
     public WMS(GeoServer geoserver) {
         this.geoserver = geoserver;
     }
@@ -829,6 +833,10 @@ public class WMS implements ApplicationContextAware {
         defaultDimensionValueFactory = GeoServerExtensions.extensions(
                 DimensionDefaultValueSelectionStrategyFactory.class).get(0);
 
+        // the dimension domain cache is optional, might not be there in tests
+        dimensionDomainCache = GeoServerExtensions.bean(DimensionDomainCache.class,
+                applicationContext);
+
         // enable/disable map wrapping
         if (ENABLE_MAP_WRAPPING == null) {
             String wrapping = GeoServerExtensions.getProperty("ENABLE_MAP_WRAPPING",
@@ -1239,6 +1247,13 @@ public class WMS implements ApplicationContextAware {
                     + " does not have time support enabled");
         }
 
+        TreeSet<Date> result = getCachedDomain(typeInfo, ResourceInfo.TIME, time,
+                () -> computeFeatureTypeTimes(typeInfo, time));
+        return result == null ? null : new TreeSet<>(result);
+    }
+
+    private TreeSet<Date> computeFeatureTypeTimes(FeatureTypeInfo typeInfo, DimensionInfo time)
+            throws IOException {
         FeatureCollection collection = getDimensionCollection(typeInfo, time);
 
         TreeSet<Date> result = new TreeSet<Date>();
@@ -1314,6 +1329,13 @@ public class WMS implements ApplicationContextAware {
                     + " does not have elevation support enabled");
         }
 
+        TreeSet<Double> result = getCachedDomain(typeInfo, ResourceInfo.ELEVATION, elevation,
+                () -> computeFeatureTypeElevations(typeInfo, elevation));
+        return result == null ? null : new TreeSet<>(result);
+    }
+
+    private TreeSet<Double> computeFeatureTypeElevations(FeatureTypeInfo typeInfo,
+            DimensionInfo elevation) throws IOException {
         FeatureCollection collection = getDimensionCollection(typeInfo, elevation);
 
         TreeSet<Double> result = new TreeSet<Double>();
@@ -1463,6 +1485,33 @@ public class WMS implements ApplicationContextAware {
          }
     }
 
+    /**
+     * Returns the domain of the given dimension, going through the {@link DimensionDomainCache} if
+     * available. The returned value is shared with the cache, callers should not modify it.
+     *
+     * @param resource The resource owning the dimension
+     * @param dimensionName The dimension name
+     * @param dimension The dimension configuration
+     * @param loader The domain loader, invoked if the domain is not cached
+     * @throws IOException
+     */
+    public <T> T getCachedDomain(ResourceInfo resource, String dimensionName,
+            DimensionInfo dimension, Callable<T> loader) throws IOException {
+        if (dimensionDomainCache == null) {
+            try {
+                return loader.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        // the domain representation depends on the dimension configuration too
+        String key = dimensionName + "/" + dimension.getAttribute() + "/"
+                + dimension.getPresentation() + "/" + dimension.getResolution();
+        return dimensionDomainCache.getDomain(resource, key, loader);
+    }
+
     /**
      * Returns the collection of all values of the dimension attribute, eventually sorted if the
      * native capabilities allow for it
@@ -696,6 +696,7 @@ public class Capabilities_1_3_0_Transformer extends TransformerBase {
                 handleRootBbox(layers, layerGroups);
             }finally{
                 layers.close();
+                layerGroups.close();
             }
 
             // handle AuthorityURL
@@ -707,19 +708,12 @@ public class Capabilities_1_3_0_Transformer extends TransformerBase {
             Set<LayerInfo> layersAlreadyProcessed = new HashSet<LayerInfo>();
             
             // encode layer groups
-            {
-                SortBy layerGroupOrder = asc("name");
-                layerGroups = catalog.list(LayerGroupInfo.class, lgFilter, null, null,
-                        layerGroupOrder);
-            }            
             try {
-                layersAlreadyProcessed = handleLayerGroups(layerGroups);
+                layersAlreadyProcessed = handleLayerGroups(catalog, lgFilter);
             } catch (Exception e) {
                 throw new RuntimeException("Can't obtain Envelope of Layer-Groups: "
                         + e.getMessage(), e);
-            } finally {
-                layerGroups.close();
-            }            
+            }
             
             // now encode each layer individually
             SortBy layerOrder = asc("name");
@@ -1127,64 +1121,58 @@ public class Capabilities_1_3_0_Transformer extends TransformerBase {
             }
         }
         
-        protected Set<LayerInfo> handleLayerGroups(Iterator<LayerGroupInfo> layerGroups) throws FactoryException,
-                TransformException, IOException {
+        protected Set<LayerInfo> handleLayerGroups(Catalog catalog, Filter lgFilter)
+                throws FactoryException, TransformException, IOException {
             Set<LayerInfo> layersAlreadyProcessed = new HashSet<LayerInfo>();
-            
-            if (layerGroups == null) {
-                return layersAlreadyProcessed;
-            }
-            
-            List<LayerGroupInfo> topLevelGroups = filterNestedGroups(layerGroups);
 
-            for (LayerGroupInfo group : topLevelGroups) {
-                try {
-                    mark();
-                    handleLayerGroup(group, layersAlreadyProcessed);
-                    commit();
-                } catch (Exception e) {
-                    // report what layer we failed on to help the admin locate and fix it
-                    if (skipping) {
-                        if(group != null) {
-                            LOGGER.log(Level.WARNING, "Skipping layer group " + group.getName() + " as its caps document element failed to generate", e);
-                        } else {
-                            LOGGER.log(Level.WARNING, "Skipping a null layer group during caps during caps document generation", e);
+            // first pass, collect the ids of the groups nested in other groups, so that the
+            // top level ones can be streamed without loading all the groups in memory
+            Set<String> nestedGroupIds = new HashSet<String>();
+            CloseableIterator<LayerGroupInfo> layerGroups = catalog.list(LayerGroupInfo.class,
+                    lgFilter);
+            try {
+                while (layerGroups.hasNext()) {
+                    for (PublishedInfo pi : layerGroups.next().getLayers()) {
+                        if (pi instanceof LayerGroupInfo) {
+                            nestedGroupIds.add(pi.getId());
                         }
-
-                        reset();
-                    } else { 
-                        throw new ServiceException(
-                            "Error occurred trying to write out metadata for layer group: " + 
-                            group.getName(), e);
                     }
                 }
+            } finally {
+                layerGroups.close();
             }
-            
-            return layersAlreadyProcessed;
-        }
-        
-        /**
-         * Returns a list of top level groups, that is, the ones that are not nested within
-         * other layer groups
-         * 
-         * @param allGroups
-         *
-         */
-        private List<LayerGroupInfo> filterNestedGroups(Iterator<LayerGroupInfo> iterator) {
-            List<LayerGroupInfo> allGroups = new ArrayList<LayerGroupInfo>();
-            while(iterator.hasNext()) {
-                allGroups.add(iterator.next());
-            }
-            LinkedHashSet<LayerGroupInfo> result = new LinkedHashSet<LayerGroupInfo>(allGroups);
-            for(LayerGroupInfo group : allGroups) {
-                for(PublishedInfo pi : group.getLayers()) {
-                    if(pi instanceof LayerGroupInfo) {
-                        result.remove(pi);
+
+            // second pass, encode the top level groups
+            SortBy layerGroupOrder = asc("name");
+            layerGroups = catalog.list(LayerGroupInfo.class, lgFilter, null, null,
+                    layerGroupOrder);
+            try {
+                while (layerGroups.hasNext()) {
+                    LayerGroupInfo group = layerGroups.next();
+                    if (nestedGroupIds.contains(group.getId())) {
+                        continue;
+                    }
+                    try {
+                        mark();
+                        handleLayerGroup(group, layersAlreadyProcessed);
+                        commit();
+                    } catch (Exception e) {
+                        // report what layer we failed on to help the admin locate and fix it
+                        if (skipping) {
+                            LOGGER.log(Level.WARNING, "Skipping layer group " + group.getName() + " as its caps document element failed to generate", e);
+                            reset();
+                        } else { 
+                            throw new ServiceException(
+                                "Error occurred trying to write out metadata for layer group: " + 
+                                group.getName(), e);
+                        }
                     }
                 }
+            } finally {
+                layerGroups.close();
             }
             
-            return new ArrayList<LayerGroupInfo>(result);
+            return layersAlreadyProcessed;
         }
         
 
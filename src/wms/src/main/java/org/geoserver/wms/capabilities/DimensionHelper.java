@@ -229,31 +229,47 @@ abstract class DimensionHelper {
 
         // timeDimension
         if (hasTime && dimensions.hasTime()) {
-            handleTimeDimensionRaster(cvInfo, timeInfo, dimensions);
+            handleTimeDimensionRaster(cvInfo, timeInfo);
         }
 
         // elevationDomain
         if (hasElevation && dimensions.hasElevation()) {
-            handleElevationDimensionRaster(cvInfo, elevInfo, dimensions);
+            handleElevationDimensionRaster(cvInfo, elevInfo);
         }
         
         // custom dimensions
         if (hasCustomDimensions) {
             for (String key : customDimensions.keySet()) {
                 DimensionInfo dimensionInfo = customDimensions.get(key);
-                handleCustomDimensionRaster(cvInfo, key, dimensionInfo, dimensions);
+                handleCustomDimensionRaster(cvInfo, key, dimensionInfo);
             }
         }
     }
 
-    private void handleElevationDimensionRaster(CoverageInfo cvInfo, DimensionInfo elevInfo, ReaderDimensionsAccessor dimensions) throws IOException {
-        TreeSet<Object> elevations = dimensions.getElevationDomain();
+    private void handleElevationDimensionRaster(CoverageInfo cvInfo, DimensionInfo elevInfo) throws IOException {
+        TreeSet<Object> elevations = wms.getCachedDomain(cvInfo, ResourceInfo.ELEVATION,
+                elevInfo, () -> getDimensionsAccessor(cvInfo).getElevationDomain());
         String elevationMetadata = getZDomainRepresentation(elevInfo, elevations);
         String defaultValue = getDefaultValueRepresentation(cvInfo, ResourceInfo.ELEVATION, "0");
         writeElevationDimension(elevations, elevationMetadata, 
                 elevInfo.getUnits(), elevInfo.getUnitSymbol(), defaultValue);
     }
 
+    /**
+     * Looks up the coverage reader again, the cached domains are refreshed in background and the
+     * reader used to describe the layer might have been disposed in the meantime
+     */
+    private static ReaderDimensionsAccessor getDimensionsAccessor(CoverageInfo cvInfo)
+            throws IOException {
+        GridCoverage2DReader reader = (GridCoverage2DReader) cvInfo.getGridCoverageReader(null,
+                null);
+        if (reader == null) {
+            throw new IOException("Unable to acquire a reader for coverage "
+                    + cvInfo.prefixedName());
+        }
+        return new ReaderDimensionsAccessor(reader);
+    }
+
     private String getDefaultValueRepresentation(ResourceInfo resource, String dimensionName, String fallback) {
         DimensionInfo dimensionInfo = wms.getDimensionInfo(resource, dimensionName);
         DimensionDefaultValueSelectionStrategy strategy = wms.getDefaultValueStrategy(resource, dimensionName, dimensionInfo);
@@ -264,16 +280,19 @@ abstract class DimensionHelper {
         return defaultValue;
     }
 
-    private void handleTimeDimensionRaster(CoverageInfo cvInfo, DimensionInfo timeInfo, ReaderDimensionsAccessor dimension) throws IOException {
-        TreeSet<Object> temporalDomain = dimension.getTimeDomain();
+    private void handleTimeDimensionRaster(CoverageInfo cvInfo, DimensionInfo timeInfo) throws IOException {
+        TreeSet<Object> temporalDomain = wms.getCachedDomain(cvInfo, ResourceInfo.TIME,
+                timeInfo, () -> getDimensionsAccessor(cvInfo).getTimeDomain());
         String timeMetadata = getTemporalDomainRepresentation(timeInfo, temporalDomain);
         String defaultValue = getDefaultValueRepresentation(cvInfo, ResourceInfo.TIME, DimensionDefaultValueSetting.TIME_CURRENT);
         writeTimeDimension(timeMetadata, defaultValue);
     }
     
-    private void handleCustomDimensionRaster(CoverageInfo cvInfo, String dimName, DimensionInfo dimension,
-            ReaderDimensionsAccessor dimAccessor) throws IOException {
-        final List<String> values = dimAccessor.getDomain(dimName);
+    private void handleCustomDimensionRaster(CoverageInfo cvInfo, String dimName, DimensionInfo dimension)
+            throws IOException {
+        final List<String> values = wms.getCachedDomain(cvInfo,
+                ResourceInfo.CUSTOM_DIMENSION_PREFIX + dimName, dimension,
+                () -> getDimensionsAccessor(cvInfo).getDomain(dimName));
         String metadata = getCustomDomainRepresentation(dimension, values);
         String defaultValue = wms.getDefaultCustomDimensionValue(dimName, cvInfo, String.class);
         writeCustomDimension(dimName, metadata, defaultValue, dimension.getUnits(), dimension.getUnitSymbol());
@@ -5,6 +5,8 @@
  */
 package org.geoserver.wms.capabilities;
 
+import static org.geoserver.catalog.Predicates.and;
+import static org.geoserver.catalog.Predicates.equal;
 import static org.geoserver.ows.util.ResponseUtils.appendPath;
 import static org.geoserver.ows.util.ResponseUtils.appendQueryString;
 import static org.geoserver.ows.util.ResponseUtils.buildSchemaURL;
@@ -38,6 +40,7 @@ import javax.xml.transform.TransformerException;
 import org.apache.commons.lang.StringUtils;
 import org.geoserver.catalog.AttributionInfo;
 import org.geoserver.catalog.AuthorityURLInfo;
+import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.DataLinkInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.KeywordInfo;
@@ -46,6 +49,7 @@ import org.geoserver.catalog.LayerIdentifierInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.LegendInfo;
 import org.geoserver.catalog.MetadataLinkInfo;
+import org.geoserver.catalog.Predicates;
 import org.geoserver.catalog.PublishedInfo;
 import org.geoserver.catalog.PublishedType;
 import org.geoserver.catalog.ResourceInfo;
@@ -53,6 +57,7 @@ import org.geoserver.catalog.StyleInfo;
 import org.geoserver.catalog.WMSLayerInfo;
 import org.geoserver.catalog.WMTSLayerInfo;
 import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.util.CloseableIterator;
 import org.geoserver.config.ContactInfo;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.ResourceErrorHandling;
@@ -75,7 +80,7 @@ import org.geotools.styling.Style;
 import org.geotools.util.NumberRange;
 import org.geotools.xml.transform.TransformerBase;
 import org.geotools.xml.transform.Translator;
-import org.opengis.feature.type.Name;
+import org.opengis.filter.Filter;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.operation.TransformException;
 import org.opengis.util.InternationalString;
@@ -674,23 +679,10 @@ public class GetCapabilitiesTransformer extends TransformerBase {
         private void handleLayers() {
             start("Layer");
 
-            final List<LayerInfo> layers;
-
             // filter the layers if a namespace filter has been set
-            if (request.getNamespace() != null) {
-                final List<LayerInfo> allLayers = wmsConfig.getLayers();
-                layers = new ArrayList<LayerInfo>();
-
-                String namespace = wmsConfig.getNamespaceByPrefix(request.getNamespace());
-                for (LayerInfo layer : allLayers) {
-                    Name name = layer.getResource().getQualifiedName();
-                    if (name.getNamespaceURI().equals(namespace)) {
-                        layers.add(layer);
-                    }
-                }
-            } else {
-                layers = wmsConfig.getLayers();
-            }
+            final Filter filter = addNameSpaceFilterIfNeed(Predicates.acceptAll(),
+                    "resource.namespace.prefix");
+            final Catalog catalog = wmsConfig.getCatalog();
 
             //WMSInfo serviceInfo = wmsConfig.getServiceInfo();
             if(StringUtils.isBlank(serviceInfo.getRootLayerTitle())) {
@@ -713,7 +705,13 @@ public class GetCapabilitiesTransformer extends TransformerBase {
             }
             handleRootCrsList(srs);
 
-            handleRootBbox(layers);
+            // stream over the layers instead of loading them all in memory
+            CloseableIterator<LayerInfo> layers = catalog.list(LayerInfo.class, filter);
+            try {
+                handleRootBbox(layers);
+            } finally {
+                layers.close();
+            }
 
             // handle AuthorityURL
             handleAuthorityURL(serviceInfo.getAuthorityURLs());
@@ -725,20 +723,38 @@ public class GetCapabilitiesTransformer extends TransformerBase {
             
             // encode layer groups
             try {
-                List<LayerGroupInfo> layerGroups = wmsConfig.getLayerGroups();
-                layersAlreadyProcessed = handleLayerGroups(new ArrayList<LayerGroupInfo>(layerGroups));
+                layersAlreadyProcessed = handleLayerGroups(catalog);
             } catch (Exception e) {
                 throw new RuntimeException("Can't obtain Envelope of Layer-Groups: "
                         + e.getMessage(), e);
             } 
             
-            // now encode each layer individually
-            LayerTree featuresLayerTree = new LayerTree(layers);
-            handleLayerTree(featuresLayerTree, layersAlreadyProcessed);
+            // now encode each layer individually, in catalog order as WMS 1.1.1 always did
+            layers = catalog.list(LayerInfo.class, filter);
+            try {
+                handleLayerTree(layers, layersAlreadyProcessed);
+            } finally {
+                layers.close();
+            }
 
             end("Layer");
         }
 
+        /**
+         * If the current request contains a namespace we build a filter using
+         * the provided property and request namespace and adds it to the provided
+         * filter. If the request doesn't contain a namespace the original filter
+         * is returned as is.
+         */
+        private Filter addNameSpaceFilterIfNeed(Filter filter, String nameSpaceProperty) {
+            String nameSpacePrefix = request.getNamespace();
+            if (nameSpacePrefix == null) {
+                return filter;
+            }
+            Filter equals = equal(nameSpaceProperty, nameSpacePrefix);
+            return and(filter, equals);
+        }
+
         /**
          * Called by <code>handleLayers()</code>, writes down list of supported CRS's for the root
          * Layer.
@@ -788,18 +804,18 @@ public class GetCapabilitiesTransformer extends TransformerBase {
          * coverages to summarize their LatLonBBox'es and write the aggregated bounds for the root
          * layer.
          * 
-         * @param ftypes
-         *            the collection of FeatureTypeInfo and CoverageInfo objects to traverse
+         * @param layers
+         *            the iterator over the layers to traverse
          */
-        private void handleRootBbox(Collection<LayerInfo> layers) {
+        private void handleRootBbox(Iterator<LayerInfo> layers) {
 
             Envelope latlonBbox = new Envelope();
             Envelope layerBbox = null;
 
             LOGGER.finer("Collecting summarized latlonbbox and common SRS...");
 
-            for (LayerInfo layer : layers) {
-                ResourceInfo resource = layer.getResource();
+            while (layers.hasNext()) {
+                ResourceInfo resource = layers.next().getResource();
                 layerBbox = resource.getLatLonBoundingBox();
                 if (layerBbox != null)
                     latlonBbox.expandToInclude(layerBbox);
@@ -820,6 +836,62 @@ public class GetCapabilitiesTransformer extends TransformerBase {
             return WMS.isWmsExposable(layer);   
         }
         
+        /**
+         * Encodes the layers in the order provided by the iterator. Only the layers that have a
+         * wms path set are collected in a {@link LayerTree}, the others are encoded as they are
+         * read.
+         */
+        private void handleLayerTree(final Iterator<LayerInfo> layers,
+                Set<LayerInfo> layersAlreadyProcessed) {
+            LayerTree nestedLayers = new LayerTree();
+
+            // handle non nested layers
+            while (layers.hasNext()) {
+                LayerInfo layer = layers.next();
+                if (!layer.enabled() || layersAlreadyProcessed.contains(layer)
+                        || !isExposable(layer)) {
+                    continue;
+                }
+                final String path = layer.getPath();
+                if (path != null && path.length() > 0 && !"/".equals(path)) {
+                    nestedLayers.add(layer);
+                    continue;
+                }
+
+                doHandleLayer(layer);
+            }
+
+            // handle nested layers
+            for (LayerTree childLayerTree : nestedLayers.getChildrens()) {
+                start("Layer");
+                element("Name", childLayerTree.getName());
+                element("Title", childLayerTree.getName());
+                handleLayerTree(childLayerTree, layersAlreadyProcessed);
+                end("Layer");
+            }
+        }
+
+        private void doHandleLayer(LayerInfo layer) {
+            try {
+                mark();
+                handleLayer(layer);
+                commit();
+            } catch (Exception e) {
+                if (skipping) {
+                    reset();
+                    LOGGER.log(
+                        Level.WARNING, 
+                        "Error writing metadata; skipping layer: " + layer.getName(),
+                        e);
+                } else {
+                    // report what layer we failed on to help the admin locate and fix it
+                    throw new ServiceException(
+                            "Error occurred trying to write out metadata for layer: "
+                                    + layer.getName(), e);
+                }
+            }
+        }
+
         /**
          * @param layerTree
          */
@@ -837,24 +909,7 @@ public class GetCapabilitiesTransformer extends TransformerBase {
                 // ask for enabled() instead of isEnabled() to account for disabled resource/store
                 // don't expose a geometryless layer through wms
                 if (layer.enabled() && !layersAlreadyProcessed.contains(layer) && isExposable(layer)) {
-                    try {
-                        mark();
-                        handleLayer(layer);
-                        commit();
-                    } catch (Exception e) {
-                        if (skipping) {
-                            reset();
-                            LOGGER.log(
-                                Level.WARNING, 
-                                "Error writing metadata; skipping layer: " + layer.getName(),
-                                e);
-                        } else {
-                            // report what layer we failed on to help the admin locate and fix it
-                            throw new ServiceException(
-                                    "Error occurred trying to write out metadata for layer: "
-                                            + layer.getName(), e);
-                        }
-                    }
+                    doHandleLayer(layer);
                 }
             }
 
@@ -1167,60 +1222,57 @@ public class GetCapabilitiesTransformer extends TransformerBase {
            end("Layer");
        }
        
-        protected Set<LayerInfo> handleLayerGroups(List<LayerGroupInfo> layerGroups) throws FactoryException,
+        protected Set<LayerInfo> handleLayerGroups(Catalog catalog) throws FactoryException,
                 TransformException, IOException {
             Set<LayerInfo> layersAlreadyProcessed = new HashSet<LayerInfo>();
-            
-            if (layerGroups == null || layerGroups.size() == 0) {
-                return layersAlreadyProcessed;
-            }
-            
-            List<LayerGroupInfo> topLevelGropus = filterNestedGroups(layerGroups);
 
-            for (LayerGroupInfo layerGroup : topLevelGropus) {
-                try {
-                    mark();
-                    handleLayerGroup(layerGroup, layersAlreadyProcessed);
-                    commit();
-                } catch (Exception e) {
-                    // report what layer we failed on to help the admin locate and fix it
-                    if (skipping) {
-                        if(layerGroup != null) {
-                            LOGGER.log(Level.WARNING, "Skipping layer group " + layerGroup.getName() + " as its caps document element failed to generate", e);
-                        } else {
-                            LOGGER.log(Level.WARNING, "Skipping a null layer group during caps during caps document generation", e);
-                        }
+            Filter lgFilter = Predicates.acceptAll();
 
-                        reset();
-                    } else { 
-                        throw new ServiceException(
-                            "Error occurred trying to write out metadata for layer group: " + 
-                                    layerGroup.getName(), e);
+            // first pass, collect the ids of the groups nested in other groups
+            Set<String> nestedGroupIds = new HashSet<String>();
+            CloseableIterator<LayerGroupInfo> layerGroups = catalog.list(LayerGroupInfo.class,
+                    lgFilter);
+            try {
+                while (layerGroups.hasNext()) {
+                    for (PublishedInfo pi : layerGroups.next().getLayers()) {
+                        if (pi instanceof LayerGroupInfo) {
+                            nestedGroupIds.add(pi.getId());
+                        }
                     }
                 }
+            } finally {
+                layerGroups.close();
             }
-            
-            return layersAlreadyProcessed;
-        }
 
-        /**
-         * Returns a list of top level groups, that is, the ones that are not nested within
-         * other layer groups
-         * 
-         * @param allGroups
-         *
-         */
-        private List<LayerGroupInfo> filterNestedGroups(List<LayerGroupInfo> allGroups) {
-            LinkedHashSet<LayerGroupInfo> result = new LinkedHashSet<LayerGroupInfo>(allGroups);
-            for (LayerGroupInfo group : allGroups) {
-                for(PublishedInfo pi : group.getLayers()) {
-                    if(pi instanceof LayerGroupInfo) {
-                        result.remove(pi);
+            // second pass, encode the top level groups in catalog order
+            layerGroups = catalog.list(LayerGroupInfo.class, lgFilter);
+            try {
+                while (layerGroups.hasNext()) {
+                    LayerGroupInfo layerGroup = layerGroups.next();
+                    if (nestedGroupIds.contains(layerGroup.getId())) {
+                        continue;
+                    }
+                    try {
+                        mark();
+                        handleLayerGroup(layerGroup, layersAlreadyProcessed);
+                        commit();
+                    } catch (Exception e) {
+                        // report what layer we failed on to help the admin locate and fix it
+                        if (skipping) {
+                            LOGGER.log(Level.WARNING, "Skipping layer group " + layerGroup.getName() + " as its caps document element failed to generate", e);
+                            reset();
+                        } else { 
+                            throw new ServiceException(
+                                "Error occurred trying to write out metadata for layer group: " + 
+                                        layerGroup.getName(), e);
+                        }
                     }
                 }
+            } finally {
+                layerGroups.close();
             }
-            
-            return new ArrayList<LayerGroupInfo>(result);
+
+            return layersAlreadyProcessed;
         }
 
         protected void handleAttribution(PublishedInfo layer) {
@@ -7,12 +7,14 @@ package org.geoserver.wms.dimension;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.geoserver.catalog.DimensionInfo;
 import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.wms.WMS;
 import org.geotools.data.FeatureSource;
 import org.geotools.data.Query;
 import org.geotools.factory.GeoTools;
@@ -61,6 +63,38 @@ public abstract class AbstractFeatureAttributeVisitorSelectionStrategy extends A
         return retval;
     }
 
+    /**
+     * Same as {@link #getCalculatedResult(FeatureTypeInfo, DimensionInfo, FeatureCalc)}, but
+     * the result is cached in the {@link DimensionDomainCache}, if available. Only use for
+     * calculations that do not depend on the request, like minimum and maximum.
+     * <p>
+     * Calculators accumulate their result, so a new one is created for each computation,
+     * including the background refreshes of the cache.
+     * 
+     * @param typeInfo
+     * @param dimensionName
+     * @param dimension
+     * @param calculatorFactory creates a new calculator
+     *
+     */
+    protected CalcResult getCachedCalculatedResult(FeatureTypeInfo typeInfo,
+            String dimensionName, DimensionInfo dimension,
+            Supplier<? extends FeatureCalc> calculatorFactory) {
+        FeatureCalc calculator = calculatorFactory.get();
+        WMS wms = WMS.get();
+        if (wms == null) {
+            return getCalculatedResult(typeInfo, dimension, calculator);
+        }
+        try {
+            return wms.getCachedDomain(typeInfo,
+                    dimensionName + "/" + calculator.getClass().getSimpleName(), dimension,
+                    () -> getCalculatedResult(typeInfo, dimension, calculatorFactory.get()));
+        } catch (IOException e) {
+            LOGGER.log(Level.FINER, e.getMessage(), e);
+            return null;
+        }
+    }
+
     private FeatureCollection<?, ?> getDimensionCollection(FeatureTypeInfo typeInfo,
             DimensionInfo dimension) throws IOException {
         // grab the feature source
@@ -0,0 +1,320 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.dimension;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionEventType;
+import org.geoserver.wfs.TransactionListener;
+import org.geoserver.wfs.WFSException;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Caches the dimension domains (time, elevation and custom dimensions) computed for the WMS
+ * capabilities document and for the default value selection, so that large layers are not
+ * scanned at each request.
+ * <p>
+ * Entries older than the configured time to live are still served while a background thread
+ * recomputes them, so only the very first computation of a domain blocks the caller. Entries are
+ * dropped when the resource (or its store/layer) is modified in the catalog and when a WFS
+ * transaction touches the feature type. Caching starts once {@link #DIMENSION_CACHE_TTL} is set.
+ */
+public class DimensionDomainCache
+        implements TransactionListener, CatalogListener, GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(DimensionDomainCache.class);
+
+    /**
+     * Time to live, in seconds, of a cached dimension domain. A non positive value disables the
+     * cache
+     */
+    public static final String DIMENSION_CACHE_TTL = "DIMENSION_CACHE_TTL";
+
+    /**
+     * Number of threads used to refresh stale entries in the background
+     */
+    public static final String DIMENSION_CACHE_REFRESH_THREADS = "DIMENSION_CACHE_REFRESH_THREADS";
+
+    private final ConcurrentHashMap<DomainKey, DomainEntry> entries = new ConcurrentHashMap<>();
+
+    private final Catalog catalog;
+
+    private final long timeToLive;
+
+    private final ExecutorService refresher;
+
+    public DimensionDomainCache(Catalog catalog) {
+        this(catalog, GeoServerExtensions.getLongProperty(DIMENSION_CACHE_TTL, 0) * 1000,
+                (int) GeoServerExtensions.getLongProperty(DIMENSION_CACHE_REFRESH_THREADS, 1));
+    }
+
+    /**
+     * Builds a new cache
+     *
+     * @param catalog The catalog to listen to
+     * @param timeToLive The time to live of the entries, in milliseconds
+     * @param refreshThreads The number of threads used to refresh stale entries
+     */
+    public DimensionDomainCache(Catalog catalog, long timeToLive, int refreshThreads) {
+        this.catalog = catalog;
+        this.timeToLive = timeToLive;
+        if (timeToLive > 0) {
+            this.refresher = Executors.newFixedThreadPool(Math.max(1, refreshThreads),
+                    new ThreadFactoryBuilder().setDaemon(true)
+                            .setNameFormat("DimensionDomainRefresher-%d").build());
+            catalog.addListener(this);
+        } else {
+            this.refresher = null;
+        }
+    }
+
+    /**
+     * Returns true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return timeToLive > 0;
+    }
+
+    /**
+     * Returns the domain for the given resource and domain key, either from the cache, or by
+     * invoking the loader. The key should identify both the dimension and the type of domain
+     * being computed (e.g., full list of values vs min/max).
+     *
+     * @param resource The resource owning the dimension
+     * @param key The domain key within the resource
+     * @param loader The domain loader
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getDomain(ResourceInfo resource, String key, Callable<T> loader)
+            throws IOException {
+        if (!isEnabled() || resource.getId() == null) {
+            return call(loader);
+        }
+
+        DomainKey domainKey = new DomainKey(resource.getId(), key);
+        DomainEntry entry = entries.get(domainKey);
+        if (entry == null) {
+            // first computation, has to block
+            entry = new DomainEntry(call(loader), loader);
+            entries.put(domainKey, entry);
+        } else if (System.currentTimeMillis() - entry.loadTime > timeToLive) {
+            scheduleRefresh(domainKey, entry);
+        }
+
+        return (T) entry.value;
+    }
+
+    private void scheduleRefresh(final DomainKey key, final DomainEntry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refresher.submit(() -> {
+                try {
+                    DomainEntry refreshed = new DomainEntry(call(entry.loader), entry.loader);
+                    // only replace if nobody invalidated the entry in the meantime
+                    entries.replace(key, entry, refreshed);
+                } catch (Exception e) {
+                    LOGGER.log(Level.FINE, "Failed to refresh dimension domain for " + key, e);
+                    entry.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing.set(false);
+        }
+    }
+
+    private static <T> T call(Callable<T> loader) throws IOException {
+        try {
+            return loader.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to compute dimension domain", e);
+        }
+    }
+
+    /**
+     * Drops all cached domains for the given resource
+     */
+    public void invalidate(String resourceId) {
+        if (resourceId != null) {
+            entries.keySet().removeIf(k -> resourceId.equals(k.resourceId));
+        }
+    }
+
+    /**
+     * Drops all cached domains
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Number of cached domains, for testing purposes
+     */
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        if (!isEnabled() || event.getType() == TransactionEventType.PRE_INSERT) {
+            // inserted features are not in the store yet, wait for the post insert
+            return;
+        }
+        QName name = event.getLayerName();
+        FeatureTypeInfo ft = null;
+        if (name != null) {
+            ft = catalog.getFeatureTypeByName(name.getNamespaceURI(), name.getLocalPart());
+        }
+        if (ft != null) {
+            invalidate(ft.getId());
+        } else {
+            clear();
+        }
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do, new resources are not cached yet
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    private void invalidate(CatalogInfo info) {
+        if (info instanceof ResourceInfo) {
+            invalidate(info.getId());
+        } else if (info instanceof LayerInfo) {
+            ResourceInfo resource = ((LayerInfo) info).getResource();
+            if (resource != null) {
+                invalidate(resource.getId());
+            }
+        } else if (info instanceof StoreInfo) {
+            // store connection parameters changed, the domains might come from a different source
+            clear();
+        }
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        clear();
+        if (refresher != null) {
+            refresher.shutdownNow();
+            try {
+                refresher.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+
+    static final class DomainKey {
+        final String resourceId;
+
+        final String key;
+
+        DomainKey(String resourceId, String key) {
+            this.resourceId = resourceId;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * resourceId.hashCode() + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof DomainKey)) {
+                return false;
+            }
+            DomainKey other = (DomainKey) obj;
+            return resourceId.equals(other.resourceId) && key.equals(other.key);
+        }
+
+        @Override
+        public String toString() {
+            return resourceId + "/" + key;
+        }
+    }
+
+    static final class DomainEntry {
+        final Object value;
+
+        final Callable<?> loader;
+
+        final long loadTime = System.currentTimeMillis();
+
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        DomainEntry(Object value, Callable<?> loader) {
+            this.value = value;
+            this.loader = loader;
+        }
+    }
+}
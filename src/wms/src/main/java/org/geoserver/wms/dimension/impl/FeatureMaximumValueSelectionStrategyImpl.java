@@ -32,12 +32,12 @@ public class FeatureMaximumValueSelectionStrategyImpl extends
     @Override
     public Object getDefaultValue(ResourceInfo resource, String dimensionName,
             DimensionInfo dimension, Class clz) {
-        final MaxVisitor max = new MaxVisitor(dimension.getAttribute());
-        CalcResult res = getCalculatedResult((FeatureTypeInfo) resource, dimension, max);
+        CalcResult res = getCachedCalculatedResult((FeatureTypeInfo) resource, dimensionName,
+                dimension, () -> new MaxVisitor(dimension.getAttribute()));
         if (res.equals(CalcResult.NULL_RESULT)) {
             return null;
         } else {
-            return Converters.convert(max.getMax(),clz);
+            return Converters.convert(res.getValue(), clz);
         }
     }   
 }
\ No newline at end of file
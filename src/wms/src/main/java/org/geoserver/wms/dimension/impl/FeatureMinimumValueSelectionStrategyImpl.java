@@ -32,12 +32,12 @@ public class FeatureMinimumValueSelectionStrategyImpl extends
     @Override
     public Object getDefaultValue(ResourceInfo resource, String dimensionName,
             DimensionInfo dimension, Class clz) {
-        final MinVisitor min = new MinVisitor(dimension.getAttribute());
-        CalcResult res = getCalculatedResult((FeatureTypeInfo) resource, dimension, min);
+        CalcResult res = getCachedCalculatedResult((FeatureTypeInfo) resource, dimensionName,
+                dimension, () -> new MinVisitor(dimension.getAttribute()));
         if (res.equals(CalcResult.NULL_RESULT)) {
             return null;
         } else {
-            return Converters.convert(min.getMin(), clz);
+            return Converters.convert(res.getValue(), clz);
         }
     }    
 }
\ No newline at end of file
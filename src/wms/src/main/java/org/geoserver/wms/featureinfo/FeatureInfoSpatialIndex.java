@@ -0,0 +1,389 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.featureinfo;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.namespace.QName;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.security.DataAccessLimits;
+import org.geoserver.security.ResourceAccessManager;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionEventType;
+import org.geoserver.wfs.TransactionListener;
+import org.geoserver.wfs.WFSException;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.identity.FeatureId;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+/**
+ * Optional, per layer, in memory spatial index used to speed up GetFeatureInfo hit testing on
+ * slow stores. The index contains only the feature envelopes and their ids, it's built in the
+ * background after the first GetFeatureInfo against a layer that has the {@link #INDEX_KEY}
+ * metadata set to true, and it's dropped on WFS transactions and catalog changes affecting the
+ * layer. Until the index is ready requests run the usual spatial query.
+ * <p>
+ * The identifiers turn the hits into a feature id filter, that the stores can normally answer by
+ * primary key lookup, instead of running a spatial query.
+ * <p>
+ * The index is shared among all users, so it's built against the raw catalog, and the read
+ * filter of the current user is applied to the candidate ids when the index is queried.
+ */
+public class FeatureInfoSpatialIndex
+        implements TransactionListener, CatalogListener, GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(FeatureInfoSpatialIndex.class);
+
+    /**
+     * Layer metadata key enabling the index
+     */
+    public static final String INDEX_KEY = "featureInfoSpatialIndex";
+
+    /**
+     * Layers with more features than this won't be indexed
+     */
+    static final int MAX_FEATURES = Integer.getInteger(
+            "org.geoserver.wms.featureinfo.spatialIndexMaxFeatures", 1000000);
+
+    /**
+     * If a lookup hits more features than this, the identifier falls back on a spatial query
+     */
+    static final int MAX_HITS = Integer.getInteger(
+            "org.geoserver.wms.featureinfo.spatialIndexMaxHits", 1000);
+
+    /**
+     * Number of threads building indexes in the background
+     */
+    static final int BUILD_THREADS = Integer.getInteger(
+            "org.geoserver.wms.featureinfo.spatialIndexThreads", 2);
+
+    static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+    /**
+     * Marker for layers that could not be indexed, to avoid retrying at each request
+     */
+    static final LayerIndex NOT_INDEXABLE = new LayerIndex(null, null);
+
+    private final ConcurrentHashMap<String, CompletableFuture<LayerIndex>> indexes =
+            new ConcurrentHashMap<>();
+
+    private final Catalog rawCatalog;
+
+    private final ResourceAccessManager accessManager;
+
+    private final ExecutorService builder;
+
+    /**
+     * Builds a new index
+     *
+     * @param rawCatalog The unsecured catalog, the indexes are built against it
+     * @param accessManager The access manager providing the read filter of the current user, if
+     *        null no filter is applied
+     */
+    public FeatureInfoSpatialIndex(Catalog rawCatalog, ResourceAccessManager accessManager) {
+        this.rawCatalog = rawCatalog;
+        this.accessManager = accessManager;
+        this.builder = Executors.newFixedThreadPool(Math.max(1, BUILD_THREADS),
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("FeatureInfoIndexBuilder-%d").build());
+        rawCatalog.addListener(this);
+    }
+
+    /**
+     * Returns true if the index is enabled for the given layer
+     */
+    public boolean isEnabled(LayerInfo layer) {
+        return layer != null && layer.getResource() instanceof FeatureTypeInfo
+                && Boolean.TRUE.equals(layer.getMetadata().get(INDEX_KEY, Boolean.class));
+    }
+
+    /**
+     * Looks up the features whose envelope intersects the search area, and returns them as a
+     * feature id filter.
+     *
+     * @param layer The layer being queried
+     * @param searchArea The search area
+     * @return A feature id filter, combined with the read filter of the current user,
+     *         {@link Filter#EXCLUDE} if there are no hits, or
+     *         <code>null</code> if the index cannot be used and the caller should run a plain
+     *         spatial query instead
+     */
+    public Filter getFidFilter(LayerInfo layer, ReferencedEnvelope searchArea) {
+        if (!isEnabled(layer)) {
+            return null;
+        }
+        FeatureTypeInfo resource = (FeatureTypeInfo) layer.getResource();
+        LayerIndex index = getIndex(resource);
+        if (index == null || index == NOT_INDEXABLE) {
+            return null;
+        }
+        Filter readFilter = getReadFilter(layer);
+        if (readFilter == Filter.EXCLUDE) {
+            return Filter.EXCLUDE;
+        }
+
+        try {
+            ReferencedEnvelope envelope = searchArea;
+            CoordinateReferenceSystem searchCRS = searchArea.getCoordinateReferenceSystem();
+            if (searchCRS != null && index.crs != null
+                    && !CRS.equalsIgnoreMetadata(searchCRS, index.crs)) {
+                envelope = searchArea.transform(index.crs, true);
+            }
+
+            @SuppressWarnings("unchecked")
+            List<String> hits = index.tree.query(envelope);
+            if (hits.isEmpty()) {
+                return Filter.EXCLUDE;
+            } else if (hits.size() > MAX_HITS) {
+                return null;
+            }
+            Set<FeatureId> ids = new HashSet<>();
+            for (String fid : hits) {
+                ids.add(FF.featureId(fid));
+            }
+            Filter fidFilter = FF.id(ids);
+            return readFilter == Filter.INCLUDE ? fidFilter : FF.and(fidFilter, readFilter);
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to use the GetFeatureInfo spatial index on layer "
+                    + layer.getName() + ", falling back on a spatial query", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the read filter the current user is subject to on the given layer
+     */
+    Filter getReadFilter(LayerInfo layer) {
+        if (accessManager == null) {
+            return Filter.INCLUDE;
+        }
+        Authentication user = SecurityContextHolder.getContext().getAuthentication();
+        DataAccessLimits limits = accessManager.getAccessLimits(user, layer);
+        if (limits == null || limits.getReadFilter() == null) {
+            return Filter.INCLUDE;
+        }
+        return limits.getReadFilter();
+    }
+
+    /**
+     * Returns the index of the given resource, or <code>null</code> if it's still being built
+     */
+    LayerIndex getIndex(FeatureTypeInfo resource) {
+        return getIndexFuture(resource).getNow(null);
+    }
+
+    CompletableFuture<LayerIndex> getIndexFuture(FeatureTypeInfo resource) {
+        // only schedule the build while holding the map lock, the data is read by the builder
+        return indexes.computeIfAbsent(resource.getId(),
+                id -> CompletableFuture.supplyAsync(() -> buildIndex(id), builder));
+    }
+
+    LayerIndex buildIndex(String resourceId) {
+        // the index is shared, build it from the whole data, not from what the user can see
+        FeatureTypeInfo resource = rawCatalog.getFeatureType(resourceId);
+        if (resource == null) {
+            return NOT_INDEXABLE;
+        }
+        try {
+            FeatureSource<? extends FeatureType, ? extends Feature> source = resource
+                    .getFeatureSource(null, null);
+            FeatureType schema = source.getSchema();
+            GeometryDescriptor gd = schema.getGeometryDescriptor();
+            if (!(schema instanceof SimpleFeatureType) || gd == null) {
+                return NOT_INDEXABLE;
+            }
+
+            Query query = new Query(schema.getName().getLocalPart());
+            query.setPropertyNames(new String[] { gd.getLocalName() });
+            int count = source.getCount(query);
+            if (count > MAX_FEATURES) {
+                LOGGER.info("Layer " + resource.prefixedName() + " has " + count
+                        + " features, too many for the GetFeatureInfo spatial index");
+                return NOT_INDEXABLE;
+            }
+
+            STRtree tree = new STRtree();
+            int indexed = 0;
+            try (FeatureIterator<? extends Feature> fi = source.getFeatures(query).features()) {
+                while (fi.hasNext()) {
+                    Feature f = fi.next();
+                    Object geometry = f.getDefaultGeometryProperty() == null ? null
+                            : f.getDefaultGeometryProperty().getValue();
+                    if (geometry instanceof Geometry) {
+                        Envelope envelope = ((Geometry) geometry).getEnvelopeInternal();
+                        if (!envelope.isNull()) {
+                            tree.insert(envelope, f.getIdentifier().getID());
+                            if (++indexed > MAX_FEATURES) {
+                                return NOT_INDEXABLE;
+                            }
+                        }
+                    }
+                }
+            }
+            // build it now, the tree is not thread safe until built
+            tree.build();
+
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Built GetFeatureInfo spatial index for " + resource.prefixedName()
+                        + " with " + indexed + " entries");
+            }
+            return new LayerIndex(tree, gd.getCoordinateReferenceSystem());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to build the GetFeatureInfo spatial index for "
+                    + resource.prefixedName(), e);
+            return NOT_INDEXABLE;
+        }
+    }
+
+    /**
+     * Drops the index of the given resource
+     */
+    public void invalidate(String resourceId) {
+        if (resourceId != null) {
+            indexes.remove(resourceId);
+        }
+    }
+
+    /**
+     * Drops all indexes
+     */
+    public void clear() {
+        indexes.clear();
+    }
+
+    @Override
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        if (indexes.isEmpty() || event.getType() == TransactionEventType.PRE_INSERT) {
+            return;
+        }
+        QName name = event.getLayerName();
+        FeatureTypeInfo ft = null;
+        if (name != null) {
+            ft = rawCatalog.getFeatureTypeByName(name.getNamespaceURI(), name.getLocalPart());
+        }
+        if (ft != null) {
+            invalidate(ft.getId());
+        } else {
+            clear();
+        }
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        invalidate(event.getSource());
+    }
+
+    private void invalidate(CatalogInfo info) {
+        if (info instanceof ResourceInfo) {
+            invalidate(info.getId());
+        } else if (info instanceof LayerInfo) {
+            ResourceInfo resource = ((LayerInfo) info).getResource();
+            if (resource != null) {
+                invalidate(resource.getId());
+            }
+        } else if (info instanceof StoreInfo) {
+            clear();
+        }
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        clear();
+        builder.shutdownNow();
+        try {
+            builder.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+
+    static final class LayerIndex {
+        final STRtree tree;
+
+        final CoordinateReferenceSystem crs;
+
+        LayerIndex(STRtree tree, CoordinateReferenceSystem crs) {
+            this.tree = tree;
+            this.crs = crs;
+        }
+    }
+}
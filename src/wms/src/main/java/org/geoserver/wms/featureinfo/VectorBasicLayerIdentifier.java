@@ -59,10 +59,19 @@ public class VectorBasicLayerIdentifier extends AbstractVectorLayerIdentifier {
 
     private WMS wms;
 
+    private FeatureInfoSpatialIndex spatialIndex;
+
     public VectorBasicLayerIdentifier(final WMS wms) {
         this.wms = wms;
     }
 
+    /**
+     * Sets the optional spatial index used to look up the candidate features by id
+     */
+    public void setSpatialIndex(FeatureInfoSpatialIndex spatialIndex) {
+        this.spatialIndex = spatialIndex;
+    }
+
     public List<FeatureCollection> identify(FeatureInfoRequestParameters params, int maxFeatures) throws Exception {
         LOGGER.log(Level.FINER, "Appliying bbox based feature info identifier");
 
@@ -108,6 +117,15 @@ public class VectorBasicLayerIdentifier extends AbstractVectorLayerIdentifier {
             throw new ServiceException("Internal error : " + e.getMessage(), e);
         }
 
+        // if the layer is indexed, narrow down the candidates by id
+        final Map<String, String> viewParams = params.getViewParams();
+        if (spatialIndex != null && (viewParams == null || viewParams.isEmpty())) {
+            Filter fidFilter = spatialIndex.getFidFilter(layer.getLayerInfo(), queryEnvelope);
+            if (fidFilter != null) {
+                getFInfoFilter = ff.and(fidFilter, getFInfoFilter);
+            }
+        }
+
         // include the eventual layer definition filter
         if (filter != null) {
             getFInfoFilter = ff.and(getFInfoFilter, filter);
@@ -141,7 +159,6 @@ public class VectorBasicLayerIdentifier extends AbstractVectorLayerIdentifier {
         q.setSortBy(params.getSort());
 
         // handle sql view params
-        final Map<String, String> viewParams = params.getViewParams();
         if (viewParams != null && viewParams.size() > 0) {
             q.setHints(new Hints(Hints.VIRTUAL_TABLE_PARAMETERS, viewParams));
         }
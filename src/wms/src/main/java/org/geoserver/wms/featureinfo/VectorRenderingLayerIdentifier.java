@@ -100,6 +100,7 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
     
     private WMS wms;
     private VectorBasicLayerIdentifier fallback;
+    private FeatureInfoSpatialIndex spatialIndex;
     private static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
     
     static {
@@ -114,6 +115,13 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
         this.wms = wms;
         this.fallback = fallback;
     }
+
+    /**
+     * Sets the optional spatial index used to look up the candidate features by id
+     */
+    public void setSpatialIndex(FeatureInfoSpatialIndex spatialIndex) {
+        this.spatialIndex = spatialIndex;
+    }
     
     @Override
     public boolean canHandle(MapLayerInfo layer) {
@@ -176,6 +184,22 @@ public class VectorRenderingLayerIdentifier extends AbstractVectorLayerIdentifie
             Envelope targetRasterSpace = new Envelope(params.getX() - radius, params.getX() + radius,
                     params.getY() - radius, params.getY() + radius);
             Envelope targetModelSpace = JTS.transform(targetRasterSpace, new AffineTransform2D(screenToWorld));
+
+            // if the layer is indexed, narrow down the features to be painted by id
+            Map<String, String> viewParams = params.getViewParams();
+            if (spatialIndex != null && (viewParams == null || viewParams.isEmpty())) {
+                Filter fidFilter = spatialIndex.getFidFilter(params.getLayer().getLayerInfo(),
+                        new ReferencedEnvelope(targetModelSpace, getMap.getCrs()));
+                if (fidFilter != null) {
+                    Query query = layer.getQuery();
+                    Filter filter = query.getFilter();
+                    if (filter == null || filter == Filter.INCLUDE) {
+                        query.setFilter(fidFilter);
+                    } else {
+                        query.setFilter(FF.and(fidFilter, filter));
+                    }
+                }
+            }
             
             // prepare the image we are going to check rendering against
             int paintAreaSize = radius * 2;
@@ -0,0 +1,274 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.security.GeoServerSecurityManager;
+import org.geoserver.security.SecurityManagerListener;
+import org.geoserver.security.SecurityUtils;
+import org.geoserver.wfs.TransactionEvent;
+import org.geoserver.wfs.TransactionEventType;
+import org.geoserver.wfs.TransactionListener;
+import org.geoserver.wfs.WFSException;
+import org.geoserver.wms.GetLegendGraphicRequest;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Caches the legend images produced by GetLegendGraphic, so that clients asking for the same
+ * legend over and over (e.g., at each map pan) do not cause the legend, and eventually its feature
+ * counts, to be computed again.
+ * <p>
+ * Legends are keyed by the request parameters (which include style, scale, size, format, legend
+ * options and, for feature counting legends, the map area), the local workspace, the user with its
+ * roles and the version of the data access rules. The cache is flushed on any catalog change, as
+ * styles can be shared among layers, on WFS transactions, since the data changes might affect the
+ * feature counts, and on security configuration changes.
+ * Concurrent requests for the same legend wait for a single generation.
+ * <p>
+ * See {@link #LEGEND_CACHE_TTL} and {@link #LEGEND_CACHE_SIZE} for the configuration.
+ */
+public class LegendGraphicCache implements TransactionListener, CatalogListener,
+        GeoServerLifecycleHandler, SecurityManagerListener {
+
+    /**
+     * Time to live, in seconds, of a cached legend. A non positive value disables the cache
+     */
+    public static final String LEGEND_CACHE_TTL = "LEGEND_CACHE_TTL";
+
+    /**
+     * Maximum size of the cache, in bytes of uncompressed images
+     */
+    public static final String LEGEND_CACHE_SIZE = "LEGEND_CACHE_SIZE";
+
+    static final long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
+
+    private final Cache<String, BufferedImageLegendGraphic> cache;
+
+    public LegendGraphicCache(Catalog catalog) {
+        this(catalog, GeoServerExtensions.getLongProperty(LEGEND_CACHE_TTL, 0),
+                GeoServerExtensions.getLongProperty(LEGEND_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+    }
+
+    /**
+     * Builds a new cache
+     *
+     * @param catalog The catalog to listen to
+     * @param timeToLive The time to live of the entries, in seconds
+     * @param maxSize The maximum size of the cache, in bytes of uncompressed images
+     */
+    public LegendGraphicCache(Catalog catalog, long timeToLive, long maxSize) {
+        if (timeToLive > 0) {
+            this.cache = CacheBuilder.newBuilder().expireAfterWrite(timeToLive, TimeUnit.SECONDS)
+                    .maximumWeight(maxSize)
+                    .weigher((String k, BufferedImageLegendGraphic v) -> weigh(v)).build();
+            catalog.addListener(this);
+        } else {
+            this.cache = null;
+        }
+    }
+
+    private static int weigh(BufferedImageLegendGraphic legend) {
+        BufferedImage image = legend.getLegend();
+        if (image == null) {
+            return 1;
+        }
+        return image.getWidth() * image.getHeight() * 4;
+    }
+
+    /**
+     * Listens to the security manager, to drop the cached legends when the security
+     * configuration changes
+     */
+    public void setSecurityManager(GeoServerSecurityManager securityManager) {
+        securityManager.addListener(this);
+    }
+
+    /**
+     * Returns true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * Returns the legend for the given request, either from the cache or by invoking the
+     * producer. Requests that did not come from a KVP GetLegendGraphic, and legends that are not
+     * images, are never cached.
+     *
+     * @param request The legend request
+     * @param producer The legend producer
+     */
+    public Object getLegend(GetLegendGraphicRequest request, Callable<Object> producer)
+            throws ServiceException {
+        if (!isEnabled() || request.getRawKvp() == null || request.getRawKvp().isEmpty()) {
+            return call(producer);
+        }
+
+        String key = buildKey(request);
+        BufferedImageLegendGraphic cached = cache.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // first time, produce it, and if it's an image, cache it and let concurrent
+        // requests for the same legend reuse it
+        final Object[] produced = new Object[1];
+        try {
+            cached = cache.get(key, () -> {
+                Object legend = call(producer);
+                produced[0] = legend;
+                if (legend instanceof BufferedImageLegendGraphic) {
+                    return (BufferedImageLegendGraphic) legend;
+                }
+                throw new NotCacheableException();
+            });
+            return cached;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NotCacheableException) {
+                // concurrent requests waiting on a non cacheable legend have to build their own
+                return produced[0] != null ? produced[0] : call(producer);
+            } else if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            }
+            throw new ServiceException(cause);
+        }
+    }
+
+    private static Object call(Callable<Object> producer) throws ServiceException {
+        try {
+            return producer.call();
+        } catch (ServiceException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ServiceException(e);
+        }
+    }
+
+    String buildKey(GetLegendGraphicRequest request) {
+        StringBuilder sb = new StringBuilder();
+
+        // local workspace
+        WorkspaceInfo ws = LocalWorkspace.get();
+        if (ws != null) {
+            sb.append(ws.getName());
+        }
+        sb.append('|');
+
+        // data security might alter the feature counts
+        sb.append(SecurityUtils.getAccessKey()).append('|');
+
+        // the request parameters, sorted to make the key independent of their order
+        Map<String, String> rawKvp = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        rawKvp.putAll(request.getRawKvp());
+        for (Map.Entry<String, String> entry : rawKvp.entrySet()) {
+            sb.append(entry.getKey().toUpperCase()).append('=').append(entry.getValue())
+                    .append('&');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Drops all cached legends
+     */
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Number of cached legends, for testing purposes
+     */
+    long size() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public void dataStoreChange(TransactionEvent event) throws WFSException {
+        if (isEnabled() && event.getType() != TransactionEventType.PRE_INSERT) {
+            clear();
+        }
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing to do
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        clear();
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        clear();
+    }
+
+    @Override
+    public void handlePostChanged(GeoServerSecurityManager securityManager) {
+        clear();
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        clear();
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+
+    /**
+     * Signals the produced legend is not an image, and thus won't be cached
+     */
+    @SuppressWarnings("serial")
+    static class NotCacheableException extends RuntimeException {
+    }
+}
@@ -0,0 +1,381 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.RenderingHints.Key;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.data.DataAccess;
+import org.geotools.data.FeatureListener;
+import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
+import org.geotools.data.QueryCapabilities;
+import org.geotools.data.ResourceInfo;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.filter.visitor.ExtractBoundsFilterVisitor;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.FeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.Name;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.filter.spatial.BBOX;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.Point;
+
+/**
+ * Feature source aggregating the points of a dense layer on a regular grid, so that rendering a
+ * layer with millions of points at small scales costs in the order of the number of grid cells,
+ * instead of the number of features.
+ * <p>
+ * The grid is built in the map CRS, aligned to its origin, with a cell size expressed in pixels of
+ * the output map, so that adjacent tiles get the same cells. The data is read over the requested
+ * area snapped outwards to whole cells, so that the cells crossing the tile border are complete,
+ * and each tile then returns only the cells whose aggregated point falls in it. Each non empty cell
+ * is returned as a point, located at the average of the points it contains, with a {@link #COUNT}
+ * attribute that styles can use. The features are read in a streaming fashion, keeping only the
+ * cells in memory.
+ * <p>
+ * The aggregation can be enabled on a layer by setting the {@link #AGGREGATION_KEY} metadata to
+ * the cell size, or on a request via the format option with the same name. Only layers with a
+ * point or multipoint default geometry are aggregated.
+ */
+public class PointAggregatingFeatureSource implements SimpleFeatureSource {
+
+    static final Logger LOGGER = Logging.getLogger(PointAggregatingFeatureSource.class);
+
+    /**
+     * Layer metadata and format option key enabling the aggregation, the value is the cell size
+     * in pixels
+     */
+    public static final String AGGREGATION_KEY = "pointAggregation";
+
+    /**
+     * Name of the attribute holding the number of points in each cell
+     */
+    public static final String COUNT = "count";
+
+    static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+    static final GeometryFactory GF = JTSFactoryFinder.getGeometryFactory();
+
+    final FeatureSource<SimpleFeatureType, SimpleFeature> delegate;
+
+    final SimpleFeatureType aggregatedType;
+
+    final String geometryName;
+
+    final CoordinateReferenceSystem dataCRS;
+
+    final CoordinateReferenceSystem mapCRS;
+
+    /**
+     * Transformation from the data to the map CRS, or null if they are the same
+     */
+    final MathTransform dataToMap;
+
+    final double cellWidth;
+
+    final double cellHeight;
+
+    Query definitionQuery = Query.ALL;
+
+    /**
+     * Builds a new aggregating source
+     *
+     * @param delegate The source to be aggregated, must have a simple feature type with a point
+     *        default geometry (see {@link #canAggregate(FeatureSource)})
+     * @param mapArea The area of the map being rendered
+     * @param mapWidth The map width in pixels
+     * @param mapHeight The map height in pixels
+     * @param cellSize The grid cell size, in pixels
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public PointAggregatingFeatureSource(FeatureSource delegate, ReferencedEnvelope mapArea,
+            int mapWidth, int mapHeight, int cellSize) throws IOException {
+        this.delegate = delegate;
+        SimpleFeatureType schema = (SimpleFeatureType) delegate.getSchema();
+        GeometryDescriptor gd = schema.getGeometryDescriptor();
+        this.geometryName = gd.getLocalName();
+        this.dataCRS = gd.getCoordinateReferenceSystem();
+        this.mapCRS = mapArea.getCoordinateReferenceSystem() != null
+                ? mapArea.getCoordinateReferenceSystem() : dataCRS;
+        if (dataCRS != null && mapCRS != null && !CRS.equalsIgnoreMetadata(dataCRS, mapCRS)) {
+            try {
+                this.dataToMap = CRS.findMathTransform(dataCRS, mapCRS, true);
+            } catch (Exception e) {
+                throw new IOException("Failed to set up the aggregation grid in the map CRS", e);
+            }
+        } else {
+            this.dataToMap = null;
+        }
+
+        // the cell size in map units, the same for all the tiles at a given scale
+        this.cellWidth = mapArea.getWidth() / mapWidth * cellSize;
+        this.cellHeight = mapArea.getHeight() / mapHeight * cellSize;
+
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName(schema.getName());
+        tb.add(geometryName, Point.class, mapCRS);
+        tb.add(COUNT, Integer.class);
+        this.aggregatedType = tb.buildFeatureType();
+    }
+
+    /**
+     * Returns true if the source has a point default geometry, and can thus be aggregated
+     */
+    public static boolean canAggregate(
+            FeatureSource<? extends FeatureType, ? extends Feature> source) {
+        FeatureType schema = source.getSchema();
+        if (!(schema instanceof SimpleFeatureType) || schema.getGeometryDescriptor() == null) {
+            return false;
+        }
+        Class<?> binding = schema.getGeometryDescriptor().getType().getBinding();
+        return Point.class.equals(binding) || MultiPoint.class.equals(binding);
+    }
+
+    /**
+     * Sets the layer definition query. It's applied to the original features before aggregation,
+     * as it might refer to attributes that are not available in the aggregated ones
+     */
+    public void setDefinitionQuery(Query definitionQuery) {
+        this.definitionQuery = definitionQuery == null ? Query.ALL : definitionQuery;
+    }
+
+    @Override
+    public SimpleFeatureType getSchema() {
+        return aggregatedType;
+    }
+
+    @Override
+    public Name getName() {
+        return aggregatedType.getName();
+    }
+
+    @Override
+    public ResourceInfo getInfo() {
+        return delegate.getInfo();
+    }
+
+    @Override
+    public DataAccess<SimpleFeatureType, SimpleFeature> getDataStore() {
+        return delegate.getDataStore();
+    }
+
+    @Override
+    public QueryCapabilities getQueryCapabilities() {
+        // the aggregated features cannot be sorted or paged
+        return new QueryCapabilities();
+    }
+
+    @Override
+    public void addFeatureListener(FeatureListener listener) {
+        delegate.addFeatureListener(listener);
+    }
+
+    @Override
+    public void removeFeatureListener(FeatureListener listener) {
+        delegate.removeFeatureListener(listener);
+    }
+
+    @Override
+    public Set<Key> getSupportedHints() {
+        // the renderer hints (e.g., screenmap, generalization) do not apply to the original
+        // features, they would alter the counts
+        return Collections.emptySet();
+    }
+
+    @Override
+    public ReferencedEnvelope getBounds() throws IOException {
+        return getBounds(Query.ALL);
+    }
+
+    @Override
+    public ReferencedEnvelope getBounds(Query query) throws IOException {
+        return getFeatures(query).getBounds();
+    }
+
+    @Override
+    public int getCount(Query query) throws IOException {
+        Filter filter = query.getFilter() == null ? Filter.INCLUDE : query.getFilter();
+        if (filter != Filter.INCLUDE && !(filter instanceof BBOX)) {
+            // filters on the count need the aggregated features, too expensive
+            return -1;
+        }
+        return aggregate(getRequestedArea(filter)).size();
+    }
+
+    @Override
+    public SimpleFeatureCollection getFeatures() throws IOException {
+        return getFeatures(Query.ALL);
+    }
+
+    @Override
+    public SimpleFeatureCollection getFeatures(Filter filter) throws IOException {
+        return getFeatures(new Query(aggregatedType.getTypeName(), filter));
+    }
+
+    @Override
+    public SimpleFeatureCollection getFeatures(Query query) throws IOException {
+        Filter filter = query.getFilter() == null ? Filter.INCLUDE : query.getFilter();
+        Map<Long, Cell> cells = aggregate(getRequestedArea(filter));
+
+        // build the aggregated features, the filter might contain rule filters against the count
+        ListFeatureCollection result = new ListFeatureCollection(aggregatedType);
+        SimpleFeatureBuilder fb = new SimpleFeatureBuilder(aggregatedType);
+        for (Cell cell : cells.values()) {
+            fb.add(GF.createPoint(cell.getCenter()));
+            fb.add(cell.count);
+            SimpleFeature feature = fb.buildFeature(
+                    aggregatedType.getTypeName() + ".cell." + cell.i + "." + cell.j);
+            if (filter == Filter.INCLUDE || filter.evaluate(feature)) {
+                result.add(feature);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the area requested by the filter, in the map CRS, or null if the filter is not
+     * spatially bounded
+     */
+    Envelope getRequestedArea(Filter filter) {
+        Envelope bounds = (Envelope) filter.accept(ExtractBoundsFilterVisitor.BOUNDS_VISITOR,
+                null);
+        if (bounds == null || bounds.isNull() || Double.isInfinite(bounds.getWidth())
+                || Double.isInfinite(bounds.getHeight())) {
+            return null;
+        }
+        return bounds;
+    }
+
+    /**
+     * Aggregates the points in the cells touching the requested area, and returns the cells whose
+     * aggregated point falls inside it
+     */
+    Map<Long, Cell> aggregate(Envelope area) throws IOException {
+        // read only the geometries matching the definition query in the requested area,
+        // snapped outwards to whole cells, so that the border cells are complete
+        Query dataQuery = new Query(definitionQuery);
+        dataQuery.setTypeName(delegate.getSchema().getName().getLocalPart());
+        dataQuery.setPropertyNames(new String[] { geometryName });
+        Filter dataFilter = definitionQuery.getFilter() == null ? Filter.INCLUDE
+                : definitionQuery.getFilter();
+        if (area != null) {
+            ReferencedEnvelope snapped = new ReferencedEnvelope(
+                    Math.floor(area.getMinX() / cellWidth) * cellWidth,
+                    Math.ceil(area.getMaxX() / cellWidth) * cellWidth,
+                    Math.floor(area.getMinY() / cellHeight) * cellHeight,
+                    Math.ceil(area.getMaxY() / cellHeight) * cellHeight, mapCRS);
+            ReferencedEnvelope dataArea = snapped;
+            if (dataToMap != null) {
+                try {
+                    dataArea = snapped.transform(dataCRS, true);
+                } catch (Exception e) {
+                    throw new IOException("Failed to reproject the aggregation area", e);
+                }
+            }
+            Filter bbox = FF.bbox(FF.property(geometryName), dataArea);
+            dataFilter = dataFilter == Filter.INCLUDE ? bbox : FF.and(dataFilter, bbox);
+        }
+        dataQuery.setFilter(dataFilter);
+
+        Map<Long, Cell> cells = new HashMap<>();
+        int read = 0;
+        double[] point = new double[2];
+        try (FeatureIterator<SimpleFeature> fi = delegate.getFeatures(dataQuery).features()) {
+            while (fi.hasNext()) {
+                Object value = fi.next().getDefaultGeometry();
+                if (!(value instanceof Geometry) || ((Geometry) value).isEmpty()) {
+                    continue;
+                }
+                Geometry geometry = (Geometry) value;
+                Coordinate c = geometry instanceof Point ? ((Point) geometry).getCoordinate()
+                        : geometry.getEnvelopeInternal().centre();
+                point[0] = c.x;
+                point[1] = c.y;
+                if (dataToMap != null) {
+                    try {
+                        dataToMap.transform(point, 0, point, 0, 1);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.FINER, "Skipping point that cannot be reprojected", e);
+                        continue;
+                    }
+                }
+                long i = (long) Math.floor(point[0] / cellWidth);
+                long j = (long) Math.floor(point[1] / cellHeight);
+                Long key = (i << 32) ^ (j & 0xFFFFFFFFL);
+                Cell cell = cells.get(key);
+                if (cell == null) {
+                    cell = new Cell(i, j);
+                    cells.put(key, cell);
+                }
+                cell.add(point[0], point[1]);
+                read++;
+            }
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Aggregated " + read + " points into " + cells.size() + " cells");
+        }
+
+        // the cells whose point falls in another tile are returned by that tile
+        if (area != null) {
+            cells.values().removeIf(cell -> !area.contains(cell.getCenter()));
+        }
+        return cells;
+    }
+
+    static final class Cell {
+        final long i;
+
+        final long j;
+
+        double x;
+
+        double y;
+
+        int count;
+
+        Cell(long i, long j) {
+            this.i = i;
+            this.j = j;
+        }
+
+        void add(double x, double y) {
+            this.x += x;
+            this.y += y;
+            count++;
+        }
+
+        Coordinate getCenter() {
+            return new Coordinate(x / count, y / count);
+        }
+    }
+}
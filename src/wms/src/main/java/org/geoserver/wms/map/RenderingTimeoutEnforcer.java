@@ -9,13 +9,16 @@ import java.awt.Graphics;
 import java.util.Timer;
 import java.util.TimerTask;
 
+import org.geoserver.ows.RequestCancellation;
 import org.geoserver.wms.WebMap;
 import org.geotools.renderer.GTRenderer;
 
 /**
  * An utility class that can be used to set a strict timeout on rendering operations:
  * if the timeout elapses, the renderer will be asked to stop rendering and the graphics
- * will be disposed of to make extra sure the renderer cannot keep going on.
+ * will be disposed of to make extra sure the renderer cannot keep going on. The
+ * {@link RequestCancellation} of the current request, if any, is cancelled too, so that
+ * the in flight data reads get stopped as well.
  * @author Andrea Aime - OpenGeo
  */
 public class RenderingTimeoutEnforcer {
@@ -27,6 +30,7 @@ public class RenderingTimeoutEnforcer {
     boolean timedOut = false;
     boolean saveMap;
     WebMap map = null;
+    RequestCancellation cancellation;
 
     public RenderingTimeoutEnforcer(long timeout, GTRenderer renderer, Graphics graphics) {
         this(timeout, renderer, graphics, false);
@@ -36,6 +40,7 @@ public class RenderingTimeoutEnforcer {
         this.renderer = renderer;
         this.graphics = graphics;
         this.saveMap = saveMap;
+        this.cancellation = RequestCancellation.get();
     }
     
     public void saveMap() {
@@ -94,7 +99,10 @@ public class RenderingTimeoutEnforcer {
             // an atomic call to the graphics, it cannot be stopped
             // by the above)
             graphics.dispose();
-            
+            // and stop the data reads still running on behalf of the request
+            if (cancellation != null) {
+                cancellation.cancel("rendering timeout");
+            }
         }
         
     }
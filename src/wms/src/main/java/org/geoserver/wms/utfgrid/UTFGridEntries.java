@@ -4,33 +4,60 @@
  */
 package org.geoserver.wms.utfgrid;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.opengis.feature.Feature;
-
+import org.opengis.feature.Property;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.feature.type.GeometryType;
+
+/**
+ * Associates each rendered feature to a "color" value, and keeps the attributes needed to encode
+ * the UTFGrid data section. The values are assigned sequentially, so the entries are kept in a
+ * list indexed by value, and only the non geometric attributes are retained, the features
+ * themselves (and their geometries) can be garbage collected as soon as they are painted.
+ */
 class UTFGridEntries {
 
     static class UTFGridEntry {
 
-        int value;
+        final int value;
 
         int key = -1;
 
-        Feature feature;
+        final String id;
+
+        final String[] names;
 
-        public UTFGridEntry(int value, Feature feature) {
-            super();
+        final Object[] values;
+
+        public UTFGridEntry(int value, String id, String[] names, Object[] values) {
             this.value = value;
-            this.feature = feature;
+            this.id = id;
+            this.names = names;
+            this.values = values;
         }
 
         public int getValue() {
             return value;
         }
 
-        public Feature getFeature() {
-            return feature;
+        public String getId() {
+            return id;
+        }
+
+        public String[] getNames() {
+            return names;
+        }
+
+        public Object[] getValues() {
+            return values;
         }
 
         public int getKey() {
@@ -43,27 +70,86 @@ class UTFGridEntries {
 
     }
 
-    Map<String, UTFGridEntry> entryMap = new HashMap<>();
+    Map<String, Integer> idToValue = new HashMap<>();
+
+    List<UTFGridEntry> entries = new ArrayList<>();
 
-    int value = 1;
+    // non geometric attributes of the last simple feature type seen
+    SimpleFeatureType lastType;
+
+    String[] lastNames;
+
+    int[] lastIndexes;
 
     int getKeyForFeature(Feature feature) {
         String id = feature.getIdentifier().getID();
-        UTFGridEntry entry = entryMap.get(id);
-        if (entry == null) {
-            entry = new UTFGridEntry(value++, feature);
-            entryMap.put(id, entry);
+        Integer value = idToValue.get(id);
+        if (value == null) {
+            value = entries.size() + 1;
+            entries.add(buildEntry(value, id, feature));
+            idToValue.put(id, value);
+        }
+        return value;
+    }
+
+    private UTFGridEntry buildEntry(int value, String id, Feature feature) {
+        if (feature instanceof SimpleFeature) {
+            SimpleFeature sf = (SimpleFeature) feature;
+            if (sf.getFeatureType() != lastType) {
+                setupType(sf.getFeatureType());
+            }
+            Object[] values = new Object[lastIndexes.length];
+            for (int i = 0; i < lastIndexes.length; i++) {
+                values[i] = sf.getAttribute(lastIndexes[i]);
+            }
+            return new UTFGridEntry(value, id, lastNames, values);
+        } else {
+            List<String> names = new ArrayList<>();
+            List<Object> values = new ArrayList<>();
+            for (Property p : feature.getProperties()) {
+                if (p.getType() instanceof GeometryType) {
+                    continue;
+                }
+                names.add(p.getName().getLocalPart());
+                values.add(p.getValue());
+            }
+            return new UTFGridEntry(value, id, names.toArray(new String[names.size()]),
+                    values.toArray());
         }
-        return entry.getValue();
     }
 
-    Map<Integer, UTFGridEntry> getEntryMap() {
-        Map<Integer, UTFGridEntry> result = new HashMap<>();
-        for (UTFGridEntry entry : entryMap.values()) {
-            result.put(entry.getValue(), entry);
+    private void setupType(SimpleFeatureType type) {
+        List<AttributeDescriptor> descriptors = type.getAttributeDescriptors();
+        List<String> names = new ArrayList<>();
+        int[] indexes = new int[descriptors.size()];
+        for (int i = 0; i < descriptors.size(); i++) {
+            AttributeDescriptor ad = descriptors.get(i);
+            if (!(ad instanceof GeometryDescriptor)) {
+                indexes[names.size()] = i;
+                names.add(ad.getLocalName());
+            }
         }
+        lastType = type;
+        lastNames = names.toArray(new String[names.size()]);
+        lastIndexes = new int[names.size()];
+        System.arraycopy(indexes, 0, lastIndexes, 0, lastIndexes.length);
+    }
+
+    /**
+     * Returns the entry associated to the given value, or null if not found
+     */
+    UTFGridEntry getEntry(int value) {
+        if (value <= 0 || value > entries.size()) {
+            return null;
+        }
+        return entries.get(value - 1);
+    }
 
-        return result;
+    /**
+     * Number of features that got a value assigned
+     */
+    int size() {
+        return entries.size();
     }
 
 }
@@ -7,22 +7,18 @@ package org.geoserver.wms.utfgrid;
 import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import org.geoserver.wms.map.RawMap;
 import org.geoserver.wms.utfgrid.UTFGridEntries.UTFGridEntry;
 import org.geotools.util.Converters;
-import org.geotools.xml.gml.GMLComplexTypes.GeometryPropertyType;
-import org.opengis.feature.Feature;
-import org.opengis.feature.Property;
-import org.opengis.feature.simple.SimpleFeature;
-import org.opengis.feature.type.AttributeDescriptor;
-import org.opengis.feature.type.GeometryDescriptor;
 
 import net.sf.json.util.JSONBuilder;
 import net.sf.json.util.JSONStringer;
@@ -40,7 +36,8 @@ public class UTFGridMap extends RawMap {
     public void writeTo(java.io.OutputStream out) throws java.io.IOException {
         UTFGridEntries entries = getEntries();
 
-        PrintWriter pw = new PrintWriter(out);
+        PrintWriter pw = new PrintWriter(
+                new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
         pw.println("{");
         pw.println("\"grid\": [");
         List<UTFGridEntry> encodedEntries = writeGrid(pw, image, entries);
@@ -68,7 +65,7 @@ public class UTFGridMap extends RawMap {
             pw.print("  \"");
             pw.print(entry.getKey());
             pw.print("\" : ");
-            pw.print(getAttributesJson(entry.getFeature()));
+            pw.print(getAttributesJson(entry));
             if (it.hasNext()) {
                 pw.println(",");
             }
@@ -78,29 +75,13 @@ public class UTFGridMap extends RawMap {
         pw.flush();
     }
 
-    private String getAttributesJson(Feature feature) {
+    private String getAttributesJson(UTFGridEntry entry) {
         JSONBuilder builder = new JSONStringer().object();
-        builder.key("id").value(feature.getIdentifier().toString());
-        if (feature instanceof SimpleFeature) {
-            SimpleFeature sf = (SimpleFeature) feature;
-            for (AttributeDescriptor ad : sf.getFeatureType().getAttributeDescriptors()) {
-                if (ad instanceof GeometryDescriptor) {
-                    continue;
-                } else {
-                    String name = ad.getLocalName();
-                    Object value = sf.getAttribute(name);
-                    addAttribute(builder, name, value);
-                }
-            }
-        } else {
-            for (Property p : feature.getProperties()) {
-                if (p.getType() instanceof GeometryPropertyType) {
-                    continue;
-                }
-                String name = p.getName().getLocalPart();
-                Object value = p.getValue();
-                addAttribute(builder, name, value);
-            }
+        builder.key("id").value(entry.getId());
+        String[] names = entry.getNames();
+        Object[] values = entry.getValues();
+        for (int i = 0; i < names.length; i++) {
+            addAttribute(builder, names[i], values[i]);
         }
 
         builder.endObject();
@@ -125,23 +106,23 @@ public class UTFGridMap extends RawMap {
      */
     private List<UTFGridEntry> writeGrid(PrintWriter pw, RenderedImage image,
             UTFGridEntries entries) {
-        Map<Integer, UTFGridEntry> keyToFeature = entries.getEntryMap();
         List<UTFGridEntry> result = new ArrayList<UTFGridEntry>();
 
         int key = 1;
         Raster data = getData(image);
         int width = data.getWidth();
         int[] pixels = new int[width];
+        // each row is encoded in a reusable buffer and written out in one shot
+        char[] row = new char[width];
         int height = data.getHeight();
         for (int r = 0; r < height; r++) {
             data.getDataElements(0, r, width, 1, pixels);
-            pw.print("\"");
             for (int i = 0; i < pixels.length; i++) {
                 int pixel = pixels[i] & 0xFFFFFF;
                 if (pixel == 0) {
-                    pw.print(" ");
+                    row[i] = ' ';
                 } else {
-                    UTFGridEntry entry = keyToFeature.get(pixel);
+                    UTFGridEntry entry = entries.getEntry(pixel);
                     if (entry == null) {
                         throw new RuntimeException("Could not find entry for pixel value " + pixel
                                 + ". This normally means there is some color altering option at work "
@@ -153,9 +134,11 @@ public class UTFGridMap extends RawMap {
                         entry.setKey(entryKey);
                         result.add(entry);
                     }
-                    pw.print(getGridChar(entryKey));
+                    row[i] = getGridChar(entryKey);
                 }
             }
+            pw.print('"');
+            pw.write(row, 0, width);
             if (r < height - 1) {
                 pw.println("\",");
             } else {
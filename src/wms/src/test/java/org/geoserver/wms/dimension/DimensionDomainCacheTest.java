@@ -0,0 +1,79 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.dimension;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DimensionDomainCacheTest {
+
+    Catalog catalog;
+
+    FeatureTypeInfo ft;
+
+    @Before
+    public void setup() {
+        catalog = createNiceMock(Catalog.class);
+        replay(catalog);
+        ft = createNiceMock(FeatureTypeInfo.class);
+        expect(ft.getId()).andReturn("ft1").anyTimes();
+        replay(ft);
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        DimensionDomainCache cache = new DimensionDomainCache(catalog, 0, 1);
+        assertFalse(cache.isEnabled());
+        AtomicInteger calls = new AtomicInteger();
+        cache.getDomain(ft, "time", () -> calls.incrementAndGet());
+        cache.getDomain(ft, "time", () -> calls.incrementAndGet());
+        assertEquals(2, calls.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCachedAndInvalidated() throws Exception {
+        DimensionDomainCache cache = new DimensionDomainCache(catalog, 60000, 1);
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals(Integer.valueOf(1), cache.getDomain(ft, "time", () -> calls.incrementAndGet()));
+        assertEquals(Integer.valueOf(1), cache.getDomain(ft, "time", () -> calls.incrementAndGet()));
+        assertEquals(1, calls.get());
+
+        // catalog change drops the entry
+        CatalogPostModifyEvent event = createNiceMock(CatalogPostModifyEvent.class);
+        expect(event.getSource()).andReturn(ft).anyTimes();
+        replay(event);
+        cache.handlePostModifyEvent(event);
+        assertEquals(0, cache.size());
+        assertEquals(Integer.valueOf(2), cache.getDomain(ft, "time", () -> calls.incrementAndGet()));
+        cache.onDispose();
+    }
+
+    @Test
+    public void testStaleServedWhileRefreshing() throws Exception {
+        DimensionDomainCache cache = new DimensionDomainCache(catalog, 1, 1);
+        AtomicInteger calls = new AtomicInteger();
+        assertEquals(Integer.valueOf(1), cache.getDomain(ft, "time", () -> calls.incrementAndGet()));
+        Thread.sleep(10);
+        // stale value returned immediately, refresh happens in the background
+        assertEquals(Integer.valueOf(1), cache.getDomain(ft, "time", () -> calls.incrementAndGet()));
+        for (int i = 0; i < 100 && calls.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, calls.get());
+        cache.onDispose();
+    }
+}
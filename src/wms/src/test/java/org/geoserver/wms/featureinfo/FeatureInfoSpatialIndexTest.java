@@ -0,0 +1,244 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.featureinfo;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.FeatureTypeInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.MetadataMap;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.security.CatalogMode;
+import org.geoserver.security.ResourceAccessManager;
+import org.geoserver.security.VectorAccessLimits;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.filter.text.cql2.CQL;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.And;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.Identifier;
+
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class FeatureInfoSpatialIndexTest {
+
+    Catalog catalog;
+
+    ResourceAccessManager accessManager;
+
+    FeatureTypeInfo ft;
+
+    FeatureTypeInfo slow;
+
+    CountDownLatch latch = new CountDownLatch(1);
+
+    LayerInfo layer;
+
+    MetadataMap metadata;
+
+    @Before
+    public void setup() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("points", "geom:Point");
+        ListFeatureCollection fc = new ListFeatureCollection(type);
+        GeometryFactory gf = new GeometryFactory();
+        for (int i = 0; i < 10; i++) {
+            fc.add(SimpleFeatureBuilder.build(type,
+                    new Object[] { gf.createPoint(new Coordinate(i, i)) }, "points." + i));
+        }
+
+        ft = createNiceMock(FeatureTypeInfo.class);
+        expect(ft.getId()).andReturn("ft1").anyTimes();
+        expect(ft.prefixedName()).andReturn("test:points").anyTimes();
+        expect((Object) ft.getFeatureSource(null, null)).andReturn(DataUtilities.source(fc))
+                .anyTimes();
+        replay(ft);
+
+        SimpleFeatureType slowType = DataUtilities.createType("points", "geom:Point");
+        slow = createNiceMock(FeatureTypeInfo.class);
+        expect(slow.getId()).andReturn("slow").anyTimes();
+        expect((Object) slow.getFeatureSource(null, null)).andAnswer(() -> {
+            latch.await(10, TimeUnit.SECONDS);
+            return DataUtilities.source(new ListFeatureCollection(slowType));
+        }).anyTimes();
+        replay(slow);
+
+        catalog = createNiceMock(Catalog.class);
+        expect(catalog.getFeatureType("ft1")).andReturn(ft).anyTimes();
+        expect(catalog.getFeatureType("slow")).andReturn(slow).anyTimes();
+        replay(catalog);
+
+        metadata = new MetadataMap();
+        layer = createNiceMock(LayerInfo.class);
+        expect(layer.getResource()).andReturn(ft).anyTimes();
+        expect(layer.getMetadata()).andReturn(metadata).anyTimes();
+        replay(layer);
+
+        accessManager = createNiceMock(ResourceAccessManager.class);
+        replay(accessManager);
+    }
+
+    @After
+    public void clearAuthentication() {
+        SecurityContextHolder.getContext().setAuthentication(null);
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        FeatureInfoSpatialIndex index = new FeatureInfoSpatialIndex(catalog, accessManager);
+        ReferencedEnvelope area = new ReferencedEnvelope(-1, 1, -1, 1, DefaultGeographicCRS.WGS84);
+        assertNull(index.getFidFilter(layer, area));
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        metadata.put(FeatureInfoSpatialIndex.INDEX_KEY, true);
+        FeatureInfoSpatialIndex index = new FeatureInfoSpatialIndex(catalog, accessManager);
+        index.getIndexFuture(ft).get();
+
+        // two hits
+        ReferencedEnvelope area = new ReferencedEnvelope(2.5, 4.5, 2.5, 4.5,
+                DefaultGeographicCRS.WGS84);
+        Filter filter = index.getFidFilter(layer, area);
+        assertTrue(filter instanceof Id);
+        Set<String> ids = new HashSet<>();
+        for (Identifier id : ((Id) filter).getIdentifiers()) {
+            ids.add(id.getID().toString());
+        }
+        assertEquals(2, ids.size());
+        assertTrue(ids.contains("points.3"));
+        assertTrue(ids.contains("points.4"));
+
+        // no hits
+        area = new ReferencedEnvelope(20, 30, 20, 30, DefaultGeographicCRS.WGS84);
+        assertEquals(Filter.EXCLUDE, index.getFidFilter(layer, area));
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        metadata.put(FeatureInfoSpatialIndex.INDEX_KEY, true);
+        FeatureInfoSpatialIndex index = new FeatureInfoSpatialIndex(catalog, accessManager);
+        FeatureInfoSpatialIndex.LayerIndex built = index.getIndexFuture(ft).get();
+        assertNotNull(built);
+        assertTrue(built == index.getIndex(ft));
+
+        CatalogPostModifyEvent event = createNiceMock(CatalogPostModifyEvent.class);
+        expect(event.getSource()).andReturn(ft).anyTimes();
+        replay(event);
+        index.handlePostModifyEvent(event);
+        assertTrue(built != index.getIndexFuture(ft).get());
+    }
+
+    @Test
+    public void testDataSecurity() throws Exception {
+        // the layer handed out by the secure catalog only shows the first two features to the
+        // first user, the index must not be built from it
+        SimpleFeatureType type = DataUtilities.createType("points", "geom:Point");
+        ListFeatureCollection restricted = new ListFeatureCollection(type);
+        GeometryFactory gf = new GeometryFactory();
+        for (int i = 0; i < 2; i++) {
+            restricted.add(SimpleFeatureBuilder.build(type,
+                    new Object[] { gf.createPoint(new Coordinate(i, i)) }, "points." + i));
+        }
+        FeatureTypeInfo secured = createNiceMock(FeatureTypeInfo.class);
+        expect(secured.getId()).andReturn("ft1").anyTimes();
+        expect((Object) secured.getFeatureSource(null, null))
+                .andReturn(DataUtilities.source(restricted)).anyTimes();
+        replay(secured);
+        metadata.put(FeatureInfoSpatialIndex.INDEX_KEY, true);
+        LayerInfo securedLayer = createNiceMock(LayerInfo.class);
+        expect(securedLayer.getResource()).andReturn(secured).anyTimes();
+        expect(securedLayer.getMetadata()).andReturn(metadata).anyTimes();
+        replay(securedLayer);
+
+        Authentication restrictedUser = new UsernamePasswordAuthenticationToken("restricted",
+                null, Arrays.asList(new SimpleGrantedAuthority("ROLE_RESTRICTED")));
+        Authentication admin = new UsernamePasswordAuthenticationToken("admin", null,
+                Arrays.asList(new SimpleGrantedAuthority("ROLE_ADMINISTRATOR")));
+        Filter readFilter = CQL.toFilter("BBOX(geom, -0.5, -0.5, 1.5, 1.5)");
+        accessManager = createNiceMock(ResourceAccessManager.class);
+        expect(accessManager.getAccessLimits(restrictedUser, securedLayer)).andReturn(
+                new VectorAccessLimits(CatalogMode.HIDE, null, readFilter, null, null))
+                .anyTimes();
+        expect(accessManager.getAccessLimits(admin, securedLayer)).andReturn(null).anyTimes();
+        replay(accessManager);
+
+        FeatureInfoSpatialIndex index = new FeatureInfoSpatialIndex(catalog, accessManager);
+        ReferencedEnvelope area = new ReferencedEnvelope(0.5, 4.5, 0.5, 4.5,
+                DefaultGeographicCRS.WGS84);
+
+        // the restricted user asks first, the candidates are filtered by its read filter
+        SecurityContextHolder.getContext().setAuthentication(restrictedUser);
+        index.getIndexFuture(secured).get();
+        Filter filter = index.getFidFilter(securedLayer, area);
+        assertTrue(filter instanceof And);
+        List<Filter> children = ((And) filter).getChildren();
+        assertEquals(readFilter, children.get(1));
+        assertEquals(new HashSet<>(Arrays.asList("points.1", "points.2", "points.3",
+                "points.4")), ids(children.get(0)));
+
+        // the admin sees all the features, not only the ones of the first user
+        SecurityContextHolder.getContext().setAuthentication(admin);
+        filter = index.getFidFilter(securedLayer, area);
+        assertTrue(filter instanceof Id);
+        assertEquals(new HashSet<>(Arrays.asList("points.1", "points.2", "points.3",
+                "points.4")), ids(filter));
+    }
+
+    Set<String> ids(Filter filter) {
+        Set<String> ids = new HashSet<>();
+        for (Identifier id : ((Id) filter).getIdentifiers()) {
+            ids.add(id.getID().toString());
+        }
+        return ids;
+    }
+
+    @Test
+    public void testSpatialQueryWhileBuilding() throws Exception {
+        metadata.put(FeatureInfoSpatialIndex.INDEX_KEY, true);
+        LayerInfo slowLayer = createNiceMock(LayerInfo.class);
+        expect(slowLayer.getResource()).andReturn(slow).anyTimes();
+        expect(slowLayer.getMetadata()).andReturn(metadata).anyTimes();
+        replay(slowLayer);
+
+        FeatureInfoSpatialIndex index = new FeatureInfoSpatialIndex(catalog, accessManager);
+        ReferencedEnvelope area = new ReferencedEnvelope(-1, 1, -1, 1, DefaultGeographicCRS.WGS84);
+        try {
+            // the index is not ready, the caller has to run the spatial query
+            assertNull(index.getFidFilter(slowLayer, area));
+        } finally {
+            latch.countDown();
+        }
+        index.getIndexFuture(slow).get();
+        assertEquals(Filter.EXCLUDE, index.getFidFilter(slowLayer, area));
+    }
+}
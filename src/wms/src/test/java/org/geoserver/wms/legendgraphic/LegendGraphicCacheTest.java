@@ -0,0 +1,123 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.security.GeoServerSecurityManager;
+import org.geoserver.wms.GetLegendGraphicRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+public class LegendGraphicCacheTest {
+
+    Catalog catalog;
+
+    @Before
+    public void setup() {
+        catalog = createNiceMock(Catalog.class);
+        replay(catalog);
+    }
+
+    GetLegendGraphicRequest request(String layer) {
+        GetLegendGraphicRequest request = new GetLegendGraphicRequest();
+        Map<String, String> rawKvp = new HashMap<>();
+        rawKvp.put("LAYER", layer);
+        rawKvp.put("FORMAT", "image/png");
+        request.setRawKvp(rawKvp);
+        return request;
+    }
+
+    BufferedImageLegendGraphic legend(AtomicInteger calls) {
+        calls.incrementAndGet();
+        return new BufferedImageLegendGraphic(new BufferedImage(20, 20,
+                BufferedImage.TYPE_INT_ARGB));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        LegendGraphicCache cache = new LegendGraphicCache(catalog, 0, 1000);
+        assertFalse(cache.isEnabled());
+        AtomicInteger calls = new AtomicInteger();
+        cache.getLegend(request("topp:states"), () -> legend(calls));
+        cache.getLegend(request("topp:states"), () -> legend(calls));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testCachedAndInvalidated() throws Exception {
+        LegendGraphicCache cache = new LegendGraphicCache(catalog, 60, 1024 * 1024);
+        AtomicInteger calls = new AtomicInteger();
+        Object l1 = cache.getLegend(request("topp:states"), () -> legend(calls));
+        Object l2 = cache.getLegend(request("topp:states"), () -> legend(calls));
+        assertSame(l1, l2);
+        assertEquals(1, calls.get());
+
+        // different layer, different legend
+        cache.getLegend(request("sf:roads"), () -> legend(calls));
+        assertEquals(2, calls.get());
+        assertEquals(2, cache.size());
+
+        // catalog change flushes the cache
+        CatalogPostModifyEvent event = createNiceMock(CatalogPostModifyEvent.class);
+        replay(event);
+        cache.handlePostModifyEvent(event);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSecurity() throws Exception {
+        LegendGraphicCache cache = new LegendGraphicCache(catalog, 60, 1024 * 1024);
+        AtomicInteger calls = new AtomicInteger();
+        try {
+            // same roles, different users, different legends
+            SecurityContextHolder.getContext().setAuthentication(
+                    new UsernamePasswordAuthenticationToken("user1", null,
+                            Arrays.asList(new SimpleGrantedAuthority("ROLE_A"))));
+            cache.getLegend(request("topp:states"), () -> legend(calls));
+            SecurityContextHolder.getContext().setAuthentication(
+                    new UsernamePasswordAuthenticationToken("user2", null,
+                            Arrays.asList(new SimpleGrantedAuthority("ROLE_A"))));
+            cache.getLegend(request("topp:states"), () -> legend(calls));
+            assertEquals(2, calls.get());
+            assertEquals(2, cache.size());
+        } finally {
+            SecurityContextHolder.getContext().setAuthentication(null);
+        }
+
+        // security configuration changes flush the cache
+        cache.handlePostChanged(createNiceMock(GeoServerSecurityManager.class));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testNotCacheable() throws Exception {
+        LegendGraphicCache cache = new LegendGraphicCache(catalog, 60, 1024 * 1024);
+        AtomicInteger calls = new AtomicInteger();
+        Object legend = cache.getLegend(request("topp:states"), () -> {
+            calls.incrementAndGet();
+            return "not an image";
+        });
+        assertEquals("not an image", legend);
+        cache.getLegend(request("topp:states"), () -> calls.incrementAndGet());
+        assertEquals(2, calls.get());
+        assertEquals(0, cache.size());
+    }
+}
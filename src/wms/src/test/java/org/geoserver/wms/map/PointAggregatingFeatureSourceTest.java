@@ -0,0 +1,144 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+
+public class PointAggregatingFeatureSourceTest {
+
+    static final FilterFactory2 FF = CommonFactoryFinder.getFilterFactory2();
+
+    SimpleFeatureSource points;
+
+    @Before
+    public void setup() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("points", "geom:Point,type:String");
+        ListFeatureCollection fc = new ListFeatureCollection(type);
+        GeometryFactory gf = new GeometryFactory();
+        // 10 points in the first cell, 5 in the second, half of each of type "a"
+        int id = 0;
+        for (int i = 0; i < 10; i++) {
+            fc.add(SimpleFeatureBuilder.build(type,
+                    new Object[] { gf.createPoint(new Coordinate(0.1 + i * 0.05, 0.5)),
+                            i % 2 == 0 ? "a" : "b" },
+                    "points." + (id++)));
+        }
+        for (int i = 0; i < 5; i++) {
+            fc.add(SimpleFeatureBuilder.build(type,
+                    new Object[] { gf.createPoint(new Coordinate(5.5, 5.1 + i * 0.1)),
+                            i % 2 == 0 ? "a" : "b" },
+                    "points." + (id++)));
+        }
+        points = DataUtilities.source(fc);
+    }
+
+    PointAggregatingFeatureSource aggregate() throws Exception {
+        // 10x10 map, 1 unit per pixel, cells of 2 pixels
+        ReferencedEnvelope area = new ReferencedEnvelope(0, 10, 0, 10, null);
+        return new PointAggregatingFeatureSource(points, area, 10, 10, 2);
+    }
+
+    Map<Integer, Point> collect(SimpleFeatureCollection fc) {
+        Map<Integer, Point> result = new HashMap<>();
+        try (SimpleFeatureIterator it = fc.features()) {
+            while (it.hasNext()) {
+                SimpleFeature f = it.next();
+                result.put((Integer) f.getAttribute(PointAggregatingFeatureSource.COUNT),
+                        (Point) f.getDefaultGeometry());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testCanAggregate() throws Exception {
+        assertTrue(PointAggregatingFeatureSource.canAggregate(points));
+        SimpleFeatureType lines = DataUtilities.createType("lines", "geom:LineString");
+        assertFalse(PointAggregatingFeatureSource
+                .canAggregate(DataUtilities.source(new ListFeatureCollection(lines))));
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+        PointAggregatingFeatureSource source = aggregate();
+        assertEquals(2, source.getSchema().getDescriptors().size());
+
+        Map<Integer, Point> cells = collect(source.getFeatures());
+        assertEquals(2, cells.size());
+        assertEquals(0.325, cells.get(10).getX(), 1e-6);
+        assertEquals(0.5, cells.get(10).getY(), 1e-6);
+        assertEquals(5.5, cells.get(5).getX(), 1e-6);
+        assertEquals(5.3, cells.get(5).getY(), 1e-6);
+    }
+
+    @Test
+    public void testDefinitionQueryAndCountFilter() throws Exception {
+        PointAggregatingFeatureSource source = aggregate();
+        // the definition query works against the original attributes
+        source.setDefinitionQuery(
+                new Query("points", FF.equals(FF.property("type"), FF.literal("a"))));
+        Map<Integer, Point> cells = collect(source.getFeatures());
+        assertEquals(2, cells.size());
+        assertTrue(cells.containsKey(5));
+        assertTrue(cells.containsKey(3));
+
+        // the query filter works against the aggregated ones
+        cells = collect(source.getFeatures(FF.greater(
+                FF.property(PointAggregatingFeatureSource.COUNT), FF.literal(4))));
+        assertEquals(1, cells.size());
+        assertTrue(cells.containsKey(5));
+    }
+
+    @Test
+    public void testTileClipping() throws Exception {
+        PointAggregatingFeatureSource source = aggregate();
+        // the tile covers only some of the points of the first cell, the whole cell is
+        // aggregated anyways, but its point falls outside of the tile
+        Filter tile = FF.bbox(FF.property("geom"), new ReferencedEnvelope(0, 0.3, 0, 1, null));
+        assertTrue(collect(source.getFeatures(tile)).isEmpty());
+
+        // here the point falls inside, and the count is the one of the whole cell
+        tile = FF.bbox(FF.property("geom"), new ReferencedEnvelope(0, 0.4, 0, 1, null));
+        Map<Integer, Point> cells = collect(source.getFeatures(tile));
+        assertEquals(1, cells.size());
+        assertTrue(cells.containsKey(10));
+    }
+
+    @Test
+    public void testCount() throws Exception {
+        PointAggregatingFeatureSource source = aggregate();
+        assertEquals(2, source.getCount(Query.ALL));
+        Filter tile = FF.bbox(FF.property("geom"), new ReferencedEnvelope(4, 10, 4, 10, null));
+        assertEquals(1, source.getCount(new Query("points", tile)));
+        // filters against the count are not evaluated
+        assertEquals(-1, source.getCount(new Query("points", FF.greater(
+                FF.property(PointAggregatingFeatureSource.COUNT), FF.literal(4)))));
+    }
+}
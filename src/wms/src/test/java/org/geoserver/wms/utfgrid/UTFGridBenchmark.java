@@ -0,0 +1,83 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.utfgrid;
+
+import java.awt.image.BufferedImage;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.geoserver.wms.WMSMapContent;
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+/**
+ * Measures the throughput of the UTFGrid entry table and grid encoding, on features painted in
+ * an in memory image, run it with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *   -Dexec.mainClass=org.geoserver.wms.utfgrid.UTFGridBenchmark -Dexec.args="10000 256"
+ * </pre>
+ *
+ * Not a unit test, it is not run as part of the build.
+ */
+public class UTFGridBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        SimpleFeatureType type = DataUtilities.createType("bench",
+                "geom:Polygon:srid=4326,id:Integer,value:Double,label:String");
+        SimpleFeature[] features = new SimpleFeature[count];
+        GeometryFactory gf = new GeometryFactory();
+        for (int i = 0; i < count; i++) {
+            double x = i % 360 - 180;
+            double y = i % 180 - 90;
+            features[i] = SimpleFeatureBuilder.build(type,
+                    new Object[] { gf.createPolygon(new Coordinate[] { new Coordinate(x, y),
+                            new Coordinate(x + 1, y), new Coordinate(x + 1, y + 1),
+                            new Coordinate(x, y) }), i, i / 8d, "label " + i },
+                    "bench." + i);
+        }
+
+        for (int i = 0; i < iterations; i++) {
+            // each feature is painted twice, as if matched by two rules
+            long start = System.nanoTime();
+            UTFGridEntries entries = new UTFGridEntries();
+            int[] values = new int[count];
+            for (int f = 0; f < count; f++) {
+                values[f] = entries.getKeyForFeature(features[f]);
+                entries.getKeyForFeature(features[f]);
+            }
+            long entriesTime = (System.nanoTime() - start) / 1000000;
+
+            // paint the values in stripes, as the renderer would
+            BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+            for (int r = 0; r < size; r++) {
+                for (int c = 0; c < size; c++) {
+                    image.setRGB(c, r, values[(r * size + c) / 4 % count]);
+                }
+            }
+
+            start = System.nanoTime();
+            UTFGridMapContent content = new UTFGridMapContent(new WMSMapContent(), entries, 1);
+            try {
+                new UTFGridMap(content, image).writeTo(new NullOutputStream());
+            } finally {
+                content.dispose();
+            }
+            long encodingTime = (System.nanoTime() - start) / 1000000;
+
+            System.out.println("Iteration " + i + ": " + count + " entries in " + entriesTime
+                    + "ms, " + size + "x" + size + " grid encoded in " + encodingTime + "ms");
+        }
+    }
+}
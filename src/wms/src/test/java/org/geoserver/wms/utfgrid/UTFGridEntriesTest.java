@@ -0,0 +1,50 @@
+/* (c) 2017 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.utfgrid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.geoserver.wms.utfgrid.UTFGridEntries.UTFGridEntry;
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class UTFGridEntriesTest {
+
+    @Test
+    public void testEntries() throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("poi",
+                "name:String,geom:Point,type:String");
+        GeometryFactory gf = new GeometryFactory();
+        SimpleFeature f1 = SimpleFeatureBuilder.build(type,
+                new Object[] { "a", gf.createPoint(new Coordinate(0, 0)), "shop" }, "poi.1");
+        SimpleFeature f2 = SimpleFeatureBuilder.build(type,
+                new Object[] { "b", gf.createPoint(new Coordinate(1, 1)), "bar" }, "poi.2");
+        // same feature, read again by a different rule
+        SimpleFeature f1Copy = SimpleFeatureBuilder.copy(f1);
+
+        UTFGridEntries entries = new UTFGridEntries();
+        assertEquals(1, entries.getKeyForFeature(f1));
+        assertEquals(2, entries.getKeyForFeature(f2));
+        assertEquals(1, entries.getKeyForFeature(f1Copy));
+        assertEquals(2, entries.size());
+
+        UTFGridEntry entry = entries.getEntry(2);
+        assertEquals("poi.2", entry.getId());
+        // geometries are not retained
+        assertArrayEquals(new String[] { "name", "type" }, entry.getNames());
+        assertArrayEquals(new Object[] { "b", "bar" }, entry.getValues());
+
+        assertNull(entries.getEntry(0));
+        assertNull(entries.getEntry(3));
+    }
+}
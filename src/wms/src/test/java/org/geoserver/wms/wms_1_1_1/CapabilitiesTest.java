@@ -192,6 +192,37 @@ public class CapabilitiesTest extends WMSTestSupport {
 
         assertEquals(getRawTopLayerCount(), nodeLayers.getLength());
     }
+
+    @Test
+    public void testLayerAndGroupOrder() throws Exception {
+        Document dom = dom(get("wms?request=getCapabilities&version=1.1.1"), true);
+
+        XpathEngine xpath = XMLUnit.newXpathEngine();
+        NodeList names = xpath.getMatchingNodes(
+                "/WMT_MS_Capabilities/Capability/Layer/Layer/Name", dom);
+        List<String> advertised = new ArrayList<>();
+        for (int i = 0; i < names.getLength(); i++) {
+            advertised.add(names.item(i).getTextContent());
+        }
+
+        // layers and groups keep the catalog order, they are not sorted by name
+        List<String> layers = new ArrayList<>();
+        for (LayerInfo layer : getCatalog().getLayers()) {
+            layers.add(layer.prefixedName());
+        }
+        List<String> groups = new ArrayList<>();
+        for (LayerGroupInfo group : getCatalog().getLayerGroups()) {
+            groups.add(group.prefixedName());
+        }
+        layers.retainAll(advertised);
+        groups.retainAll(advertised);
+        List<String> advertisedLayers = new ArrayList<>(advertised);
+        advertisedLayers.retainAll(layers);
+        List<String> advertisedGroups = new ArrayList<>(advertised);
+        advertisedGroups.retainAll(groups);
+        assertEquals(layers, advertisedLayers);
+        assertEquals(groups, advertisedGroups);
+    }
     
     @Test
     public void testNonAdvertisedLayer() throws Exception {